@@ -0,0 +1,99 @@
+package com.box.prototype.chatservice.akka;
+
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.JavaSerializer;
+import com.box.prototype.chatservice.domain.ChatWireCodec;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+
+/**
+ * serializing and deserializing with the chat serializer and with java serialization, which it replaced, of a
+ * snapshot of a chatroom with a full chat log window, a published frame, and an event as journaled.  payload sizes
+ * are printed on setup
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatSerializerBenchmark {
+    @Param({"chat", "java"})
+    public String serializer;
+
+    @Param({"state", "frame", "event"})
+    public String payload;
+
+    @Param({"1000"})
+    public int stateMessages;
+
+    private ActorSystem system;
+    private ChatSerializer chatSerializer;
+    private JavaSerializer javaSerializer;
+    private Object value;
+    private String manifest;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws Exception {
+        this.system = ActorSystem.create("serializer-benchmark",
+            ConfigFactory.parseString("akka.loglevel = WARNING\nakka.actor.provider = local").withFallback(ConfigFactory.load()));
+        this.chatSerializer = new ChatSerializer((ExtendedActorSystem)this.system);
+        this.javaSerializer = new JavaSerializer((ExtendedActorSystem)this.system);
+
+        ChatMessage message = new ChatMessage(System.currentTimeMillis(), "user-1", "hello, this is a chat message");
+        switch (this.payload) {
+            case "state": {
+                ChatRoomEntityState state = new ChatRoomEntityState("benchmark");
+                state.update(new MemberJoined(new ChatMessage(message.getTimestamp(), "user-1", "user-1 joined")), 1);
+                for (int i = 2; i <= this.stateMessages; i++) {
+                    state.update(new MessageAdded(message), i);
+                }
+                this.value = state;
+                break;
+            }
+            case "frame":
+                this.value = ChatWireCodec.frame("1234567", new ChatMessageEnvelope(message, "1234567"));
+                break;
+            default:
+                this.value = new MessageAdded(message);
+        }
+        this.manifest = this.chatSerializer.manifest(this.value);
+        this.bytes = toBinary();
+        System.out.printf("%n%s %s: %d bytes%n", this.serializer, this.payload, this.bytes.length);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.system.terminate();
+        this.system.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public byte[] toBinary() {
+        return "chat".equals(this.serializer) ? this.chatSerializer.toBinary(this.value) : this.javaSerializer.toBinary(this.value);
+    }
+
+    @Benchmark
+    public Object fromBinary() {
+        return "chat".equals(this.serializer) ? this.chatSerializer.fromBinary(this.bytes, this.manifest) : this.javaSerializer.fromBinary(this.bytes);
+    }
+}
@@ -0,0 +1,127 @@
+package com.box.prototype.chatservice.akka.journal;
+
+import akka.Done;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.persistence.AbstractPersistentActor;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static akka.pattern.Patterns.ask;
+
+/**
+ * persisting events through leveldb and through the segmented journal, on local disk (a temp directory).  each thread
+ * drives its own persistent actor, like a chatroom, persisting an event per operation and waiting for it to be
+ * written, so concurrent writes are there to be group committed.  -t 1 gives the latency of lone writes, and
+ * -bm sample the latency distribution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(16)
+public class JournalThroughputBenchmark {
+    @Param({"akka.persistence.journal.leveldb", "chat.persistence.journal.segmented"})
+    public String journal;
+
+    @Param({"256"})
+    public int eventSize;
+
+    /** persists the events it's sent, replying once each is written */
+    public static class Writer extends AbstractPersistentActor {
+        private final String persistenceId;
+
+        public Writer(String persistenceId) {
+            this.persistenceId = persistenceId;
+        }
+
+        @Override
+        public String persistenceId() {
+            return this.persistenceId;
+        }
+
+        @Override
+        public Receive createReceiveRecover() {
+            return receiveBuilder().matchAny(event -> {}).build();
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                .match(byte[].class, event -> persist(event, persisted -> getSender().tell(Done.getInstance(), getSelf())))
+                .build();
+        }
+    }
+
+    /** a writer per thread */
+    @State(Scope.Thread)
+    public static class WriterState {
+        private static final AtomicInteger writers = new AtomicInteger();
+        private ActorRef writer;
+
+        @Setup
+        public void setup(JournalThroughputBenchmark benchmark) {
+            this.writer = benchmark.system.actorOf(Props.create(Writer.class, "writer-" + writers.incrementAndGet()));
+        }
+    }
+
+    private Path dir;
+    private ActorSystem system;
+    private byte[] event;
+
+    @Setup
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("journal-benchmark");
+        Config config = ConfigFactory.parseString(String.join("\n",
+                "akka.loglevel = WARNING",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.persistence.journal.plugin = " + this.journal,
+                "akka.persistence.journal.leveldb.dir = \"" + new File(this.dir.toFile(), "leveldb") + "\"",
+                "chat.persistence.journal.segmented.dir = \"" + new File(this.dir.toFile(), "segmented") + "\""))
+            .withFallback(ConfigFactory.parseResources("akka-persistence-dev.conf"))
+            .withFallback(ConfigFactory.defaultReference())
+            .resolve();
+        this.system = ActorSystem.create("journal-benchmark", config);
+        this.event = new byte[this.eventSize];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.system.terminate();
+        this.system.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public Object persist(WriterState state) throws Exception {
+        return ask(state.writer, this.event, Duration.ofSeconds(10)).toCompletableFuture().get();
+    }
+}
@@ -0,0 +1,95 @@
+package com.box.prototype.chatservice.domain;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.stream.ActorMaterializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.box.prototype.chatservice.domain.ChatRoomRelayProtocol.*;
+
+/**
+ * publishing a chatroom message to every session on a node, from the relay receiving it through to each session's
+ * outbound stream.  each operation publishes one frame and waits until all sessions have it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ChatRoomRelayFanOutBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int sessions;
+
+    /** stands in for the shard region and the chatroom, ignoring joins */
+    public static class NullChatRoom extends AbstractActor {
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder().matchAny(m -> {}).build();
+        }
+    }
+
+    private ActorSystem system;
+    private ActorRef relay;
+    private volatile CountDownLatch delivered;
+    private Publish publish;
+
+    @Setup
+    public void setup() {
+        this.system = ActorSystem.create("fan-out-benchmark", ConfigFactory.parseString("akka.loglevel = WARNING"));
+        ActorMaterializer materializer = ActorMaterializer.create(this.system);
+        ActorRef chatRoom = this.system.actorOf(Props.create(NullChatRoom.class));
+        this.relay = this.system.actorOf(ChatRoomRelay.createProps("benchmark", chatRoom, Duration.ofHours(1), Duration.ofSeconds(5), 1, 0));
+
+        for (int i = 0; i < this.sessions; i++) {
+            String sessionId = "session-" + i;
+            SourceQueueWithComplete<ChatFrame> queue = Source.<ChatFrame>queue(16, OverflowStrategy.backpressure())
+                .to(Sink.foreach(frame -> this.delivered.countDown()))
+                .run(materializer);
+            this.relay.tell(new Subscribe(new SessionInfo(sessionId, "user-" + i, "benchmark", "", false), queue), ActorRef.noSender());
+            this.relay.tell(new Deliver(sessionId, Collections.emptyList(), true), chatRoom);
+        }
+
+        String payload = "{\"message\":{\"timestamp\":0,\"userId\":\"user-1\",\"message\":\"hello\"},\"lastEventId\":\"1\"}";
+        this.publish = new Publish(new ChatFrame("1", payload.getBytes(StandardCharsets.UTF_8), null));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.system.terminate();
+        this.system.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void publish() throws InterruptedException {
+        this.delivered = new CountDownLatch(this.sessions);
+        this.relay.tell(this.publish, ActorRef.noSender());
+        this.delivered.await();
+    }
+}
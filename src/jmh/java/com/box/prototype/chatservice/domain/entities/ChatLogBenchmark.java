@@ -0,0 +1,55 @@
+package com.box.prototype.chatservice.domain.entities;
+
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** backfilling a rejoining session from the in-memory chat log, i.e. what used to be chatLog.tailMap iteration */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatLogBenchmark {
+    @Param({"1000"})
+    public int size;
+
+    // how many messages behind the head of the log the session resumes from
+    @Param({"10", "100", "1000"})
+    public int behind;
+
+    private ChatLog chatLog;
+    private long cursor;
+
+    @Setup
+    public void setup() {
+        this.chatLog = new ChatLog();
+        for (int i = 1; i <= this.size; i++) {
+            this.chatLog.append(i, new ChatMessage(System.currentTimeMillis(), "user-" + (i % 10), "chat message " + i));
+        }
+        this.cursor = this.size - this.behind;
+    }
+
+    @Benchmark
+    public void forEachAfter(Blackhole blackhole) {
+        this.chatLog.forEachAfter(this.cursor, (sequenceNr, message) -> blackhole.consume(message));
+    }
+
+    @Benchmark
+    public int positionAfter() {
+        return this.chatLog.positionAfter(this.cursor);
+    }
+}
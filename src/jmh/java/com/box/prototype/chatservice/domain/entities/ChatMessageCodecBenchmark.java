@@ -0,0 +1,78 @@
+package com.box.prototype.chatservice.domain.entities;
+
+import com.box.prototype.chatservice.domain.ChatWireCodec;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** json and binary encoding of outbound message envelopes, and decoding of inbound chat messages as sessions do */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatMessageCodecBenchmark {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private ChatMessage message;
+    private ChatMessageEnvelope envelope;
+    private String inbound;
+    private byte[] inboundBytes;
+    private byte[] binaryInbound;
+
+    @Setup
+    public void setup() throws IOException {
+        this.message = new ChatMessage(System.currentTimeMillis(), "user-1", "hello, this is a chat message");
+        this.envelope = new ChatMessageEnvelope(this.message, "1234567");
+        this.inbound = this.mapper.writeValueAsString(this.message);
+        this.inboundBytes = this.mapper.writeValueAsBytes(this.message);
+        this.binaryInbound = ChatWireCodec.encodeBinaryInbound(this.message);
+    }
+
+    @Benchmark
+    public byte[] encodeEnvelope() throws IOException {
+        return this.mapper.writeValueAsBytes(this.envelope);
+    }
+
+    @Benchmark
+    public byte[] encodeBinaryEnvelope() {
+        return ChatWireCodec.encodeBinary(this.envelope);
+    }
+
+    /** encoding as the chatroom does it, once per message for all sessions */
+    @Benchmark
+    public ChatFrame encodeFrame() {
+        return ChatRoomEntity.encodeFrame(1234567, this.message);
+    }
+
+    @Benchmark
+    public ChatMessage decodeMessage() throws IOException {
+        return this.mapper.readValue(this.inbound, ChatMessage.class);
+    }
+
+    /** decoding straight from the frame's bytes, as json sessions do */
+    @Benchmark
+    public ChatWireCodec.Inbound decodeJson() throws IOException {
+        return ChatWireCodec.decodeJson(ByteBuffer.wrap(this.inboundBytes));
+    }
+
+    @Benchmark
+    public ChatWireCodec.Inbound decodeBinary() {
+        return ChatWireCodec.decodeBinary(ByteBuffer.wrap(this.binaryInbound));
+    }
+}
@@ -0,0 +1,96 @@
+package com.box.prototype.chatservice.domain.entities;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static akka.pattern.Patterns.ask;
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+
+/**
+ * messages per second a single chatroom commits with AddMessage batching on and off, through leveldb on local disk (a
+ * temp directory).  each operation sends a burst of messages to the room, as its sessions would under load, and waits
+ * for all of them to be acked, so the score is messages per second
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@OperationsPerInvocation(ChatRoomBatchingBenchmark.BURST)
+public class ChatRoomBatchingBenchmark {
+    public static final int BURST = 100;
+
+    @Param({"off", "on"})
+    public String batching;
+
+    private Path dir;
+    private ActorSystem system;
+    private ActorRef chatRoom;
+    private AddMessage addMessage;
+
+    @Setup
+    public void setup() throws Exception {
+        this.dir = Files.createTempDirectory("batching-benchmark");
+        Config config = ConfigFactory.parseString(String.join("\n",
+                "akka.loglevel = WARNING",
+                "akka.remote.netty.tcp.port = 0",
+                "akka.cluster.seed-nodes = []",
+                "akka.persistence.journal.leveldb.dir = \"" + new File(this.dir.toFile(), "journal") + "\"",
+                "akka.persistence.snapshot-store.local.dir = \"" + new File(this.dir.toFile(), "snapshots") + "\"",
+                "chat-rooms.retention.archive.dir = \"" + new File(this.dir.toFile(), "archive") + "\"",
+                "chat-rooms.passivation.idle-timeout = 0",
+                "chat-rooms.batching.enabled = " + this.batching))
+            .withFallback(ConfigFactory.load());
+        this.system = ActorSystem.create("batching-benchmark", config);
+        // the room is started on its own rather than through sharding, it only needs a name to be a persistence id
+        this.chatRoom = this.system.actorOf(Props.create(ChatRoomEntity.class), "benchmark");
+        SessionInfo sessionInfo = new SessionInfo("session-1", "user-1", "benchmark", "", false);
+        this.addMessage = new AddMessage(new ChatMessage(System.currentTimeMillis(), "user-1", "hello, this is a chat message"), sessionInfo);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.system.terminate();
+        this.system.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public void addMessages() throws Exception {
+        CompletableFuture<?>[] acks = new CompletableFuture<?>[BURST];
+        for (int i = 0; i < BURST; i++) {
+            acks[i] = ask(this.chatRoom, this.addMessage, Duration.ofSeconds(10)).toCompletableFuture();
+        }
+        CompletableFuture.allOf(acks).get();
+    }
+}
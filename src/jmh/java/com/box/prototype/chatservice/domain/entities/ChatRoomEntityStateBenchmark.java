@@ -0,0 +1,60 @@
+package com.box.prototype.chatservice.domain.entities;
+
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+
+/** applying events to chatroom state, with the chat log window full so every message added also evicts one */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatRoomEntityStateBenchmark {
+    @Param({"1000"})
+    public int maxMessages;
+
+    private ChatRoomEntityState state;
+    private MessageAdded messageAdded;
+    private MemberJoined memberJoined;
+    private MemberLeft memberLeft;
+    private long sequenceNr = 0;
+
+    @Setup
+    public void setup() {
+        this.state = new ChatRoomEntityState("benchmark").withLimits(this.maxMessages, TimeUnit.HOURS.toMillis(1));
+        this.messageAdded = new MessageAdded(new ChatMessage(System.currentTimeMillis(), "user-1", "hello, this is a chat message"));
+        this.memberJoined = new MemberJoined(new ChatMessage(System.currentTimeMillis(), "user-2", "user-2 joined"));
+        this.memberLeft = new MemberLeft(new ChatMessage(System.currentTimeMillis(), "user-2", "user-2 left"));
+        for (int i = 0; i < this.maxMessages; i++) {
+            this.state.update(this.messageAdded, ++this.sequenceNr);
+        }
+    }
+
+    @Benchmark
+    public ChatRoomEntityState messageAdded() {
+        this.state.update(this.messageAdded, ++this.sequenceNr);
+        return this.state;
+    }
+
+    @Benchmark
+    public ChatRoomEntityState memberJoinedAndLeft() {
+        this.state.update(this.memberJoined, ++this.sequenceNr);
+        this.state.update(this.memberLeft, ++this.sequenceNr);
+        return this.state;
+    }
+}
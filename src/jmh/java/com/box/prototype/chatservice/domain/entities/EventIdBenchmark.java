@@ -0,0 +1,41 @@
+package com.box.prototype.chatservice.domain.entities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** formatting and parsing the event ids sessions resume from */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventIdBenchmark {
+    public long sequenceNr = 1234567;
+    public String eventId = "1234567";
+    public String malformedEventId = "not-an-event-id";
+
+    @Benchmark
+    public String eventId() {
+        return ChatRoomEntity.eventId(this.sequenceNr);
+    }
+
+    @Benchmark
+    public long parseEventId() {
+        return ChatRoomEntity.parseEventId(this.eventId);
+    }
+
+    @Benchmark
+    public long parseMalformedEventId() {
+        return ChatRoomEntity.parseEventId(this.malformedEventId);
+    }
+}
@@ -0,0 +1,135 @@
+package com.box.prototype.chatservice.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counters and latency histograms shared by all simulated users.  latencies are recorded in microseconds into
+ * recorders, which the reporter drains once per interval, adding them to the totals once measuring has started.
+ *
+ * cpu and heap are sampled from the jvm, which runs both the application and the load generator.
+ */
+public class LoadStats {
+    protected static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    // messages delivered live, and those delivered by backfill after a rejoin (latency includes the time disconnected)
+    protected final Recorder liveLatency = new Recorder(MAX_LATENCY_MICROS, 3);
+    protected final Recorder backfillLatency = new Recorder(MAX_LATENCY_MICROS, 3);
+    protected final Histogram liveTotal = new Histogram(MAX_LATENCY_MICROS, 3);
+    protected final Histogram backfillTotal = new Histogram(MAX_LATENCY_MICROS, 3);
+
+    public final LongAdder sent = new LongAdder();
+    // deliveries expected for the messages sent, i.e. the sessions connected to the room at the time
+    public final LongAdder expected = new LongAdder();
+    public final LongAdder delivered = new LongAdder();
+    // messages the server reported as missed in gap markers
+    public final LongAdder missed = new LongAdder();
+    public final LongAdder joins = new LongAdder();
+    public final LongAdder rejoins = new LongAdder();
+    public final LongAdder errors = new LongAdder();
+
+    private volatile boolean measuring = false;
+    private long measureStartTime = 0;
+    private long gcStartMillis = 0;
+    private double cpuLoadSum = 0;
+    private double cpuLoadMax = 0;
+    private long heapUsedMax = 0;
+    private long samples = 0;
+
+    public void recordLive(long latencyNanos) {
+        this.liveLatency.recordValue(toMicros(latencyNanos));
+    }
+
+    public void recordBackfill(long latencyNanos) {
+        this.backfillLatency.recordValue(toMicros(latencyNanos));
+    }
+
+    /** resets everything recorded during the ramp up */
+    public synchronized void startMeasuring() {
+        this.liveLatency.getIntervalHistogram();
+        this.backfillLatency.getIntervalHistogram();
+        this.sent.reset();
+        this.expected.reset();
+        this.delivered.reset();
+        this.missed.reset();
+        this.joins.reset();
+        this.rejoins.reset();
+        this.errors.reset();
+        this.measureStartTime = System.nanoTime();
+        this.gcStartMillis = gcMillis();
+        this.measuring = true;
+    }
+
+    /** samples cpu and heap, called once a second */
+    public synchronized void sampleResources() {
+        if (!this.measuring) {
+            return;
+        }
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double cpuLoad = ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuLoad();
+            if (cpuLoad >= 0) {
+                this.cpuLoadSum += cpuLoad;
+                this.cpuLoadMax = Math.max(this.cpuLoadMax, cpuLoad);
+                this.samples++;
+            }
+        }
+        this.heapUsedMax = Math.max(this.heapUsedMax, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    }
+
+    /** prints the latencies since the last report, adding them to the totals */
+    public synchronized void report(long connectedSessions) {
+        Histogram live = this.liveLatency.getIntervalHistogram();
+        Histogram backfill = this.backfillLatency.getIntervalHistogram();
+        if (this.measuring) {
+            this.liveTotal.add(live);
+            this.backfillTotal.add(backfill);
+        }
+        System.out.printf("%s sessions=%d delivered=%d live p50=%.1fms p99=%.1fms p999=%.1fms backfilled=%d errors=%d%n",
+            this.measuring ? "[measure]" : "[ramp-up]", connectedSessions, live.getTotalCount(),
+            millis(live, 50), millis(live, 99), millis(live, 99.9), backfill.getTotalCount(), this.errors.sum());
+    }
+
+    /** prints the totals over the measured duration */
+    public synchronized void summary() {
+        double seconds = Math.max(1, System.nanoTime() - this.measureStartTime) / 1e9;
+        long expected = this.expected.sum();
+        long delivered = this.delivered.sum();
+        System.out.println("==== load test summary ====");
+        System.out.printf("duration           %.1fs%n", seconds);
+        System.out.printf("sent               %d (%.1f/s)%n", this.sent.sum(), this.sent.sum() / seconds);
+        System.out.printf("delivered          %d (%.1f/s), live %d, backfilled %d%n",
+            delivered, delivered / seconds, this.liveTotal.getTotalCount(), this.backfillTotal.getTotalCount());
+        System.out.printf("expected           ~%d, undelivered ~%d, reported missed (gaps) %d%n",
+            expected, Math.max(0, expected - delivered), this.missed.sum());
+        System.out.printf("joins              %d, rejoins %d, errors %d%n", this.joins.sum(), this.rejoins.sum(), this.errors.sum());
+        System.out.printf("live latency       p50=%.1fms p99=%.1fms p999=%.1fms max=%.1fms%n",
+            millis(this.liveTotal, 50), millis(this.liveTotal, 99), millis(this.liveTotal, 99.9), this.liveTotal.getMaxValue() / 1000.0);
+        System.out.printf("backfill latency   p50=%.1fms p99=%.1fms p999=%.1fms max=%.1fms%n",
+            millis(this.backfillTotal, 50), millis(this.backfillTotal, 99), millis(this.backfillTotal, 99.9), this.backfillTotal.getMaxValue() / 1000.0);
+        System.out.printf("process cpu        avg=%.0f%% max=%.0f%%%n",
+            this.samples == 0 ? 0 : 100 * this.cpuLoadSum / this.samples, 100 * this.cpuLoadMax);
+        System.out.printf("heap used          max=%dMB, gc time %dms%n", this.heapUsedMax / (1024 * 1024), gcMillis() - this.gcStartMillis);
+    }
+
+    protected static long toMicros(long nanos) {
+        return Math.max(0, Math.min(MAX_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    protected static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    protected static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
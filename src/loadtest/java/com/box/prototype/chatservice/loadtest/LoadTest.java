@@ -0,0 +1,215 @@
+package com.box.prototype.chatservice.loadtest;
+
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import com.box.prototype.chatservice.Application;
+import com.box.prototype.chatservice.akka.AkkaComponents;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.reactive.socket.client.ReactorNettyWebSocketClient;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * in-process load test.  starts one or more application nodes in this jvm (a local cluster when more than one), then
+ * drives rooms x users simulated users through the websocket route, spread across the nodes, with join/leave churn and
+ * rejoin storms.  prints latency percentiles as it goes, and a summary once done.
+ *
+ * settings are in loadtest.conf, overridden by arguments, e.g. loadtest.rooms=100 loadtest.nodes=3
+ */
+public class LoadTest {
+    protected static final int HTTP_PORT = 9091;
+    // the first seed node in akka-cluster-dev.conf has to be up for the cluster to form, so node 0 takes it
+    protected static final int[] SEED_PORTS = {2552, 2551};
+
+    protected final int NODES;
+    protected final int ROOMS;
+    protected final int USERS_PER_ROOM;
+    protected final Duration SEND_INTERVAL;
+    protected final boolean BATCH;
+    protected final boolean BINARY;
+    protected final long RAMP_UP;
+    protected final long DURATION;
+    protected final long DRAIN;
+    protected final double CHURN_RATE;
+    protected final long CHURN_PAUSE;
+    protected final long STORM_INTERVAL;
+    protected final double STORM_FRACTION;
+    protected final long STORM_PAUSE;
+    protected final long REPORT_INTERVAL;
+
+    protected final LoadStats stats = new LoadStats();
+    protected final List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+    protected final List<List<SimulatedUser>> rooms = new ArrayList<>();
+    protected final List<AtomicInteger> roomSessions = new ArrayList<>();
+    protected final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+    public static void main(String[] args) throws Exception {
+        Config config = ConfigFactory.parseString(String.join("\n", args))
+            .withFallback(ConfigFactory.parseResources("loadtest.conf"))
+            .resolve();
+        new LoadTest(config).run();
+        System.exit(0);
+    }
+
+    public LoadTest(Config config) {
+        NODES = Math.max(1, config.getInt("loadtest.nodes"));
+        ROOMS = config.getInt("loadtest.rooms");
+        USERS_PER_ROOM = config.getInt("loadtest.users-per-room");
+        SEND_INTERVAL = Duration.ofNanos((long)(TimeUnit.SECONDS.toNanos(1) / config.getDouble("loadtest.send-rate")));
+        BATCH = config.getBoolean("loadtest.batch");
+        BINARY = config.getBoolean("loadtest.binary");
+        RAMP_UP = config.getDuration("loadtest.ramp-up", TimeUnit.MILLISECONDS);
+        DURATION = config.getDuration("loadtest.duration", TimeUnit.MILLISECONDS);
+        DRAIN = config.getDuration("loadtest.drain", TimeUnit.MILLISECONDS);
+        CHURN_RATE = config.getDouble("loadtest.churn.rate");
+        CHURN_PAUSE = config.getDuration("loadtest.churn.pause", TimeUnit.MILLISECONDS);
+        STORM_INTERVAL = config.getDuration("loadtest.rejoin-storm.interval", TimeUnit.MILLISECONDS);
+        STORM_FRACTION = config.getDouble("loadtest.rejoin-storm.fraction");
+        STORM_PAUSE = config.getDuration("loadtest.rejoin-storm.pause", TimeUnit.MILLISECONDS);
+        REPORT_INTERVAL = config.getDuration("loadtest.report-interval", TimeUnit.MILLISECONDS);
+    }
+
+    public void run() throws Exception {
+        for (int i = 0; i < NODES; i++) {
+            this.nodes.add(startNode(i));
+        }
+        awaitCluster();
+
+        // users of a room are spread across the nodes, so messages cross nodes whenever there's more than one
+        WebSocketClient client = new ReactorNettyWebSocketClient();
+        int userCount = 0;
+        for (int room = 0; room < ROOMS; room++) {
+            AtomicInteger sessions = new AtomicInteger();
+            List<SimulatedUser> users = new ArrayList<>();
+            for (int user = 0; user < USERS_PER_ROOM; user++, userCount++) {
+                String baseUri = "ws://127.0.0.1:" + (HTTP_PORT + userCount % NODES);
+                users.add(new SimulatedUser(client, baseUri, "loadtest-room-" + room, "user-" + userCount, sessions, SEND_INTERVAL, BATCH, BINARY, this.stats));
+            }
+            this.rooms.add(users);
+            this.roomSessions.add(sessions);
+        }
+
+        System.out.printf("load test: %d nodes, %d rooms x %d users, %.2f messages/s per user, %s%s, ramp up %ds, duration %ds%n",
+            NODES, ROOMS, USERS_PER_ROOM, 1e9 / SEND_INTERVAL.toNanos(), BINARY ? "binary" : "json", BATCH ? " batched" : "",
+            RAMP_UP / 1000, DURATION / 1000);
+        List<SimulatedUser> all = allUsers();
+        for (int i = 0; i < all.size(); i++) {
+            SimulatedUser user = all.get(i);
+            this.scheduler.schedule(() -> user.connect(false), RAMP_UP * i / all.size(), TimeUnit.MILLISECONDS);
+        }
+
+        this.scheduler.scheduleAtFixedRate(() -> this.stats.report(connectedSessions()), REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleAtFixedRate(this.stats::sampleResources, 1, 1, TimeUnit.SECONDS);
+        if (CHURN_RATE > 0) {
+            this.scheduler.scheduleAtFixedRate(this::churn, RAMP_UP + 1000, 1000, TimeUnit.MILLISECONDS);
+        }
+        if (STORM_INTERVAL > 0) {
+            this.scheduler.scheduleAtFixedRate(this::rejoinStorm, RAMP_UP + STORM_INTERVAL, STORM_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        Thread.sleep(RAMP_UP);
+        this.stats.startMeasuring();
+        Thread.sleep(DURATION);
+
+        all.forEach(SimulatedUser::stopSending);
+        Thread.sleep(DRAIN);
+        this.scheduler.shutdownNow();
+        this.stats.report(connectedSessions());
+        this.stats.summary();
+
+        all.forEach(SimulatedUser::disconnect);
+        this.nodes.forEach(ConfigurableApplicationContext::close);
+    }
+
+    /** starts an application node, each with its own ports, journal and history database */
+    protected ConfigurableApplicationContext startNode(int index) {
+        int akkaPort = index < SEED_PORTS.length ? SEED_PORTS[index] : 2551 + index;
+        System.setProperty("akka.remote.netty.tcp.port", Integer.toString(akkaPort));
+        System.setProperty("akka.loglevel", "WARNING");
+        System.setProperty("akka.stdout-loglevel", "WARNING");
+        System.setProperty("akka.actor.debug.lifecycle", "off");
+        System.setProperty("akka.actor.debug.unhandled", "off");
+        // AkkaComponents loads its config through ConfigFactory.load(), which caches system properties
+        ConfigFactory.invalidateCaches();
+
+        return new SpringApplicationBuilder(Application.class)
+            .properties(
+                "server.port=" + (HTTP_PORT + index),
+                "spring.datasource.url=jdbc:h2:mem:loadtest-" + index + ";DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE",
+                "spring.main.banner-mode=off",
+                "logging.level.root=WARN")
+            .run();
+    }
+
+    /** waits for every node to see all of them up */
+    protected void awaitCluster() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+        for (ConfigurableApplicationContext node : this.nodes) {
+            ActorSystem system = node.getBean(AkkaComponents.class).getSystem();
+            while (upMembers(system) < NODES) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("cluster didn't form, " + upMembers(system) + " of " + NODES + " nodes up");
+                }
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    protected static long upMembers(ActorSystem system) {
+        long up = 0;
+        for (Member member : Cluster.get(system).state().getMembers()) {
+            if (member.status().equals(MemberStatus.up())) {
+                up++;
+            }
+        }
+        return up;
+    }
+
+    /** some users of each room leave, joining again after a pause */
+    protected void churn() {
+        this.rooms.forEach(users -> {
+            long leaving = Math.round(users.size() * CHURN_RATE);
+            for (int i = 0; i < leaving; i++) {
+                SimulatedUser user = users.get(ThreadLocalRandom.current().nextInt(users.size()));
+                if (user.isConnected()) {
+                    user.disconnect();
+                    this.scheduler.schedule(() -> user.connect(false), CHURN_PAUSE, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    /** a fraction of all users drop at once, then rejoin from their last event id after a pause */
+    protected void rejoinStorm() {
+        List<SimulatedUser> users = allUsers();
+        Collections.shuffle(users);
+        List<SimulatedUser> dropped = new ArrayList<>(users.subList(0, (int)(users.size() * STORM_FRACTION)));
+        System.out.printf("rejoin storm: dropping %d sessions%n", dropped.size());
+        dropped.forEach(SimulatedUser::disconnect);
+        this.scheduler.schedule(() -> dropped.forEach(user -> user.connect(true)), STORM_PAUSE, TimeUnit.MILLISECONDS);
+    }
+
+    protected List<SimulatedUser> allUsers() {
+        List<SimulatedUser> all = new ArrayList<>();
+        this.rooms.forEach(all::addAll);
+        return all;
+    }
+
+    protected long connectedSessions() {
+        return this.roomSessions.stream().mapToLong(AtomicInteger::get).sum();
+    }
+}
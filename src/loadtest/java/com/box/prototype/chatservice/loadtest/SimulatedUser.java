@@ -0,0 +1,212 @@
+package com.box.prototype.chatservice.loadtest;
+
+import com.box.prototype.chatservice.domain.ChatWireCodec;
+import com.box.prototype.chatservice.domain.models.ChatGap;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.box.prototype.chatservice.util.BinaryReader;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.box.prototype.chatservice.WebSocketConfig.BINARY_SUBPROTOCOL;
+
+/**
+ * a chat user connected through the websocket route, sending messages at a fixed rate while connected.  sent messages
+ * carry their send time, so whoever receives them (all users run in this jvm) can record publish to deliver latency.
+ */
+public class SimulatedUser {
+    protected static final String PREFIX = "loadtest:";
+    protected static final ObjectMapper mapper = new ObjectMapper();
+
+    private final WebSocketClient client;
+    private final String baseUri;
+    private final String chatRoom;
+    private final String userId;
+    // sessions currently connected to the user's room
+    private final AtomicInteger roomSessions;
+    private final Duration sendInterval;
+    // whether frames are batches of envelopes
+    private final boolean batch;
+    // whether the binary subprotocol is used instead of json
+    private final boolean binary;
+    private final LoadStats stats;
+
+    private volatile boolean sending = true;
+    private volatile String lastEventId = "";
+    private volatile long connectedAt = 0;
+    private Disposable connection = null;
+
+    public SimulatedUser(WebSocketClient client, String baseUri, String chatRoom, String userId, AtomicInteger roomSessions,
+                         Duration sendInterval, boolean batch, boolean binary, LoadStats stats) {
+        this.client = client;
+        this.baseUri = baseUri;
+        this.chatRoom = chatRoom;
+        this.userId = userId;
+        this.roomSessions = roomSessions;
+        this.sendInterval = sendInterval;
+        this.batch = batch;
+        this.binary = binary;
+        this.stats = stats;
+    }
+
+    /** connects unless already connected, rejoining from the last event id received if asked to */
+    public synchronized void connect(boolean rejoin) {
+        if (this.connection != null) {
+            return;
+        }
+        String uri = String.format("%s/chatapp/chatrooms/%s?userid=%s", this.baseUri, this.chatRoom, this.userId);
+        if (this.batch) {
+            uri += "&batch";
+        }
+        if (rejoin && !this.lastEventId.isEmpty()) {
+            uri += "&rejoin&lasteventid=" + this.lastEventId;
+            this.stats.rejoins.increment();
+        } else {
+            this.stats.joins.increment();
+        }
+
+        WebSocketHandler handler = new WebSocketHandler() {
+            @Override
+            public List<String> getSubProtocols() {
+                return binary ? Collections.singletonList(BINARY_SUBPROTOCOL) : Collections.emptyList();
+            }
+
+            @Override
+            public Mono<Void> handle(WebSocketSession session) {
+                return session(session);
+            }
+        };
+        this.connection = this.client.execute(URI.create(uri), handler).subscribe(
+            done -> {},
+            error -> {
+                this.stats.errors.increment();
+                disconnected();
+            },
+            this::disconnected
+        );
+    }
+
+    protected Mono<Void> session(WebSocketSession session) {
+        this.connectedAt = System.nanoTime();
+        this.roomSessions.incrementAndGet();
+        Mono<Void> inbound = session.receive()
+            .doOnNext(this::onFrame)
+            .then();
+        // users start sending at random offsets, so a room's messages don't all arrive at once
+        long jitter = ThreadLocalRandom.current().nextLong(Math.max(1, this.sendInterval.toMillis()));
+        Flux<WebSocketMessage> outbound = Flux.interval(Duration.ofMillis(jitter), this.sendInterval)
+            .onBackpressureDrop()
+            .filter(tick -> this.sending)
+            .map(tick -> nextMessage(session));
+        return Mono.when(inbound, session.send(outbound))
+            .doFinally(signal -> this.roomSessions.decrementAndGet());
+    }
+
+    public synchronized void disconnect() {
+        if (this.connection != null) {
+            this.connection.dispose();
+            this.connection = null;
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return this.connection != null;
+    }
+
+    public void stopSending() {
+        this.sending = false;
+    }
+
+    protected synchronized void disconnected() {
+        this.connection = null;
+    }
+
+    protected WebSocketMessage nextMessage(WebSocketSession session) {
+        this.stats.sent.increment();
+        this.stats.expected.add(this.roomSessions.get());
+        ChatMessage message = new ChatMessage(System.currentTimeMillis(), this.userId, PREFIX + System.nanoTime());
+        if (this.binary) {
+            return session.binaryMessage(factory -> factory.wrap(ChatWireCodec.encodeBinaryInbound(message)));
+        }
+        try {
+            return session.textMessage(mapper.writeValueAsString(message));
+        } catch (JsonProcessingException ex) {
+            throw new RuntimeException("unable to encode chat message", ex);
+        }
+    }
+
+    protected void onFrame(WebSocketMessage frame) {
+        long now = System.nanoTime();
+        if (this.binary) {
+            try {
+                BinaryReader in = BinaryReader.wrap(frame.getPayload().asByteBuffer());
+                if (!this.batch) {
+                    onEnvelope(ChatWireCodec.decodeBinaryEnvelope(in), now);
+                    return;
+                }
+                while (in.remaining() > 0) {
+                    // each envelope's length prefix, not needed to read it
+                    in.readVarInt();
+                    onEnvelope(ChatWireCodec.decodeBinaryEnvelope(in), now);
+                }
+            } catch (IllegalStateException | IllegalArgumentException ex) {
+                this.stats.errors.increment();
+            }
+            return;
+        }
+
+        String payload = frame.getPayloadAsText();
+        try {
+            if (!this.batch) {
+                onEnvelope(mapper.readValue(payload, ChatMessageEnvelope.class), now);
+                return;
+            }
+            for (JsonNode node : mapper.readTree(payload)) {
+                onEnvelope(mapper.treeToValue(node, ChatMessageEnvelope.class), now);
+            }
+        } catch (IOException ex) {
+            this.stats.errors.increment();
+        }
+    }
+
+    protected void onEnvelope(ChatMessageEnvelope envelope, long now) {
+        ChatGap gap = envelope.getGap();
+        if (gap != null) {
+            this.stats.missed.add(gap.getMissed());
+            this.lastEventId = gap.getToEventId();
+            return;
+        }
+        if (envelope.getLastEventId() != null) {
+            this.lastEventId = envelope.getLastEventId();
+        }
+
+        // only messages sent by simulated users carry a send time, join and leave notices don't
+        ChatMessage message = envelope.getMessage();
+        if (message == null || message.getMessage() == null || !message.getMessage().startsWith(PREFIX)) {
+            return;
+        }
+        long sentAt = Long.parseLong(message.getMessage().substring(PREFIX.length()));
+        if (sentAt < this.connectedAt) {
+            this.stats.recordBackfill(now - sentAt);
+        } else {
+            this.stats.recordLive(now - sentAt);
+        }
+        this.stats.delivered.increment();
+    }
+}
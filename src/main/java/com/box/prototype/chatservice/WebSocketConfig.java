@@ -1,6 +1,7 @@
 package com.box.prototype.chatservice;
 
 import com.box.prototype.chatservice.akka.AkkaComponents;
+import com.box.prototype.chatservice.rest.handler.ChatMuxSessionHandler;
 import com.box.prototype.chatservice.rest.handler.ChatSessionHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.web.context.WebServerInitializedEvent;
@@ -29,7 +30,13 @@ public class WebSocketConfig {
     public static final String USER_ID_PARAM_KEY = "userid";
     public static final String LAST_EVENT_ID_PARAM_KEY = "lasteventid";
     public static final String REJOIN_PARAM_KEY = "rejoin";
+    public static final String BATCH_PARAM_KEY = "batch";
+    // websocket subprotocols, json is also what clients requesting none get
+    public static final String JSON_SUBPROTOCOL = "chat.v1.json";
+    public static final String BINARY_SUBPROTOCOL = "chat.v1.binary";
     public static final String CHAT_SESSION_ROUTE = String.format("/chatapp/chatrooms/{%s}", ROOM_ID_PARAM_KEY);
+    // a single connection for many chatrooms, subscribed to and unsubscribed from with control frames
+    public static final String CHAT_MUX_ROUTE = "/chatapp/sessions";
 
     @Autowired
     private AkkaComponents akkaComponents;
@@ -38,6 +45,7 @@ public class WebSocketConfig {
     public HandlerMapping handlerMapping() {
         Map<String, WebSocketHandler> map = new HashMap<>();
         map.put(CHAT_SESSION_ROUTE, new ChatSessionHandler(this.akkaComponents));
+        map.put(CHAT_MUX_ROUTE, new ChatMuxSessionHandler(this.akkaComponents));
 
         SimpleUrlHandlerMapping mapping = new SimpleUrlHandlerMapping();
         mapping.setUrlMap(map);
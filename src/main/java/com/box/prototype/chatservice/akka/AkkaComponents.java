@@ -6,30 +6,73 @@ import akka.cluster.sharding.ClusterSharding;
 import akka.cluster.sharding.ClusterShardingSettings;
 import akka.cluster.sharding.ShardRegion;
 import akka.stream.ActorMaterializer;
+import com.box.prototype.chatservice.domain.ChatRelayManager;
+import com.box.prototype.chatservice.domain.ChatRoomDirectory;
+import com.box.prototype.chatservice.domain.ChatRoomMemoryGovernor;
+import com.box.prototype.chatservice.domain.ShardLoadMonitor;
 import com.box.prototype.chatservice.domain.entities.ChatRoomEntity;
 import com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol;
+import com.box.prototype.chatservice.domain.models.ChatRoom;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import org.springframework.stereotype.Component;
 import akka.actor.ActorSystem;
 
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
 @Component
 public class AkkaComponents {
     private final Config config;
     private final ActorSystem system;
     private final ActorMaterializer materializer;
     private final ActorRef chatRoomRegion;
+    private final ActorRef chatRelayManager;
+    private final ConcurrentNavigableMap<String, ChatRoom> chatRooms = new ConcurrentSkipListMap<>();
 
     public AkkaComponents() {
         this.config = ConfigFactory.load();
         this.system = ActorSystem.create("chat-service", this.config);
         this.materializer = ActorMaterializer.create(this.system);
 
+        // keeps chatrooms resident on this node within the memory budget, started before any room reports to it
+        this.system.actorOf(
+            ChatRoomMemoryGovernor.createProps(this.config.getBytes("chat-rooms.memory-budget.max-bytes")),
+            ChatRoomMemoryGovernor.NAME
+        );
+
+        // shards are placed by the load rooms report, which every node tracks in case it runs the coordinator
+        LoadAwareShardAllocationStrategy allocationStrategy = new LoadAwareShardAllocationStrategy(this.config);
+        this.system.actorOf(
+            ShardLoadMonitor.createProps(allocationStrategy, this.config.getDuration("chat-rooms.shard-allocation.report-interval")),
+            ShardLoadMonitor.NAME
+        );
+
         this.chatRoomRegion = ClusterSharding.get(this.system).start(
             "ChatRoomEntity",
             Props.create(ChatRoomEntity.class),
             ClusterShardingSettings.create(this.system),
-            new ChatRoomEntityProtocol.ChatRoomEntityMessageExtractor(this.config)
+            new ChatRoomEntityProtocol.ChatRoomEntityMessageExtractor(this.config),
+            allocationStrategy,
+            new ChatRoomEntityProtocol.StopEntity()
+        );
+
+        // sessions on this node receive chatroom messages through one relay per chatroom
+        this.chatRelayManager = this.system.actorOf(
+            ChatRelayManager.createProps(
+                this.chatRoomRegion,
+                this.config.getDuration("chat-sessions.relay-idle-timeout"),
+                this.config.getDuration("server.request-timeout"),
+                this.config.getInt("chat-sessions.backfill.max-per-room"),
+                this.config.getInt("chat-sessions.backfill.max-per-node"),
+                this.config.getInt("chat-sessions.backfill.cache-frames")),
+            "chat-relays"
+        );
+
+        // node's copy of the chatroom directory, read directly when listing rooms
+        this.system.actorOf(
+            ChatRoomDirectory.createProps(this.chatRooms, this.config.getString("chat-rooms.chat-log.read-journal")),
+            "chat-room-directory"
         );
     }
 
@@ -44,4 +87,9 @@ public class AkkaComponents {
     public ActorMaterializer getMaterializer() { return this.materializer; }
 
     public ActorRef getChatRoomRegion() { return this.chatRoomRegion; }
+
+    public ActorRef getChatRelayManager() { return this.chatRelayManager; }
+
+    /** chatroom directory by id, kept up to date in the background */
+    public ConcurrentNavigableMap<String, ChatRoom> getChatRooms() { return this.chatRooms; }
 }
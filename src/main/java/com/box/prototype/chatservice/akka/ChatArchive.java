@@ -0,0 +1,204 @@
+package com.box.prototype.chatservice.akka;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import akka.japi.Pair;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.SerializerWithStringManifest;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * archive of chat messages past their room's retention, moved out of the journal so the journal only holds recent
+ * traffic.  a room's archive is a directory of segments, each a gzipped run of its messages named by the sequence nrs
+ * it covers.  segments are written once, to a temp file that's then moved into place, and never modified.  history
+ * older than the journal holds is served from here.
+ *
+ * everything here blocks on the file system, so it's called on the archive dispatcher.
+ */
+public class ChatArchive implements Extension {
+    /** extension id, one instance per actor system */
+    public static class Id extends AbstractExtensionId<ChatArchive> implements ExtensionIdProvider {
+        public static final Id INSTANCE = new Id();
+
+        private Id() {}
+
+        @Override
+        public Id lookup() {
+            return INSTANCE;
+        }
+
+        @Override
+        public ChatArchive createExtension(ExtendedActorSystem system) {
+            return new ChatArchive(system);
+        }
+    }
+
+    public static ChatArchive get(ActorSystem system) {
+        return Id.INSTANCE.get(system);
+    }
+
+    protected static final String SUFFIX = ".gz";
+
+    /** an archive segment, and the sequence nrs of the first and last messages in it */
+    protected static class Segment {
+        protected final long from;
+        protected final long through;
+        protected final File file;
+
+        protected Segment(long from, long through, File file) {
+            this.from = from;
+            this.through = through;
+            this.file = file;
+        }
+    }
+
+    private final File dir;
+    private final Executor dispatcher;
+    private final Serialization serialization;
+    // segments by first sequence nr, per room (by persistence id), listed from disk on first use
+    private final Map<String, NavigableMap<Long, Segment>> rooms = new ConcurrentHashMap<>();
+
+    public ChatArchive(ExtendedActorSystem system) {
+        this.dir = new File(system.settings().config().getString("chat-rooms.retention.archive.dir"));
+        this.dispatcher = system.dispatchers().lookup("chat-rooms.retention.archive.dispatcher");
+        this.serialization = SerializationExtension.get(system);
+    }
+
+    public Executor dispatcher() {
+        return this.dispatcher;
+    }
+
+    /** sequence nr of the room's last archived message, 0 if none */
+    public long archivedThrough(String persistenceId) {
+        Map.Entry<Long, Segment> last = segments(persistenceId).lastEntry();
+        return last == null ? 0 : last.getValue().through;
+    }
+
+    /** the room's archived messages from through, with their sequence nrs */
+    public List<Pair<Long, ChatMessage>> read(String persistenceId, long fromSequenceNr, long throughSequenceNr) {
+        NavigableMap<Long, Segment> segments = segments(persistenceId);
+        Long first = segments.floorKey(fromSequenceNr);
+        List<Pair<Long, ChatMessage>> messages = new ArrayList<>();
+        for (Segment segment : segments.tailMap(first != null ? first : fromSequenceNr, true).values()) {
+            if (segment.from > throughSequenceNr) {
+                break;
+            }
+            for (Pair<Long, ChatMessage> message : readSegment(segment)) {
+                if (message.first() >= fromSequenceNr && message.first() <= throughSequenceNr) {
+                    messages.add(message);
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * archives a run of the room's messages, in sequence nr order, as a new segment.  those already archived are
+     * skipped, so a run archived again after a crash isn't duplicated.  returns the last sequence nr archived
+     */
+    public long write(String persistenceId, List<Pair<Long, ChatMessage>> messages) {
+        long archivedThrough = archivedThrough(persistenceId);
+        List<Pair<Long, ChatMessage>> run = new ArrayList<>(messages.size());
+        messages.forEach(message -> {
+            if (message.first() > archivedThrough) {
+                run.add(message);
+            }
+        });
+        if (run.isEmpty()) {
+            return archivedThrough;
+        }
+
+        long from = run.get(0).first();
+        long through = run.get(run.size() - 1).first();
+        File roomDir = new File(this.dir, persistenceId);
+        File file = new File(roomDir, String.format("%020d-%020d%s", from, through, SUFFIX));
+        File temp = new File(roomDir, file.getName() + ".tmp");
+        try {
+            SerializerWithStringManifest serializer = (SerializerWithStringManifest)this.serialization.serializerFor(ChatMessage.class);
+            if (!roomDir.isDirectory() && !roomDir.mkdirs()) {
+                throw new IOException("unable to create archive directory " + roomDir);
+            }
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(out));
+                DataOutputStream data = new DataOutputStream(gzip);
+                data.writeInt(serializer.identifier());
+                data.writeInt(run.size());
+                for (Pair<Long, ChatMessage> message : run) {
+                    byte[] bytes = serializer.toBinary(message.second());
+                    data.writeLong(message.first());
+                    data.writeUTF(serializer.manifest(message.second()));
+                    data.writeInt(bytes.length);
+                    data.write(bytes);
+                }
+                data.flush();
+                gzip.finish();
+                gzip.flush();
+                out.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            temp.delete();
+            throw new UncheckedIOException("unable to archive messages of " + persistenceId, ex);
+        }
+        segments(persistenceId).put(from, new Segment(from, through, file));
+        return through;
+    }
+
+    protected NavigableMap<Long, Segment> segments(String persistenceId) {
+        return this.rooms.computeIfAbsent(persistenceId, id -> {
+            NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+            File[] files = new File(this.dir, id).listFiles(file -> file.getName().endsWith(SUFFIX));
+            if (files != null) {
+                for (File file : files) {
+                    String[] range = file.getName().substring(0, file.getName().length() - SUFFIX.length()).split("-");
+                    long from = Long.parseLong(range[0]);
+                    segments.put(from, new Segment(from, Long.parseLong(range[1]), file));
+                }
+            }
+            return segments;
+        });
+    }
+
+    protected List<Pair<Long, ChatMessage>> readSegment(Segment segment) {
+        try (DataInputStream data = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(segment.file))))) {
+            int serializerId = data.readInt();
+            int count = data.readInt();
+            List<Pair<Long, ChatMessage>> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long sequenceNr = data.readLong();
+                String manifest = data.readUTF();
+                byte[] bytes = new byte[data.readInt()];
+                data.readFully(bytes);
+                messages.add(Pair.create(sequenceNr, (ChatMessage)this.serialization.deserialize(bytes, serializerId, manifest).get()));
+            }
+            return messages;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("unable to read archive segment " + segment.file, ex);
+        }
+    }
+}
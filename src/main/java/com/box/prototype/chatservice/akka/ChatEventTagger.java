@@ -0,0 +1,23 @@
+package com.box.prototype.chatservice.akka;
+
+import akka.persistence.journal.Tagged;
+import akka.persistence.journal.WriteEventAdapter;
+
+import java.util.Collections;
+import java.util.Set;
+
+/** tags chatroom events as they're written, so read-side projections can follow them across rooms with eventsByTag */
+public class ChatEventTagger implements WriteEventAdapter {
+    public static final String TAG = "chat";
+    private static final Set<String> TAGS = Collections.singleton(TAG);
+
+    @Override
+    public String manifest(Object event) {
+        return "";
+    }
+
+    @Override
+    public Object toJournal(Object event) {
+        return new Tagged(event, TAGS);
+    }
+}
@@ -0,0 +1,222 @@
+package com.box.prototype.chatservice.akka;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * per node chat counters, keyed by chatroom, and latency recorders for the stages messages go through.  updated from
+ * actors and streams alike, so counters are lock free adders that are only summed up when read, and latencies go to
+ * hdr recorders, which take a value without locking or allocating.  recorders roll over once per window, and report
+ * percentiles over the last complete one.
+ */
+public class ChatMetrics implements Extension {
+    /** extension id, one instance per actor system */
+    public static class Id extends AbstractExtensionId<ChatMetrics> implements ExtensionIdProvider {
+        public static final Id INSTANCE = new Id();
+
+        private Id() {}
+
+        @Override
+        public Id lookup() {
+            return INSTANCE;
+        }
+
+        @Override
+        public ChatMetrics createExtension(ExtendedActorSystem system) {
+            return new ChatMetrics(system);
+        }
+    }
+
+    public static ChatMetrics get(ActorSystem system) {
+        return Id.INSTANCE.get(system);
+    }
+
+    /** counters for a single chatroom */
+    public static class RoomCounters {
+        // messages published to the room's sessions
+        public final LongAdder messages = new LongAdder();
+        // times a session's outbound buffer overflowed
+        public final LongAdder overflows = new LongAdder();
+        // messages sessions missed due to overflows
+        public final LongAdder droppedMessages = new LongAdder();
+        // sessions disconnected due to overflows
+        public final LongAdder overflowDisconnects = new LongAdder();
+        // frames a relay couldn't offer to a session's queue
+        public final LongAdder offerFailures = new LongAdder();
+        // as of the room's last report, while resident on this node
+        public volatile double messagesPerSecond = 0;
+        public volatile int sessions = 0;
+        // the room's entity and relay on this node, the counters are dropped once neither is
+        private int holders = 0;
+
+        public Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new HashMap<>();
+            snapshot.put("messages", this.messages.sum());
+            snapshot.put("messagesPerSecond", this.messagesPerSecond);
+            snapshot.put("sessions", this.sessions);
+            snapshot.put("overflows", this.overflows.sum());
+            snapshot.put("droppedMessages", this.droppedMessages.sum());
+            snapshot.put("overflowDisconnects", this.overflowDisconnects.sum());
+            snapshot.put("offerFailures", this.offerFailures.sum());
+            return snapshot;
+        }
+    }
+
+    /** latency of a stage, in microseconds */
+    public static class LatencyRecorder {
+        protected static final long MAX_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+        private final Recorder recorder = new Recorder(MAX_MICROS, 2);
+        private final LongAdder count = new LongAdder();
+        private volatile Histogram lastWindow = new Histogram(MAX_MICROS, 2);
+
+        public void recordNanos(long nanos) {
+            this.recorder.recordValue(Math.max(0, Math.min(MAX_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos))));
+            this.count.increment();
+        }
+
+        /** starts a new window, the one just completed is what gets reported */
+        protected void roll() {
+            this.lastWindow = this.recorder.getIntervalHistogram();
+        }
+
+        public Map<String, Object> snapshot() {
+            Histogram window = this.lastWindow;
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("count", this.count.sum());
+            snapshot.put("windowCount", window.getTotalCount());
+            snapshot.put("p50", window.getValueAtPercentile(50));
+            snapshot.put("p90", window.getValueAtPercentile(90));
+            snapshot.put("p99", window.getValueAtPercentile(99));
+            snapshot.put("p999", window.getValueAtPercentile(99.9));
+            snapshot.put("max", window.getMaxValue());
+            return snapshot;
+        }
+    }
+
+    private final Map<String, RoomCounters> rooms = new ConcurrentHashMap<>();
+    // estimated heap footprint of the chatrooms resident on this node
+    private final Map<String, Long> footprints = new ConcurrentHashMap<>();
+
+    // journal writes, from persist to its handler (per batch when batching)
+    public final LatencyRecorder persistLatency = new LatencyRecorder();
+    // chatroom recoveries, snapshot load plus replay
+    public final LatencyRecorder recoveryDuration = new LatencyRecorder();
+    // chat messages to websocket frames, and inbound frames to chat messages
+    public final LatencyRecorder frameEncode = new LatencyRecorder();
+    public final LatencyRecorder frameDecode = new LatencyRecorder();
+    // requests to chatrooms that got no reply in time
+    public final LongAdder askTimeouts = new LongAdder();
+    // envelopes sent to websockets, and the frames they went out in (fewer when sessions batch them)
+    public final LongAdder outboundEnvelopes = new LongAdder();
+    public final LongAdder outboundFrames = new LongAdder();
+    // history reads by relays for rejoining sessions, and the backfill pages served to sessions from them
+    public final LongAdder backfillReads = new LongAdder();
+    public final LongAdder backfillPages = new LongAdder();
+
+    public ChatMetrics(ExtendedActorSystem system) {
+        long window = system.settings().config().getDuration("chat-metrics.window", TimeUnit.MILLISECONDS);
+        FiniteDuration interval = FiniteDuration.create(window, TimeUnit.MILLISECONDS);
+        system.scheduler().schedule(interval, interval, this::roll, system.dispatcher());
+    }
+
+    /**
+     * counters of a chatroom whose entity or relay is starting on this node, to be released once it stops.  rooms are
+     * only kept while held, so the map is bounded by the rooms resident or relayed here rather than every room seen
+     */
+    public RoomCounters acquireRoom(String chatRoom) {
+        return this.rooms.compute(chatRoom, (room, counters) -> {
+            RoomCounters held = counters != null ? counters : new RoomCounters();
+            held.holders++;
+            return held;
+        });
+    }
+
+    public void releaseRoom(String chatRoom) {
+        this.rooms.computeIfPresent(chatRoom, (room, counters) -> --counters.holders > 0 ? counters : null);
+    }
+
+    /** a session overflowed and missed messages, counted while the room is held */
+    public void recordOverflow(String chatRoom, long droppedMessages) {
+        RoomCounters counters = this.rooms.get(chatRoom);
+        if (counters != null) {
+            counters.overflows.increment();
+            counters.droppedMessages.add(droppedMessages);
+        }
+    }
+
+    /** a session overflowed and was disconnected, counted while the room is held */
+    public void recordOverflowDisconnect(String chatRoom) {
+        RoomCounters counters = this.rooms.get(chatRoom);
+        if (counters != null) {
+            counters.overflows.increment();
+            counters.overflowDisconnects.increment();
+        }
+    }
+
+    public void recordFootprint(String chatRoom, long estimatedBytes) {
+        this.footprints.put(chatRoom, estimatedBytes);
+    }
+
+    /** chatroom is no longer resident */
+    public void removeFootprint(String chatRoom) {
+        this.footprints.remove(chatRoom);
+    }
+
+    public int residentRooms() {
+        return this.footprints.size();
+    }
+
+    public long residentBytes() {
+        return this.footprints.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /** node totals, stage latencies, and counters (with estimated bytes of resident rooms) by chatroom */
+    public Map<String, Object> snapshot() {
+        Map<String, Map<String, Object>> rooms = new HashMap<>();
+        this.rooms.forEach((chatRoom, counters) -> rooms.put(chatRoom, counters.snapshot()));
+        this.footprints.forEach((chatRoom, estimatedBytes) ->
+            rooms.computeIfAbsent(chatRoom, room -> new HashMap<>()).put("estimatedBytes", estimatedBytes));
+
+        Map<String, Object> latencies = new LinkedHashMap<>();
+        latencies.put("persist", this.persistLatency.snapshot());
+        latencies.put("recovery", this.recoveryDuration.snapshot());
+        latencies.put("frameEncode", this.frameEncode.snapshot());
+        latencies.put("frameDecode", this.frameDecode.snapshot());
+
+        Map<String, Object> node = new LinkedHashMap<>();
+        node.put("residentRooms", residentRooms());
+        node.put("residentBytes", residentBytes());
+        node.put("askTimeouts", this.askTimeouts.sum());
+        node.put("outboundEnvelopes", this.outboundEnvelopes.sum());
+        node.put("outboundFrames", this.outboundFrames.sum());
+        node.put("backfillReads", this.backfillReads.sum());
+        node.put("backfillPages", this.backfillPages.sum());
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("node", node);
+        snapshot.put("latenciesMicros", latencies);
+        snapshot.put("rooms", rooms);
+        return snapshot;
+    }
+
+    protected void roll() {
+        this.persistLatency.roll();
+        this.recoveryDuration.roll();
+        this.frameEncode.roll();
+        this.frameDecode.roll();
+    }
+}
@@ -0,0 +1,474 @@
+package com.box.prototype.chatservice.akka;
+
+import akka.actor.ActorRef;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializerWithStringManifest;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatGap;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.box.prototype.chatservice.domain.models.ChatRoom;
+import com.box.prototype.chatservice.domain.models.ChatSignal;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.box.prototype.chatservice.util.BinaryReader;
+import com.box.prototype.chatservice.util.BinaryWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.box.prototype.chatservice.domain.ChatRoomDirectoryProtocol.*;
+import static com.box.prototype.chatservice.domain.ChatRoomRelayProtocol.*;
+import static com.box.prototype.chatservice.domain.ShardLoadProtocol.*;
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+
+/**
+ * compact binary serializer for chat room commands, events, state and models, used for both remoting and the journal.
+ *
+ * manifests are stable names that must never change once written.  every payload starts with a schema version byte;
+ * new fields are only ever appended, so a reader checks {@link BinaryReader#remaining()} before reading fields added
+ * by a later version, and bumps {@link #VERSION} whenever the layout changes.
+ */
+public class ChatSerializer extends SerializerWithStringManifest {
+    public static final int IDENTIFIER = 4201;
+    protected static final int VERSION = 5;
+
+    // what a ChatMessageEnvelope carries, written ahead of it since version 4
+    protected static final int ENVELOPE_MESSAGE = 0;
+    protected static final int ENVELOPE_GAP = 1;
+    protected static final int ENVELOPE_SIGNALS = 2;
+
+    protected static final String JOIN_CHAT = "JoinChat";
+    protected static final String REJOIN_CHAT = "RejoinChat";
+    protected static final String LEAVE_CHAT = "LeaveChat";
+    protected static final String ADD_MESSAGE = "AddMessage";
+    protected static final String FETCH_HISTORY = "FetchHistory";
+    protected static final String SEND_SIGNAL = "SendSignal";
+    protected static final String COMMITTED = "Committed";
+    protected static final String REJOINED = "Rejoined";
+    protected static final String HISTORY_PAGE = "HistoryPage";
+    protected static final String NEW_CHAT_MESSAGE = "NewChatMessage";
+    protected static final String MEMBER_JOINED = "MemberJoined";
+    protected static final String MEMBER_LEFT = "MemberLeft";
+    protected static final String MESSAGE_ADDED = "MessageAdded";
+    protected static final String CHAT_ROOM_STATE = "ChatRoomEntityState";
+    protected static final String CHAT_MESSAGE = "ChatMessage";
+    protected static final String CHAT_MESSAGE_ENVELOPE = "ChatMessageEnvelope";
+    protected static final String CHAT_SIGNAL = "ChatSignal";
+    protected static final String CHAT_FRAME = "ChatFrame";
+    protected static final String SESSION_INFO = "SessionInfo";
+    protected static final String PUBLISH = "Publish";
+    protected static final String DELIVER = "Deliver";
+    protected static final String SESSION_DETACHED = "SessionDetached";
+    protected static final String CHAT_ROOM = "ChatRoom";
+    protected static final String ROOM_UPDATED = "RoomUpdated";
+    protected static final String SYNC_REQUEST = "SyncRequest";
+    protected static final String SYNC_REPLY = "SyncReply";
+    protected static final String SHARD_LOAD_REPORT = "ShardLoadReport";
+
+    private final ExtendedActorSystem system;
+
+    public ChatSerializer(ExtendedActorSystem system) {
+        this.system = system;
+    }
+
+    @Override
+    public int identifier() {
+        return IDENTIFIER;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        if (o instanceof JoinChat) return JOIN_CHAT;
+        if (o instanceof RejoinChat) return REJOIN_CHAT;
+        if (o instanceof LeaveChat) return LEAVE_CHAT;
+        if (o instanceof AddMessage) return ADD_MESSAGE;
+        if (o instanceof FetchHistory) return FETCH_HISTORY;
+        if (o instanceof SendSignal) return SEND_SIGNAL;
+        if (o instanceof Committed) return COMMITTED;
+        if (o instanceof Rejoined) return REJOINED;
+        if (o instanceof HistoryPage) return HISTORY_PAGE;
+        if (o instanceof NewChatMessage) return NEW_CHAT_MESSAGE;
+        if (o instanceof MemberJoined) return MEMBER_JOINED;
+        if (o instanceof MemberLeft) return MEMBER_LEFT;
+        if (o instanceof MessageAdded) return MESSAGE_ADDED;
+        if (o instanceof ChatRoomEntityState) return CHAT_ROOM_STATE;
+        if (o instanceof ChatMessage) return CHAT_MESSAGE;
+        if (o instanceof ChatMessageEnvelope) return CHAT_MESSAGE_ENVELOPE;
+        if (o instanceof ChatSignal) return CHAT_SIGNAL;
+        if (o instanceof ChatFrame) return CHAT_FRAME;
+        if (o instanceof SessionInfo) return SESSION_INFO;
+        if (o instanceof Publish) return PUBLISH;
+        if (o instanceof Deliver) return DELIVER;
+        if (o instanceof SessionDetached) return SESSION_DETACHED;
+        if (o instanceof ChatRoom) return CHAT_ROOM;
+        if (o instanceof RoomUpdated) return ROOM_UPDATED;
+        if (o instanceof SyncRequest) return SYNC_REQUEST;
+        if (o instanceof SyncReply) return SYNC_REPLY;
+        if (o instanceof ShardLoadReport) return SHARD_LOAD_REPORT;
+        throw new IllegalArgumentException("can't serialize object of type " + o.getClass());
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        BinaryWriter out = new BinaryWriter().writeByte(VERSION);
+        if (o instanceof JoinChat) {
+            JoinChat m = (JoinChat)o;
+            out.writeVarLong(m.timestamp);
+            writeSessionInfo(out, m.sessionInfo);
+            writeActorRef(out, m.relay);
+        } else if (o instanceof RejoinChat) {
+            RejoinChat m = (RejoinChat)o;
+            out.writeVarLong(m.timestamp);
+            writeSessionInfo(out, m.sessionInfo);
+            writeActorRef(out, m.relay);
+        } else if (o instanceof LeaveChat) {
+            LeaveChat m = (LeaveChat)o;
+            out.writeVarLong(m.timestamp);
+            writeSessionInfo(out, m.sessionInfo);
+        } else if (o instanceof AddMessage) {
+            AddMessage m = (AddMessage)o;
+            writeChatMessage(out, m.message);
+            writeSessionInfo(out, m.sessionInfo);
+            out.writeVarLong(m.requestId);
+        } else if (o instanceof FetchHistory) {
+            FetchHistory m = (FetchHistory)o;
+            writeSessionInfo(out, m.sessionInfo);
+            out.writeVarLong(m.fromSequenceNr);
+            out.writeVarLong(m.throughSequenceNr);
+            out.writeVarInt(m.maxFrames);
+        } else if (o instanceof SendSignal) {
+            SendSignal m = (SendSignal)o;
+            out.writeVarLong(m.timestamp);
+            writeSessionInfo(out, m.sessionInfo);
+            out.writeString(m.type);
+        } else if (o instanceof Committed) {
+            out.writeVarLong(((Committed)o).requestId);
+        } else if (o instanceof Rejoined) {
+            Rejoined m = (Rejoined)o;
+            out.writeVarLong(m.fromSequenceNr);
+            out.writeVarLong(m.throughSequenceNr);
+        } else if (o instanceof HistoryPage) {
+            HistoryPage m = (HistoryPage)o;
+            writeChatFrames(out, m.frames);
+            out.writeVarLong(m.nextSequenceNr);
+        } else if (o instanceof NewChatMessage) {
+            NewChatMessage m = (NewChatMessage)o;
+            writeChatMessage(out, m.chatMessage);
+            out.writeString(m.lastEventId);
+        } else if (o instanceof ChatRoomEvent) {
+            writeChatMessage(out, ((ChatRoomEvent)o).message);
+        } else if (o instanceof ChatRoomEntityState) {
+            writeState(out, (ChatRoomEntityState)o);
+        } else if (o instanceof ChatMessage) {
+            writeChatMessage(out, (ChatMessage)o);
+        } else if (o instanceof ChatMessageEnvelope) {
+            writeEnvelope(out, (ChatMessageEnvelope)o);
+        } else if (o instanceof ChatSignal) {
+            writeChatSignal(out, (ChatSignal)o);
+        } else if (o instanceof ChatFrame) {
+            writeChatFrame(out, (ChatFrame)o);
+        } else if (o instanceof SessionInfo) {
+            writeSessionInfo(out, (SessionInfo)o);
+        } else if (o instanceof Publish) {
+            writeChatFrame(out, ((Publish)o).frame);
+        } else if (o instanceof Deliver) {
+            Deliver m = (Deliver)o;
+            out.writeString(m.sessionId);
+            out.writeBoolean(m.attach);
+            writeChatFrames(out, m.frames);
+        } else if (o instanceof SessionDetached) {
+            out.writeString(((SessionDetached)o).sessionId);
+        } else if (o instanceof ChatRoom) {
+            writeChatRoom(out, (ChatRoom)o);
+        } else if (o instanceof RoomUpdated) {
+            writeChatRoom(out, ((RoomUpdated)o).chatRoom);
+        } else if (o instanceof SyncRequest) {
+            // no fields
+        } else if (o instanceof SyncReply) {
+            SyncReply m = (SyncReply)o;
+            out.writeVarInt(m.chatRooms.size());
+            m.chatRooms.forEach(chatRoom -> writeChatRoom(out, chatRoom));
+        } else if (o instanceof ShardLoadReport) {
+            ShardLoadReport m = (ShardLoadReport)o;
+            out.writeVarInt(m.shards.size());
+            m.shards.forEach(load -> {
+                out.writeString(load.shardId);
+                out.writeVarLong(load.messagesPerMinute);
+                out.writeVarInt(load.sessions);
+            });
+        } else {
+            throw new IllegalArgumentException("can't serialize object of type " + o.getClass());
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) {
+        BinaryReader in = new BinaryReader(bytes);
+        int version = in.readByte();
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException(String.format("unsupported schema version %d for %s", version, manifest));
+        }
+
+        switch (manifest) {
+            case JOIN_CHAT:
+                return new JoinChat(in.readVarLong(), readSessionInfo(in), readActorRef(in));
+            case REJOIN_CHAT:
+                return new RejoinChat(in.readVarLong(), readSessionInfo(in), readActorRef(in));
+            case LEAVE_CHAT:
+                return new LeaveChat(in.readVarLong(), readSessionInfo(in));
+            case ADD_MESSAGE: {
+                ChatMessage message = readChatMessage(in);
+                SessionInfo sessionInfo = readSessionInfo(in);
+                // request ids were appended after version 1
+                return new AddMessage(message, sessionInfo, in.remaining() > 0 ? in.readVarLong() : 0);
+            }
+            case FETCH_HISTORY: {
+                SessionInfo sessionInfo = readSessionInfo(in);
+                long fromSequenceNr = in.readVarLong();
+                long throughSequenceNr = in.readVarLong();
+                return new FetchHistory(sessionInfo, fromSequenceNr, throughSequenceNr, in.readVarInt());
+            }
+            case SEND_SIGNAL: {
+                long timestamp = in.readVarLong();
+                SessionInfo sessionInfo = readSessionInfo(in);
+                return new SendSignal(timestamp, sessionInfo, in.readString());
+            }
+            case COMMITTED:
+                return new Committed(in.remaining() > 0 ? in.readVarLong() : 0);
+            case REJOINED: {
+                long fromSequenceNr = in.readVarLong();
+                return new Rejoined(fromSequenceNr, in.readVarLong());
+            }
+            case HISTORY_PAGE: {
+                List<ChatFrame> frames = readChatFrames(in, version);
+                return new HistoryPage(frames, in.readVarLong());
+            }
+            case NEW_CHAT_MESSAGE: {
+                ChatMessage message = readChatMessage(in);
+                return new NewChatMessage(message, in.readString());
+            }
+            case MEMBER_JOINED:
+                return new MemberJoined(readChatMessage(in));
+            case MEMBER_LEFT:
+                return new MemberLeft(readChatMessage(in));
+            case MESSAGE_ADDED:
+                return new MessageAdded(readChatMessage(in));
+            case CHAT_ROOM_STATE:
+                return readState(in, version);
+            case CHAT_MESSAGE:
+                return readChatMessage(in);
+            case CHAT_MESSAGE_ENVELOPE:
+                return readEnvelope(in, version);
+            case CHAT_SIGNAL:
+                return readChatSignal(in);
+            case CHAT_FRAME:
+                return readChatFrame(in, version);
+            case SESSION_INFO:
+                return readSessionInfo(in);
+            case PUBLISH:
+                return new Publish(readChatFrame(in, version));
+            case DELIVER: {
+                String sessionId = in.readString();
+                boolean attach = in.readBoolean();
+                return new Deliver(sessionId, readChatFrames(in, version), attach);
+            }
+            case SESSION_DETACHED:
+                return new SessionDetached(in.readString());
+            case CHAT_ROOM:
+                return readChatRoom(in, version);
+            case ROOM_UPDATED:
+                return new RoomUpdated(readChatRoom(in, version));
+            case SYNC_REQUEST:
+                return new SyncRequest();
+            case SYNC_REPLY: {
+                List<ChatRoom> chatRooms = new ArrayList<>();
+                for (int i = in.readVarInt(); i > 0; i--) {
+                    chatRooms.add(readChatRoom(in, version));
+                }
+                return new SyncReply(chatRooms);
+            }
+            case SHARD_LOAD_REPORT: {
+                List<ShardLoad> shards = new ArrayList<>();
+                for (int i = in.readVarInt(); i > 0; i--) {
+                    shards.add(new ShardLoad(in.readString(), in.readVarLong(), in.readVarInt()));
+                }
+                return new ShardLoadReport(shards);
+            }
+            default:
+                throw new IllegalArgumentException("unknown manifest: " + manifest);
+        }
+    }
+
+    protected void writeChatMessage(BinaryWriter out, ChatMessage message) {
+        out.writeVarLong(message.getTimestamp());
+        out.writeString(message.getUserId());
+        out.writeString(message.getMessage());
+    }
+
+    protected ChatMessage readChatMessage(BinaryReader in) {
+        long timestamp = in.readVarLong();
+        String userId = in.readString();
+        return new ChatMessage(timestamp, userId, in.readString());
+    }
+
+    protected void writeEnvelope(BinaryWriter out, ChatMessageEnvelope envelope) {
+        if (envelope.getGap() != null) {
+            ChatGap gap = envelope.getGap();
+            out.writeByte(ENVELOPE_GAP);
+            out.writeString(gap.getFromEventId());
+            out.writeString(gap.getToEventId());
+            out.writeVarLong(gap.getMissed());
+        } else if (envelope.getSignals() != null) {
+            out.writeByte(ENVELOPE_SIGNALS);
+            out.writeVarInt(envelope.getSignals().size());
+            envelope.getSignals().forEach(signal -> writeChatSignal(out, signal));
+        } else if (envelope.getMessage() != null) {
+            out.writeByte(ENVELOPE_MESSAGE);
+            writeChatMessage(out, envelope.getMessage());
+            out.writeString(envelope.getLastEventId());
+        } else {
+            throw new IllegalArgumentException("can't serialize envelope without a message, gap or signals");
+        }
+    }
+
+    protected ChatMessageEnvelope readEnvelope(BinaryReader in, int version) {
+        // envelopes before version 4 only ever carried a message
+        int kind = version >= 4 ? in.readByte() : ENVELOPE_MESSAGE;
+        switch (kind) {
+            case ENVELOPE_MESSAGE: {
+                ChatMessage message = readChatMessage(in);
+                return new ChatMessageEnvelope(message, in.readString());
+            }
+            case ENVELOPE_GAP: {
+                String fromEventId = in.readString();
+                String toEventId = in.readString();
+                return new ChatMessageEnvelope(new ChatGap(fromEventId, toEventId, in.readVarLong()));
+            }
+            case ENVELOPE_SIGNALS: {
+                List<ChatSignal> signals = new ArrayList<>();
+                for (int i = in.readVarInt(); i > 0; i--) {
+                    signals.add(readChatSignal(in));
+                }
+                return new ChatMessageEnvelope(signals);
+            }
+            default:
+                throw new IllegalArgumentException("unknown envelope kind: " + kind);
+        }
+    }
+
+    protected void writeChatSignal(BinaryWriter out, ChatSignal signal) {
+        out.writeString(signal.getUserId());
+        out.writeString(signal.getType());
+        out.writeVarLong(signal.getTimestamp());
+    }
+
+    protected ChatSignal readChatSignal(BinaryReader in) {
+        String userId = in.readString();
+        String type = in.readString();
+        return new ChatSignal(userId, type, in.readVarLong());
+    }
+
+    /** frames are already encoded by the chatroom, just carried as is */
+    protected void writeChatFrame(BinaryWriter out, ChatFrame frame) {
+        out.writeString(frame.getEventId());
+        out.writeBytes(frame.getPayload());
+        out.writeBytes(frame.getBinaryPayload());
+    }
+
+    protected ChatFrame readChatFrame(BinaryReader in, int version) {
+        String eventId = in.readString();
+        byte[] payload = in.readBytes();
+        // binary encodings were added in version 3
+        return new ChatFrame(eventId, payload, version >= 3 ? in.readBytes() : null);
+    }
+
+    protected void writeChatFrames(BinaryWriter out, List<ChatFrame> frames) {
+        out.writeVarInt(frames.size());
+        frames.forEach(frame -> writeChatFrame(out, frame));
+    }
+
+    protected List<ChatFrame> readChatFrames(BinaryReader in, int version) {
+        List<ChatFrame> frames = new ArrayList<>();
+        for (int i = in.readVarInt(); i > 0; i--) {
+            frames.add(readChatFrame(in, version));
+        }
+        return frames;
+    }
+
+    protected void writeChatRoom(BinaryWriter out, ChatRoom chatRoom) {
+        out.writeString(chatRoom.getId());
+        out.writeVarInt(chatRoom.getMemberCount());
+        out.writeVarLong(chatRoom.getLastActivity());
+        out.writeVarLong(chatRoom.getVersion());
+    }
+
+    protected ChatRoom readChatRoom(BinaryReader in, int version) {
+        String id = in.readString();
+        int memberCount = in.readVarInt();
+        long lastActivity = in.readVarLong();
+        // summaries were versioned in version 5, earlier ones lose to any versioned one
+        return new ChatRoom(id, memberCount, lastActivity, version >= 5 ? in.readVarLong() : 0);
+    }
+
+    protected void writeSessionInfo(BinaryWriter out, SessionInfo sessionInfo) {
+        out.writeString(sessionInfo.getSessionId());
+        out.writeString(sessionInfo.getUserId());
+        out.writeString(sessionInfo.getChatRoom());
+        out.writeString(sessionInfo.getLastEventId());
+        out.writeBoolean(sessionInfo.isRejoin());
+    }
+
+    protected SessionInfo readSessionInfo(BinaryReader in) {
+        String sessionId = in.readString();
+        String userId = in.readString();
+        String chatRoom = in.readString();
+        String lastEventId = in.readString();
+        return new SessionInfo(sessionId, userId, chatRoom, lastEventId, in.readBoolean());
+    }
+
+    protected void writeState(BinaryWriter out, ChatRoomEntityState state) {
+        out.writeString(state.chatRoom);
+        out.writeVarInt(state.members.size());
+        state.members.forEach(out::writeString);
+        out.writeVarLong(state.evictedThrough);
+        // sequence nrs are increasing, so store deltas from the previous one
+        out.writeVarInt(state.chatLog.size());
+        long previous = state.evictedThrough;
+        for (int i = 0; i < state.chatLog.size(); i++) {
+            long sequenceNr = state.chatLog.sequenceNrAt(i);
+            out.writeVarLong(sequenceNr - previous);
+            writeChatMessage(out, state.chatLog.messageAt(i));
+            previous = sequenceNr;
+        }
+    }
+
+    protected ChatRoomEntityState readState(BinaryReader in, int version) {
+        ChatRoomEntityState state = new ChatRoomEntityState(in.readString());
+        for (int i = in.readVarInt(); i > 0; i--) {
+            state.members.add(in.readString());
+        }
+        if (version < 2) {
+            // version 1 keyed the log by timestamp/user id, which can't be mapped onto sequence nrs.  drop the log and
+            // mark the state so the chatroom serves everything up to the snapshot from the journal
+            state.evictedThrough = -1;
+            return state;
+        }
+        state.evictedThrough = in.readVarLong();
+        long sequenceNr = state.evictedThrough;
+        for (int i = in.readVarInt(); i > 0; i--) {
+            sequenceNr += in.readVarLong();
+            state.chatLog.append(sequenceNr, readChatMessage(in));
+        }
+        return state;
+    }
+
+    protected void writeActorRef(BinaryWriter out, ActorRef ref) {
+        out.writeString(Serialization.serializedActorPath(ref));
+    }
+
+    protected ActorRef readActorRef(BinaryReader in) {
+        return this.system.provider().resolveActorRef(in.readString());
+    }
+}
@@ -0,0 +1,162 @@
+package com.box.prototype.chatservice.akka;
+
+import akka.actor.ActorRef;
+import akka.cluster.sharding.ShardCoordinator;
+import akka.dispatch.Futures;
+import com.box.prototype.chatservice.domain.ShardLoadProtocol.ShardLoad;
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.IndexedSeq;
+import scala.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * allocates and rebalances chatroom shards by their observed load instead of their count.  a shard's load is its
+ * message rate plus a weight per attached session, on top of a baseline so shards without traffic still spread out.
+ *
+ * new shards go to the least loaded region.  when the most loaded region is over the least loaded one by more than
+ * the rebalance threshold, the shards whose move narrows the gap the most are handed off, a few at a time.  a single
+ * shard hotter than the gap is left where it is, since moving it would just move the hot spot.
+ *
+ * every node holds a copy, kept up to date by its {@link com.box.prototype.chatservice.domain.ShardLoadMonitor},
+ * so load is known wherever the coordinator runs.  load not reported within the ttl is treated as idle.
+ */
+public class LoadAwareShardAllocationStrategy extends ShardCoordinator.AbstractShardAllocationStrategy {
+    // load every shard counts for, regardless of traffic
+    protected static final double BASELINE_LOAD = 1.0;
+
+    /** last reported load of a shard, and when it arrived */
+    private static class Reported {
+        final ShardLoad load;
+        final long receivedAt;
+
+        Reported(ShardLoad load, long receivedAt) {
+            this.load = load;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private final Map<String, Reported> shardLoads = new ConcurrentHashMap<>();
+    private final double sessionWeight;
+    private final double rebalanceThreshold;
+    private final int maxSimultaneousRebalance;
+    private final long loadTtl;
+
+    public LoadAwareShardAllocationStrategy(Config config) {
+        this.sessionWeight = config.getDouble("chat-rooms.shard-allocation.session-weight");
+        this.rebalanceThreshold = config.getDouble("chat-rooms.shard-allocation.rebalance-threshold");
+        this.maxSimultaneousRebalance = Math.max(1, config.getInt("chat-rooms.shard-allocation.max-simultaneous-rebalance"));
+        this.loadTtl = config.getDuration("chat-rooms.shard-allocation.load-ttl", TimeUnit.MILLISECONDS);
+    }
+
+    /** records a shard's latest reported load */
+    public void update(ShardLoad load) {
+        this.shardLoads.put(load.shardId, new Reported(load, System.currentTimeMillis()));
+    }
+
+    /** a shard's current load, baseline only if it hasn't reported recently */
+    public double load(String shardId) {
+        Reported reported = this.shardLoads.get(shardId);
+        if (reported == null || System.currentTimeMillis() - reported.receivedAt > this.loadTtl) {
+            return BASELINE_LOAD;
+        }
+        return BASELINE_LOAD + reported.load.messagesPerMinute / 60.0 + reported.load.sessions * this.sessionWeight;
+    }
+
+    @Override
+    public Future<ActorRef> allocateShard(ActorRef requester, String shardId,
+                                          Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+        ActorRef leastLoaded = null;
+        double leastLoad = Double.MAX_VALUE;
+        int leastShards = Integer.MAX_VALUE;
+        for (Map.Entry<ActorRef, IndexedSeq<String>> allocation : currentShardAllocations.entrySet()) {
+            List<String> shards = JavaConverters.seqAsJavaListConverter(allocation.getValue()).asJava();
+            double load = regionLoad(shards);
+            if (load < leastLoad || (load == leastLoad && shards.size() < leastShards)) {
+                leastLoaded = allocation.getKey();
+                leastLoad = load;
+                leastShards = shards.size();
+            }
+        }
+        return Futures.successful(leastLoaded != null ? leastLoaded : requester);
+    }
+
+    @Override
+    public Future<Set<String>> rebalance(Map<ActorRef, IndexedSeq<String>> currentShardAllocations,
+                                         Set<String> rebalanceInProgress) {
+        int budget = this.maxSimultaneousRebalance - rebalanceInProgress.size();
+        if (budget <= 0 || currentShardAllocations.size() < 2) {
+            return Futures.successful(Collections.emptySet());
+        }
+
+        // shards already moving don't count towards either region
+        Map<ActorRef, List<String>> regionShards = new HashMap<>();
+        Map<ActorRef, Double> regionLoads = new HashMap<>();
+        currentShardAllocations.forEach((region, shards) -> {
+            List<String> remaining = new ArrayList<>();
+            JavaConverters.seqAsJavaListConverter(shards).asJava().forEach(shardId -> {
+                if (!rebalanceInProgress.contains(shardId)) {
+                    remaining.add(shardId);
+                }
+            });
+            regionShards.put(region, remaining);
+            regionLoads.put(region, regionLoad(remaining));
+        });
+
+        Set<String> toRebalance = new HashSet<>();
+        while (toRebalance.size() < budget) {
+            ActorRef most = null;
+            ActorRef least = null;
+            for (ActorRef region : regionLoads.keySet()) {
+                if (most == null || regionLoads.get(region) > regionLoads.get(most)) {
+                    most = region;
+                }
+                if (least == null || regionLoads.get(region) < regionLoads.get(least)) {
+                    least = region;
+                }
+            }
+            double gap = regionLoads.get(most) - regionLoads.get(least);
+            if (gap <= regionLoads.get(most) * this.rebalanceThreshold) {
+                break;
+            }
+
+            // the shard whose load is closest to half the gap evens the two regions out the most
+            String candidate = null;
+            double candidateLoad = 0;
+            for (String shardId : regionShards.get(most)) {
+                double load = load(shardId);
+                if (load < gap && (candidate == null || Math.abs(load - gap / 2) < Math.abs(candidateLoad - gap / 2))) {
+                    candidate = shardId;
+                    candidateLoad = load;
+                }
+            }
+            if (candidate == null) {
+                break;
+            }
+
+            toRebalance.add(candidate);
+            regionShards.get(most).remove(candidate);
+            regionShards.get(least).add(candidate);
+            regionLoads.put(most, regionLoads.get(most) - candidateLoad);
+            regionLoads.put(least, regionLoads.get(least) + candidateLoad);
+        }
+        return Futures.successful(toRebalance);
+    }
+
+    protected double regionLoad(List<String> shards) {
+        double load = 0;
+        for (String shardId : shards) {
+            load += load(shardId);
+        }
+        return load;
+    }
+}
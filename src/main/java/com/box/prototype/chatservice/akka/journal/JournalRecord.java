@@ -0,0 +1,155 @@
+package com.box.prototype.chatservice.akka.journal;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * a record in a journal segment, holding one atomic write, i.e. one or more events of a single persistence id.
+ *
+ *   int     body length
+ *   int     crc32 of the body
+ *   body    persistence id, event count, then per event its ordering, sequence nr, tags and serialized payload
+ *
+ * strings are a short length followed by utf-8 bytes.  segments are preallocated, so a zero length marks the end of
+ * a segment's data, and a record that's short or fails its checksum is a write torn by a crash.
+ */
+public class JournalRecord {
+    public static final int HEADER_SIZE = 8;
+
+    /** an event in a record, its payload (the serialized PersistentRepr) left as is */
+    public static class Event {
+        // journal wide, increasing in commit order, serves as the offset of tag queries
+        public final long ordering;
+        public final long sequenceNr;
+        public final Set<String> tags;
+        public final byte[] payload;
+
+        public Event(long ordering, long sequenceNr, Set<String> tags, byte[] payload) {
+            this.ordering = ordering;
+            this.sequenceNr = sequenceNr;
+            this.tags = tags;
+            this.payload = payload;
+        }
+
+        public Event withOrdering(long ordering) {
+            return new Event(ordering, this.sequenceNr, this.tags, this.payload);
+        }
+    }
+
+    public final String persistenceId;
+    public final List<Event> events;
+    // bytes taken in the segment, header included
+    public final int length;
+
+    public JournalRecord(String persistenceId, List<Event> events, int length) {
+        this.persistenceId = persistenceId;
+        this.events = events;
+        this.length = length;
+    }
+
+    public long firstOrdering() {
+        return this.events.get(0).ordering;
+    }
+
+    public long lastOrdering() {
+        return this.events.get(this.events.size() - 1).ordering;
+    }
+
+    public long firstSequenceNr() {
+        return this.events.get(0).sequenceNr;
+    }
+
+    public long lastSequenceNr() {
+        return this.events.get(this.events.size() - 1).sequenceNr;
+    }
+
+    /** the record as written to a segment, header included */
+    public static byte[] encode(String persistenceId, List<Event> events) {
+        byte[] id = persistenceId.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> tags = new ArrayList<>();
+        int size = 2 + id.length + 4;
+        for (Event event : events) {
+            size += 8 + 8 + 2 + 4 + event.payload.length;
+            for (String tag : event.tags) {
+                byte[] encoded = tag.getBytes(StandardCharsets.UTF_8);
+                tags.add(encoded);
+                size += 2 + encoded.length;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size);
+        buffer.position(HEADER_SIZE);
+        putString(buffer, id);
+        buffer.putInt(events.size());
+        int tag = 0;
+        for (Event event : events) {
+            buffer.putLong(event.ordering).putLong(event.sequenceNr).putShort((short)event.tags.size());
+            for (int i = 0; i < event.tags.size(); i++) {
+                putString(buffer, tags.get(tag++));
+            }
+            buffer.putInt(event.payload.length).put(event.payload);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, size);
+        buffer.putInt(0, size).putInt(4, (int)crc.getValue());
+        return buffer.array();
+    }
+
+    /** the record at position, or null at the end of the data or a torn write.  reads no further than limit */
+    public static JournalRecord read(ByteBuffer segment, int position, int limit) {
+        if (position + HEADER_SIZE > limit) {
+            return null;
+        }
+        int size = segment.getInt(position);
+        if (size <= 0 || size > limit - position - HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer body = segment.duplicate();
+        body.limit(position + HEADER_SIZE + size).position(position + HEADER_SIZE);
+        body = body.slice();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int)crc.getValue() != segment.getInt(position + 4)) {
+            return null;
+        }
+
+        try {
+            String persistenceId = getString(body);
+            int count = body.getInt();
+            List<Event> events = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long ordering = body.getLong();
+                long sequenceNr = body.getLong();
+                int tagCount = body.getShort();
+                Set<String> tags = tagCount == 0 ? Collections.emptySet() : new HashSet<>(tagCount);
+                for (int j = 0; j < tagCount; j++) {
+                    tags.add(getString(body));
+                }
+                byte[] payload = new byte[body.getInt()];
+                body.get(payload);
+                events.add(new Event(ordering, sequenceNr, tags, payload));
+            }
+            return events.isEmpty() ? null : new JournalRecord(persistenceId, events, HEADER_SIZE + size);
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException ex) {
+            return null;
+        }
+    }
+
+    protected static void putString(ByteBuffer buffer, byte[] value) {
+        buffer.putShort((short)value.length).put(value);
+    }
+
+    protected static String getString(ByteBuffer buffer) {
+        byte[] value = new byte[buffer.getShort() & 0xffff];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,136 @@
+package com.box.prototype.chatservice.akka.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * a preallocated segment file of a journal partition.  records are appended through the file channel by the journal's
+ * writer, and read back through a read only mapping of the whole file, which sees the writes through the page cache.
+ * only data up to the committed size (synced, when syncing) is read.
+ */
+public class JournalSegment {
+    protected static final String SUFFIX = ".seg";
+
+    public final int number;
+    protected final File file;
+    protected final FileChannel channel;
+    protected final MappedByteBuffer mapped;
+    protected final int capacity;
+
+    // readable data, up to the last commit
+    protected volatile int committedSize = 0;
+    // ordering of the last event committed to the segment, tag queries skip segments they've read past
+    protected volatile long lastOrdering = 0;
+
+    // writer only: where the next record goes and the last ordering appended, and the highest sequence nr in the
+    // segment by persistence id, which tells when every event in the segment has been deleted
+    protected int writePosition = 0;
+    protected long appendedOrdering = 0;
+    protected final Map<String, Long> highestSequenceNrs = new HashMap<>();
+
+    protected JournalSegment(int number, File file, int capacity) throws IOException {
+        this.number = number;
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < capacity) {
+                raf.setLength(capacity);
+            }
+            this.capacity = (int)Math.min(Integer.MAX_VALUE, raf.length());
+            this.channel = raf.getChannel();
+            this.mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.capacity);
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    public static JournalSegment open(File dir, int number, int capacity) throws IOException {
+        return new JournalSegment(number, new File(dir, String.format("%010d%s", number, SUFFIX)), capacity);
+    }
+
+    /** segment number from its file name, or -1 if it isn't a segment */
+    public static int number(File file) {
+        String name = file.getName();
+        if (!name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /** a view of the mapped file, for reading without disturbing other readers */
+    public ByteBuffer view() {
+        return this.mapped.duplicate();
+    }
+
+    public boolean fits(int length) {
+        return this.writePosition + length <= this.capacity;
+    }
+
+    /** appends a record (not yet committed), returning its position */
+    protected int append(byte[] record) throws IOException {
+        int position = this.writePosition;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, position + buffer.position());
+        }
+        this.writePosition += record.length;
+        return position;
+    }
+
+    protected void appended(long lastOrdering) {
+        this.appendedOrdering = lastOrdering;
+    }
+
+    /** makes what's been appended readable */
+    protected void commit() {
+        this.committedSize = this.writePosition;
+        this.lastOrdering = this.appendedOrdering;
+    }
+
+    /**
+     * discards anything appended since the last commit.  it's zeroed, not just the first header, as records that made
+     * it whole would otherwise line up after shorter ones appended later, and be taken for data
+     */
+    protected void rollback() throws IOException {
+        int position = this.committedSize;
+        ByteBuffer zeros = ByteBuffer.allocate(Math.min(this.writePosition - position, 64 * 1024));
+        while (position < this.writePosition) {
+            zeros.clear().limit(Math.min(zeros.capacity(), this.writePosition - position));
+            while (zeros.hasRemaining()) {
+                position += this.channel.write(zeros, position);
+            }
+        }
+        this.writePosition = this.committedSize;
+        this.appendedOrdering = this.lastOrdering;
+    }
+
+    /** whether there's something other than the end marker after the data, i.e. a write torn by a crash */
+    protected boolean torn() {
+        return this.committedSize + JournalRecord.HEADER_SIZE <= this.capacity && this.mapped.getInt(this.committedSize) != 0;
+    }
+
+    protected void sync() throws IOException {
+        this.channel.force(false);
+    }
+
+    protected void close() throws IOException {
+        this.channel.close();
+    }
+
+    /** closes and deletes the file.  the mapping lives on until collected, which unix is fine with */
+    protected boolean delete() throws IOException {
+        close();
+        return this.file.delete();
+    }
+}
@@ -0,0 +1,82 @@
+package com.box.prototype.chatservice.akka.journal;
+
+import akka.dispatch.Futures;
+import akka.persistence.AtomicWrite;
+import akka.persistence.PersistentRepr;
+import akka.persistence.journal.Tagged;
+import akka.persistence.journal.japi.AsyncWriteJournal;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+import scala.compat.java8.FutureConverters;
+import scala.concurrent.ExecutionContext;
+import scala.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * journal plugin over a {@link SegmentedJournalStore}: append only segment files per partition of persistence ids,
+ * group committed, and replayed through memory mappings.  events are serialized here, so one that can't be is
+ * rejected on its own, while a failed commit fails every write in it.  tags are kept with the events, for the
+ * {@link SegmentedReadJournal}.
+ */
+public class SegmentedFileJournal extends AsyncWriteJournal {
+    private final SegmentedJournalStore store;
+    private final Serialization serialization = SerializationExtension.get(context().system());
+
+    public SegmentedFileJournal(Config config) {
+        this.store = SegmentedJournalStores.get(context().system()).store(config);
+    }
+
+    @Override
+    public Future<Iterable<Optional<Exception>>> doAsyncWriteMessages(Iterable<AtomicWrite> messages) {
+        List<Optional<Exception>> results = new ArrayList<>();
+        List<SegmentedJournalStore.Write> writes = new ArrayList<>();
+        for (AtomicWrite message : messages) {
+            try {
+                List<JournalRecord.Event> events = new ArrayList<>(message.size());
+                for (PersistentRepr repr : JavaConverters.seqAsJavaList(message.payload())) {
+                    Set<String> tags = Collections.emptySet();
+                    if (repr.payload() instanceof Tagged) {
+                        Tagged tagged = (Tagged)repr.payload();
+                        tags = JavaConverters.setAsJavaSet(tagged.tags());
+                        repr = repr.withPayload(tagged.payload());
+                    }
+                    events.add(new JournalRecord.Event(0, repr.sequenceNr(), tags, this.serialization.serialize(repr).get()));
+                }
+                writes.add(new SegmentedJournalStore.Write(message.persistenceId(), events));
+                results.add(Optional.empty());
+            } catch (Exception ex) {
+                results.add(Optional.of(ex));
+            }
+        }
+        return FutureConverters.toScala(this.store.write(writes).thenApply(done -> (Iterable<Optional<Exception>>)results));
+    }
+
+    @Override
+    public Future<Void> doAsyncDeleteMessagesTo(String persistenceId, long toSequenceNr) {
+        return FutureConverters.toScala(this.store.delete(persistenceId, toSequenceNr));
+    }
+
+    /** replays off the actor, on the plugin dispatcher, as reading the segments may block */
+    @Override
+    public Future<Void> doAsyncReplayMessages(String persistenceId, long fromSequenceNr, long toSequenceNr, long max,
+                                              Consumer<PersistentRepr> replayCallback) {
+        ExecutionContext dispatcher = context().dispatcher();
+        return Futures.future(() -> {
+            this.store.replay(persistenceId, fromSequenceNr, toSequenceNr, max, entry -> replayCallback.accept(entry.repr));
+            return null;
+        }, dispatcher);
+    }
+
+    @Override
+    public Future<Long> doAsyncReadHighestSequenceNr(String persistenceId, long fromSequenceNr) {
+        return Futures.successful(this.store.highestSequenceNr(persistenceId));
+    }
+}
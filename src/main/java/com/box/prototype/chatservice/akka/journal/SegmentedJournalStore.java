@@ -0,0 +1,711 @@
+package com.box.prototype.chatservice.akka.journal;
+
+import akka.actor.ActorSystem;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.persistence.PersistentRepr;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import com.typesafe.config.Config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * append only journal storage, shared by the segmented journal plugin and its read journal.
+ *
+ * persistence ids are hashed to partitions, each a directory of preallocated segment files appended to in turn.  all
+ * writes go through a single writer thread, which group commits: it takes whatever writes queued up while it was
+ * busy (waiting up to the group commit window for more), appends them, syncs each segment touched once, and only
+ * then acks them.  a single writer also gives every event a journal wide ordering in commit order, which serves as
+ * the offset of tag queries.
+ *
+ * reads go through the segments' memory mappings.  an in-memory index per persistence id locates its records for
+ * replay, and is rebuilt by scanning the segments on start, up to a write torn by a crash if any.  deletes are
+ * appended to a small log, and a segment is removed once every event in it has been deleted.
+ */
+public class SegmentedJournalStore {
+    protected static final String DELETIONS = "deletions.log";
+
+    /** a replayed event and its ordering */
+    public static class Entry {
+        public final long ordering;
+        public final PersistentRepr repr;
+
+        public Entry(long ordering, PersistentRepr repr) {
+            this.ordering = ordering;
+            this.repr = repr;
+        }
+    }
+
+    /** an atomic write, its events' payloads serialized */
+    public static class Write {
+        public final String persistenceId;
+        public final List<JournalRecord.Event> events;
+
+        public Write(String persistenceId, List<JournalRecord.Event> events) {
+            this.persistenceId = persistenceId;
+            this.events = events;
+        }
+    }
+
+    /** where a tag query has read to: the ordering it's caught up to, and per partition the segment and position */
+    public static class TagCursor {
+        protected final String tag;
+        protected long ordering;
+        protected final int[] segments;
+        protected final int[] positions;
+
+        protected TagCursor(String tag, long ordering, int partitions) {
+            this.tag = tag;
+            this.ordering = ordering;
+            this.segments = new int[partitions];
+            this.positions = new int[partitions];
+        }
+    }
+
+    /** a partition's segments, in order.  the last one, the active segment, is the only one written to */
+    protected static class Partition {
+        protected final File dir;
+        protected final ConcurrentNavigableMap<Integer, JournalSegment> segments = new ConcurrentSkipListMap<>();
+        // writer only
+        protected JournalSegment active = null;
+
+        protected Partition(File dir) {
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * where a persistence id's records are, in sequence nr order, as the first sequence nr of each record and its
+     * location (segment number and position).  records entirely deleted are dropped
+     */
+    protected static class PersistenceIdIndex {
+        private long[] sequenceNrs = new long[2];
+        private long[] locations = new long[2];
+        private int size = 0;
+        protected volatile long highestSequenceNr = 0;
+        protected volatile long deletedTo = 0;
+
+        protected synchronized void add(long firstSequenceNr, long lastSequenceNr, long location) {
+            if (lastSequenceNr > this.deletedTo) {
+                if (this.size == this.sequenceNrs.length) {
+                    this.sequenceNrs = Arrays.copyOf(this.sequenceNrs, this.size * 2);
+                    this.locations = Arrays.copyOf(this.locations, this.size * 2);
+                }
+                this.sequenceNrs[this.size] = firstSequenceNr;
+                this.locations[this.size] = location;
+                this.size++;
+            }
+            this.highestSequenceNr = Math.max(this.highestSequenceNr, lastSequenceNr);
+        }
+
+        /** locations of the records that may hold events from through to */
+        protected synchronized long[] locations(long from, long to) {
+            int start = Arrays.binarySearch(this.sequenceNrs, 0, this.size, from);
+            start = start >= 0 ? start : Math.max(0, -start - 2);
+            int end = Arrays.binarySearch(this.sequenceNrs, 0, this.size, to);
+            end = end >= 0 ? end + 1 : -end - 1;
+            return start < end ? Arrays.copyOfRange(this.locations, start, end) : new long[0];
+        }
+
+        protected synchronized void deleteTo(long toSequenceNr) {
+            this.deletedTo = Math.max(this.deletedTo, toSequenceNr);
+            // a record ends where the next one starts, the last one at the highest sequence nr
+            int deleted = 0;
+            while (deleted < this.size && (deleted + 1 < this.size
+                    ? this.sequenceNrs[deleted + 1] <= this.deletedTo + 1
+                    : this.highestSequenceNr <= this.deletedTo)) {
+                deleted++;
+            }
+            if (deleted > 0) {
+                this.size -= deleted;
+                System.arraycopy(this.sequenceNrs, deleted, this.sequenceNrs, 0, this.size);
+                System.arraycopy(this.locations, deleted, this.locations, 0, this.size);
+            }
+        }
+    }
+
+    protected static abstract class Request {
+        protected final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+
+    protected static class WriteRequest extends Request {
+        protected final List<Write> writes;
+
+        protected WriteRequest(List<Write> writes) {
+            this.writes = writes;
+        }
+    }
+
+    protected static class DeleteRequest extends Request {
+        protected final String persistenceId;
+        protected final long toSequenceNr;
+
+        protected DeleteRequest(String persistenceId, long toSequenceNr) {
+            this.persistenceId = persistenceId;
+            this.toSequenceNr = toSequenceNr;
+        }
+    }
+
+    /** a record appended by the writer, indexed once committed */
+    protected static class Appended {
+        protected final JournalRecord record;
+        protected final JournalSegment segment;
+        protected final int position;
+
+        protected Appended(JournalRecord record, JournalSegment segment, int position) {
+            this.record = record;
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    /** a tagged event found by a tag query, and the record it's in */
+    protected static class Found {
+        protected final JournalRecord.Event event;
+        protected final int segment;
+        protected final int position;
+
+        protected Found(JournalRecord.Event event, int segment, int position) {
+            this.event = event;
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    protected final File DIR;
+    protected final int SEGMENT_SIZE;
+    protected final long GROUP_COMMIT_WINDOW;
+    protected final int GROUP_COMMIT_MAX_WRITES;
+    protected final boolean FSYNC;
+
+    private final LoggingAdapter logger;
+    private final Serialization serialization;
+    private final Partition[] partitions;
+    private final Map<String, PersistenceIdIndex> indexes = new ConcurrentHashMap<>();
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private FileOutputStream deletionsFile;
+    private DataOutputStream deletions;
+
+    // writer only, the ordering of the next event appended
+    private long nextOrdering = 1;
+    // ordering of the last event committed, everything up to it is readable
+    private volatile long committedOrdering = 0;
+    private volatile boolean closed = false;
+
+    public SegmentedJournalStore(ActorSystem system, Config config) throws IOException {
+        DIR = new File(config.getString("dir"));
+        SEGMENT_SIZE = (int)Math.min(Integer.MAX_VALUE, config.getBytes("segment-size"));
+        GROUP_COMMIT_WINDOW = config.getDuration("group-commit.window", TimeUnit.NANOSECONDS);
+        GROUP_COMMIT_MAX_WRITES = Math.max(1, config.getInt("group-commit.max-writes"));
+        FSYNC = config.getBoolean("fsync");
+        this.logger = Logging.getLogger(system, this);
+        this.serialization = SerializationExtension.get(system);
+        this.partitions = new Partition[Math.max(1, config.getInt("partitions"))];
+
+        recover();
+        this.writer = new Thread(this::runWriter, "segmented-journal-writer-" + DIR.getName());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** appends atomic writes, completing once they're committed */
+    public CompletableFuture<Void> write(List<Write> writes) {
+        if (writes.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return submit(new WriteRequest(writes));
+    }
+
+    public CompletableFuture<Void> delete(String persistenceId, long toSequenceNr) {
+        return submit(new DeleteRequest(persistenceId, toSequenceNr));
+    }
+
+    public long highestSequenceNr(String persistenceId) {
+        PersistenceIdIndex index = this.indexes.get(persistenceId);
+        return index == null ? 0 : index.highestSequenceNr;
+    }
+
+    public List<String> persistenceIds() {
+        return new ArrayList<>(this.indexes.keySet());
+    }
+
+    /** replays a persistence id's events, skipping deleted ones.  blocks on reading the segments */
+    public void replay(String persistenceId, long fromSequenceNr, long toSequenceNr, long max, Consumer<Entry> callback) {
+        PersistenceIdIndex index = this.indexes.get(persistenceId);
+        if (index == null || max <= 0) {
+            return;
+        }
+        long from = Math.max(fromSequenceNr, index.deletedTo + 1);
+        Partition partition = partition(persistenceId);
+        long replayed = 0;
+        for (long location : index.locations(from, toSequenceNr)) {
+            JournalSegment segment = partition.segments.get(segmentNumber(location));
+            if (segment == null) {
+                // removed since, so deleted
+                continue;
+            }
+            JournalRecord record = JournalRecord.read(segment.view(), position(location), segment.committedSize);
+            if (record == null) {
+                throw new IllegalStateException(String.format("unreadable record of %s in segment %s at %d",
+                    persistenceId, segment.file, position(location)));
+            }
+            for (JournalRecord.Event event : record.events) {
+                if (event.sequenceNr >= from && event.sequenceNr <= toSequenceNr) {
+                    callback.accept(new Entry(event.ordering, deserialize(event.payload)));
+                    if (++replayed >= max) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /** a cursor for reading the events with a tag, from after an ordering */
+    public TagCursor tagCursor(String tag, long afterOrdering) {
+        return new TagCursor(tag, afterOrdering, this.partitions.length);
+    }
+
+    /**
+     * reads the committed events with the cursor's tag after it, in ordering order, advancing the cursor.  reads up to
+     * max events from each partition, returning those before the point where any partition stopped short.  deleted
+     * events are returned until their segment is removed.  blocks on reading the segments
+     */
+    public List<Entry> readTagged(TagCursor cursor, int max) {
+        long upper = this.committedOrdering;
+        if (upper <= cursor.ordering) {
+            return Collections.emptyList();
+        }
+
+        List<List<Found>> found = new ArrayList<>(this.partitions.length);
+        long cutoff = upper;
+        for (int i = 0; i < this.partitions.length; i++) {
+            List<Found> partitionFound = new ArrayList<>();
+            if (scanTagged(i, cursor, upper, max, partitionFound)) {
+                cutoff = Math.min(cutoff, partitionFound.get(partitionFound.size() - 1).event.ordering);
+            }
+            found.add(partitionFound);
+        }
+
+        List<JournalRecord.Event> events = new ArrayList<>();
+        for (int i = 0; i < this.partitions.length; i++) {
+            for (Found event : found.get(i)) {
+                if (event.event.ordering > cutoff) {
+                    // read again next time, from its record
+                    cursor.segments[i] = event.segment;
+                    cursor.positions[i] = event.position;
+                    break;
+                }
+                events.add(event.event);
+            }
+        }
+        cursor.ordering = cutoff;
+
+        events.sort(Comparator.comparingLong(event -> event.ordering));
+        List<Entry> entries = new ArrayList<>(events.size());
+        events.forEach(event -> entries.add(new Entry(event.ordering, deserialize(event.payload))));
+        return entries;
+    }
+
+    /** stops the writer, failing whatever it hasn't committed, and closes the files */
+    public void close() {
+        this.closed = true;
+        this.writer.interrupt();
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Partition partition : this.partitions) {
+            for (JournalSegment segment : partition.segments.values()) {
+                try {
+                    segment.close();
+                } catch (IOException ex) {
+                    logger.warning("unable to close journal segment {}: {}", segment.file, ex);
+                }
+            }
+        }
+        try {
+            this.deletions.close();
+        } catch (IOException ex) {
+            logger.warning("unable to close journal deletions log: {}", ex);
+        }
+    }
+
+    protected CompletableFuture<Void> submit(Request request) {
+        if (this.closed) {
+            request.done.completeExceptionally(new IllegalStateException("journal closed"));
+        } else {
+            this.requests.add(request);
+        }
+        return request.done;
+    }
+
+    protected Partition partition(String persistenceId) {
+        return this.partitions[Math.floorMod(persistenceId.hashCode(), this.partitions.length)];
+    }
+
+    protected PersistenceIdIndex index(String persistenceId) {
+        return this.indexes.computeIfAbsent(persistenceId, id -> new PersistenceIdIndex());
+    }
+
+    protected PersistentRepr deserialize(byte[] payload) {
+        return this.serialization.deserialize(payload, PersistentRepr.class).get();
+    }
+
+    protected static long location(int segment, int position) {
+        return ((long)segment << 32) | (position & 0xffffffffL);
+    }
+
+    protected static int segmentNumber(long location) {
+        return (int)(location >>> 32);
+    }
+
+    protected static int position(long location) {
+        return (int)location;
+    }
+
+    // recovery
+
+    /** loads the deletions, then rebuilds the indexes from the segments, dropping a torn write at their end */
+    protected void recover() throws IOException {
+        if (!DIR.isDirectory() && !DIR.mkdirs()) {
+            throw new IOException("unable to create journal directory " + DIR);
+        }
+        // persistence ids are hashed to partitions, so their count can't change under an existing journal
+        File[] existing = DIR.listFiles(file -> file.isDirectory() && file.getName().startsWith("partition-"));
+        if (existing != null && existing.length > 0 && existing.length != this.partitions.length) {
+            throw new IllegalStateException(String.format("journal %s has %d partitions, configured for %d",
+                DIR, existing.length, this.partitions.length));
+        }
+        loadDeletions();
+
+        long highestOrdering = 0;
+        int segments = 0;
+        for (int i = 0; i < this.partitions.length; i++) {
+            Partition partition = new Partition(new File(DIR, String.format("partition-%02d", i)));
+            if (!partition.dir.isDirectory() && !partition.dir.mkdirs()) {
+                throw new IOException("unable to create journal partition " + partition.dir);
+            }
+            File[] files = partition.dir.listFiles(file -> JournalSegment.number(file) >= 0);
+            Arrays.sort(files, Comparator.comparingInt(JournalSegment::number));
+            for (File file : files) {
+                JournalSegment segment = JournalSegment.open(partition.dir, JournalSegment.number(file), SEGMENT_SIZE);
+                highestOrdering = Math.max(highestOrdering, scan(segment));
+                partition.segments.put(segment.number, segment);
+                partition.active = segment;
+                segments++;
+            }
+            if (partition.active != null && partition.active.torn()) {
+                // appended after, a torn write could line up with new records and be taken for data, so it's left
+                // as is at the end of its segment, where scans stop short of it, and appends go to a new segment
+                logger.warning("journal segment {} ends in a torn write at {}", partition.active.file, partition.active.committedSize);
+                partition.active = null;
+            }
+            this.partitions[i] = partition;
+        }
+        for (Partition partition : this.partitions) {
+            reclaim(partition);
+        }
+
+        this.nextOrdering = highestOrdering + 1;
+        this.committedOrdering = highestOrdering;
+        logger.info("recovered journal {}: {} segments, {} persistence ids, ordering {}",
+            DIR, segments, this.indexes.size(), highestOrdering);
+    }
+
+    /** indexes a segment's records up to the end of its data, returning the highest ordering in it */
+    protected long scan(JournalSegment segment) {
+        ByteBuffer view = segment.view();
+        int position = 0;
+        JournalRecord record;
+        while ((record = JournalRecord.read(view, position, segment.capacity)) != null) {
+            segment.appended(record.lastOrdering());
+            index(record, segment, position);
+            position += record.length;
+        }
+        segment.writePosition = position;
+        segment.commit();
+        return segment.lastOrdering;
+    }
+
+    protected void index(JournalRecord record, JournalSegment segment, int position) {
+        index(record.persistenceId).add(record.firstSequenceNr(), record.lastSequenceNr(), location(segment.number, position));
+        segment.highestSequenceNrs.merge(record.persistenceId, record.lastSequenceNr(), Math::max);
+    }
+
+    /** reads the deletions log, then rewrites it compacted to a single entry per persistence id */
+    protected void loadDeletions() throws IOException {
+        File file = new File(DIR, DELETIONS);
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    String persistenceId = in.readUTF();
+                    long deletedTo = in.readLong();
+                    long highestSequenceNr = in.readLong();
+                    PersistenceIdIndex index = index(persistenceId);
+                    index.highestSequenceNr = Math.max(index.highestSequenceNr, highestSequenceNr);
+                    index.deleteTo(deletedTo);
+                }
+            } catch (EOFException ex) {
+                // end of the log, or a torn last entry
+            }
+        }
+
+        File compacted = new File(DIR, DELETIONS + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(compacted)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            for (Map.Entry<String, PersistenceIdIndex> entry : this.indexes.entrySet()) {
+                writeDeletion(data, entry.getKey(), entry.getValue().deletedTo, entry.getValue().highestSequenceNr);
+            }
+            data.flush();
+            out.getFD().sync();
+        }
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.deletionsFile = new FileOutputStream(file, true);
+        this.deletions = new DataOutputStream(new BufferedOutputStream(this.deletionsFile));
+    }
+
+    protected static void writeDeletion(DataOutputStream out, String persistenceId, long deletedTo, long highestSequenceNr) throws IOException {
+        out.writeUTF(persistenceId);
+        out.writeLong(deletedTo);
+        out.writeLong(highestSequenceNr);
+    }
+
+    // writer
+
+    protected void runWriter() {
+        List<Request> batch = new ArrayList<>();
+        try {
+            while (!this.closed) {
+                Request request = this.requests.take();
+                batch.add(request);
+                int writes = size(request);
+                // gather what else arrives within the window, up to the max
+                long deadline = System.nanoTime() + GROUP_COMMIT_WINDOW;
+                while (writes < GROUP_COMMIT_MAX_WRITES) {
+                    long remaining = deadline - System.nanoTime();
+                    request = remaining > 0 ? this.requests.poll(remaining, TimeUnit.NANOSECONDS) : this.requests.poll();
+                    if (request == null) {
+                        break;
+                    }
+                    batch.add(request);
+                    writes += size(request);
+                }
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            // closing
+        }
+        IllegalStateException closed = new IllegalStateException("journal closed");
+        batch.forEach(request -> request.done.completeExceptionally(closed));
+        this.requests.forEach(request -> request.done.completeExceptionally(closed));
+    }
+
+    protected static int size(Request request) {
+        return request instanceof WriteRequest ? ((WriteRequest)request).writes.size() : 1;
+    }
+
+    /** commits a batch's writes together, then applies its deletes, which always follow the writes they delete */
+    protected void commit(List<Request> batch) {
+        List<WriteRequest> writes = new ArrayList<>();
+        List<DeleteRequest> deletes = new ArrayList<>();
+        for (Request request : batch) {
+            if (request instanceof WriteRequest) {
+                writes.add((WriteRequest)request);
+            } else {
+                deletes.add((DeleteRequest)request);
+            }
+        }
+        if (!writes.isEmpty()) {
+            commitWrites(writes);
+        }
+        deletes.forEach(this::applyDelete);
+    }
+
+    /**
+     * appends the writes, syncs each segment touched, then makes them readable and acks them.  if anything fails, all
+     * of them fail and are rolled back
+     */
+    protected void commitWrites(List<WriteRequest> requests) {
+        Set<JournalSegment> touched = new LinkedHashSet<>();
+        List<Appended> appended = new ArrayList<>();
+        long ordering = this.nextOrdering;
+        try {
+            for (WriteRequest request : requests) {
+                for (Write write : request.writes) {
+                    List<JournalRecord.Event> events = new ArrayList<>(write.events.size());
+                    for (JournalRecord.Event event : write.events) {
+                        events.add(event.withOrdering(ordering++));
+                    }
+                    byte[] bytes = JournalRecord.encode(write.persistenceId, events);
+                    JournalRecord record = new JournalRecord(write.persistenceId, events, bytes.length);
+                    JournalSegment segment = appendable(partition(write.persistenceId), bytes.length);
+                    int position = segment.append(bytes);
+                    segment.appended(record.lastOrdering());
+                    touched.add(segment);
+                    appended.add(new Appended(record, segment, position));
+                }
+            }
+            if (FSYNC) {
+                for (JournalSegment segment : touched) {
+                    segment.sync();
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.error(ex, "journal commit of {} writes failed", appended.size());
+            for (JournalSegment segment : touched) {
+                try {
+                    segment.rollback();
+                } catch (IOException rollbackEx) {
+                    logger.error(rollbackEx, "unable to roll back journal segment {}", segment.file);
+                }
+            }
+            requests.forEach(request -> request.done.completeExceptionally(ex));
+            return;
+        }
+
+        // readers rely on this order: a segment's data is visible before the segment after it, and everything is
+        // visible before the committed ordering covers it
+        touched.forEach(JournalSegment::commit);
+        for (Partition partition : this.partitions) {
+            if (partition.active != null) {
+                partition.segments.putIfAbsent(partition.active.number, partition.active);
+            }
+        }
+        appended.forEach(entry -> index(entry.record, entry.segment, entry.position));
+        this.nextOrdering = ordering;
+        this.committedOrdering = ordering - 1;
+        requests.forEach(request -> request.done.complete(null));
+    }
+
+    /** the active segment, rolled to a new one if the record doesn't fit.  the new one is published on commit */
+    protected JournalSegment appendable(Partition partition, int length) throws IOException {
+        JournalSegment active = partition.active;
+        if (active == null || !active.fits(length)) {
+            int number = active != null ? active.number + 1 : partition.segments.isEmpty() ? 0 : partition.segments.lastKey() + 1;
+            active = JournalSegment.open(partition.dir, number, Math.max(SEGMENT_SIZE, length));
+            partition.active = active;
+        }
+        return active;
+    }
+
+    protected void applyDelete(DeleteRequest request) {
+        try {
+            PersistenceIdIndex index = index(request.persistenceId);
+            long toSequenceNr = Math.min(request.toSequenceNr, index.highestSequenceNr);
+            if (toSequenceNr > index.deletedTo) {
+                writeDeletion(this.deletions, request.persistenceId, toSequenceNr, index.highestSequenceNr);
+                this.deletions.flush();
+                if (FSYNC) {
+                    this.deletionsFile.getFD().sync();
+                }
+                index.deleteTo(toSequenceNr);
+                reclaim(partition(request.persistenceId));
+            }
+            request.done.complete(null);
+        } catch (IOException | RuntimeException ex) {
+            logger.error(ex, "journal delete of {} to {} failed", request.persistenceId, request.toSequenceNr);
+            request.done.completeExceptionally(ex);
+        }
+    }
+
+    /** removes a partition's segments, other than the active one, whose events have all been deleted */
+    protected void reclaim(Partition partition) {
+        for (JournalSegment segment : partition.segments.values()) {
+            if (segment == partition.active) {
+                continue;
+            }
+            boolean deleted = segment.highestSequenceNrs.entrySet().stream()
+                .allMatch(entry -> this.indexes.get(entry.getKey()).deletedTo >= entry.getValue());
+            if (deleted) {
+                partition.segments.remove(segment.number);
+                try {
+                    segment.delete();
+                    logger.info("removed journal segment {}, all of its events deleted", segment.file);
+                } catch (IOException ex) {
+                    logger.warning("unable to remove journal segment {}: {}", segment.file, ex);
+                }
+            }
+        }
+    }
+
+    // tag queries
+
+    /**
+     * collects a partition's events with the cursor's tag, ordered after the cursor up to the upper ordering, moving
+     * the partition's cursor past what it read.  returns whether it stopped short, at max events
+     */
+    protected boolean scanTagged(int partitionIndex, TagCursor cursor, long upper, int max, List<Found> found) {
+        Partition partition = this.partitions[partitionIndex];
+        Map.Entry<Integer, JournalSegment> entry = partition.segments.ceilingEntry(cursor.segments[partitionIndex]);
+        int position = entry != null && entry.getKey() == cursor.segments[partitionIndex] ? cursor.positions[partitionIndex] : 0;
+        while (entry != null) {
+            JournalSegment segment = entry.getValue();
+            // looked up first: once a segment has one after it, its data is final, and visible
+            Map.Entry<Integer, JournalSegment> next = partition.segments.higherEntry(segment.number);
+            if (next == null || segment.lastOrdering > cursor.ordering) {
+                ByteBuffer view = segment.view();
+                int committed = segment.committedSize;
+                JournalRecord record;
+                while ((record = JournalRecord.read(view, position, committed)) != null) {
+                    if (record.firstOrdering() > upper) {
+                        moveCursor(cursor, partitionIndex, segment.number, position);
+                        return false;
+                    }
+                    for (JournalRecord.Event event : record.events) {
+                        if (event.ordering > cursor.ordering && event.ordering <= upper && event.tags.contains(cursor.tag)) {
+                            found.add(new Found(event, segment.number, position));
+                        }
+                    }
+                    position += record.length;
+                    if (found.size() >= max) {
+                        moveCursor(cursor, partitionIndex, segment.number, position);
+                        return true;
+                    }
+                }
+            }
+            if (next == null) {
+                moveCursor(cursor, partitionIndex, segment.number, position);
+                return false;
+            }
+            entry = next;
+            position = 0;
+        }
+        return false;
+    }
+
+    protected static void moveCursor(TagCursor cursor, int partitionIndex, int segment, int position) {
+        cursor.segments[partitionIndex] = segment;
+        cursor.positions[partitionIndex] = position;
+    }
+}
@@ -0,0 +1,69 @@
+package com.box.prototype.chatservice.akka.journal;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import com.typesafe.config.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * the open journal stores, by directory.  the journal plugin and its read journal each get their store from here, so
+ * they share it whichever starts first, and stores are closed when the actor system terminates.
+ */
+public class SegmentedJournalStores implements Extension {
+    /** extension id, one instance per actor system */
+    public static class Id extends AbstractExtensionId<SegmentedJournalStores> implements ExtensionIdProvider {
+        public static final Id INSTANCE = new Id();
+
+        private Id() {}
+
+        @Override
+        public Id lookup() {
+            return INSTANCE;
+        }
+
+        @Override
+        public SegmentedJournalStores createExtension(ExtendedActorSystem system) {
+            return new SegmentedJournalStores(system);
+        }
+    }
+
+    public static SegmentedJournalStores get(ActorSystem system) {
+        return Id.INSTANCE.get(system);
+    }
+
+    private final ActorSystem system;
+    private final Map<String, SegmentedJournalStore> stores = new HashMap<>();
+
+    public SegmentedJournalStores(ActorSystem system) {
+        this.system = system;
+        system.registerOnTermination(this::close);
+    }
+
+    /** the store for a journal plugin's config, opened (and recovered) if it isn't yet */
+    public synchronized SegmentedJournalStore store(Config config) {
+        String dir = new File(config.getString("dir")).getAbsolutePath();
+        SegmentedJournalStore store = this.stores.get(dir);
+        if (store == null) {
+            try {
+                store = new SegmentedJournalStore(this.system, config);
+            } catch (IOException ex) {
+                throw new UncheckedIOException("unable to open journal " + dir, ex);
+            }
+            this.stores.put(dir, store);
+        }
+        return store;
+    }
+
+    protected synchronized void close() {
+        this.stores.values().forEach(SegmentedJournalStore::close);
+        this.stores.clear();
+    }
+}
@@ -0,0 +1,108 @@
+package com.box.prototype.chatservice.akka.journal;
+
+import akka.NotUsed;
+import akka.actor.ExtendedActorSystem;
+import akka.japi.Pair;
+import akka.persistence.PersistentRepr;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.NoOffset;
+import akka.persistence.query.Offset;
+import akka.persistence.query.Sequence;
+import akka.persistence.query.javadsl.CurrentEventsByPersistenceIdQuery;
+import akka.persistence.query.javadsl.CurrentPersistenceIdsQuery;
+import akka.persistence.query.javadsl.EventsByTagQuery;
+import akka.persistence.query.javadsl.ReadJournal;
+import akka.stream.ActorAttributes;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * queries over the segmented journal, read straight from its store, for the queries the service uses.  offsets are
+ * the journal wide orderings of events, so a tag query resumes after the last offset it returned.  live tag queries
+ * poll the store every refresh interval, reading on the plugin dispatcher as reading the segments may block.
+ */
+public class SegmentedReadJournal implements ReadJournal, EventsByTagQuery, CurrentPersistenceIdsQuery, CurrentEventsByPersistenceIdQuery {
+    public static final String IDENTIFIER = "chat.persistence.query.segmented";
+
+    protected final Duration REFRESH_INTERVAL;
+    protected final int MAX_BUFFER_SIZE;
+    protected final String PLUGIN_DISPATCHER;
+
+    private final SegmentedJournalStore store;
+
+    public SegmentedReadJournal(ExtendedActorSystem system, Config config) {
+        REFRESH_INTERVAL = config.getDuration("refresh-interval");
+        MAX_BUFFER_SIZE = Math.max(1, config.getInt("max-buffer-size"));
+        PLUGIN_DISPATCHER = config.getString("plugin-dispatcher");
+        Config journalConfig = system.settings().config().getConfig(config.getString("write-plugin"));
+        this.store = SegmentedJournalStores.get(system).store(journalConfig);
+    }
+
+    /** events with the tag, after the offset, then new ones as they're committed */
+    @Override
+    public Source<EventEnvelope, NotUsed> eventsByTag(String tag, Offset offset) {
+        long after = ordering(offset);
+        // a cursor per materialization
+        return Source.single(tag)
+            .flatMapConcat(unused -> {
+                SegmentedJournalStore.TagCursor cursor = this.store.tagCursor(tag, after);
+                return Source.tick(Duration.ZERO, REFRESH_INTERVAL, cursor)
+                    .flatMapConcat(this::readTagged);
+            });
+    }
+
+    /** the events committed after the cursor, read a buffer at a time as they're demanded */
+    protected Source<EventEnvelope, NotUsed> readTagged(SegmentedJournalStore.TagCursor cursor) {
+        return Source.unfold(cursor, current -> {
+                List<SegmentedJournalStore.Entry> entries = this.store.readTagged(current, MAX_BUFFER_SIZE);
+                return entries.isEmpty() ? Optional.<Pair<SegmentedJournalStore.TagCursor, List<SegmentedJournalStore.Entry>>>empty() : Optional.of(Pair.create(current, entries));
+            })
+            .withAttributes(ActorAttributes.dispatcher(PLUGIN_DISPATCHER))
+            .mapConcat(entries -> entries)
+            .map(SegmentedReadJournal::envelope);
+    }
+
+    @Override
+    public Source<String, NotUsed> currentPersistenceIds() {
+        return Source.single(NotUsed.getInstance())
+            .mapConcat(unused -> this.store.persistenceIds());
+    }
+
+    /** the events in the range, as of when each buffer of them is read */
+    @Override
+    public Source<EventEnvelope, NotUsed> currentEventsByPersistenceId(String persistenceId, long fromSequenceNr, long toSequenceNr) {
+        return Source.unfold(fromSequenceNr, from -> {
+                if (from > toSequenceNr) {
+                    return Optional.<Pair<Long, List<SegmentedJournalStore.Entry>>>empty();
+                }
+                List<SegmentedJournalStore.Entry> entries = new ArrayList<>();
+                this.store.replay(persistenceId, from, toSequenceNr, MAX_BUFFER_SIZE, entries::add);
+                if (entries.isEmpty()) {
+                    return Optional.<Pair<Long, List<SegmentedJournalStore.Entry>>>empty();
+                }
+                return Optional.of(Pair.create(entries.get(entries.size() - 1).repr.sequenceNr() + 1, entries));
+            })
+            .withAttributes(ActorAttributes.dispatcher(PLUGIN_DISPATCHER))
+            .mapConcat(entries -> entries)
+            .map(SegmentedReadJournal::envelope);
+    }
+
+    protected static EventEnvelope envelope(SegmentedJournalStore.Entry entry) {
+        PersistentRepr repr = entry.repr;
+        return new EventEnvelope(Offset.sequence(entry.ordering), repr.persistenceId(), repr.sequenceNr(), repr.payload());
+    }
+
+    protected static long ordering(Offset offset) {
+        if (offset instanceof Sequence) {
+            return ((Sequence)offset).value();
+        } else if (offset == NoOffset.getInstance()) {
+            return 0;
+        }
+        throw new IllegalArgumentException("segmented journal offsets are sequences, not " + offset);
+    }
+}
@@ -0,0 +1,24 @@
+package com.box.prototype.chatservice.akka.journal;
+
+import akka.actor.ExtendedActorSystem;
+import akka.persistence.query.ReadJournalProvider;
+import com.typesafe.config.Config;
+
+/** read journal plugin of the segmented journal.  the service only queries through the java api */
+public class SegmentedReadJournalProvider implements ReadJournalProvider {
+    private final SegmentedReadJournal readJournal;
+
+    public SegmentedReadJournalProvider(ExtendedActorSystem system, Config config) {
+        this.readJournal = new SegmentedReadJournal(system, config);
+    }
+
+    @Override
+    public akka.persistence.query.scaladsl.ReadJournal scaladslReadJournal() {
+        return new akka.persistence.query.scaladsl.ReadJournal() {};
+    }
+
+    @Override
+    public akka.persistence.query.javadsl.ReadJournal javadslReadJournal() {
+        return this.readJournal;
+    }
+}
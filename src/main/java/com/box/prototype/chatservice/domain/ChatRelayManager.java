@@ -0,0 +1,142 @@
+package com.box.prototype.chatservice.domain;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.box.prototype.chatservice.domain.ChatRoomRelayProtocol.*;
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.FetchHistory;
+
+/**
+ * one per node, routes local sessions to the node's relay for their chatroom, creating relays as needed.  also admits
+ * the relays' history reads, at most a limit of them in flight on the node, the rest queued in order, so a storm of
+ * rejoins after a node loss is backfilled at a steady pace instead of every session reading at once
+ */
+public class ChatRelayManager extends AbstractActor {
+    public static Props createProps(ActorRef chatRoomRegion, Duration relayIdleTimeout, Duration requestTimeout,
+                                    int backfillsPerRoom, int backfillsPerNode, int backfillCacheFrames) {
+        return Props.create(ChatRelayManager.class, chatRoomRegion, relayIdleTimeout, requestTimeout, backfillsPerRoom,
+            backfillsPerNode, backfillCacheFrames);
+    }
+
+    private final ActorRef chatRoomRegion;
+    private final Duration relayIdleTimeout;
+    private final Duration requestTimeout;
+    private final int backfillsPerRoom;
+    private final int backfillsPerNode;
+    private final int backfillCacheFrames;
+    private final Map<String, ActorRef> relays = new HashMap<>();
+    // subscribes forwarded to each relay, to tell whether an idle relay has any still on their way to it
+    private final Map<String, Long> subscribeCounts = new HashMap<>();
+    // history reads in flight, by relay, and relays waiting for one
+    private final Map<ActorRef, Integer> backfillGrants = new HashMap<>();
+    private final ArrayDeque<ActorRef> backfillQueue = new ArrayDeque<>();
+    private int backfillsInFlight = 0;
+
+    /** constructor */
+    public ChatRelayManager(ActorRef chatRoomRegion, Duration relayIdleTimeout, Duration requestTimeout,
+                            int backfillsPerRoom, int backfillsPerNode, int backfillCacheFrames) {
+        this.chatRoomRegion = chatRoomRegion;
+        this.relayIdleTimeout = relayIdleTimeout;
+        this.requestTimeout = requestTimeout;
+        this.backfillsPerRoom = backfillsPerRoom;
+        this.backfillsPerNode = Math.max(1, backfillsPerNode);
+        this.backfillCacheFrames = backfillCacheFrames;
+    }
+
+    /** message handler */
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+            .match(Subscribe.class, this::handleSubscribe)
+            .match(Unsubscribe.class, this::handleUnsubscribe)
+            .match(FetchHistory.class, this::handleFetchHistory)
+            .match(AcquireBackfill.class, this::handleAcquireBackfill)
+            .match(ReleaseBackfill.class, this::handleReleaseBackfill)
+            .match(RelayIdle.class, this::handleRelayIdle)
+            .build();
+    }
+
+    protected void handleSubscribe(Subscribe command) {
+        String chatRoom = command.sessionInfo.getChatRoom();
+        ActorRef relay = this.relays.computeIfAbsent(chatRoom,
+            room -> getContext().actorOf(ChatRoomRelay.createProps(room, this.chatRoomRegion, this.relayIdleTimeout,
+                this.requestTimeout, this.backfillsPerRoom, this.backfillCacheFrames)));
+        this.subscribeCounts.merge(chatRoom, 1L, Long::sum);
+        relay.forward(command, getContext());
+    }
+
+    protected void handleUnsubscribe(Unsubscribe command) {
+        ActorRef relay = this.relays.get(command.chatRoom);
+        if (relay != null) {
+            relay.forward(command, getContext());
+        }
+    }
+
+    /** sessions page in their backfill through their room's relay, which shares reads between them */
+    protected void handleFetchHistory(FetchHistory command) {
+        ActorRef relay = this.relays.get(command.sessionInfo.getChatRoom());
+        if (relay != null) {
+            relay.forward(command, getContext());
+        } else {
+            this.chatRoomRegion.forward(command, getContext());
+        }
+    }
+
+    protected void handleAcquireBackfill(AcquireBackfill command) {
+        if (this.backfillsInFlight < this.backfillsPerNode) {
+            grantBackfill(getSender());
+        } else {
+            this.backfillQueue.add(getSender());
+        }
+    }
+
+    protected void handleReleaseBackfill(ReleaseBackfill command) {
+        if (releaseBackfills(getSender(), 1) > 0) {
+            grantQueuedBackfills();
+        }
+    }
+
+    protected void grantBackfill(ActorRef relay) {
+        this.backfillsInFlight++;
+        this.backfillGrants.merge(relay, 1, Integer::sum);
+        relay.tell(new BackfillGranted(), getSelf());
+    }
+
+    protected void grantQueuedBackfills() {
+        while (this.backfillsInFlight < this.backfillsPerNode && !this.backfillQueue.isEmpty()) {
+            grantBackfill(this.backfillQueue.poll());
+        }
+    }
+
+    /** releases up to count of the relay's grants, returning how many it held */
+    protected int releaseBackfills(ActorRef relay, int count) {
+        int granted = this.backfillGrants.getOrDefault(relay, 0);
+        int released = Math.min(granted, count);
+        if (granted - released > 0) {
+            this.backfillGrants.put(relay, granted - released);
+        } else {
+            this.backfillGrants.remove(relay);
+        }
+        this.backfillsInFlight -= released;
+        return released;
+    }
+
+    protected void handleRelayIdle(RelayIdle command) {
+        if (getSender().equals(this.relays.get(command.chatRoom))
+            && this.subscribeCounts.getOrDefault(command.chatRoom, 0L) == command.subscribeCount) {
+            this.relays.remove(command.chatRoom);
+            this.subscribeCounts.remove(command.chatRoom);
+            // whatever the relay still had granted or queued goes to the others
+            this.backfillQueue.removeIf(relay -> relay.equals(getSender()));
+            releaseBackfills(getSender(), Integer.MAX_VALUE);
+            grantQueuedBackfills();
+            getContext().stop(getSender());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.box.prototype.chatservice.domain;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.persistence.query.PersistenceQuery;
+import akka.persistence.query.javadsl.CurrentPersistenceIdsQuery;
+import akka.stream.ActorMaterializer;
+import akka.stream.javadsl.Sink;
+import com.box.prototype.chatservice.domain.models.ChatRoom;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+import static akka.pattern.Patterns.pipe;
+import static com.box.prototype.chatservice.domain.ChatRoomDirectoryProtocol.*;
+
+/**
+ * keeps this node's copy of the chatroom directory up to date.  chatrooms publish a summary whenever their membership
+ * changes (and periodically while active), which every node's directory picks up, so listing rooms is served from the
+ * in-memory map without touching any chatroom.
+ *
+ * on start, rooms persisted in the local journal are added (without counts until they next report), and the other
+ * nodes' directories are asked for everything they know.
+ */
+public class ChatRoomDirectory extends AbstractActor {
+    public static Props createProps(ConcurrentNavigableMap<String, ChatRoom> chatRooms, String readJournalPluginId) {
+        return Props.create(ChatRoomDirectory.class, chatRooms, readJournalPluginId);
+    }
+
+    // rooms per sync reply, keeps replies well under the remoting frame size
+    protected static final int SYNC_CHUNK_SIZE = 500;
+
+    private final LoggingAdapter logger = Logging.getLogger(getContext().getSystem(), this);
+    private final ConcurrentNavigableMap<String, ChatRoom> chatRooms;
+    private final String readJournalPluginId;
+    private final ActorRef mediator = DistributedPubSub.get(getContext().getSystem()).mediator();
+
+    /** constructor */
+    public ChatRoomDirectory(ConcurrentNavigableMap<String, ChatRoom> chatRooms, String readJournalPluginId) {
+        this.chatRooms = chatRooms;
+        this.readJournalPluginId = readJournalPluginId;
+    }
+
+    @Override
+    public void preStart() {
+        this.mediator.tell(new DistributedPubSubMediator.Subscribe(TOPIC, getSelf()), getSelf());
+
+        CurrentPersistenceIdsQuery readJournal = PersistenceQuery.get(getContext().getSystem())
+            .getReadJournalFor(CurrentPersistenceIdsQuery.class, this.readJournalPluginId);
+        pipe(readJournal.currentPersistenceIds()
+                .runWith(Sink.seq(), ActorMaterializer.create(getContext()))
+                .thenApply(PersistenceIdsLoaded::new),
+            getContext().dispatcher()).to(getSelf());
+    }
+
+    /** message handler */
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+            .match(DistributedPubSubMediator.SubscribeAck.class, ack ->
+                this.mediator.tell(new DistributedPubSubMediator.Publish(TOPIC, new SyncRequest()), getSelf()))
+            .match(RoomUpdated.class, update -> merge(update.chatRoom))
+            .match(SyncRequest.class, this::handleSyncRequest)
+            .match(SyncReply.class, reply -> reply.chatRooms.forEach(this::merge))
+            .match(PersistenceIdsLoaded.class, this::handlePersistenceIdsLoaded)
+            .build();
+    }
+
+    protected void handleSyncRequest(SyncRequest request) {
+        if (getSender().equals(getSelf())) {
+            return;
+        }
+        List<ChatRoom> chunk = new ArrayList<>(SYNC_CHUNK_SIZE);
+        for (ChatRoom chatRoom : this.chatRooms.values()) {
+            chunk.add(chatRoom);
+            if (chunk.size() == SYNC_CHUNK_SIZE) {
+                getSender().tell(new SyncReply(chunk), getSelf());
+                chunk = new ArrayList<>(SYNC_CHUNK_SIZE);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            getSender().tell(new SyncReply(chunk), getSelf());
+        }
+    }
+
+    protected void handlePersistenceIdsLoaded(PersistenceIdsLoaded loaded) {
+        loaded.persistenceIds.forEach(persistenceId -> {
+            String id = chatRoomId(persistenceId);
+            this.chatRooms.putIfAbsent(id, new ChatRoom(id));
+        });
+        logger.info("loaded {} chatrooms from journal, {} in directory", loaded.persistenceIds.size(), this.chatRooms.size());
+    }
+
+    /**
+     * summaries are replaced, never modified, as they're read concurrently.  the one at the highest sequence nr wins,
+     * however late it arrives, so a previous incarnation's (or a stale sync reply's) can't undo a newer one
+     */
+    protected void merge(ChatRoom chatRoom) {
+        this.chatRooms.merge(chatRoom.getId(), chatRoom,
+            (current, update) -> update.getVersion() >= current.getVersion() ? update : current);
+    }
+
+    /** chatroom id from its persistence id, i.e. its (url encoded) entity name */
+    public static String chatRoomId(String persistenceId) {
+        try {
+            return URLDecoder.decode(persistenceId, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.box.prototype.chatservice.domain;
+
+import com.box.prototype.chatservice.domain.models.ChatRoom;
+
+import java.io.Serializable;
+import java.util.List;
+
+public class ChatRoomDirectoryProtocol {
+    /** pubsub topic chatrooms publish their summaries to, and directories sync over */
+    public static final String TOPIC = "chat-room-directory";
+
+    public static class DirectoryMessage implements Serializable {}
+    /** chatroom's current member count and last activity, as of its sequence nr */
+    public static class RoomUpdated extends DirectoryMessage {
+        public final ChatRoom chatRoom;
+
+        public RoomUpdated(ChatRoom chatRoom) {
+            this.chatRoom = chatRoom;
+        }
+    }
+    /** published by a starting directory, the others reply with what they know */
+    public static class SyncRequest extends DirectoryMessage {}
+    public static class SyncReply extends DirectoryMessage {
+        public final List<ChatRoom> chatRooms;
+
+        public SyncReply(List<ChatRoom> chatRooms) {
+            this.chatRooms = chatRooms;
+        }
+    }
+
+    // internal commands
+    public static class PersistenceIdsLoaded {
+        public final List<String> persistenceIds;
+
+        public PersistenceIdsLoaded(List<String> persistenceIds) {
+            this.persistenceIds = persistenceIds;
+        }
+    }
+}
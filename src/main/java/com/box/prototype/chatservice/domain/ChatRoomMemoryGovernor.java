@@ -0,0 +1,123 @@
+package com.box.prototype.chatservice.domain;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.box.prototype.chatservice.akka.ChatMetrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.box.prototype.chatservice.domain.ChatRoomMemoryProtocol.*;
+
+/**
+ * one per node, keeps the chatrooms resident on the node within a memory budget.  rooms report their estimated
+ * footprint, and once the total goes over budget the least recently active rooms without sessions are asked to
+ * passivate until it fits again.  rooms with sessions are never evicted, as their sessions would just rejoin them.
+ */
+public class ChatRoomMemoryGovernor extends AbstractActor {
+    public static final String NAME = "chat-room-governor";
+
+    public static Props createProps(long maxBytes) {
+        return Props.create(ChatRoomMemoryGovernor.class, maxBytes);
+    }
+
+    private final LoggingAdapter logger = Logging.getLogger(getContext().getSystem(), this);
+    private final ChatMetrics metrics = ChatMetrics.get(getContext().getSystem());
+    private final long maxBytes;
+    private final Map<ActorRef, RoomFootprint> rooms = new HashMap<>();
+    // rooms asked to passivate that haven't stopped or declined yet
+    private final Set<ActorRef> evicting = new HashSet<>();
+    private long totalBytes = 0;
+
+    /** constructor */
+    public ChatRoomMemoryGovernor(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** message handler */
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+            .match(RoomFootprint.class, this::handleRoomFootprint)
+            .match(EvictDeclined.class, this::handleEvictDeclined)
+            .match(Terminated.class, this::handleRoomTerminated)
+            .build();
+    }
+
+    protected void handleRoomFootprint(RoomFootprint footprint) {
+        recordFootprint(getSender(), footprint);
+        if (this.totalBytes > this.maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * e.g. a session attached between the room being picked and it getting the request.  its bytes count towards the
+     * budget again, and it's a candidate again once idle.  the next report evicts whatever else has to go
+     */
+    protected void handleEvictDeclined(EvictDeclined declined) {
+        this.evicting.remove(getSender());
+        recordFootprint(getSender(), declined.footprint);
+    }
+
+    protected void recordFootprint(ActorRef room, RoomFootprint footprint) {
+        RoomFootprint previous = this.rooms.put(room, footprint);
+        if (previous == null) {
+            getContext().watch(room);
+        } else {
+            this.totalBytes -= previous.estimatedBytes;
+        }
+        this.totalBytes += footprint.estimatedBytes;
+        this.metrics.recordFootprint(footprint.chatRoom, footprint.estimatedBytes);
+    }
+
+    protected void handleRoomTerminated(Terminated terminated) {
+        RoomFootprint footprint = this.rooms.remove(terminated.getActor());
+        this.evicting.remove(terminated.getActor());
+        if (footprint != null) {
+            this.totalBytes -= footprint.estimatedBytes;
+            this.metrics.removeFootprint(footprint.chatRoom);
+        }
+    }
+
+    /** asks idle rooms to passivate, least recently active first, until what's left fits the budget */
+    protected void evict() {
+        long remainingBytes = this.totalBytes;
+        for (ActorRef room : this.evicting) {
+            remainingBytes -= this.rooms.get(room).estimatedBytes;
+        }
+        if (remainingBytes <= this.maxBytes) {
+            return;
+        }
+
+        List<Map.Entry<ActorRef, RoomFootprint>> candidates = new ArrayList<>();
+        this.rooms.entrySet().forEach(entry -> {
+            if (entry.getValue().sessions == 0 && !this.evicting.contains(entry.getKey())) {
+                candidates.add(entry);
+            }
+        });
+        candidates.sort(Comparator.comparingLong(entry -> entry.getValue().lastActivity));
+
+        int evicted = 0;
+        for (Map.Entry<ActorRef, RoomFootprint> candidate : candidates) {
+            if (remainingBytes <= this.maxBytes) {
+                break;
+            }
+            candidate.getKey().tell(new EvictRoom(), getSelf());
+            this.evicting.add(candidate.getKey());
+            remainingBytes -= candidate.getValue().estimatedBytes;
+            evicted++;
+        }
+        logger.info("{} resident chatrooms using ~{} bytes, over budget of {} bytes: evicting {} rooms",
+            this.rooms.size(), this.totalBytes, this.maxBytes, evicted);
+    }
+}
@@ -0,0 +1,32 @@
+package com.box.prototype.chatservice.domain;
+
+public class ChatRoomMemoryProtocol {
+    // commands from chatrooms
+    /** chatroom's estimated heap footprint, and whether it could be evicted */
+    public static class RoomFootprint {
+        public final String chatRoom;
+        public final int sessions;
+        public final long estimatedBytes;
+        public final long lastActivity;
+
+        public RoomFootprint(String chatRoom, int sessions, long estimatedBytes, long lastActivity) {
+            this.chatRoom = chatRoom;
+            this.sessions = sessions;
+            this.estimatedBytes = estimatedBytes;
+            this.lastActivity = lastActivity;
+        }
+    }
+
+    /** chatroom took on sessions or writes since it was asked to passivate, and stays resident */
+    public static class EvictDeclined {
+        public final RoomFootprint footprint;
+
+        public EvictDeclined(RoomFootprint footprint) {
+            this.footprint = footprint;
+        }
+    }
+
+    // commands to chatrooms
+    /** node is over its memory budget, passivate if still without sessions, otherwise decline */
+    public static class EvictRoom {}
+}
@@ -0,0 +1,361 @@
+package com.box.prototype.chatservice.domain;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.Status;
+import akka.actor.Terminated;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.stream.QueueOfferResult;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import com.box.prototype.chatservice.akka.ChatMetrics;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static akka.pattern.Patterns.ask;
+import static akka.pattern.Patterns.pipe;
+
+import static com.box.prototype.chatservice.domain.ChatRoomRelayProtocol.*;
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+
+/**
+ * fans a chatroom's messages out to the sessions on this node.  the chatroom sends each message once per relay, i.e.
+ * once per node with members, instead of once per session, so cross-node traffic scales with node count.
+ *
+ * sessions only receive published messages once the chatroom has attached them, which keeps their backfill and live
+ * messages in order.  if the chatroom goes away (failover, rebalance) all sessions are closed so clients rejoin it
+ * wherever it comes back up, the same way the chatroom side of the session streams used to fail.
+ *
+ * rejoining sessions page in their backfill through the relay too.  it reads history from the chatroom a page at a
+ * time, at most a few reads per room and only once the manager admits them, and keeps the pages it read for a while.
+ * sessions rejoining with nearby cursors, as they do en masse after a node loss, are served from the same reads.
+ *
+ * chatrooms only encode frames to json.  while sessions on the binary subprotocol are attached, the relay transcodes
+ * each frame to binary once for all of them, so it's done once per node rather than per session, and not at all
+ * without binary sessions.
+ */
+public class ChatRoomRelay extends AbstractActor {
+    public static Props createProps(String chatRoom, ActorRef chatRoomRegion, Duration idleTimeout, Duration requestTimeout,
+                                    int maxBackfills, int backfillCacheFrames) {
+        return Props.create(ChatRoomRelay.class, chatRoom, chatRoomRegion, idleTimeout, requestTimeout, maxBackfills, backfillCacheFrames);
+    }
+
+    /** a local session's outbound queue, and whether the session takes binary frames */
+    private static class Listener {
+        final SourceQueueWithComplete<ChatFrame> queue;
+        final boolean binary;
+        boolean attached = false;
+
+        Listener(SourceQueueWithComplete<ChatFrame> queue, boolean binary) {
+            this.queue = queue;
+            this.binary = binary;
+        }
+    }
+
+    /** a session's request for a page of history, waiting for a read covering it */
+    private static class PendingFetch {
+        final FetchHistory fetch;
+        final ActorRef replyTo;
+
+        PendingFetch(FetchHistory fetch, ActorRef replyTo) {
+            this.fetch = fetch;
+            this.replyTo = replyTo;
+        }
+    }
+
+    /** a page read from the chatroom, holding every message from its first sequence nr up to next */
+    private static class CachedPage {
+        final long next;
+        final List<ChatFrame> frames;
+
+        CachedPage(long next, List<ChatFrame> frames) {
+            this.next = next;
+            this.frames = frames;
+        }
+    }
+
+    private final LoggingAdapter logger = Logging.getLogger(getContext().getSystem(), this);
+    private final String chatRoom;
+    private final ActorRef chatRoomRegion;
+    private final Duration requestTimeout;
+    private final int maxBackfills;
+    private final int backfillCacheFrames;
+    private final ChatMetrics metrics;
+    private final ChatMetrics.RoomCounters roomMetrics;
+    private final Map<String, Listener> sessions = new HashMap<>();
+    private ActorRef chatRoomEntity = null;
+    private long subscribeCount = 0;
+
+    // backfill requests waiting for a read, reads in flight (first -> last sequence nr), and pages read, by first
+    // sequence nr, evicted oldest read first
+    private final List<PendingFetch> pendingFetches = new ArrayList<>();
+    private final Map<Long, Long> backfillReads = new HashMap<>();
+    private final TreeMap<Long, CachedPage> cachedPages = new TreeMap<>();
+    private final ArrayDeque<Long> cacheOrder = new ArrayDeque<>();
+    private int cachedFrames = 0;
+    private boolean backfillRequested = false;
+
+    /** constructor */
+    public ChatRoomRelay(String chatRoom, ActorRef chatRoomRegion, Duration idleTimeout, Duration requestTimeout,
+                         int maxBackfills, int backfillCacheFrames) {
+        this.chatRoom = chatRoom;
+        this.chatRoomRegion = chatRoomRegion;
+        this.requestTimeout = requestTimeout;
+        this.maxBackfills = Math.max(1, maxBackfills);
+        this.backfillCacheFrames = backfillCacheFrames;
+        this.metrics = ChatMetrics.get(getContext().getSystem());
+        this.roomMetrics = this.metrics.acquireRoom(chatRoom);
+        getContext().setReceiveTimeout(FiniteDuration.create(idleTimeout.toMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public void postStop() {
+        this.metrics.releaseRoom(this.chatRoom);
+    }
+
+    /** message handler */
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+            .match(Subscribe.class, this::handleSubscribe)
+            .match(Unsubscribe.class, cmd -> removeSession(cmd.sessionId))
+            .match(Publish.class, this::handlePublish)
+            .match(Deliver.class, this::handleDeliver)
+            .match(SessionDetached.class, cmd -> removeSession(cmd.sessionId))
+            .match(OfferFailed.class, this::handleOfferFailed)
+            .match(FetchHistory.class, this::handleFetchHistory)
+            .match(BackfillGranted.class, this::handleBackfillGranted)
+            .match(BackfillRead.class, this::handleBackfillRead)
+            .match(Terminated.class, this::handleTerminated)
+            .match(ReceiveTimeout.class, m -> {
+                if (this.sessions.isEmpty()) {
+                    getContext().getParent().tell(new RelayIdle(this.chatRoom, this.subscribeCount), getSelf());
+                }
+            })
+            .build();
+    }
+
+    protected void handleSubscribe(Subscribe command) {
+        SessionInfo sessionInfo = command.sessionInfo;
+        this.sessions.put(sessionInfo.getSessionId(), new Listener(command.listener, command.binary));
+        this.subscribeCount++;
+
+        // join on behalf of the session, the chatroom acks straight back to it
+        ChatRoomCommand join = sessionInfo.isRejoin() ?
+            new RejoinChat(System.currentTimeMillis(), sessionInfo, getSelf()) :
+            new JoinChat(System.currentTimeMillis(), sessionInfo, getSelf());
+        this.chatRoomRegion.tell(join, getSender());
+    }
+
+    /** offers the frame to every attached session, transcoded to binary on the first binary session's turn */
+    protected void handlePublish(Publish command) {
+        ChatFrame frame = command.frame;
+        for (Map.Entry<String, Listener> entry : this.sessions.entrySet()) {
+            Listener listener = entry.getValue();
+            if (listener.attached) {
+                if (listener.binary) {
+                    frame = ChatWireCodec.withBinaryPayload(frame);
+                }
+                offer(entry.getKey(), listener, frame);
+            }
+        }
+    }
+
+    protected void handleDeliver(Deliver command) {
+        watchChatRoom(getSender());
+        Listener listener = this.sessions.get(command.sessionId);
+        if (listener == null) {
+            return;
+        }
+        command.frames.forEach(frame -> offer(command.sessionId, listener, listener.binary ? ChatWireCodec.withBinaryPayload(frame) : frame));
+        if (command.attach) {
+            listener.attached = true;
+        }
+    }
+
+    protected void handleFetchHistory(FetchHistory command) {
+        this.pendingFetches.add(new PendingFetch(command, getSender()));
+        processFetches();
+    }
+
+    /** the node admitted a read, of the earliest page sessions are still waiting for, unless a read since covered it */
+    protected void handleBackfillGranted(BackfillGranted granted) {
+        this.backfillRequested = false;
+        PendingFetch earliest = earliestUncovered();
+        if (earliest == null) {
+            getContext().getParent().tell(new ReleaseBackfill(), getSelf());
+            return;
+        }
+
+        // read for every request waiting, the chatroom caps it at a page from the earliest one
+        long from = earliest.fetch.fromSequenceNr;
+        long requestedThrough = this.pendingFetches.stream().mapToLong(pending -> pending.fetch.throughSequenceNr).max().getAsLong();
+        long through = Math.min(requestedThrough, from + Math.max(1, earliest.fetch.maxFrames) - 1);
+        FetchHistory read = new FetchHistory(earliest.fetch.sessionInfo, from, requestedThrough, earliest.fetch.maxFrames);
+        this.backfillReads.put(from, through);
+        this.metrics.backfillReads.increment();
+        pipe(ask(this.chatRoomRegion, read, this.requestTimeout)
+            .handle((result, error) -> new BackfillRead(from, through, error != null ? new Status.Failure(error) : result)),
+            getContext().dispatcher()).to(getSelf());
+        processFetches();
+    }
+
+    protected void handleBackfillRead(BackfillRead read) {
+        this.backfillReads.remove(read.fromSequenceNr);
+        getContext().getParent().tell(new ReleaseBackfill(), getSelf());
+        if (read.result instanceof HistoryPage) {
+            HistoryPage page = (HistoryPage)read.result;
+            cachePage(read.fromSequenceNr, new CachedPage(page.nextSequenceNr, transcodeForSessions(page.frames)));
+        } else {
+            // fail whoever was waiting on the read, their sessions end and clients rejoin
+            Object failure = read.result instanceof Status.Failure ? read.result :
+                new Status.Failure(new RuntimeException("received unexpected response from chatroom: " + read.result));
+            this.pendingFetches.removeIf(pending -> {
+                long from = pending.fetch.fromSequenceNr;
+                if (from >= read.fromSequenceNr && from <= read.throughSequenceNr) {
+                    pending.replyTo.tell(failure, getSelf());
+                    return true;
+                }
+                return false;
+            });
+        }
+        processFetches();
+        trimCache();
+    }
+
+    /** serves what's cached, and asks for a read for the rest unless one's covering them or the room is at its limit */
+    protected void processFetches() {
+        this.pendingFetches.removeIf(this::serveFromCache);
+        if (!this.backfillRequested && this.backfillReads.size() < this.maxBackfills && earliestUncovered() != null) {
+            this.backfillRequested = true;
+            getContext().getParent().tell(new AcquireBackfill(), getSelf());
+        }
+    }
+
+    protected boolean serveFromCache(PendingFetch pending) {
+        FetchHistory fetch = pending.fetch;
+        Map.Entry<Long, CachedPage> entry = this.cachedPages.floorEntry(fetch.fromSequenceNr);
+        if (entry == null || entry.getValue().next <= fetch.fromSequenceNr) {
+            return false;
+        }
+        CachedPage page = entry.getValue();
+        long through = Math.min(Math.min(fetch.throughSequenceNr, page.next - 1), fetch.fromSequenceNr + Math.max(1, fetch.maxFrames) - 1);
+        List<ChatFrame> frames = new ArrayList<>();
+        for (ChatFrame frame : page.frames) {
+            // history frames' event ids are their sequence nrs
+            long sequenceNr = Long.parseLong(frame.getEventId());
+            if (sequenceNr >= fetch.fromSequenceNr && sequenceNr <= through) {
+                frames.add(frame);
+            }
+        }
+        pending.replyTo.tell(new HistoryPage(frames, through + 1), getSelf());
+        this.metrics.backfillPages.increment();
+        return true;
+    }
+
+    /** earliest request waiting that neither the cache nor a read in flight covers */
+    protected PendingFetch earliestUncovered() {
+        PendingFetch earliest = null;
+        for (PendingFetch pending : this.pendingFetches) {
+            long from = pending.fetch.fromSequenceNr;
+            boolean covered = this.backfillReads.entrySet().stream().anyMatch(read -> from >= read.getKey() && from <= read.getValue());
+            if (!covered && (earliest == null || from < earliest.fetch.fromSequenceNr)) {
+                earliest = pending;
+            }
+        }
+        return earliest;
+    }
+
+    protected void cachePage(long fromSequenceNr, CachedPage page) {
+        CachedPage replaced = this.cachedPages.put(fromSequenceNr, page);
+        if (replaced != null) {
+            this.cachedFrames -= cachedSize(replaced);
+            this.cacheOrder.remove(fromSequenceNr);
+        }
+        this.cacheOrder.add(fromSequenceNr);
+        this.cachedFrames += cachedSize(page);
+    }
+
+    /** the frames with their binary encoding if any session here takes binary frames, otherwise as they are */
+    protected List<ChatFrame> transcodeForSessions(List<ChatFrame> frames) {
+        if (this.sessions.values().stream().noneMatch(listener -> listener.binary)) {
+            return frames;
+        }
+        List<ChatFrame> transcoded = new ArrayList<>(frames.size());
+        frames.forEach(frame -> transcoded.add(ChatWireCodec.withBinaryPayload(frame)));
+        return transcoded;
+    }
+
+    protected void trimCache() {
+        while (this.cachedFrames > this.backfillCacheFrames && !this.cacheOrder.isEmpty()) {
+            CachedPage evicted = this.cachedPages.remove(this.cacheOrder.poll());
+            this.cachedFrames -= cachedSize(evicted);
+        }
+    }
+
+    /** pages count as at least a frame, so empty ones are evicted too */
+    protected static int cachedSize(CachedPage page) {
+        return Math.max(1, page.frames.size());
+    }
+
+    protected void handleOfferFailed(OfferFailed command) {
+        if (this.sessions.containsKey(command.sessionId)) {
+            this.roomMetrics.offerFailures.increment();
+            logger.error("unable to publish to session ({}) in chatroom ({}): {}", command.sessionId, this.chatRoom, command.reason);
+            removeSession(command.sessionId);
+        }
+    }
+
+    protected void handleTerminated(Terminated terminated) {
+        if (terminated.getActor().equals(this.chatRoomEntity)) {
+            logger.info("chatroom ({}) went away, closing {} sessions", this.chatRoom, this.sessions.size());
+            new ArrayList<>(this.sessions.keySet()).forEach(this::removeSession);
+            this.chatRoomEntity = null;
+        }
+    }
+
+    /** chatroom entity may move between nodes, watch whichever incarnation is attaching sessions */
+    protected void watchChatRoom(ActorRef chatRoomEntity) {
+        if (!chatRoomEntity.equals(this.chatRoomEntity)) {
+            if (this.chatRoomEntity != null) {
+                getContext().unwatch(this.chatRoomEntity);
+            }
+            this.chatRoomEntity = chatRoomEntity;
+            getContext().watch(chatRoomEntity);
+        }
+    }
+
+    /**
+     * closes the session's stream and drops its backfill requests still waiting.  a grant already asked for on their
+     * behalf is handed straight back when it arrives, unless another session is waiting on a read
+     */
+    protected void removeSession(String sessionId) {
+        Listener listener = this.sessions.remove(sessionId);
+        if (listener != null) {
+            listener.queue.complete();
+        }
+        this.pendingFetches.removeIf(pending -> pending.fetch.sessionInfo.getSessionId().equals(sessionId));
+    }
+
+    protected void offer(String sessionId, Listener listener, ChatFrame frame) {
+        final ActorRef self = getSelf();
+        listener.queue.offer(frame)
+            .whenComplete((result, error) -> {
+                if (error != null || !(result instanceof QueueOfferResult.Enqueued$)) {
+                    self.tell(new OfferFailed(sessionId, error != null ? error : result), ActorRef.noSender());
+                }
+            });
+    }
+}
@@ -0,0 +1,110 @@
+package com.box.prototype.chatservice.domain;
+
+import akka.stream.javadsl.SourceQueueWithComplete;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+
+import java.io.Serializable;
+import java.util.List;
+
+public class ChatRoomRelayProtocol {
+    // commands from local sessions
+    /**
+     * attach a local session's outbound queue to its chatroom, replied to by the chatroom with Committed.  binary
+     * sessions get frames with their binary encoding
+     */
+    public static class Subscribe {
+        public final SessionInfo sessionInfo;
+        public final SourceQueueWithComplete<ChatFrame> listener;
+        public final boolean binary;
+
+        public Subscribe(SessionInfo sessionInfo, SourceQueueWithComplete<ChatFrame> listener) {
+            this(sessionInfo, listener, false);
+        }
+        public Subscribe(SessionInfo sessionInfo, SourceQueueWithComplete<ChatFrame> listener, boolean binary) {
+            this.sessionInfo = sessionInfo;
+            this.listener = listener;
+            this.binary = binary;
+        }
+    }
+    public static class Unsubscribe {
+        public final String chatRoom;
+        public final String sessionId;
+
+        public Unsubscribe(String chatRoom, String sessionId) {
+            this.chatRoom = chatRoom;
+            this.sessionId = sessionId;
+        }
+    }
+
+    // commands from the chatroom
+    public static class RelayCommand implements Serializable {}
+    /** frame for every attached session on the node */
+    public static class Publish extends RelayCommand {
+        public final ChatFrame frame;
+
+        public Publish(ChatFrame frame) {
+            this.frame = frame;
+        }
+    }
+    /** frames for a single session, e.g. backfill on rejoin.  once attached, the session also receives published frames */
+    public static class Deliver extends RelayCommand {
+        public final String sessionId;
+        public final List<ChatFrame> frames;
+        public final boolean attach;
+
+        public Deliver(String sessionId, List<ChatFrame> frames, boolean attach) {
+            this.sessionId = sessionId;
+            this.frames = frames;
+            this.attach = attach;
+        }
+    }
+    /** chatroom ended the session */
+    public static class SessionDetached extends RelayCommand {
+        public final String sessionId;
+
+        public SessionDetached(String sessionId) {
+            this.sessionId = sessionId;
+        }
+    }
+
+    // backfill admission, between relays and the manager
+    /** relay wants to read a page of history, granted once the node has fewer than its limit of reads in flight */
+    public static class AcquireBackfill {}
+    public static class BackfillGranted {}
+    /** relay's read is done, or it had no use for the grant */
+    public static class ReleaseBackfill {}
+
+    // internal commands
+    public static class OfferFailed {
+        public final String sessionId;
+        public final Object reason;
+
+        public OfferFailed(String sessionId, Object reason) {
+            this.sessionId = sessionId;
+            this.reason = reason;
+        }
+    }
+    /** result of a relay's read of history from the chatroom, a HistoryPage or a failure */
+    public static class BackfillRead {
+        public final long fromSequenceNr;
+        public final long throughSequenceNr;
+        public final Object result;
+
+        public BackfillRead(long fromSequenceNr, long throughSequenceNr, Object result) {
+            this.fromSequenceNr = fromSequenceNr;
+            this.throughSequenceNr = throughSequenceNr;
+            this.result = result;
+        }
+    }
+    /** relay has had no sessions for a while, stopped by the manager unless subscribes are still on their way to it */
+    public static class RelayIdle {
+        public final String chatRoom;
+        public final long subscribeCount;
+
+        public RelayIdle(String chatRoom, long subscribeCount) {
+            this.chatRoom = chatRoom;
+            this.subscribeCount = subscribeCount;
+        }
+    }
+}
@@ -1,50 +1,117 @@
 package com.box.prototype.chatservice.domain;
 
-import akka.actor.AbstractActor;
+import akka.actor.AbstractActorWithTimers;
+import akka.actor.ActorRef;
 import akka.actor.Props;
-import akka.actor.dsl.Creators;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-import akka.stream.ActorMaterializer;
-import akka.stream.OverflowStrategy;
-import akka.stream.SinkRef;
-import akka.stream.javadsl.Source;
-import akka.stream.javadsl.SourceQueueWithComplete;
-import com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol;
-import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.akka.ChatMetrics;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import scala.concurrent.duration.FiniteDuration;
 
-import java.util.Optional;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.box.prototype.chatservice.domain.ChatSessionProtocol.*;
-
 import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
 
-public class ChatSession extends AbstractActor {
-    public static Props createProps(SinkRef<ChatMessage> chatSinkRef) {
-        return Props.create(ChatSession.class, chatSinkRef);
+/**
+ * forwards a websocket session's inbound messages to its chatroom and tracks the acks.  the chatroom replies to this
+ * actor, so there's no temporary ask actor and timer per message: unacknowledged messages are held in order in a
+ * single queue, checked against the request timeout by one timer for the whole session.
+ */
+public class ChatSession extends AbstractActorWithTimers {
+    public static Props createProps(SessionInfo sessionInfo, ActorRef chatRoomRegion, Duration requestTimeout) {
+        return Props.create(ChatSession.class, sessionInfo, chatRoomRegion, requestTimeout);
+    }
+
+    private static final String TIMEOUT_TIMER = "timeouts";
+
+    /** message sent to the chatroom, waiting on its ack */
+    private static class InFlight {
+        final long requestId;
+        final long deadline;
+        final CompletableFuture<Boolean> ack;
+
+        InFlight(long requestId, long deadline, CompletableFuture<Boolean> ack) {
+            this.requestId = requestId;
+            this.deadline = deadline;
+            this.ack = ack;
+        }
     }
 
     private final LoggingAdapter logger = Logging.getLogger(getContext().getSystem(), this);
-    private SourceQueueWithComplete<ChatMessage> sessionListener;
-    private ActorMaterializer materializer = ActorMaterializer.create(getContext());
+    private final SessionInfo sessionInfo;
+    private final ActorRef chatRoomRegion;
+    private final long requestTimeoutMillis;
+    private final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+    private long nextRequestId = 1;
 
     /** constructor */
-    public ChatSession(SinkRef<ChatMessage> chatSinkRef) {
-        this.sessionListener = Source.<ChatMessage>queue(100, OverflowStrategy.backpressure())
-            .to(chatSinkRef.getSink())
-            .run(this.materializer);
+    public ChatSession(SessionInfo sessionInfo, ActorRef chatRoomRegion, Duration requestTimeout) {
+        this.sessionInfo = sessionInfo;
+        this.chatRoomRegion = chatRoomRegion;
+        this.requestTimeoutMillis = requestTimeout.toMillis();
     }
 
     /** message handler */
     @Override
     public Receive createReceive() {
-        // TODO: think through fail and reconnect
         return receiveBuilder()
-            .match(JoinChat.class, m -> System.out.println())
-            .match(RejoinChat.class, m -> System.out.println())
-            .match(AddMessage.class, m -> System.out.println())
-            .match(LeaveChat.class, m -> System.out.println())
-            .matchAny(msg -> logger.info("received unknown message: ", msg))
+            .match(Forward.class, this::handleForward)
+            .match(Committed.class, this::handleCommitted)
+            .match(CheckTimeouts.class, m -> handleCheckTimeouts())
+            .matchAny(msg -> logger.info("received unknown message: {}", msg))
             .build();
     }
+
+    @Override
+    public void postStop() {
+        failAll(new IllegalStateException("chat session stopped: " + this.sessionInfo.getSessionId()));
+    }
+
+    protected void handleForward(Forward command) {
+        long requestId = this.nextRequestId++;
+        this.inFlight.addLast(new InFlight(requestId, System.currentTimeMillis() + this.requestTimeoutMillis, command.ack));
+        this.chatRoomRegion.tell(new AddMessage(command.message, this.sessionInfo, requestId), getSelf());
+
+        if (!getTimers().isTimerActive(TIMEOUT_TIMER)) {
+            FiniteDuration interval = FiniteDuration.create(Math.max(1, this.requestTimeoutMillis / 4), TimeUnit.MILLISECONDS);
+            getTimers().startPeriodicTimer(TIMEOUT_TIMER, new CheckTimeouts(), interval);
+        }
+    }
+
+    protected void handleCommitted(Committed response) {
+        // the chatroom acks a session's messages in the order they were sent, so anything older than this ack
+        // was lost along the way
+        while (!this.inFlight.isEmpty() && this.inFlight.peekFirst().requestId < response.requestId) {
+            this.inFlight.pollFirst().ack.completeExceptionally(
+                new IllegalStateException("no ack received from chatroom: " + this.sessionInfo.getChatRoom()));
+        }
+        if (!this.inFlight.isEmpty() && this.inFlight.peekFirst().requestId == response.requestId) {
+            this.inFlight.pollFirst().ack.complete(true);
+        }
+        if (this.inFlight.isEmpty()) {
+            getTimers().cancel(TIMEOUT_TIMER);
+        }
+    }
+
+    protected void handleCheckTimeouts() {
+        if (!this.inFlight.isEmpty() && this.inFlight.peekFirst().deadline <= System.currentTimeMillis()) {
+            ChatMetrics.get(getContext().getSystem()).askTimeouts.increment();
+            failAll(new TimeoutException("timed out waiting on chatroom: " + this.sessionInfo.getChatRoom()));
+        }
+        if (this.inFlight.isEmpty()) {
+            getTimers().cancel(TIMEOUT_TIMER);
+        }
+    }
+
+    private void failAll(Throwable error) {
+        while (!this.inFlight.isEmpty()) {
+            this.inFlight.pollFirst().ack.completeExceptionally(error);
+        }
+    }
 }
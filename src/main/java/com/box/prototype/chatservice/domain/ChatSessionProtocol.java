@@ -1,7 +1,22 @@
 package com.box.prototype.chatservice.domain;
 
-import akka.actor.Props;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+
+import java.util.concurrent.CompletableFuture;
 
 public class ChatSessionProtocol {
+    // commands
+    /** forward an inbound message to the chatroom, completing ack once the chatroom has committed it */
+    public static class Forward {
+        public final ChatMessage message;
+        public final CompletableFuture<Boolean> ack;
+
+        public Forward(ChatMessage message, CompletableFuture<Boolean> ack) {
+            this.message = message;
+            this.ack = ack;
+        }
+    }
 
+    // internal commands
+    public static class CheckTimeouts {}
 }
@@ -0,0 +1,179 @@
+package com.box.prototype.chatservice.domain;
+
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatGap;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.box.prototype.chatservice.domain.models.ChatSignal;
+import com.box.prototype.chatservice.util.BinaryReader;
+import com.box.prototype.chatservice.util.BinaryWriter;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * encodings of envelopes and inbound messages on the websocket, json by default, or a compact binary layout for
+ * clients that negotiate the binary subprotocol.  chatrooms encode each envelope to json once, and a node's relay
+ * transcodes it to binary once, only while it has sessions on the binary subprotocol, so no session encodes anything
+ * itself and nodes without binary sessions never pay for the binary encoding.
+ *
+ * the binary layout uses {@link BinaryWriter}'s varints and length prefixed utf-8 strings.  an envelope starts with
+ * its kind, followed by
+ *   message: last event id, timestamp, user id, message
+ *   gap:     from event id, to event id, missed
+ *   signals: count, then user id, type, timestamp of each
+ * and an inbound message starts with its kind, followed by
+ *   message: timestamp, user id, message
+ *   signal:  type
+ * a batch frame is its envelopes, each prefixed with its length.
+ */
+public class ChatWireCodec {
+    // envelope kinds
+    public static final int MESSAGE = 1;
+    public static final int GAP = 2;
+    public static final int SIGNALS = 3;
+    // inbound message kinds
+    public static final int INBOUND_MESSAGE = 1;
+    public static final int INBOUND_SIGNAL = 2;
+
+    protected static final ObjectMapper mapper = new ObjectMapper();
+
+    /** a decoded inbound message, either a chat message or a signal type */
+    public static class Inbound {
+        public final ChatMessage message;
+        public final String signal;
+
+        public Inbound(ChatMessage message, String signal) {
+            this.message = message;
+            this.signal = signal;
+        }
+    }
+
+    /** encodes an envelope to a frame of its json encoding, the binary one is added where needed */
+    public static ChatFrame frame(String eventId, ChatMessageEnvelope envelope) throws JsonProcessingException {
+        return new ChatFrame(eventId, mapper.writeValueAsBytes(envelope), null);
+    }
+
+    /** the frame along with its binary encoding, the frame itself if it has it already */
+    public static ChatFrame withBinaryPayload(ChatFrame frame) {
+        if (frame.getBinaryPayload() != null) {
+            return frame;
+        }
+        return new ChatFrame(frame.getEventId(), frame.getPayload(), binaryPayload(frame));
+    }
+
+    /** the frame's binary encoding, transcoded from its json one if it hasn't been yet */
+    public static byte[] binaryPayload(ChatFrame frame) {
+        if (frame.getBinaryPayload() != null) {
+            return frame.getBinaryPayload();
+        }
+        try {
+            return encodeBinary(mapper.readValue(frame.getPayload(), ChatMessageEnvelope.class));
+        } catch (IOException ex) {
+            throw new RuntimeException("unable to transcode chat frame: " + frame, ex);
+        }
+    }
+
+    public static byte[] encodeBinary(ChatMessageEnvelope envelope) {
+        BinaryWriter out = new BinaryWriter();
+        if (envelope.getGap() != null) {
+            ChatGap gap = envelope.getGap();
+            out.writeByte(GAP);
+            out.writeString(gap.getFromEventId());
+            out.writeString(gap.getToEventId());
+            out.writeVarLong(gap.getMissed());
+        } else if (envelope.getSignals() != null) {
+            out.writeByte(SIGNALS);
+            out.writeVarInt(envelope.getSignals().size());
+            envelope.getSignals().forEach(signal -> {
+                out.writeString(signal.getUserId());
+                out.writeString(signal.getType());
+                out.writeVarLong(signal.getTimestamp());
+            });
+        } else {
+            ChatMessage message = envelope.getMessage();
+            out.writeByte(MESSAGE);
+            out.writeString(envelope.getLastEventId());
+            out.writeVarLong(message.getTimestamp());
+            out.writeString(message.getUserId());
+            out.writeString(message.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    public static ChatMessageEnvelope decodeBinaryEnvelope(BinaryReader in) {
+        int kind = in.readByte();
+        switch (kind) {
+            case MESSAGE: {
+                String lastEventId = in.readString();
+                long timestamp = in.readVarLong();
+                String userId = in.readString();
+                return new ChatMessageEnvelope(new ChatMessage(timestamp, userId, in.readString()), lastEventId);
+            }
+            case GAP: {
+                String fromEventId = in.readString();
+                String toEventId = in.readString();
+                return new ChatMessageEnvelope(new ChatGap(fromEventId, toEventId, in.readVarLong()));
+            }
+            case SIGNALS: {
+                List<ChatSignal> signals = new ArrayList<>();
+                for (int i = in.readVarInt(); i > 0; i--) {
+                    String userId = in.readString();
+                    String type = in.readString();
+                    signals.add(new ChatSignal(userId, type, in.readVarLong()));
+                }
+                return new ChatMessageEnvelope(signals);
+            }
+            default:
+                throw new IllegalArgumentException("unknown envelope kind: " + kind);
+        }
+    }
+
+    /** decodes an inbound json message, e.g. {"signal": "typing"} or a chat message, parsing the utf-8 bytes as is */
+    public static Inbound decodeJson(ByteBuffer payload) throws IOException {
+        JsonNode node = mapper.readTree(new ByteBufferBackedInputStream(payload));
+        if (node.hasNonNull("signal")) {
+            return new Inbound(null, node.get("signal").asText());
+        }
+        return new Inbound(mapper.treeToValue(node, ChatMessage.class), null);
+    }
+
+    /** decodes an inbound binary message, in place when the buffer is backed by an array */
+    public static Inbound decodeBinary(ByteBuffer payload) {
+        BinaryReader in = BinaryReader.wrap(payload);
+        int kind = in.readByte();
+        switch (kind) {
+            case INBOUND_MESSAGE: {
+                long timestamp = in.readVarLong();
+                String userId = in.readString();
+                return new Inbound(new ChatMessage(timestamp, userId, in.readString()), null);
+            }
+            case INBOUND_SIGNAL:
+                return new Inbound(null, in.readString());
+            default:
+                throw new IllegalArgumentException("unknown inbound message kind: " + kind);
+        }
+    }
+
+    public static byte[] encodeBinaryInbound(ChatMessage message) {
+        return new BinaryWriter()
+            .writeByte(INBOUND_MESSAGE)
+            .writeVarLong(message.getTimestamp())
+            .writeString(message.getUserId())
+            .writeString(message.getMessage())
+            .toByteArray();
+    }
+
+    public static byte[] encodeBinarySignal(String type) {
+        return new BinaryWriter()
+            .writeByte(INBOUND_SIGNAL)
+            .writeString(type)
+            .toByteArray();
+    }
+}
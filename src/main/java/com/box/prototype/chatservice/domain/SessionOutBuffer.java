@@ -0,0 +1,176 @@
+package com.box.prototype.chatservice.domain;
+
+import akka.stream.Attributes;
+import akka.stream.BufferOverflowException;
+import akka.stream.FlowShape;
+import akka.stream.Inlet;
+import akka.stream.Outlet;
+import akka.stream.stage.AbstractInHandler;
+import akka.stream.stage.AbstractOutHandler;
+import akka.stream.stage.GraphStage;
+import akka.stream.stage.GraphStageLogic;
+import com.box.prototype.chatservice.akka.ChatMetrics;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatGap;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.util.ArrayDeque;
+
+/**
+ * buffers a session's outbound frames while its websocket is slow, never backpressuring the relay feeding it.  what
+ * happens once the buffer is full is up to the overflow policy; rather than tearing the session down, frames can be
+ * dropped and replaced by a gap marker carrying the missed event id range, which the client can fetch to catch up.
+ */
+public class SessionOutBuffer extends GraphStage<FlowShape<ChatFrame, ChatFrame>> {
+    public enum OverflowPolicy {
+        /** fail the stream, closing the session so the client rejoins and backfills */
+        DISCONNECT,
+        /** drop the oldest buffered frame, signalling a gap ahead of the remaining ones */
+        DROP_OLDEST,
+        /** drop the whole backlog into a single gap, so the session resumes at the newest frame */
+        COALESCE;
+
+        /** parse from config, e.g. drop-oldest */
+        public static OverflowPolicy fromConfig(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    public final Inlet<ChatFrame> in = Inlet.create("SessionOutBuffer.in");
+    public final Outlet<ChatFrame> out = Outlet.create("SessionOutBuffer.out");
+    private final FlowShape<ChatFrame, ChatFrame> shape = FlowShape.of(in, out);
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final String chatRoom;
+    private final ChatMetrics metrics;
+
+    public SessionOutBuffer(int capacity, OverflowPolicy policy, String chatRoom, ChatMetrics metrics) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, was " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.chatRoom = chatRoom;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public FlowShape<ChatFrame, ChatFrame> shape() {
+        return this.shape;
+    }
+
+    @Override
+    public GraphStageLogic createLogic(Attributes inheritedAttributes) {
+        return new GraphStageLogic(this.shape) {
+            private final ArrayDeque<ChatFrame> buffer = new ArrayDeque<>();
+            // frames dropped since the last gap marker, which goes out ahead of anything buffered
+            private String gapFrom = null;
+            private String gapTo = null;
+            private long gapMissed = 0;
+
+            {
+                setHandler(in, new AbstractInHandler() {
+                    @Override
+                    public void onPush() {
+                        ChatFrame frame = grab(in);
+                        if (buffer.isEmpty() && gapMissed == 0 && isAvailable(out)) {
+                            push(out, frame);
+                        } else if (!enqueue(frame)) {
+                            return;
+                        }
+                        pull(in);
+                    }
+
+                    @Override
+                    public void onUpstreamFinish() {
+                        // drain what's buffered first
+                        if (isDrained()) {
+                            completeStage();
+                        }
+                    }
+                });
+
+                setHandler(out, new AbstractOutHandler() {
+                    @Override
+                    public void onPull() {
+                        if (gapMissed > 0) {
+                            push(out, gapFrame());
+                        } else if (!buffer.isEmpty()) {
+                            push(out, buffer.poll());
+                        }
+                        if (isClosed(in) && isDrained()) {
+                            completeStage();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void preStart() {
+                pull(in);
+            }
+
+            @Override
+            public void postStop() {
+                // session went away before its gap was sent, still count it
+                if (gapMissed > 0) {
+                    metrics.recordOverflow(chatRoom, gapMissed);
+                }
+            }
+
+            /** buffers a frame, applying the overflow policy if full.  returns false if the stage failed */
+            private boolean enqueue(ChatFrame frame) {
+                if (buffer.size() >= capacity) {
+                    switch (policy) {
+                        case DISCONNECT:
+                            metrics.recordOverflowDisconnect(chatRoom);
+                            failStage(new BufferOverflowException(String.format("session buffer of %d frames overflowed in chatroom (%s)", capacity, chatRoom)));
+                            return false;
+                        case DROP_OLDEST:
+                            drop(buffer.poll());
+                            break;
+                        case COALESCE:
+                            while (!buffer.isEmpty()) {
+                                drop(buffer.poll());
+                            }
+                            break;
+                    }
+                }
+                buffer.add(frame);
+                return true;
+            }
+
+            /** frames are always dropped from the front, so the gap stays a contiguous range */
+            private void drop(ChatFrame frame) {
+                // ephemeral signals aren't part of the chat log, so missing them leaves no gap
+                if (frame.getEventId() == null) {
+                    return;
+                }
+                if (gapMissed == 0) {
+                    gapFrom = frame.getEventId();
+                }
+                gapTo = frame.getEventId();
+                gapMissed++;
+            }
+
+            private ChatFrame gapFrame() {
+                ChatGap gap = new ChatGap(gapFrom, gapTo, gapMissed);
+                metrics.recordOverflow(chatRoom, gapMissed);
+                gapFrom = null;
+                gapTo = null;
+                gapMissed = 0;
+                try {
+                    return ChatWireCodec.frame(null, new ChatMessageEnvelope(gap));
+                } catch (JsonProcessingException ex) {
+                    throw new RuntimeException("unable to encode chat gap: " + gap, ex);
+                }
+            }
+
+            private boolean isDrained() {
+                return buffer.isEmpty() && gapMissed == 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,115 @@
+package com.box.prototype.chatservice.domain;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import com.box.prototype.chatservice.akka.LoadAwareShardAllocationStrategy;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.box.prototype.chatservice.domain.ShardLoadProtocol.*;
+
+/**
+ * one per node.  sums up the load chatrooms on this node report into per shard load, and publishes it to every node
+ * once per interval.  load published by any node is fed to this node's copy of the allocation strategy, so whichever
+ * node ends up running the shard coordinator already knows the load across the cluster.
+ */
+public class ShardLoadMonitor extends AbstractActor {
+    public static final String NAME = "chat-shard-load";
+
+    public static Props createProps(LoadAwareShardAllocationStrategy allocationStrategy, Duration reportInterval) {
+        return Props.create(ShardLoadMonitor.class, allocationStrategy, reportInterval);
+    }
+
+    /** what a room on this node last reported */
+    private static class Room {
+        String shardId;
+        long messages = 0;
+        int sessions = 0;
+    }
+
+    private final LoadAwareShardAllocationStrategy allocationStrategy;
+    private final Duration reportInterval;
+    private final ActorRef mediator = DistributedPubSub.get(getContext().getSystem()).mediator();
+    private final Map<ActorRef, Room> rooms = new HashMap<>();
+    private long lastPublishTime = System.currentTimeMillis();
+    private Cancellable publishTick = null;
+
+    /** constructor */
+    public ShardLoadMonitor(LoadAwareShardAllocationStrategy allocationStrategy, Duration reportInterval) {
+        this.allocationStrategy = allocationStrategy;
+        this.reportInterval = reportInterval;
+    }
+
+    @Override
+    public void preStart() {
+        this.mediator.tell(new DistributedPubSubMediator.Subscribe(TOPIC, getSelf()), getSelf());
+        FiniteDuration interval = FiniteDuration.create(this.reportInterval.toMillis(), TimeUnit.MILLISECONDS);
+        this.publishTick = getContext().getSystem().scheduler().schedule(
+            interval, interval, getSelf(), new PublishLoad(), getContext().dispatcher(), ActorRef.noSender());
+    }
+
+    @Override
+    public void postStop() {
+        if (this.publishTick != null) {
+            this.publishTick.cancel();
+        }
+    }
+
+    /** message handler */
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+            .match(RoomLoad.class, this::handleRoomLoad)
+            .match(PublishLoad.class, cmd -> publishLoad())
+            .match(ShardLoadReport.class, report -> report.shards.forEach(this.allocationStrategy::update))
+            .match(Terminated.class, terminated -> this.rooms.remove(terminated.getActor()))
+            .match(DistributedPubSubMediator.SubscribeAck.class, ack -> {})
+            .build();
+    }
+
+    protected void handleRoomLoad(RoomLoad load) {
+        Room room = this.rooms.get(getSender());
+        if (room == null) {
+            room = new Room();
+            this.rooms.put(getSender(), room);
+            getContext().watch(getSender());
+        }
+        room.shardId = load.shardId;
+        room.messages += load.messages;
+        room.sessions = load.sessions;
+    }
+
+    /** publishes the load of every shard with rooms on this node, message rates are over the time since the last one */
+    protected void publishLoad() {
+        long now = System.currentTimeMillis();
+        long elapsedMillis = Math.max(1, now - this.lastPublishTime);
+        this.lastPublishTime = now;
+        if (this.rooms.isEmpty()) {
+            return;
+        }
+
+        Map<String, long[]> shards = new HashMap<>();
+        this.rooms.values().forEach(room -> {
+            long[] totals = shards.computeIfAbsent(room.shardId, shardId -> new long[2]);
+            totals[0] += room.messages;
+            totals[1] += room.sessions;
+            room.messages = 0;
+        });
+
+        List<ShardLoad> loads = new ArrayList<>(shards.size());
+        shards.forEach((shardId, totals) ->
+            loads.add(new ShardLoad(shardId, totals[0] * 60000 / elapsedMillis, (int)totals[1])));
+        this.mediator.tell(new DistributedPubSubMediator.Publish(TOPIC, new ShardLoadReport(loads)), getSelf());
+    }
+}
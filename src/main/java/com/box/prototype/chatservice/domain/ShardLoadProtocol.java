@@ -0,0 +1,49 @@
+package com.box.prototype.chatservice.domain;
+
+import java.io.Serializable;
+import java.util.List;
+
+public class ShardLoadProtocol {
+    /** pubsub topic nodes publish the load of the shards they host to */
+    public static final String TOPIC = "chat-shard-load";
+
+    /** observed load of a shard, as reported by the node hosting it */
+    public static class ShardLoad implements Serializable {
+        public final String shardId;
+        public final long messagesPerMinute;
+        public final int sessions;
+
+        public ShardLoad(String shardId, long messagesPerMinute, int sessions) {
+            this.shardId = shardId;
+            this.messagesPerMinute = messagesPerMinute;
+            this.sessions = sessions;
+        }
+    }
+
+    public static class ShardLoadMessage implements Serializable {}
+    /** load of every shard hosted on the publishing node */
+    public static class ShardLoadReport extends ShardLoadMessage {
+        public final List<ShardLoad> shards;
+
+        public ShardLoadReport(List<ShardLoad> shards) {
+            this.shards = shards;
+        }
+    }
+
+    // commands from chatrooms
+    /** messages published since the room last reported, and its current session count */
+    public static class RoomLoad {
+        public final String shardId;
+        public final long messages;
+        public final int sessions;
+
+        public RoomLoad(String shardId, long messages, int sessions) {
+            this.shardId = shardId;
+            this.messages = messages;
+            this.sessions = sessions;
+        }
+    }
+
+    // internal commands
+    public static class PublishLoad {}
+}
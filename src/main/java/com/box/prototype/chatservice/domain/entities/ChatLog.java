@@ -0,0 +1,164 @@
+package com.box.prototype.chatservice.domain.entities;
+
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+
+/**
+ * chat messages keyed by their (strictly increasing) persistence sequence number.  backed by a ring buffer of
+ * primitive sequence numbers alongside the messages, so appends and evicting the oldest message don't allocate,
+ * and finding where a cursor resumes is a binary search.
+ */
+public final class ChatLog implements Serializable {
+    /** callback for iterating log entries */
+    public interface Visitor {
+        void visit(long sequenceNr, ChatMessage message);
+    }
+
+    private long[] sequenceNrs;
+    private ChatMessage[] messages;
+    private int head = 0;
+    private int size = 0;
+    // rough heap footprint of the messages held, kept up to date on append and remove
+    private long messageBytes = 0;
+
+    public ChatLog() {
+        this(16);
+    }
+
+    public ChatLog(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, initialCapacity - 1)) << 1;
+        this.sequenceNrs = new long[capacity];
+        this.messages = new ChatMessage[capacity];
+    }
+
+    /** appends a message, sequence numbers must be strictly increasing */
+    public void append(long sequenceNr, ChatMessage message) {
+        if (this.size > 0 && sequenceNr <= lastSequenceNr()) {
+            throw new IllegalArgumentException(String.format("sequence nr %d not after %d", sequenceNr, lastSequenceNr()));
+        }
+        if (this.size == this.sequenceNrs.length) {
+            grow();
+        }
+        int index = physicalIndex(this.size);
+        this.sequenceNrs[index] = sequenceNr;
+        this.messages[index] = message;
+        this.size++;
+        this.messageBytes += estimatedBytes(message);
+    }
+
+    /** removes the oldest message, returning its sequence number */
+    public long removeFirst() {
+        if (this.size == 0) {
+            throw new NoSuchElementException("chat log is empty");
+        }
+        long sequenceNr = this.sequenceNrs[this.head];
+        this.messageBytes -= estimatedBytes(this.messages[this.head]);
+        this.messages[this.head] = null;
+        this.head = (this.head + 1) & (this.sequenceNrs.length - 1);
+        this.size--;
+        return sequenceNr;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public long firstSequenceNr() {
+        return sequenceNrAt(0);
+    }
+
+    public long lastSequenceNr() {
+        return sequenceNrAt(this.size - 1);
+    }
+
+    public ChatMessage first() {
+        return messageAt(0);
+    }
+
+    public ChatMessage last() {
+        return messageAt(this.size - 1);
+    }
+
+    public long sequenceNrAt(int position) {
+        return this.sequenceNrs[physicalIndex(checkPosition(position))];
+    }
+
+    public ChatMessage messageAt(int position) {
+        return this.messages[physicalIndex(checkPosition(position))];
+    }
+
+    /** position of the first message with a sequence number greater than the given one, or size if there is none */
+    public int positionAfter(long sequenceNr) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.sequenceNrs[physicalIndex(mid)] <= sequenceNr) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** visits, in order, every message with a sequence number greater than the given one */
+    public void forEachAfter(long sequenceNr, Visitor visitor) {
+        for (int position = positionAfter(sequenceNr); position < this.size; position++) {
+            int index = physicalIndex(position);
+            visitor.visit(this.sequenceNrs[index], this.messages[index]);
+        }
+    }
+
+    public void forEach(Visitor visitor) {
+        forEachAfter(Long.MIN_VALUE, visitor);
+    }
+
+    /** rough heap footprint of the log: its arrays plus the messages in it */
+    public long estimatedBytes() {
+        return (long)this.sequenceNrs.length * 16 + this.messageBytes;
+    }
+
+    public ChatLog copy() {
+        ChatLog copy = new ChatLog(this.size);
+        forEach(copy::append);
+        return copy;
+    }
+
+    /** object headers and fields, plus two bytes per char of its strings */
+    private static long estimatedBytes(ChatMessage message) {
+        long chars = (message.getUserId() == null ? 0 : message.getUserId().length())
+            + (message.getMessage() == null ? 0 : message.getMessage().length());
+        return 96 + chars * 2;
+    }
+
+    private int physicalIndex(int position) {
+        return (this.head + position) & (this.sequenceNrs.length - 1);
+    }
+
+    private int checkPosition(int position) {
+        if (position < 0 || position >= this.size) {
+            throw new NoSuchElementException(String.format("position %d out of range, size %d", position, this.size));
+        }
+        return position;
+    }
+
+    private void grow() {
+        long[] sequenceNrs = new long[this.sequenceNrs.length * 2];
+        ChatMessage[] messages = new ChatMessage[this.messages.length * 2];
+        for (int position = 0; position < this.size; position++) {
+            int index = physicalIndex(position);
+            sequenceNrs[position] = this.sequenceNrs[index];
+            messages[position] = this.messages[index];
+        }
+        this.sequenceNrs = sequenceNrs;
+        this.messages = messages;
+        this.head = 0;
+    }
+}
@@ -2,49 +2,193 @@ package com.box.prototype.chatservice.domain.entities;
 
 import akka.actor.Actor;
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.ReceiveTimeout;
+import akka.actor.Terminated;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.cluster.sharding.ShardRegion;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import akka.japi.Pair;
 import akka.japi.pf.FI;
 import akka.persistence.AbstractPersistentActor;
+import akka.persistence.DeleteMessagesFailure;
+import akka.persistence.DeleteMessagesSuccess;
+import akka.persistence.DeleteSnapshotsFailure;
+import akka.persistence.DeleteSnapshotsSuccess;
+import akka.persistence.RecoveryCompleted;
+import akka.persistence.SaveSnapshotFailure;
+import akka.persistence.SaveSnapshotSuccess;
 import akka.persistence.SnapshotOffer;
+import akka.persistence.SnapshotSelectionCriteria;
+import akka.persistence.query.PersistenceQuery;
+import akka.persistence.query.javadsl.CurrentEventsByPersistenceIdQuery;
 import akka.stream.ActorMaterializer;
-import akka.stream.OverflowStrategy;
-import akka.stream.QueueOfferResult;
-import akka.stream.SinkRef;
-import akka.stream.javadsl.Source;
-import akka.stream.javadsl.SourceQueueWithComplete;
+import akka.stream.javadsl.Sink;
+import com.box.prototype.chatservice.akka.ChatArchive;
+import com.box.prototype.chatservice.akka.ChatMetrics;
+import com.box.prototype.chatservice.domain.ChatRoomDirectory;
+import com.box.prototype.chatservice.domain.ChatRoomDirectoryProtocol;
+import com.box.prototype.chatservice.domain.ChatRoomMemoryGovernor;
+import com.box.prototype.chatservice.domain.ChatWireCodec;
+import com.box.prototype.chatservice.domain.ShardLoadMonitor;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
 import com.box.prototype.chatservice.domain.models.ChatMessage;
 import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.box.prototype.chatservice.domain.models.ChatRoom;
+import com.box.prototype.chatservice.domain.models.ChatSignal;
 import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigUtil;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
+import scala.concurrent.duration.FiniteDuration;
+
+import static akka.pattern.Patterns.pipe;
+import static com.box.prototype.chatservice.domain.ChatRoomMemoryProtocol.*;
+import static com.box.prototype.chatservice.domain.ChatRoomRelayProtocol.*;
+import static com.box.prototype.chatservice.domain.ShardLoadProtocol.RoomLoad;
 import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
 
 public class ChatRoomEntity extends AbstractPersistentActor {
+
     protected final LoggingAdapter logger = Logging.getLogger(getContext().getSystem(), this);
 
-    protected ChatRoomEntityState state = new ChatRoomEntityState(getSelf().path().name());
+    protected ChatRoomEntityState state;
 
     // these member variables hold transient state (such as current sessions) that won't be persisted.
     // should this entity get failed over, the chat log will be persisted via akka-persistence, while no sessions
     // will be recovered.  On subsequent commands for which there are no sessions, the chatroom will return error,
     // which will signal to the client session the need to re-establish the session via a JoinChat or RejoinChat
-    // command
-    protected Map<String, SourceQueueWithComplete<ChatMessageEnvelope>> clientSessions = new HashMap<>();
+    // command.  sessions are attached through the relay on their node, keyed by session id
+    protected Map<String, ActorRef> clientSessions = new HashMap<>();
+
+    // sessions attached through each node's relay.  messages are published once per relay
+    protected Map<ActorRef, Set<String>> relaySessions = new HashMap<>();
 
     // track lastEventId for each session for backfill purposes
     protected Map<String, String> sessionCursors = new HashMap<>();
 
-    protected final int OUT_STREAM_BUFFER;
-    protected final ActorMaterializer materializer;
+    // snapshot bookkeeping
+    protected final ArrayDeque<Long> snapshotSequenceNrs = new ArrayDeque<>();
+    protected long eventsSinceSnapshot = 0;
+    protected long lastSnapshotTime = System.currentTimeMillis();
+    protected final long recoveryStartTime = System.nanoTime();
+
+    // AddMessage commands (and who to ack) waiting for the next batched write
+    protected final List<Pair<AddMessage, ActorRef>> pendingMessages = new ArrayList<>();
+    protected boolean batchInFlight = false;
+    protected boolean flushScheduled = false;
+
+    // ephemeral signals waiting for the next fan out, the latest per user, and each user's last accepted signal
+    protected final Map<String, ChatSignal> pendingSignals = new LinkedHashMap<>();
+    protected final Map<String, ChatSignal> lastSignals = new HashMap<>();
+    protected boolean signalFlushScheduled = false;
+
+    // directory bookkeeping, activity is reported at most once per interval
+    protected long lastDirectoryUpdate = 0;
+    protected boolean directoryUpdateScheduled = false;
+    // server time of the newest event, messages' own timestamps are the client's
+    protected long lastEventTime = 0;
+
+    // memory governor bookkeeping, the footprint is reported periodically if it changed
+    protected long lastActivityTime = System.currentTimeMillis();
+    protected boolean footprintChanged = true;
+    protected Cancellable footprintTick = null;
+
+    // shard load bookkeeping, messages published since the last report
+    protected long messagesSinceLoadReport = 0;
+    protected boolean lastLoadReportEmpty = false;
+
+    protected final int CHAT_LOG_MAX_MESSAGES;
+    protected final long CHAT_LOG_MAX_AGE;
+    protected final long SNAPSHOT_EVERY_EVENTS;
+    protected final long SNAPSHOT_INTERVAL;
+    protected final int SNAPSHOT_KEEP;
+    protected final boolean SNAPSHOT_DELETE_EVENTS;
+    protected final long RETENTION_MAX_AGE;
+    protected final long RETENTION_MAX_EVENTS;
+    protected final int ARCHIVE_SEGMENT_EVENTS;
+    protected final boolean BATCHING_ENABLED;
+    protected final int BATCH_MAX_SIZE;
+    protected final long BATCH_LINGER;
+    protected final long DIRECTORY_ACTIVITY_INTERVAL;
+    protected final long SIGNAL_WINDOW;
+    protected final long SIGNAL_MIN_INTERVAL;
+    protected final int SIGNAL_MAX_PER_WINDOW;
+    protected final long PASSIVATION_IDLE_TIMEOUT;
+    protected final long FOOTPRINT_REPORT_INTERVAL;
+    // only needed to read evicted history back from the journal, so created on first use
+    protected ActorMaterializer materializer = null;
+    protected final CurrentEventsByPersistenceIdQuery readJournal;
+    protected final ActorRef mediator;
+    protected final ChatMetrics metrics;
+    protected final ChatMetrics.RoomCounters roomMetrics;
+    protected final ChatArchive archive;
+    // an archive round is in flight, at most one at a time
+    protected boolean archiving = false;
 
     public ChatRoomEntity() {
-        OUT_STREAM_BUFFER = getContext().getSystem().settings().config().getInt("chat-sessions.out-stream-buffer");
+        Config config = getContext().getSystem().settings().config();
+        CHAT_LOG_MAX_MESSAGES = config.getInt("chat-rooms.chat-log.max-messages");
+        CHAT_LOG_MAX_AGE = config.getDuration("chat-rooms.chat-log.max-age", TimeUnit.MILLISECONDS);
+        SNAPSHOT_EVERY_EVENTS = config.getLong("chat-rooms.snapshots.every-events");
+        SNAPSHOT_INTERVAL = config.getDuration("chat-rooms.snapshots.interval", TimeUnit.MILLISECONDS);
+        SNAPSHOT_KEEP = Math.max(1, config.getInt("chat-rooms.snapshots.keep"));
+        SNAPSHOT_DELETE_EVENTS = config.getBoolean("chat-rooms.snapshots.delete-events");
+        Config retention = retentionConfig(config, ChatRoomDirectory.chatRoomId(persistenceId()));
+        RETENTION_MAX_AGE = retention.getDuration("max-age", TimeUnit.MILLISECONDS);
+        RETENTION_MAX_EVENTS = retention.getLong("max-events");
+        ARCHIVE_SEGMENT_EVENTS = Math.max(1, config.getInt("chat-rooms.retention.archive.segment-events"));
+        BATCHING_ENABLED = config.getBoolean("chat-rooms.batching.enabled");
+        BATCH_MAX_SIZE = Math.max(1, config.getInt("chat-rooms.batching.max-batch-size"));
+        BATCH_LINGER = config.getDuration("chat-rooms.batching.linger", TimeUnit.MILLISECONDS);
+        DIRECTORY_ACTIVITY_INTERVAL = config.getDuration("chat-rooms.directory.activity-interval", TimeUnit.MILLISECONDS);
+        SIGNAL_WINDOW = config.getDuration("chat-rooms.signals.window", TimeUnit.MILLISECONDS);
+        SIGNAL_MIN_INTERVAL = config.getDuration("chat-rooms.signals.min-interval", TimeUnit.MILLISECONDS);
+        SIGNAL_MAX_PER_WINDOW = Math.max(1, config.getInt("chat-rooms.signals.max-per-window"));
+        PASSIVATION_IDLE_TIMEOUT = config.getDuration("chat-rooms.passivation.idle-timeout", TimeUnit.MILLISECONDS);
+        FOOTPRINT_REPORT_INTERVAL = config.getDuration("chat-rooms.memory-budget.report-interval", TimeUnit.MILLISECONDS);
+
+        this.state = new ChatRoomEntityState(getSelf().path().name()).withLimits(CHAT_LOG_MAX_MESSAGES, CHAT_LOG_MAX_AGE);
+        this.readJournal = PersistenceQuery.get(getContext().getSystem())
+            .getReadJournalFor(CurrentEventsByPersistenceIdQuery.class, config.getString("chat-rooms.chat-log.read-journal"));
+        this.mediator = DistributedPubSub.get(getContext().getSystem()).mediator();
+        this.metrics = ChatMetrics.get(getContext().getSystem());
+        this.roomMetrics = this.metrics.acquireRoom(ChatRoomDirectory.chatRoomId(persistenceId()));
+        this.archive = ChatArchive.get(getContext().getSystem());
+
+        // rooms without sessions passivate once idle, 0 keeps them resident
+        if (PASSIVATION_IDLE_TIMEOUT > 0) {
+            getContext().setReceiveTimeout(FiniteDuration.create(PASSIVATION_IDLE_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+    }
 
-        this.materializer = ActorMaterializer.create(getContext());
+    @Override
+    public void postStop() {
+        if (this.footprintTick != null) {
+            this.footprintTick.cancel();
+        }
+        // the relay may still hold the room's counters, its gauges only apply while resident
+        this.roomMetrics.messagesPerSecond = 0;
+        this.roomMetrics.sessions = 0;
+        this.metrics.releaseRoom(ChatRoomDirectory.chatRoomId(persistenceId()));
+        super.postStop();
     }
 
     @Override
@@ -55,30 +199,201 @@ public class ChatRoomEntity extends AbstractPersistentActor {
     @Override
     public Receive createReceiveRecover() {
         return receiveBuilder()
-            .match(ChatRoomEvent.class, this.state::update)
-            .match(SnapshotOffer.class, snapshot -> this.state = (ChatRoomEntityState)snapshot.snapshot())
+            .match(ChatRoomEvent.class, event -> {
+                this.state.update(event, lastSequenceNr());
+                this.eventsSinceSnapshot++;
+            })
+            .match(SnapshotOffer.class, this::handleSnapshotOffer)
+            .match(RecoveryCompleted.class, this::handleRecoveryCompleted)
             .build();
     }
 
-    /** persists event, updates state, and calls event handler */
+    protected void handleSnapshotOffer(SnapshotOffer snapshot) {
+        this.state = ((ChatRoomEntityState)snapshot.snapshot()).withLimits(CHAT_LOG_MAX_MESSAGES, CHAT_LOG_MAX_AGE);
+        if (this.state.evictedThrough < 0) {
+            // snapshot predates sequence nr keyed chat logs and came without its log, so everything up to it is
+            // served from the journal
+            this.state.evictedThrough = snapshot.metadata().sequenceNr();
+        }
+        this.snapshotSequenceNrs.addLast(snapshot.metadata().sequenceNr());
+        this.lastSnapshotTime = snapshot.metadata().timestamp();
+    }
+
+    protected void handleRecoveryCompleted(RecoveryCompleted completed) {
+        long elapsedNanos = System.nanoTime() - this.recoveryStartTime;
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        this.metrics.recoveryDuration.recordNanos(elapsedNanos);
+        // the adapter takes at most four args, more go as an array
+        logger.info("recovered chatroom ({}) in {} ms: snapshot at {}, {} events replayed, sequence nr {}",
+            new Object[]{persistenceId(), elapsedMillis, snapshotSequenceNr(), this.eventsSinceSnapshot, lastSequenceNr()});
+
+        // a long replay means the next recovery would be just as slow, so snapshot right away
+        if (this.eventsSinceSnapshot >= SNAPSHOT_EVERY_EVENTS) {
+            saveStateSnapshot();
+        }
+        // when recovered events were received isn't persisted, the newest message's timestamp stands in for it, but
+        // never later than now
+        this.lastEventTime = Math.min(this.state.chatLog.isEmpty() ? 0 : this.state.chatLog.last().getTimestamp(), System.currentTimeMillis());
+        updateDirectory(true);
+        reportFootprint();
+        this.footprintTick = getContext().getSystem().scheduler().schedule(
+            FiniteDuration.create(FOOTPRINT_REPORT_INTERVAL, TimeUnit.MILLISECONDS),
+            FiniteDuration.create(FOOTPRINT_REPORT_INTERVAL, TimeUnit.MILLISECONDS),
+            getSelf(),
+            new ReportFootprint(),
+            getContext().dispatcher(),
+            ActorRef.noSender()
+        );
+    }
+
+    /** persists event, updates state, and calls event handler.  the handler can use lastSequenceNr() as the event id */
     protected <C extends ChatRoomCommand, E extends ChatRoomEvent> void persistAndHandle(C command, E event, FI.UnitApply2<C, E> handler) {
+        final long persistStartTime = System.nanoTime();
         persist(event, evt -> {
-            this.state.update(evt);
+            this.metrics.persistLatency.recordNanos(System.nanoTime() - persistStartTime);
+            this.state.update(evt, lastSequenceNr());
             handler.apply(command, evt);
+            this.eventsSinceSnapshot++;
+            maybeSaveSnapshot();
+            this.lastEventTime = System.currentTimeMillis();
+            updateDirectory(!(evt instanceof MessageAdded));
+            touch();
         });
     }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
-            .match(JoinChat.class, cmd -> persist(mapMemberJoined(cmd), event -> handleMemberJoined(cmd, event)))
+            .match(JoinChat.class, cmd -> persistAndHandle(cmd, mapMemberJoined(cmd), this::handleMemberJoined))
             .match(RejoinChat.class, this::handleMemberRejoined)
-            .match(LeaveChat.class, cmd -> persist(mapMemberLeft(cmd), event -> handleMemberLeft(cmd, event)))
-            .match(AddMessage.class, cmd -> persist(new MessageAdded(cmd.message), event -> handleMessageAdded(cmd, event)))
+            .match(LeaveChat.class, cmd -> persistAndHandle(cmd, mapMemberLeft(cmd), this::handleMemberLeft))
+            .match(AddMessage.class, this::handleAddMessage)
+            .match(FlushMessages.class, cmd -> {
+                this.flushScheduled = false;
+                flushMessages();
+            })
+            .match(FetchHistory.class, this::handleFetchHistory)
+            .match(SendSignal.class, this::handleSendSignal)
+            .match(FlushSignals.class, cmd -> flushSignals())
+            .match(ReportFootprint.class, cmd -> {
+                if (this.footprintChanged) {
+                    reportFootprint();
+                }
+                reportLoad();
+            })
+            .match(ReceiveTimeout.class, cmd -> {
+                if (isIdle()) {
+                    logger.info("passivating idle chatroom ({})", persistenceId());
+                    passivate();
+                }
+            })
+            .match(EvictRoom.class, cmd -> {
+                if (isIdle()) {
+                    logger.info("passivating chatroom ({}) to stay within memory budget", persistenceId());
+                    passivate();
+                } else {
+                    getSender().tell(new EvictDeclined(footprint()), getSelf());
+                }
+            })
+            .match(StopEntity.class, cmd -> getContext().stop(getSelf()))
+            .match(Archived.class, this::handleArchived)
+            .match(UpdateDirectory.class, cmd -> {
+                this.directoryUpdateScheduled = false;
+                updateDirectory(true);
+            })
             .match(StopSession.class, this::handleStopSession)
+            .match(Terminated.class, this::handleRelayTerminated)
+            .match(SaveSnapshotSuccess.class, this::handleSnapshotSaved)
+            .match(SaveSnapshotFailure.class, m -> logger.warning("unable to save snapshot for chatroom ({}): {}", persistenceId(), m.cause()))
+            .match(DeleteSnapshotsSuccess.class, m -> logger.debug("deleted snapshots for chatroom ({}): {}", persistenceId(), m.criteria()))
+            .match(DeleteSnapshotsFailure.class, m -> logger.warning("unable to delete snapshots for chatroom ({}): {}", persistenceId(), m.cause()))
+            .match(DeleteMessagesSuccess.class, m -> logger.debug("deleted events for chatroom ({}) up to {}", persistenceId(), m.toSequenceNr()))
+            .match(DeleteMessagesFailure.class, m -> logger.warning("unable to delete events for chatroom ({}): {}", persistenceId(), m.cause()))
             .build();
     }
 
+    /** saves a snapshot once enough events or time have gone by since the last one */
+    protected void maybeSaveSnapshot() {
+        if (this.eventsSinceSnapshot >= SNAPSHOT_EVERY_EVENTS
+            || System.currentTimeMillis() - this.lastSnapshotTime >= SNAPSHOT_INTERVAL) {
+            saveStateSnapshot();
+        }
+    }
+
+    protected void saveStateSnapshot() {
+        // the snapshot store serializes asynchronously, so hand it a copy that won't be mutated underneath it
+        saveSnapshot(this.state.copy());
+        this.eventsSinceSnapshot = 0;
+        this.lastSnapshotTime = System.currentTimeMillis();
+    }
+
+    /** cleans up snapshots (and optionally journal events) superseded by a newly saved snapshot */
+    protected void handleSnapshotSaved(SaveSnapshotSuccess saved) {
+        long sequenceNr = saved.metadata().sequenceNr();
+        this.snapshotSequenceNrs.addLast(sequenceNr);
+        if (this.snapshotSequenceNrs.size() > SNAPSHOT_KEEP) {
+            long deleteTo = 0;
+            while (this.snapshotSequenceNrs.size() > SNAPSHOT_KEEP) {
+                deleteTo = this.snapshotSequenceNrs.pollFirst();
+            }
+            deleteSnapshots(SnapshotSelectionCriteria.create(deleteTo, Long.MAX_VALUE));
+        }
+        if (RETENTION_MAX_AGE > 0 || RETENTION_MAX_EVENTS > 0) {
+            archiveExpired(sequenceNr);
+        } else if (SNAPSHOT_DELETE_EVENTS) {
+            deleteMessages(sequenceNr);
+        }
+    }
+
+    /** the room's retention policy, its overrides (if any) falling back to the defaults */
+    protected static Config retentionConfig(Config config, String chatRoom) {
+        Config retention = config.getConfig("chat-rooms.retention");
+        String path = ConfigUtil.joinPath("rooms", chatRoom);
+        return retention.hasPath(path) ? retention.getConfig(path).withFallback(retention) : retention;
+    }
+
+    /**
+     * moves events past the room's retention into the archive, up to the snapshot just saved, so deleting them from
+     * the journal doesn't affect recovery.  events expire once older than the max age, or more than max events
+     * behind the newest.  runs off the actor, reading the journal from where the archive left off until the first
+     * event that hasn't expired, and reports back with Archived
+     */
+    protected void archiveExpired(long snapshotSequenceNr) {
+        if (this.archiving) {
+            return;
+        }
+        this.archiving = true;
+        final String persistenceId = persistenceId();
+        final long expiredThrough = RETENTION_MAX_EVENTS > 0 ? lastSequenceNr() - RETENTION_MAX_EVENTS : 0;
+        final long expiredBefore = RETENTION_MAX_AGE > 0 ? System.currentTimeMillis() - RETENTION_MAX_AGE : 0;
+        final ActorMaterializer materializer = materializer();
+
+        CompletionStage<Archived> archived = CompletableFuture.supplyAsync(() -> this.archive.archivedThrough(persistenceId), this.archive.dispatcher())
+            .thenCompose(archivedThrough -> this.readJournal.currentEventsByPersistenceId(persistenceId, archivedThrough + 1, snapshotSequenceNr)
+                .takeWhile(envelope -> envelope.sequenceNr() <= expiredThrough
+                    || (envelope.event() instanceof ChatRoomEvent && ((ChatRoomEvent)envelope.event()).message.getTimestamp() < expiredBefore))
+                .filter(envelope -> envelope.event() instanceof ChatRoomEvent)
+                .map(envelope -> Pair.create(envelope.sequenceNr(), ((ChatRoomEvent)envelope.event()).message))
+                .grouped(ARCHIVE_SEGMENT_EVENTS)
+                .mapAsync(1, messages -> CompletableFuture.supplyAsync(() -> this.archive.write(persistenceId, messages), this.archive.dispatcher()))
+                .runWith(Sink.fold(0L, (through, written) -> written), materializer))
+            .thenApply(Archived::new)
+            .exceptionally(error -> {
+                logger.warning("unable to archive expired events of chatroom ({}): {}", persistenceId, error);
+                return new Archived(0);
+            });
+        pipe(archived, getContext().dispatcher()).to(getSelf());
+    }
+
+    /** archived events are deleted from the journal, a snapshot already covers them */
+    protected void handleArchived(Archived archived) {
+        this.archiving = false;
+        if (archived.throughSequenceNr > 0) {
+            logger.info("archived events of chatroom ({}) through {}", persistenceId(), archived.throughSequenceNr);
+            deleteMessages(archived.throughSequenceNr);
+        }
+    }
+
     /** helper join chat message */
     public MemberJoined mapMemberJoined(JoinChat joinChat) {
         return new MemberJoined(new ChatMessage(
@@ -106,114 +421,379 @@ public class ChatRoomEntity extends AbstractPersistentActor {
         );
     }
 
-    /** create sourcequeue from sinkref */
-    protected SourceQueueWithComplete<ChatMessageEnvelope> createSourceQueue(SinkRef<ChatMessageEnvelope> sinkRef) {
-        return Source.<ChatMessageEnvelope>queue(OUT_STREAM_BUFFER, OverflowStrategy.dropNew())
-            .to(sinkRef.getSink())
-            .run(this.materializer);
-    }
-
     protected void handleMemberJoined(JoinChat command, MemberJoined event) {
-        this.state.update(event);
-
         // update session state
-        SourceQueueWithComplete<ChatMessageEnvelope> sourceQueue = createSourceQueue(command.sessionListener);
-        this.clientSessions.put(command.sessionInfo.getSessionId(), sourceQueue);
+        addSession(command.sessionInfo.getSessionId(), command.relay);
+        this.clientSessions.put(command.sessionInfo.getSessionId(), command.relay);
+        command.relay.tell(new Deliver(command.sessionInfo.getSessionId(), Collections.emptyList(), true), getSelf());
 
-        publishMessageToAll(new ChatMessageEnvelope(event.message, eventId(event.message)));
+        publishMessageToAll(encode(lastSequenceNr(), event.message));
         getSender().tell(new Committed(), getSelf());
     }
 
     protected void handleMemberRejoined(RejoinChat command) {
-        // no event generated or persisted on rejoin, only need to update session information and resend messages since lastEventid
+        // no event generated or persisted on rejoin, only need to update session information.  the session is attached
+        // for live messages right away and streams messages since lastEventId itself, paging them in through
+        // FetchHistory at the pace its websocket drains, so a big backlog neither blocks the chatroom nor overflows
+        // the session
+
+        String sessionId = command.sessionInfo.getSessionId();
+        long cursor = parseEventId(command.sessionInfo.getLastEventId());
+        if (cursor < 0) {
+            // missing or legacy cursor, resend what's in memory
+            cursor = this.state.evictedThrough;
+        }
+        addSession(sessionId, command.relay);
+        this.clientSessions.put(sessionId, command.relay);
+        command.relay.tell(new Deliver(sessionId, Collections.emptyList(), true), getSelf());
+        touch();
 
-        // update session state
-        SourceQueueWithComplete<ChatMessageEnvelope> sourceQueue = createSourceQueue(command.sessionListener);
-        this.clientSessions.put(command.sessionInfo.getSessionId(), sourceQueue);
-
-        // publish messages from lastEventId
-        this.state.chatLog
-            .tailMap(parseEventId(command.sessionInfo.getLastEventId()))
-            .forEach((key, message) -> {
-                publishMessage(command.sessionInfo.getSessionId(), sourceQueue, new ChatMessageEnvelope(message, eventId(message)));
-            });
+        getSender().tell(new Rejoined(cursor + 1, lastSequenceNr()), getSelf());
+    }
 
-        getSender().tell(new Committed(), getSelf());
+    /**
+     * serves a page of history, from the in-memory window if it's still there, or else from the journal, or the
+     * archive for what's been archived.  either way at most a page of messages is handled here, journal and archive
+     * reads happen off the actor and are piped to the sender
+     */
+    protected void handleFetchHistory(FetchHistory command) {
+        long through = Math.min(command.throughSequenceNr, command.fromSequenceNr + Math.max(1, command.maxFrames) - 1);
+        touch();
+
+        if (this.state.isEvicted(command.fromSequenceNr - 1)) {
+            final long evictedThrough = Math.min(through, this.state.evictedThrough);
+            final String persistenceId = persistenceId();
+            final ActorMaterializer materializer = materializer();
+            CompletionStage<HistoryPage> page = CompletableFuture.supplyAsync(() -> this.archive.archivedThrough(persistenceId), this.archive.dispatcher())
+                .thenCompose(archivedThrough -> {
+                    if (command.fromSequenceNr <= archivedThrough) {
+                        final long archiveThrough = Math.min(evictedThrough, archivedThrough);
+                        return CompletableFuture.supplyAsync(() -> {
+                            List<ChatFrame> frames = new ArrayList<>();
+                            this.archive.read(persistenceId, command.fromSequenceNr, archiveThrough)
+                                .forEach(message -> frames.add(encodeFrame(message.first(), message.second())));
+                            return new HistoryPage(frames, archiveThrough + 1);
+                        }, this.archive.dispatcher());
+                    }
+                    return this.readJournal.currentEventsByPersistenceId(persistenceId, command.fromSequenceNr, evictedThrough)
+                        .filter(envelope -> envelope.event() instanceof ChatRoomEvent)
+                        .map(envelope -> encodeFrame(envelope.sequenceNr(), ((ChatRoomEvent)envelope.event()).message))
+                        .runWith(Sink.seq(), materializer)
+                        .thenApply(frames -> new HistoryPage(frames, evictedThrough + 1));
+                });
+            pipe(page, getContext().dispatcher()).to(getSender());
+        } else {
+            List<ChatFrame> frames = new ArrayList<>();
+            ChatLog chatLog = this.state.chatLog;
+            for (int position = chatLog.positionAfter(command.fromSequenceNr - 1); position < chatLog.size() && chatLog.sequenceNrAt(position) <= through; position++) {
+                frames.add(encode(chatLog.sequenceNrAt(position), chatLog.messageAt(position)));
+            }
+            getSender().tell(new HistoryPage(frames, through + 1), getSelf());
+        }
     }
 
     protected void handleMemberLeft(LeaveChat command, MemberLeft event) {
-        // update session state
-        this.state.update(event);
-
         // signal to close session stream
-        SourceQueueWithComplete<ChatMessageEnvelope> sourceQueue = this.clientSessions.remove(command.sessionInfo.getSessionId());
-        if (sourceQueue != null) {
-            sourceQueue.complete();
-        }
+        removeSession(command.sessionInfo.getSessionId());
 
         // let other chatroom members know of departing user
-        publishMessageToAll(new ChatMessageEnvelope(event.message, eventId(event.message)));
+        publishMessageToAll(encode(lastSequenceNr(), event.message));
         getSender().tell(new Committed(), getSelf());
     }
 
-    protected void handleMessageAdded(AddMessage command, MessageAdded event) {
-        // update session state
-        this.state.update(event);
+    protected void handleAddMessage(AddMessage command) {
+        if (!BATCHING_ENABLED) {
+            persistAndHandle(command, new MessageAdded(command.message), this::handleMessageAdded);
+            return;
+        }
+
+        this.pendingMessages.add(Pair.create(command, getSender()));
+        if (!this.batchInFlight) {
+            scheduleFlush();
+        }
+    }
+
+    /** writes pending messages right away if there's a full batch or no linger, otherwise after the linger */
+    protected void scheduleFlush() {
+        if (this.pendingMessages.size() >= BATCH_MAX_SIZE || BATCH_LINGER <= 0) {
+            flushMessages();
+        } else if (!this.flushScheduled) {
+            this.flushScheduled = true;
+            getContext().getSystem().scheduler().scheduleOnce(
+                FiniteDuration.create(BATCH_LINGER, TimeUnit.MILLISECONDS),
+                getSelf(),
+                new FlushMessages(),
+                getContext().dispatcher(),
+                ActorRef.noSender()
+            );
+        }
+    }
 
+    /** persists up to a batch of pending messages in a single write, then publishes and acks each of them */
+    protected void flushMessages() {
+        if (this.batchInFlight || this.pendingMessages.isEmpty()) {
+            return;
+        }
+
+        List<Pair<AddMessage, ActorRef>> batch = new ArrayList<>(this.pendingMessages.subList(0, Math.min(BATCH_MAX_SIZE, this.pendingMessages.size())));
+        this.pendingMessages.subList(0, batch.size()).clear();
+        List<MessageAdded> events = new ArrayList<>(batch.size());
+        batch.forEach(pending -> events.add(new MessageAdded(pending.first().message)));
+
+        // async persist doesn't stash, so commands keep arriving (and queueing up for the next batch) during the write.
+        // handlers are called in order, once per event
+        this.batchInFlight = true;
+        final Iterator<Pair<AddMessage, ActorRef>> commands = batch.iterator();
+        final long persistStartTime = System.nanoTime();
+        persistAllAsync(events, event -> {
+            Pair<AddMessage, ActorRef> pending = commands.next();
+            if (pending == batch.get(0)) {
+                this.metrics.persistLatency.recordNanos(System.nanoTime() - persistStartTime);
+            }
+            this.state.update(event, lastSequenceNr());
+            publishMessageToAll(encode(lastSequenceNr(), event.message));
+            pending.second().tell(new Committed(pending.first().requestId), getSelf());
+            this.eventsSinceSnapshot++;
+
+            if (!commands.hasNext()) {
+                this.batchInFlight = false;
+                maybeSaveSnapshot();
+                this.lastEventTime = System.currentTimeMillis();
+                updateDirectory(false);
+                touch();
+                // whatever piled up during the write goes out together now
+                flushMessages();
+            }
+        });
+    }
+
+    protected void handleMessageAdded(AddMessage command, MessageAdded event) {
         // publish message to all chatroom members
-        publishMessageToAll(new ChatMessageEnvelope(event.message, eventId(event.message)));
-        getSender().tell(new Committed(), getSelf());
+        publishMessageToAll(encode(lastSequenceNr(), event.message));
+        getSender().tell(new Committed(command.requestId), getSelf());
+    }
+
+    /**
+     * queues an attached session's signal for the next fan out.  a user's signals within a window coalesce into the
+     * latest, and repeating the same signal within the min interval (say, typing on every keystroke) is dropped
+     */
+    protected void handleSendSignal(SendSignal command) {
+        if (!this.clientSessions.containsKey(command.sessionInfo.getSessionId()) || !ChatSignal.TYPES.contains(command.type)) {
+            return;
+        }
+        String userId = command.sessionInfo.getUserId();
+        long now = System.currentTimeMillis();
+        ChatSignal last = this.lastSignals.get(userId);
+        if (last != null && last.getType().equals(command.type) && now - last.getTimestamp() < SIGNAL_MIN_INTERVAL) {
+            return;
+        }
+
+        ChatSignal signal = new ChatSignal(userId, command.type, now);
+        this.lastSignals.put(userId, signal);
+        this.pendingSignals.remove(userId);
+        this.pendingSignals.put(userId, signal);
+        if (!this.signalFlushScheduled) {
+            this.signalFlushScheduled = true;
+            getContext().getSystem().scheduler().scheduleOnce(
+                FiniteDuration.create(SIGNAL_WINDOW, TimeUnit.MILLISECONDS),
+                getSelf(),
+                new FlushSignals(),
+                getContext().dispatcher(),
+                ActorRef.noSender()
+            );
+        }
+    }
+
+    /** fans the window's signals out in a single frame, the most recent ones if there are too many */
+    protected void flushSignals() {
+        this.signalFlushScheduled = false;
+        if (this.pendingSignals.isEmpty()) {
+            return;
+        }
+        List<ChatSignal> signals = new ArrayList<>(this.pendingSignals.values());
+        this.pendingSignals.clear();
+        if (signals.size() > SIGNAL_MAX_PER_WINDOW) {
+            signals = new ArrayList<>(signals.subList(signals.size() - SIGNAL_MAX_PER_WINDOW, signals.size()));
+        }
+
+        try {
+            Publish publish = new Publish(ChatWireCodec.frame(null, new ChatMessageEnvelope(signals)));
+            this.relaySessions.keySet().forEach(relay -> relay.tell(publish, getSelf()));
+        } catch (JsonProcessingException ex) {
+            logger.error(ex, "unable to encode signals for chatroom ({})", persistenceId());
+        }
+
+        // only users that signalled within the min interval still need remembering
+        long now = System.currentTimeMillis();
+        this.lastSignals.values().removeIf(signal -> now - signal.getTimestamp() >= SIGNAL_MIN_INTERVAL);
     }
 
     public void handleStopSession(StopSession command) {
-        if (this.clientSessions.containsKey(command.sessionId)) {
+        if (removeSession(command.sessionId)) {
             logger.info("terminating session: " + command.sessionId);
-            SourceQueueWithComplete<ChatMessageEnvelope> sourceQueue = this.clientSessions.remove(command.sessionId);
-            sourceQueue.complete();
         }
         if (this.sessionCursors.containsKey(command.sessionId)) {
             this.sessionCursors.remove(command.sessionId);
         }
     }
 
-    /** helper to publish message to listeners */
-    protected void publishMessageToAll(ChatMessageEnvelope message) {
-        this.clientSessions.forEach( (sessionId, listener) -> publishMessage(sessionId, listener, message));
+    /**
+     * publishes the room's summary to the chatroom directory.  membership changes go out right away, plain activity at
+     * most once per interval, with a trailing update so the directory still ends up with the latest
+     */
+    protected void updateDirectory(boolean force) {
+        long now = System.currentTimeMillis();
+        long wait = this.lastDirectoryUpdate + DIRECTORY_ACTIVITY_INTERVAL - now;
+        if (force || wait <= 0) {
+            this.lastDirectoryUpdate = now;
+            ChatRoom summary = new ChatRoom(
+                ChatRoomDirectory.chatRoomId(persistenceId()),
+                this.state.members.size(),
+                this.lastEventTime,
+                lastSequenceNr()
+            );
+            this.mediator.tell(new DistributedPubSubMediator.Publish(ChatRoomDirectoryProtocol.TOPIC, new ChatRoomDirectoryProtocol.RoomUpdated(summary)), getSelf());
+        } else if (!this.directoryUpdateScheduled) {
+            this.directoryUpdateScheduled = true;
+            getContext().getSystem().scheduler().scheduleOnce(
+                FiniteDuration.create(wait, TimeUnit.MILLISECONDS),
+                getSelf(),
+                new UpdateDirectory(),
+                getContext().dispatcher(),
+                ActorRef.noSender()
+            );
+        }
     }
 
-    /** helper to publish message to listeners */
-    protected void publishMessage(String sessionId, SourceQueueWithComplete<ChatMessageEnvelope> listener, ChatMessageEnvelope message) {
-        final ActorRef self = getSelf();
-        listener.offer(message)
-            .thenAccept(result -> {
-                if (!(result instanceof QueueOfferResult.Enqueued$)) {
-                    throw new RuntimeException(String.format("bad SourceQueue.offer() result: %s", result));
-                }
-            })
-            .exceptionally(error -> {
-                logger.error(error, "unexpected error publishing to session ({}): {}", sessionId, error);
+    /** records activity, which also changes the room's footprint */
+    protected void touch() {
+        this.lastActivityTime = System.currentTimeMillis();
+        this.footprintChanged = true;
+    }
 
-                // signal to self to terminate session
-                getSelf().tell(new StopSession(sessionId), ActorRef.noSender());
-                return null;
-            });
+    /** reports the room's estimated heap footprint to the node's memory governor */
+    protected void reportFootprint() {
+        this.footprintChanged = false;
+        getContext().actorSelection("/user/" + ChatRoomMemoryGovernor.NAME).tell(footprint(), getSelf());
     }
 
-    /** extracts event id from chat message */
-    protected String eventId(ChatMessage message) {
-        return "" + message.getTimestamp() + "/" + message.getUserId();
+    protected RoomFootprint footprint() {
+        long estimatedBytes = this.state.estimatedBytes() + (long)this.clientSessions.size() * 64;
+        return new RoomFootprint(ChatRoomDirectory.chatRoomId(persistenceId()), this.clientSessions.size(), estimatedBytes, this.lastActivityTime);
     }
 
-    /** parse chat log ke from event id */
-    protected Pair<Long, String> parseEventId(String eventId) {
-        int splitIndex = eventId.indexOf("/");
-        if (splitIndex > 0) {
-            long timestamp = Long.parseLong(eventId.substring(0, splitIndex));
-            String userId = eventId.substring(splitIndex + 1);
+    /** reports the room's traffic to the node's shard load monitor, idle rooms stop reporting after one empty report */
+    protected void reportLoad() {
+        boolean empty = this.messagesSinceLoadReport == 0 && this.clientSessions.isEmpty();
+        if (empty && this.lastLoadReportEmpty) {
+            return;
+        }
+        this.lastLoadReportEmpty = empty;
+        this.roomMetrics.messagesPerSecond = this.messagesSinceLoadReport * 1000.0 / FOOTPRINT_REPORT_INTERVAL;
+        this.roomMetrics.sessions = this.clientSessions.size();
+        // entities are children of their shard, which is named after the shard id
+        getContext().actorSelection("/user/" + ShardLoadMonitor.NAME).tell(
+            new RoomLoad(getContext().getParent().path().name(), this.messagesSinceLoadReport, this.clientSessions.size()), getSelf());
+        this.messagesSinceLoadReport = 0;
+    }
 
-            return Pair.create(timestamp, userId);
-        } else {
-            throw new RuntimeException("unparseable event id: " + eventId);
+    /** no sessions and no writes in progress */
+    protected boolean isIdle() {
+        return this.clientSessions.isEmpty() && this.pendingMessages.isEmpty() && !this.batchInFlight;
+    }
+
+    /** asks the shard to stop the room, messages arriving in the meantime are buffered and restart it */
+    protected void passivate() {
+        getContext().setReceiveTimeout(scala.concurrent.duration.Duration.Undefined());
+        getContext().getParent().tell(new ShardRegion.Passivate(new StopEntity()), getSelf());
+    }
+
+    protected ActorMaterializer materializer() {
+        if (this.materializer == null) {
+            this.materializer = ActorMaterializer.create(getContext());
+        }
+        return this.materializer;
+    }
+
+    /** relay's node went away, along with all of its sessions */
+    protected void handleRelayTerminated(Terminated terminated) {
+        Set<String> sessionIds = this.relaySessions.remove(terminated.getActor());
+        if (sessionIds != null) {
+            logger.info("relay ({}) went away, dropping {} sessions", terminated.getActor(), sessionIds.size());
+            sessionIds.forEach(this.clientSessions::remove);
+            this.footprintChanged = true;
+        }
+    }
+
+    /** tracks a session against its relay, watching relays as they attach their first session */
+    protected void addSession(String sessionId, ActorRef relay) {
+        this.relaySessions.computeIfAbsent(relay, r -> {
+            getContext().watch(r);
+            return new HashSet<>();
+        }).add(sessionId);
+        this.footprintChanged = true;
+    }
+
+    /** detaches a session from its relay, returns whether there was one */
+    protected boolean removeSession(String sessionId) {
+        ActorRef relay = this.clientSessions.remove(sessionId);
+        if (relay == null) {
+            return false;
+        }
+
+        relay.tell(new SessionDetached(sessionId), getSelf());
+        Set<String> sessionIds = this.relaySessions.get(relay);
+        if (sessionIds != null) {
+            sessionIds.remove(sessionId);
+            if (sessionIds.isEmpty()) {
+                this.relaySessions.remove(relay);
+                getContext().unwatch(relay);
+            }
+        }
+        this.footprintChanged = true;
+        return true;
+    }
+
+    /** helper to publish message to listeners, once per relay */
+    protected void publishMessageToAll(ChatFrame message) {
+        Publish publish = new Publish(message);
+        this.messagesSinceLoadReport++;
+        this.roomMetrics.messages.increment();
+        this.relaySessions.keySet().forEach(relay -> relay.tell(publish, getSelf()));
+    }
+
+    /** encodes a message for publishing, recording how long it took */
+    protected ChatFrame encode(long sequenceNr, ChatMessage message) {
+        long startTime = System.nanoTime();
+        ChatFrame frame = encodeFrame(sequenceNr, message);
+        this.metrics.frameEncode.recordNanos(System.nanoTime() - startTime);
+        return frame;
+    }
+
+    /** encodes a message to its wire form once, to be shared by every session it's published to */
+    protected static ChatFrame encodeFrame(long sequenceNr, ChatMessage message) {
+        String eventId = eventId(sequenceNr);
+        try {
+            return ChatWireCodec.frame(eventId, new ChatMessageEnvelope(message, eventId));
+        } catch (JsonProcessingException ex) {
+            throw new RuntimeException("unable to encode chat message: " + message, ex);
+        }
+    }
+
+    /** event id of a message, its persistence sequence nr within the room */
+    protected static String eventId(long sequenceNr) {
+        return Long.toString(sequenceNr);
+    }
+
+    /** parse sequence nr from event id, -1 if missing or not a sequence nr */
+    protected static long parseEventId(String eventId) {
+        if (eventId == null || eventId.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(eventId);
+        } catch (NumberFormatException ex) {
+            return -1;
         }
     }
 }
@@ -1,18 +1,18 @@
 package com.box.prototype.chatservice.domain.entities;
 
+import akka.actor.ActorRef;
+import akka.actor.NotInfluenceReceiveTimeout;
 import akka.cluster.sharding.ShardRegion;
-import akka.japi.Pair;
-import akka.stream.SinkRef;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
 import com.box.prototype.chatservice.domain.models.ChatMessage;
-import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
 import com.box.prototype.chatservice.domain.models.SessionInfo;
 import com.typesafe.config.Config;
+import scala.util.hashing.MurmurHash3$;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashSet;
-import java.util.TreeMap;
+import java.util.List;
 
 public class ChatRoomEntityProtocol {
     // commands
@@ -25,23 +25,25 @@ public class ChatRoomEntityProtocol {
     }
     public static final class JoinChat extends ChatRoomCommand {
         public final long timestamp;
-        public SinkRef<ChatMessageEnvelope> sessionListener;
+        // node-local relay the session is attached through
+        public final ActorRef relay;
 
-        public JoinChat(long timestamp, SessionInfo sessionInfo, SinkRef<ChatMessageEnvelope> sessionListener) {
+        public JoinChat(long timestamp, SessionInfo sessionInfo, ActorRef relay) {
             super(sessionInfo);
             this.timestamp = timestamp;
-            this.sessionListener = sessionListener;
+            this.relay = relay;
         }
         public String getChatRoom() { return this.sessionInfo.getChatRoom(); }
     }
     public static class RejoinChat extends  ChatRoomCommand {
         public final long timestamp;
-        public SinkRef<ChatMessageEnvelope> sessionListener;
+        // node-local relay the session is attached through
+        public final ActorRef relay;
 
-        public RejoinChat(long timestamp, SessionInfo sessionInfo, SinkRef<ChatMessageEnvelope> sessionListener) {
+        public RejoinChat(long timestamp, SessionInfo sessionInfo, ActorRef relay) {
             super(sessionInfo);
             this.timestamp = timestamp;
-            this.sessionListener = sessionListener;
+            this.relay = relay;
         }
         public String getChatRoom() { return this.sessionInfo.getChatRoom(); }
     }
@@ -56,10 +58,43 @@ public class ChatRoomEntityProtocol {
     }
     public static class AddMessage extends ChatRoomCommand {
         public final ChatMessage message;
+        // echoed back in the Committed ack, so the session can match acks to its in-flight messages
+        public final long requestId;
 
         public AddMessage(ChatMessage message, SessionInfo sessionInfo) {
+            this(message, sessionInfo, 0);
+        }
+        public AddMessage(ChatMessage message, SessionInfo sessionInfo, long requestId) {
             super(sessionInfo);
             this.message = message;
+            this.requestId = requestId;
+        }
+        public String getChatRoom() { return this.sessionInfo.getChatRoom(); }
+    }
+    /** page of history for a rejoined session's backfill, replied to with a HistoryPage */
+    public static class FetchHistory extends ChatRoomCommand {
+        public final long fromSequenceNr;
+        public final long throughSequenceNr;
+        public final int maxFrames;
+
+        public FetchHistory(SessionInfo sessionInfo, long fromSequenceNr, long throughSequenceNr, int maxFrames) {
+            super(sessionInfo);
+            this.fromSequenceNr = fromSequenceNr;
+            this.throughSequenceNr = throughSequenceNr;
+            this.maxFrames = maxFrames;
+        }
+        public String getChatRoom() { return this.sessionInfo.getChatRoom(); }
+    }
+
+    /** ephemeral signal from a session, fanned out without being persisted.  not acked */
+    public static class SendSignal extends ChatRoomCommand {
+        public final long timestamp;
+        public final String type;
+
+        public SendSignal(long timestamp, SessionInfo sessionInfo, String type) {
+            super(sessionInfo);
+            this.timestamp = timestamp;
+            this.type = type;
         }
         public String getChatRoom() { return this.sessionInfo.getChatRoom(); }
     }
@@ -73,8 +108,61 @@ public class ChatRoomEntityProtocol {
         }
     }
 
+    public static class FlushMessages {}
+
+    public static class FlushSignals {}
+
+    public static class UpdateDirectory {}
+
+    /** an archive round is done, archived through the sequence nr, or 0 if nothing was (or it failed) */
+    public static class Archived {
+        public final long throughSequenceNr;
+
+        public Archived(long throughSequenceNr) {
+            this.throughSequenceNr = throughSequenceNr;
+        }
+    }
+
+    /** periodic report of the room's load, and its footprint if changed. doesn't count as activity for passivation */
+    public static class ReportFootprint implements NotInfluenceReceiveTimeout {}
+
+    /** sent through the shard on passivation, once the shard has stopped delivering messages to the room */
+    public static class StopEntity {}
+
     // command responses
-    public static class Committed implements Serializable {}
+    public static class Committed implements Serializable {
+        public final long requestId;
+
+        public Committed() {
+            this(0);
+        }
+        public Committed(long requestId) {
+            this.requestId = requestId;
+        }
+    }
+    /**
+     * rejoined session is attached for live messages after throughSequenceNr, the ones it missed from fromSequenceNr
+     * through throughSequenceNr are for it to fetch as backfill
+     */
+    public static class Rejoined implements Serializable {
+        public final long fromSequenceNr;
+        public final long throughSequenceNr;
+
+        public Rejoined(long fromSequenceNr, long throughSequenceNr) {
+            this.fromSequenceNr = fromSequenceNr;
+            this.throughSequenceNr = throughSequenceNr;
+        }
+    }
+    /** frames of a history page, the next page starts at nextSequenceNr */
+    public static class HistoryPage implements Serializable {
+        public final List<ChatFrame> frames;
+        public final long nextSequenceNr;
+
+        public HistoryPage(List<ChatFrame> frames, long nextSequenceNr) {
+            this.frames = frames;
+            this.nextSequenceNr = nextSequenceNr;
+        }
+    }
     public static class NewChatMessage implements Serializable {
         public final ChatMessage chatMessage;
         public final String lastEventId;
@@ -103,43 +191,88 @@ public class ChatRoomEntityProtocol {
     }
 
     // state
-    protected static class ChatRoomEntityState implements Serializable {
+    public static class ChatRoomEntityState implements Serializable {
         public final HashSet<String> members = new HashSet<>();
-        public final TreeMap<Pair<Long, String>, ChatMessage> chatLog = new TreeMap<>(new Comparator<Pair<Long, String>>() {
-            @Override
-            public int compare(Pair<Long, String> left, Pair<Long, String> right) {
-                int tsCompare = Long.compare(left.first(), right.first());
-                return tsCompare != 0 ? tsCompare : left.second().compareTo(right.second());
-            }
-        });
+        public final ChatLog chatLog = new ChatLog();
+        // sequence nr of the newest message evicted from the in-memory window, anything at or before it lives only in
+        // the journal
+        public long evictedThrough = 0;
         public String chatRoom = "";
+        protected int maxMessages = Integer.MAX_VALUE;
+        protected long maxAgeMillis = Long.MAX_VALUE;
+
         public ChatRoomEntityState() {
         }
         public ChatRoomEntityState(String chatRoom) {
             this.chatRoom = chatRoom;
         }
 
-        /** update state given event */
-        public void update(ChatRoomEvent event) {
+        /** sets the bounds of the in-memory chat log window */
+        public ChatRoomEntityState withLimits(int maxMessages, long maxAgeMillis) {
+            this.maxMessages = maxMessages;
+            this.maxAgeMillis = maxAgeMillis;
+            trim();
+            return this;
+        }
+
+        /** copies state, for handing off to snapshot store while this one keeps being updated */
+        public ChatRoomEntityState copy() {
+            ChatRoomEntityState copy = new ChatRoomEntityState(this.chatRoom);
+            copy.members.addAll(this.members);
+            this.chatLog.forEach(copy.chatLog::append);
+            copy.evictedThrough = this.evictedThrough;
+            copy.maxMessages = this.maxMessages;
+            copy.maxAgeMillis = this.maxAgeMillis;
+            return copy;
+        }
+
+        /** update state given event and its persistence sequence nr */
+        public void update(ChatRoomEvent event, long sequenceNr) {
             if (event instanceof MemberJoined) {
                 MemberJoined joined = (MemberJoined)event;
                 this.members.add(joined.message.getUserId());
-                this.chatLog.put(Pair.create(joined.message.getTimestamp(), joined.message.getUserId()), joined.message);
+                this.chatLog.append(sequenceNr, joined.message);
             } else if (event instanceof MemberLeft) {
                 MemberLeft left = (MemberLeft) event;
                 this.members.remove(left.message.getUserId());
-                this.chatLog.put(Pair.create(left.message.getTimestamp(), left.message.getUserId()), left.message);
+                this.chatLog.append(sequenceNr, left.message);
             } else if (event instanceof MessageAdded) {
-                ChatMessage chatMessage = ((MessageAdded)event).message;
-                this.chatLog.put(Pair.create(chatMessage.getTimestamp(), chatMessage.getUserId()), chatMessage);
+                this.chatLog.append(sequenceNr, ((MessageAdded)event).message);
             } else {
                 throw new RuntimeException("unknown ChatRoom event type: " + event.getClass());
             }
+            trim();
+        }
+
+        /** rough heap footprint of the state */
+        public long estimatedBytes() {
+            return this.chatLog.estimatedBytes() + (long)this.members.size() * 64;
+        }
+
+        /** checks if messages following the given sequence nr have been evicted from the in-memory window */
+        public boolean isEvicted(long sequenceNr) {
+            return sequenceNr < this.evictedThrough;
+        }
+
+        /** evicts the oldest messages until the log fits its size and age bounds */
+        protected void trim() {
+            while (this.chatLog.size() > this.maxMessages) {
+                this.evictedThrough = this.chatLog.removeFirst();
+            }
+            if (!this.chatLog.isEmpty()) {
+                long newest = this.chatLog.last().getTimestamp();
+                while (newest - this.chatLog.first().getTimestamp() > this.maxAgeMillis) {
+                    this.evictedThrough = this.chatLog.removeFirst();
+                }
+            }
         }
     }
 
     // cluster sharding message extractor
     public static class ChatRoomEntityMessageExtractor implements ShardRegion.MessageExtractor {
+        // scala's own string seed, pinned here so a scala upgrade can't move rooms
+        private static final int SHARD_HASH_SEED = 0xf7ca7fd2;
+
         private final int numShards;
 
         public ChatRoomEntityMessageExtractor(Config config) {
@@ -148,7 +281,16 @@ public class ChatRoomEntityProtocol {
 
         @Override
         public String shardId(Object message) {
-            return "" + (Math.abs(entityId(message).hashCode()) % this.numShards);
+            return shardId(entityId(message), this.numShards);
+        }
+
+        /**
+         * murmur3 spreads similar room names (room-1, room-2, ...) evenly, where String.hashCode clusters them, and
+         * floorMod keeps the shard non-negative for every hash.  changing this, the seed included, moves rooms between
+         * shards, so all nodes have to switch over at once
+         */
+        public static String shardId(String chatRoom, int numShards) {
+            return Integer.toString(Math.floorMod(MurmurHash3$.MODULE$.stringHash(chatRoom, SHARD_HASH_SEED), numShards));
         }
 
         @Override
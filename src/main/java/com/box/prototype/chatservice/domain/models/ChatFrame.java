@@ -0,0 +1,43 @@
+package com.box.prototype.chatservice.domain.models;
+
+import java.io.Serializable;
+
+/**
+ * a chat message envelope already encoded to its wire form.  the chatroom encodes each message once and shares the
+ * same immutable frame with every session, instead of each session encoding the envelope itself.  frames that aren't
+ * chat log messages (gaps, signals) have no event id.  frames carry the json encoding, and the binary one once a
+ * node with sessions on the binary subprotocol has transcoded them.
+ */
+public final class ChatFrame implements Serializable {
+    private final String eventId;
+    private final byte[] payload;
+    private final byte[] binaryPayload;
+
+    public ChatFrame(String eventId, byte[] payload, byte[] binaryPayload) {
+        this.eventId = eventId;
+        this.payload = payload;
+        this.binaryPayload = binaryPayload;
+    }
+
+    public String getEventId() {
+        return eventId;
+    }
+
+    /** utf-8 encoded json of the envelope, shared between sessions so must not be modified */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /** binary encoding of the envelope, likewise shared.  null until transcoded */
+    public byte[] getBinaryPayload() {
+        return binaryPayload;
+    }
+
+    @Override
+    public String toString() {
+        return "ChatFrame{" +
+            "eventId='" + eventId + '\'' +
+            ", payload=" + payload.length + " bytes" +
+            '}';
+    }
+}
@@ -0,0 +1,58 @@
+package com.box.prototype.chatservice.domain.models;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.io.Serializable;
+
+/**
+ * messages a slow session missed because its outbound buffer overflowed, from the first through the last missed event
+ * id (inclusive).  clients can fetch the range to fill the gap instead of reconnecting.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ChatGap implements Serializable {
+    private String fromEventId;
+    private String toEventId;
+    private long missed;
+
+    public ChatGap() {}
+    public ChatGap(String fromEventId, String toEventId, long missed) {
+        this.fromEventId = fromEventId;
+        this.toEventId = toEventId;
+        this.missed = missed;
+    }
+
+    public String getFromEventId() {
+        return fromEventId;
+    }
+
+    public void setFromEventId(String fromEventId) {
+        this.fromEventId = fromEventId;
+    }
+
+    public String getToEventId() {
+        return toEventId;
+    }
+
+    public void setToEventId(String toEventId) {
+        this.toEventId = toEventId;
+    }
+
+    public long getMissed() {
+        return missed;
+    }
+
+    public void setMissed(long missed) {
+        this.missed = missed;
+    }
+
+    @Override
+    public String toString() {
+        return "ChatGap{" +
+            "fromEventId='" + fromEventId + '\'' +
+            ", toEventId='" + toEventId + '\'' +
+            ", missed=" + missed +
+            '}';
+    }
+}
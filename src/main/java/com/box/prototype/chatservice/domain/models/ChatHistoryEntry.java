@@ -0,0 +1,96 @@
+package com.box.prototype.chatservice.domain.models;
+
+import org.springframework.data.domain.Persistable;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * a chatroom message as projected into the read side, keyed by chatroom and the event's sequence nr.  entries are only
+ * ever inserted, so they report themselves as new and saving them doesn't select first to decide between insert and
+ * merge, which keeps inserts batchable.
+ */
+@Entity
+@Table(name = "chat_history")
+@IdClass(ChatHistoryEntry.Key.class)
+public class ChatHistoryEntry implements Persistable<ChatHistoryEntry.Key> {
+    public static class Key implements Serializable {
+        private String chatRoom;
+        private long sequenceNr;
+
+        public Key() {}
+        public Key(String chatRoom, long sequenceNr) {
+            this.chatRoom = chatRoom;
+            this.sequenceNr = sequenceNr;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return sequenceNr == key.sequenceNr && Objects.equals(chatRoom, key.chatRoom);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(chatRoom, sequenceNr);
+        }
+    }
+
+    @Id
+    private String chatRoom;
+    @Id
+    private long sequenceNr;
+    private long timestamp;
+    private String userId;
+    @Lob
+    private String message;
+
+    public ChatHistoryEntry() {}
+    public ChatHistoryEntry(String chatRoom, long sequenceNr, ChatMessage message) {
+        this.chatRoom = chatRoom;
+        this.sequenceNr = sequenceNr;
+        this.timestamp = message.getTimestamp();
+        this.userId = message.getUserId();
+        this.message = message.getMessage();
+    }
+
+    @Override
+    public Key getId() {
+        return new Key(this.chatRoom, this.sequenceNr);
+    }
+
+    @Override
+    public boolean isNew() {
+        return true;
+    }
+
+    public String getChatRoom() {
+        return chatRoom;
+    }
+
+    public long getSequenceNr() {
+        return sequenceNr;
+    }
+
+    public ChatMessage toChatMessage() {
+        return new ChatMessage(this.timestamp, this.userId, this.message);
+    }
+
+    @Override
+    public String toString() {
+        return "ChatHistoryEntry{" +
+            "chatRoom='" + chatRoom + '\'' +
+            ", sequenceNr=" + sequenceNr +
+            ", timestamp=" + timestamp +
+            ", userId='" + userId + '\'' +
+            ", message='" + message + '\'' +
+            '}';
+    }
+}
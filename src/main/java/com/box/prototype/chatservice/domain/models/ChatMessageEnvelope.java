@@ -4,18 +4,29 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.io.Serializable;
+import java.util.List;
 
 @JsonInclude(JsonInclude.Include.NON_NULL)
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class ChatMessageEnvelope implements Serializable {
     private ChatMessage message;
     private String lastEventId;
+    // set instead of message when the session missed messages
+    private ChatGap gap;
+    // set instead of message for ephemeral signals, the latest per user since the previous batch
+    private List<ChatSignal> signals;
 
     public ChatMessageEnvelope() {}
     public ChatMessageEnvelope(ChatMessage message, String lastEventId) {
         this.message = message;
         this.lastEventId = lastEventId;
     }
+    public ChatMessageEnvelope(ChatGap gap) {
+        this.gap = gap;
+    }
+    public ChatMessageEnvelope(List<ChatSignal> signals) {
+        this.signals = signals;
+    }
 
     public ChatMessage getMessage() {
         return message;
@@ -32,4 +43,20 @@ public class ChatMessageEnvelope implements Serializable {
     public void setLastEventId(String lastEventId) {
         this.lastEventId = lastEventId;
     }
+
+    public ChatGap getGap() {
+        return gap;
+    }
+
+    public void setGap(ChatGap gap) {
+        this.gap = gap;
+    }
+
+    public List<ChatSignal> getSignals() {
+        return signals;
+    }
+
+    public void setSignals(List<ChatSignal> signals) {
+        this.signals = signals;
+    }
 }
@@ -17,6 +17,11 @@ public class ChatRoom implements Serializable {
     @Id
     @Size(max = 50)
     private String id;
+    private int memberCount;
+    // when the room last persisted a message (including joins and leaves), by the server's clock
+    private long lastActivity;
+    // the room's sequence nr as of this summary, which orders summaries across its incarnations
+    private long version;
 
     public ChatRoom() {}
 
@@ -24,6 +29,17 @@ public class ChatRoom implements Serializable {
         this.id = id;
     }
 
+    public ChatRoom(String id, int memberCount, long lastActivity) {
+        this.id = id;
+        this.memberCount = memberCount;
+        this.lastActivity = lastActivity;
+    }
+
+    public ChatRoom(String id, int memberCount, long lastActivity, long version) {
+        this(id, memberCount, lastActivity);
+        this.version = version;
+    }
+
     public String getId() {
         return id;
     }
@@ -32,10 +48,37 @@ public class ChatRoom implements Serializable {
         this.id = id;
     }
 
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    public void setMemberCount(int memberCount) {
+        this.memberCount = memberCount;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void setLastActivity(long lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     @Override
     public String toString() {
         return "ChatRoom{" +
             "id='" + id + '\'' +
+            ", memberCount=" + memberCount +
+            ", lastActivity=" + lastActivity +
+            ", version=" + version +
             '}';
     }
 }
@@ -0,0 +1,37 @@
+package com.box.prototype.chatservice.domain.models;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.io.Serializable;
+import java.util.List;
+
+/** page of the chatroom directory, nextCursor is passed back to get the following page and absent on the last one */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ChatRoomPage implements Serializable {
+    private List<ChatRoom> chatRooms;
+    private String nextCursor;
+
+    public ChatRoomPage() {}
+    public ChatRoomPage(List<ChatRoom> chatRooms, String nextCursor) {
+        this.chatRooms = chatRooms;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<ChatRoom> getChatRooms() {
+        return chatRooms;
+    }
+
+    public void setChatRooms(List<ChatRoom> chatRooms) {
+        this.chatRooms = chatRooms;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
@@ -0,0 +1,68 @@
+package com.box.prototype.chatservice.domain.models;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * ephemeral user signal, such as typing or presence.  signals are fanned out to the room's sessions as they come, but
+ * never persisted or kept in the chat log, so sessions that miss them (or join later) don't get them.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ChatSignal implements Serializable {
+    public static final String TYPING = "typing";
+    public static final String IDLE = "idle";
+    public static final String ONLINE = "online";
+    public static final String AWAY = "away";
+    public static final Set<String> TYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(TYPING, IDLE, ONLINE, AWAY)));
+
+    private String userId;
+    private String type;
+    private long timestamp;
+
+    public ChatSignal() {}
+    public ChatSignal(String userId, String type, long timestamp) {
+        this.userId = userId;
+        this.type = type;
+        this.timestamp = timestamp;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "ChatSignal{" +
+            "userId='" + userId + '\'' +
+            ", type='" + type + '\'' +
+            ", timestamp=" + timestamp +
+            '}';
+    }
+}
@@ -0,0 +1,30 @@
+package com.box.prototype.chatservice.domain.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/** how far a read-side projection has got through the events it follows, saved along with what it wrote */
+@Entity
+@Table(name = "projection_offsets")
+public class ProjectionOffset {
+    @Id
+    private String projection;
+    @Column(name = "event_offset")
+    private long offset;
+
+    public ProjectionOffset() {}
+    public ProjectionOffset(String projection, long offset) {
+        this.projection = projection;
+        this.offset = offset;
+    }
+
+    public String getProjection() {
+        return projection;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+}
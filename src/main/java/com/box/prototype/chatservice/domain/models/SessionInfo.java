@@ -16,6 +16,13 @@ public class SessionInfo implements Serializable {
     protected boolean isRejoin = false;
 
     public SessionInfo() {}
+    public SessionInfo(String sessionId, String userId, String chatRoom, String lastEventId, boolean isRejoin) {
+        this.sessionId = sessionId;
+        this.userId = userId;
+        this.chatRoom = chatRoom;
+        this.lastEventId = lastEventId;
+        this.isRejoin = isRejoin;
+    }
     public SessionInfo(WebSocketSession session) {
         URIParser uriParser = new URIParser(session.getHandshakeInfo().getUri(), CHAT_SESSION_ROUTE);
         this.sessionId = session.getId();
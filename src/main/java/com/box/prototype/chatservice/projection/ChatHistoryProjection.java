@@ -0,0 +1,104 @@
+package com.box.prototype.chatservice.projection;
+
+import akka.actor.ActorSystem;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
+import akka.persistence.query.PersistenceQuery;
+import akka.persistence.query.Sequence;
+import akka.persistence.query.javadsl.EventsByTagQuery;
+import akka.stream.javadsl.RestartSource;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.box.prototype.chatservice.akka.AkkaComponents;
+import com.box.prototype.chatservice.akka.ChatEventTagger;
+import com.box.prototype.chatservice.domain.ChatRoomDirectory;
+import com.box.prototype.chatservice.domain.models.ChatHistoryEntry;
+import com.box.prototype.chatservice.domain.models.ProjectionOffset;
+import com.box.prototype.chatservice.repository.ChatHistoryRepository;
+import com.box.prototype.chatservice.repository.ProjectionOffsetRepository;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.ChatRoomEvent;
+
+/**
+ * projects chatroom events into the chat history table, which serves history reads so they never reach the chatroom
+ * entities.  events are followed by tag and written in batches, each in one transaction along with the offset it got
+ * to, so after a restart the projection resumes where it left off without writing anything twice.
+ */
+@Component
+public class ChatHistoryProjection {
+    public static final String NAME = "chat-history";
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private AkkaComponents akkaComponents;
+    @Autowired
+    private ChatHistoryRepository historyRepository;
+    @Autowired
+    private ProjectionOffsetRepository offsetRepository;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @PostConstruct
+    public void start() {
+        ActorSystem system = this.akkaComponents.getSystem();
+        Config config = this.akkaComponents.getConfig();
+        EventsByTagQuery readJournal = PersistenceQuery.get(system)
+            .getReadJournalFor(EventsByTagQuery.class, config.getString("chat-rooms.chat-log.read-journal"));
+        int batchSize = config.getInt("chat-history.batch-size");
+        Duration batchLinger = config.getDuration("chat-history.batch-linger");
+        // jdbc blocks, so keep it off the default dispatcher
+        Executor blocking = system.dispatchers().lookup("chat-history.blocking-dispatcher");
+        TransactionTemplate transaction = new TransactionTemplate(this.transactionManager);
+
+        // restarted with backoff on failure, picking up from the last saved offset
+        RestartSource.withBackoff(Duration.ofSeconds(1), Duration.ofSeconds(30), 0.2, () ->
+            Source.fromCompletionStage(CompletableFuture.supplyAsync(this::loadOffset, blocking))
+                .flatMapConcat(offset -> readJournal.eventsByTag(ChatEventTagger.TAG, offset))
+                .groupedWithin(batchSize, batchLinger)
+                .mapAsync(1, batch -> CompletableFuture.supplyAsync(() -> write(transaction, batch), blocking))
+        ).runWith(Sink.ignore(), this.akkaComponents.getMaterializer());
+    }
+
+    protected Offset loadOffset() {
+        return this.offsetRepository.findById(NAME)
+            .map(offset -> Offset.sequence(offset.getOffset()))
+            .orElse(Offset.noOffset());
+    }
+
+    /** writes a batch of events and the offset after them in one transaction, returning the offset */
+    protected long write(TransactionTemplate transaction, List<EventEnvelope> batch) {
+        List<ChatHistoryEntry> entries = new ArrayList<>(batch.size());
+        long offset = 0;
+        for (EventEnvelope envelope : batch) {
+            if (envelope.event() instanceof ChatRoomEvent) {
+                String chatRoom = ChatRoomDirectory.chatRoomId(envelope.persistenceId());
+                entries.add(new ChatHistoryEntry(chatRoom, envelope.sequenceNr(), ((ChatRoomEvent)envelope.event()).message));
+            }
+            offset = ((Sequence)envelope.offset()).value();
+        }
+
+        final ProjectionOffset projectionOffset = new ProjectionOffset(NAME, offset);
+        transaction.execute(status -> {
+            this.historyRepository.saveAll(entries);
+            this.offsetRepository.save(projectionOffset);
+            return null;
+        });
+        logger.debug("projected {} chat history entries through offset {}", entries.size(), offset);
+        return offset;
+    }
+}
@@ -0,0 +1,176 @@
+package com.box.prototype.chatservice.projection;
+
+import com.box.prototype.chatservice.util.BinaryReader;
+import com.box.prototype.chatservice.util.BinaryWriter;
+import com.box.prototype.chatservice.util.PostingList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * per room inverted index from terms to the sequence nrs of the messages containing them.  posting lists are delta
+ * encoded, and only terms within the configured length bounds are indexed, which keeps memory proportional to the
+ * text actually indexed.  the index also records the offset of the last event applied, so it can be snapshotted and
+ * resumed from there.
+ *
+ * updates come from a single writer, searches from any thread.
+ */
+public class ChatSearchIndex {
+    protected static final int VERSION = 1;
+
+    private final int minTermLength;
+    private final int maxTermLength;
+    private final Map<String, Map<String, PostingList>> rooms = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile long offset = 0;
+
+    public ChatSearchIndex(int minTermLength, int maxTermLength) {
+        this.minTermLength = minTermLength;
+        this.maxTermLength = maxTermLength;
+    }
+
+    /** indexes a message's terms, ignoring messages at or before ones already indexed for the room */
+    public void add(String chatRoom, long sequenceNr, String text) {
+        Set<String> terms = terms(text);
+        if (terms.isEmpty()) {
+            return;
+        }
+        this.lock.writeLock().lock();
+        try {
+            Map<String, PostingList> index = this.rooms.computeIfAbsent(chatRoom, room -> new HashMap<>());
+            terms.forEach(term -> index.computeIfAbsent(term, t -> new PostingList()).add(sequenceNr));
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /** offset of the last event applied */
+    public long offset() {
+        return this.offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * sequence nrs of messages in a room containing every term of the query, newest first, starting before the given
+     * sequence nr
+     */
+    public List<Long> search(String chatRoom, String query, long before, int limit) {
+        Set<String> terms = terms(query);
+        if (terms.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<long[]> postings = new ArrayList<>(terms.size());
+        this.lock.readLock().lock();
+        try {
+            Map<String, PostingList> index = this.rooms.get(chatRoom);
+            if (index == null) {
+                return new ArrayList<>();
+            }
+            for (String term : terms) {
+                PostingList posting = index.get(term);
+                if (posting == null) {
+                    return new ArrayList<>();
+                }
+                postings.add(posting.toArray());
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        // walk the shortest list back from the newest match, probing the others
+        postings.sort(Comparator.comparingInt(ids -> ids.length));
+        long[] shortest = postings.get(0);
+        List<Long> matches = new ArrayList<>(limit);
+        for (int i = shortest.length - 1; i >= 0 && matches.size() < limit; i--) {
+            long sequenceNr = shortest[i];
+            if (sequenceNr >= before) {
+                continue;
+            }
+            boolean all = true;
+            for (int j = 1; j < postings.size() && all; j++) {
+                all = Arrays.binarySearch(postings.get(j), sequenceNr) >= 0;
+            }
+            if (all) {
+                matches.add(sequenceNr);
+            }
+        }
+        return matches;
+    }
+
+    /** lower cased words within the term length bounds */
+    protected Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        if (text == null) {
+            return terms;
+        }
+        for (String term : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (term.length() >= this.minTermLength && term.length() <= this.maxTermLength) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /** encodes the index and its offset for a snapshot */
+    public byte[] toBytes() {
+        BinaryWriter out = new BinaryWriter(4096).writeByte(VERSION);
+        this.lock.readLock().lock();
+        try {
+            out.writeVarLong(this.offset);
+            out.writeVarInt(this.rooms.size());
+            this.rooms.forEach((chatRoom, index) -> {
+                out.writeString(chatRoom);
+                out.writeVarInt(index.size());
+                index.forEach((term, posting) -> {
+                    out.writeString(term);
+                    posting.writeTo(out);
+                });
+            });
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return out.toByteArray();
+    }
+
+    /** replaces the index and its offset with a snapshot's */
+    public void load(byte[] bytes) {
+        BinaryReader in = new BinaryReader(bytes);
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unsupported search index version " + version);
+        }
+        long offset = in.readVarLong();
+        Map<String, Map<String, PostingList>> rooms = new HashMap<>();
+        for (int i = in.readVarInt(); i > 0; i--) {
+            String chatRoom = in.readString();
+            Map<String, PostingList> index = new HashMap<>();
+            for (int j = in.readVarInt(); j > 0; j--) {
+                String term = in.readString();
+                index.put(term, PostingList.readFrom(in));
+            }
+            rooms.put(chatRoom, index);
+        }
+
+        this.lock.writeLock().lock();
+        try {
+            this.rooms.clear();
+            this.rooms.putAll(rooms);
+            this.offset = offset;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.box.prototype.chatservice.projection;
+
+import akka.actor.ActorSystem;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
+import akka.persistence.query.PersistenceQuery;
+import akka.persistence.query.Sequence;
+import akka.persistence.query.javadsl.EventsByTagQuery;
+import akka.stream.javadsl.RestartSource;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.box.prototype.chatservice.akka.AkkaComponents;
+import com.box.prototype.chatservice.akka.ChatEventTagger;
+import com.box.prototype.chatservice.domain.ChatRoomDirectory;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.MessageAdded;
+
+/**
+ * keeps the chat search index in step with MessageAdded events, following them by tag.  the index is snapshotted to
+ * disk periodically along with its offset, so a restart loads the snapshot and only replays events after it.
+ */
+@Component
+public class ChatSearchProjection {
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private AkkaComponents akkaComponents;
+
+    private ChatSearchIndex index;
+    private Path snapshotFile;
+    private long snapshotInterval;
+    private long lastSnapshotTime = System.nanoTime();
+
+    @PostConstruct
+    public void start() {
+        ActorSystem system = this.akkaComponents.getSystem();
+        Config config = this.akkaComponents.getConfig();
+        this.index = new ChatSearchIndex(config.getInt("chat-search.min-term-length"), config.getInt("chat-search.max-term-length"));
+        this.snapshotFile = Paths.get(config.getString("chat-search.snapshot-file"));
+        this.snapshotInterval = config.getDuration("chat-search.snapshot-interval", TimeUnit.NANOSECONDS);
+        EventsByTagQuery readJournal = PersistenceQuery.get(system)
+            .getReadJournalFor(EventsByTagQuery.class, config.getString("chat-rooms.chat-log.read-journal"));
+        int batchSize = config.getInt("chat-search.batch-size");
+        Duration batchLinger = config.getDuration("chat-search.batch-linger");
+        Executor blocking = system.dispatchers().lookup("chat-history.blocking-dispatcher");
+
+        CompletableFuture<Void> loaded = CompletableFuture.runAsync(this::loadSnapshot, blocking);
+        // restarted with backoff on failure, resuming from the index's offset
+        RestartSource.withBackoff(Duration.ofSeconds(1), Duration.ofSeconds(30), 0.2, () ->
+            Source.fromCompletionStage(loaded)
+                .flatMapConcat(unused -> readJournal.eventsByTag(ChatEventTagger.TAG, Offset.sequence(this.index.offset())))
+                .groupedWithin(batchSize, batchLinger)
+                .mapAsync(1, batch -> CompletableFuture.supplyAsync(() -> apply(batch), blocking))
+        ).runWith(Sink.ignore(), this.akkaComponents.getMaterializer());
+    }
+
+    public ChatSearchIndex getIndex() {
+        return this.index;
+    }
+
+    /** indexes a batch of events, snapshotting afterwards if it's time to */
+    protected long apply(List<EventEnvelope> batch) {
+        for (EventEnvelope envelope : batch) {
+            if (envelope.event() instanceof MessageAdded) {
+                String chatRoom = ChatRoomDirectory.chatRoomId(envelope.persistenceId());
+                this.index.add(chatRoom, envelope.sequenceNr(), ((MessageAdded)envelope.event()).message.getMessage());
+            }
+            this.index.setOffset(((Sequence)envelope.offset()).value());
+        }
+
+        if (System.nanoTime() - this.lastSnapshotTime >= this.snapshotInterval) {
+            saveSnapshot();
+        }
+        return this.index.offset();
+    }
+
+    protected void loadSnapshot() {
+        if (!Files.exists(this.snapshotFile)) {
+            return;
+        }
+        try {
+            this.index.load(Files.readAllBytes(this.snapshotFile));
+            logger.info("loaded search index snapshot {} at offset {}", this.snapshotFile, this.index.offset());
+        } catch (IOException | RuntimeException ex) {
+            // rebuilt from the journal instead
+            logger.error(String.format("unable to load search index snapshot %s", this.snapshotFile), ex);
+        }
+    }
+
+    /** written to a temp file then moved over the previous snapshot, so a crash never leaves a partial one */
+    protected void saveSnapshot() {
+        this.lastSnapshotTime = System.nanoTime();
+        try {
+            if (this.snapshotFile.getParent() != null) {
+                Files.createDirectories(this.snapshotFile.getParent());
+            }
+            Path temp = this.snapshotFile.resolveSibling(this.snapshotFile.getFileName() + ".tmp");
+            Files.write(temp, this.index.toBytes());
+            Files.move(temp, this.snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("saved search index snapshot {} at offset {}", this.snapshotFile, this.index.offset());
+        } catch (IOException ex) {
+            logger.error(String.format("unable to save search index snapshot %s", this.snapshotFile), ex);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.box.prototype.chatservice.repository;
+
+import com.box.prototype.chatservice.domain.models.ChatHistoryEntry;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.util.List;
+
+public interface ChatHistoryRepository extends JpaRepository<ChatHistoryEntry, ChatHistoryEntry.Key> {
+    /** newest messages before a sequence nr, newest first */
+    List<ChatHistoryEntry> findByChatRoomAndSequenceNrLessThanOrderBySequenceNrDesc(String chatRoom, long sequenceNr, Pageable pageable);
+
+    /** oldest messages after a sequence nr, oldest first */
+    List<ChatHistoryEntry> findByChatRoomAndSequenceNrGreaterThanOrderBySequenceNrAsc(String chatRoom, long sequenceNr, Pageable pageable);
+
+    /** oldest messages within a sequence nr range (inclusive), oldest first */
+    List<ChatHistoryEntry> findByChatRoomAndSequenceNrBetweenOrderBySequenceNrAsc(String chatRoom, long from, long to, Pageable pageable);
+}
@@ -0,0 +1,7 @@
+package com.box.prototype.chatservice.repository;
+
+import com.box.prototype.chatservice.domain.models.ProjectionOffset;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface ProjectionOffsetRepository extends JpaRepository<ProjectionOffset, String> {
+}
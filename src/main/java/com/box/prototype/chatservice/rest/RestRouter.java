@@ -1,5 +1,6 @@
 package com.box.prototype.chatservice.rest;
 
+import com.box.prototype.chatservice.rest.handler.ChatMetricsHandler;
 import com.box.prototype.chatservice.rest.handler.ChatRoomHandler;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -12,9 +13,15 @@ import org.springframework.web.reactive.function.server.ServerResponse;
 @Configuration
 public class RestRouter {
     @Bean
-    public RouterFunction<ServerResponse> route(ChatRoomHandler handler) {
+    public RouterFunction<ServerResponse> route(ChatRoomHandler handler, ChatMetricsHandler metricsHandler) {
         return RouterFunctions
             .route(RequestPredicates.GET("/api/chatrooms")
-                .and(RequestPredicates.accept(MediaType.APPLICATION_JSON)), handler::listChatRooms);
+                .and(RequestPredicates.accept(MediaType.APPLICATION_JSON)), handler::listChatRooms)
+            .andRoute(RequestPredicates.GET("/api/chatrooms/{id}/messages")
+                .and(RequestPredicates.accept(MediaType.APPLICATION_JSON)), handler::listMessages)
+            .andRoute(RequestPredicates.GET("/api/chatrooms/{id}/search")
+                .and(RequestPredicates.accept(MediaType.APPLICATION_JSON)), handler::searchMessages)
+            .andRoute(RequestPredicates.GET("/api/metrics")
+                .and(RequestPredicates.accept(MediaType.APPLICATION_JSON)), metricsHandler::getMetrics);
     }
 }
@@ -0,0 +1,23 @@
+package com.box.prototype.chatservice.rest.handler;
+
+import com.box.prototype.chatservice.akka.AkkaComponents;
+import com.box.prototype.chatservice.akka.ChatMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+
+@Component
+public class ChatMetricsHandler {
+    @Autowired
+    private AkkaComponents akkaComponents;
+
+    /** this node's chat metrics: node totals, stage latency percentiles and per chatroom counters */
+    public Mono<ServerResponse> getMetrics(ServerRequest request) {
+        return ServerResponse.ok()
+            .contentType(MediaType.APPLICATION_JSON)
+            .syncBody(ChatMetrics.get(this.akkaComponents.getSystem()).snapshot());
+    }
+}
@@ -0,0 +1,277 @@
+package com.box.prototype.chatservice.rest.handler;
+
+import akka.NotUsed;
+import akka.actor.ActorRef;
+import akka.japi.Pair;
+import akka.stream.*;
+import akka.stream.javadsl.*;
+import com.box.prototype.chatservice.akka.AkkaComponents;
+import com.box.prototype.chatservice.domain.ChatSession;
+import com.box.prototype.chatservice.domain.ChatSessionProtocol;
+import com.box.prototype.chatservice.domain.SessionOutBuffer;
+import com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.box.prototype.chatservice.util.URIParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.box.prototype.chatservice.WebSocketConfig.*;
+
+/**
+ * web socket handler for a single connection to any number of chatrooms.  the client subscribes to and unsubscribes
+ * from chatrooms with control frames, each subscription joining (or rejoining from its own cursor) like a session of
+ * its own, and every chatroom's frames go out through the connection's one outbound stream.
+ *
+ * inbound frames are json:
+ *   {"subscribe": "room-1", "lastEventId": "42"}   subscribe, rejoining after the event id if given
+ *   {"unsubscribe": "room-1"}
+ *   {"room": "room-1", "message": {...}}           a chat message
+ *   {"room": "room-1", "signal": "typing"}
+ * outbound frames are the chatrooms' envelopes, {"room": "room-1", "envelope": {...}}, and status changes of
+ * subscriptions, {"room": "room-1", "status": "subscribed"}.  a subscription's status is closed once its chatroom ends
+ * it (e.g. on failover), after which the client subscribes again from its last event id, or failed if it couldn't be
+ * joined, and rejected if the connection is at its limit of chatrooms.
+ */
+public class ChatMuxSessionHandler extends ChatSessionHandler {
+    public static final String SUBSCRIBED = "subscribed";
+    public static final String UNSUBSCRIBED = "unsubscribed";
+    public static final String CLOSED = "closed";
+    public static final String FAILED = "failed";
+    public static final String REJECTED = "rejected";
+
+    protected static final byte[] ENVELOPE_CLOSE = "}".getBytes(StandardCharsets.UTF_8);
+
+    /** a connection's subscription to a chatroom, with the session it joined as */
+    protected static class Subscription {
+        protected final SessionInfo sessionInfo;
+        protected final ActorRef chatSession;
+        // envelopes are wrapped as {"room": ..., "envelope": <envelope>}, the room's prefix is encoded once
+        protected final byte[] envelopeOpen;
+        // whether the client unsubscribed, rather than the chatroom ending it
+        protected volatile boolean unsubscribed = false;
+
+        protected Subscription(SessionInfo sessionInfo, ActorRef chatSession, byte[] envelopeOpen) {
+            this.sessionInfo = sessionInfo;
+            this.chatSession = chatSession;
+            this.envelopeOpen = envelopeOpen;
+        }
+    }
+
+    protected final int MAX_ROOMS;
+    protected final int ROOM_BUFFER;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    // numbers subscriptions, so a resubscribe joins as a new session that a late leave of the last one can't detach
+    private final AtomicLong subscriptionIds = new AtomicLong();
+
+    public ChatMuxSessionHandler(AkkaComponents components) {
+        super(components);
+        MAX_ROOMS = components.getConfig().getInt("chat-sessions.mux.max-rooms");
+        ROOM_BUFFER = components.getConfig().getInt("chat-sessions.mux.room-buffer");
+    }
+
+    /** control frames are json, so is everything else on this route */
+    @Override
+    public List<String> getSubProtocols() {
+        return Collections.singletonList(JSON_SUBPROTOCOL);
+    }
+
+    /** web socket handler */
+    @Override
+    public Mono<Void> handle(WebSocketSession session) {
+        String userId = new URIParser(session.getHandshakeInfo().getUri(), CHAT_MUX_ROUTE).getFirstQueryParamValue(USER_ID_PARAM_KEY);
+        logger.info("establishing new multiplexed chat session: {} for {}", session.getId(), userId);
+        if (userId == null) {
+            logger.error("terminating due missing userid");
+            session.close();
+            return session.send(Flux.empty());
+        }
+
+        // every subscription's frames merge into the connection's outbound stream
+        Pair<Sink<WebSocketMessage, NotUsed>, Publisher<WebSocketMessage>> outbound = MergeHub.of(WebSocketMessage.class, ROOM_BUFFER)
+            .toMat(Sink.asPublisher(AsPublisher.WITHOUT_FANOUT), Keep.both())
+            .run(this.akkaComponents.getMaterializer());
+        Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+        handleMuxReceive(session, userId, outbound.first(), subscriptions);
+
+        return session.send(outbound.second());
+    }
+
+    /**
+     * subscribes the connection to a chatroom.  the subscription's frames stream into the connection's outbound
+     * stream the same way a single room session's do, backfill first on rejoin
+     */
+    protected void subscribe(WebSocketSession session, String userId, String chatRoom, String lastEventId,
+                             Sink<WebSocketMessage, NotUsed> outbound, Map<String, Subscription> subscriptions) {
+        DataBufferFactory bufferFactory = session.bufferFactory();
+        if (subscriptions.containsKey(chatRoom)) {
+            return;
+        }
+        if (subscriptions.size() >= MAX_ROOMS) {
+            Source.single(statusMessage(bufferFactory, chatRoom, REJECTED)).runWith(outbound, this.akkaComponents.getMaterializer());
+            return;
+        }
+
+        boolean rejoin = lastEventId != null && !lastEventId.isEmpty();
+        SessionInfo sessionInfo = new SessionInfo(sessionId(session, chatRoom), userId, chatRoom, rejoin ? lastEventId : "", rejoin);
+        ActorRef chatRoomRegion = this.akkaComponents.getChatRoomRegion();
+        Subscription subscription = new Subscription(sessionInfo,
+            this.akkaComponents.getSystem().actorOf(ChatSession.createProps(sessionInfo, chatRoomRegion, REQUEST_TIMEOUT)),
+            envelopeOpen(chatRoom));
+        subscriptions.put(chatRoom, subscription);
+
+        // the subscribed status and any backfill go out once joined, live frames after.  once the chatroom ends the
+        // subscription, its stream closes with a status frame.  failing to join ends it too.  concat materializes its
+        // source up front, so the closing status waits on the queue's completion to tell an unsubscribe from a close
+        CompletableFuture<Source<WebSocketMessage, NotUsed>> joined = new CompletableFuture<>();
+        CompletableFuture<WebSocketMessage> ended = new CompletableFuture<>();
+        SourceQueueWithComplete<ChatFrame> queue = Source.fromCompletionStage(joined)
+            .flatMapConcat(source -> source)
+            .concatMat(Source.<ChatFrame>queue(OUT_STREAM_BUFFER, OverflowStrategy.dropNew())
+                .via(new SessionOutBuffer(OUT_STREAM_BUFFER, OVERFLOW_POLICY, chatRoom, this.metrics))
+                .map(frame -> envelopeMessage(bufferFactory, subscription, frame)), Keep.right())
+            .concat(Source.fromCompletionStage(ended))
+            .recoverWithRetries(1, Throwable.class, () -> Source.single(statusMessage(bufferFactory, chatRoom, FAILED)))
+            .to(outbound)
+            .run(this.akkaComponents.getMaterializer());
+        queue.watchCompletion().whenComplete((done, error) -> {
+            ended.complete(statusMessage(bufferFactory, chatRoom, subscription.unsubscribed ? UNSUBSCRIBED : CLOSED));
+            unsubscribe(chatRoom, subscription, subscriptions);
+        });
+
+        joinChat(sessionInfo, queue, false)
+            .thenAccept(backfill -> joined.complete(Source.single(statusMessage(bufferFactory, chatRoom, SUBSCRIBED))
+                .concat(backfill.map(frame -> envelopeMessage(bufferFactory, subscription, frame)))))
+            .exceptionally(error -> {
+                logger.error(String.format("unable to subscribe to chatroom (%s): [%s], [%s]", chatRoom, error, session.getId()), error);
+                joined.completeExceptionally(error);
+                return null;
+            });
+    }
+
+    /** session id of a new subscription to the chatroom, unique to it rather than to the connection and chatroom */
+    protected String sessionId(WebSocketSession session, String chatRoom) {
+        return session.getId() + "/" + chatRoom + "/" + this.subscriptionIds.incrementAndGet();
+    }
+
+    /** ends the subscription, unless it's already been ended */
+    protected void unsubscribe(String chatRoom, Subscription subscription, Map<String, Subscription> subscriptions) {
+        if (subscriptions.remove(chatRoom, subscription)) {
+            this.akkaComponents.getSystem().stop(subscription.chatSession);
+            leaveChat(subscription.sessionInfo, this.akkaComponents.getChatRoomRegion());
+        }
+    }
+
+    /** handle incoming control frames and messages helper */
+    protected void handleMuxReceive(WebSocketSession session, String userId, Sink<WebSocketMessage, NotUsed> outbound,
+                                    Map<String, Subscription> subscriptions) {
+        ActorRef chatRoomRegion = this.akkaComponents.getChatRoomRegion();
+        session.receive()
+            // subscriptions and signals are handled as they come, only chat messages continue downstream, paired with
+            // the subscription they're for
+            .<Pair<Subscription, ChatMessage>>handle((inMsg, sink) -> {
+                try {
+                    long startTime = System.nanoTime();
+                    JsonNode node = this.mapper.readTree(new ByteBufferBackedInputStream(inMsg.getPayload().asByteBuffer()));
+                    if (node.hasNonNull("subscribe")) {
+                        String lastEventId = node.hasNonNull("lastEventId") ? node.get("lastEventId").asText() : null;
+                        subscribe(session, userId, node.get("subscribe").asText(), lastEventId, outbound, subscriptions);
+                        return;
+                    }
+                    if (node.hasNonNull("unsubscribe")) {
+                        String chatRoom = node.get("unsubscribe").asText();
+                        Subscription subscription = subscriptions.get(chatRoom);
+                        if (subscription != null) {
+                            subscription.unsubscribed = true;
+                            unsubscribe(chatRoom, subscription, subscriptions);
+                        }
+                        return;
+                    }
+
+                    String chatRoom = node.hasNonNull("room") ? node.get("room").asText() : null;
+                    Subscription subscription = chatRoom != null ? subscriptions.get(chatRoom) : null;
+                    if (subscription == null) {
+                        logger.warn("dropping message for chatroom ({}) not subscribed to: [{}]", chatRoom, session.getId());
+                        return;
+                    }
+                    if (node.hasNonNull("signal")) {
+                        chatRoomRegion.tell(new ChatRoomEntityProtocol.SendSignal(System.currentTimeMillis(), subscription.sessionInfo, node.get("signal").asText()), ActorRef.noSender());
+                        return;
+                    }
+                    ChatMessage chatMessage = this.mapper.treeToValue(node.get("message"), ChatMessage.class);
+                    this.metrics.frameDecode.recordNanos(System.nanoTime() - startTime);
+                    if (chatMessage != null) {
+                        sink.next(Pair.create(subscription, chatMessage));
+                    }
+                } catch (IOException ex) {
+                    logger.error(String.format("malformed incoming frame: %s", inMsg.getPayloadAsText()), ex);
+                }
+            })
+            // forward chat messages to their chatrooms, with at most MAX_IN_FLIGHT across the connection awaiting their
+            // commit.  a chatroom that fails to commit ends its own subscription, not the connection
+            .flatMapSequential(message -> {
+                CompletableFuture<Boolean> ack = new CompletableFuture<>();
+                message.first().chatSession.tell(new ChatSessionProtocol.Forward(message.second(), ack), ActorRef.noSender());
+                return Mono.fromFuture(ack)
+                    .onErrorResume(error -> {
+                        logger.error(String.format("ending subscription to chatroom (%s) due to error: [%s], [%s]", message.first().sessionInfo.getChatRoom(), error, session.getId()), error);
+                        unsubscribe(message.first().sessionInfo.getChatRoom(), message.first(), subscriptions);
+                        return Mono.empty();
+                    });
+            }, MAX_IN_FLIGHT)
+            // listen for connection termination, ending every subscription
+            .doFinally(signal -> {
+                logger.info(String.format("terminating multiplexed websocket session (client side) sig: [%s], [%s]", signal.name(), session.getId()));
+                subscriptions.forEach((chatRoom, subscription) -> unsubscribe(chatRoom, subscription, subscriptions));
+                session.close();
+            })
+            .subscribe();
+    }
+
+    protected byte[] envelopeOpen(String chatRoom) {
+        try {
+            return ("{\"room\":" + this.mapper.writeValueAsString(chatRoom) + ",\"envelope\":").getBytes(StandardCharsets.UTF_8);
+        } catch (JsonProcessingException ex) {
+            throw new RuntimeException("unable to encode chatroom: " + chatRoom, ex);
+        }
+    }
+
+    /** websocket message of an envelope, wrapped with its chatroom around the shared frame bytes */
+    protected WebSocketMessage envelopeMessage(DataBufferFactory bufferFactory, Subscription subscription, ChatFrame frame) {
+        this.metrics.outboundEnvelopes.increment();
+        this.metrics.outboundFrames.increment();
+        return new WebSocketMessage(WebSocketMessage.Type.TEXT, bufferFactory.join(Arrays.asList(
+            bufferFactory.wrap(subscription.envelopeOpen),
+            bufferFactory.wrap(frame.getPayload()),
+            bufferFactory.wrap(ENVELOPE_CLOSE))));
+    }
+
+    protected WebSocketMessage statusMessage(DataBufferFactory bufferFactory, String chatRoom, String status) {
+        try {
+            byte[] payload = this.mapper.writeValueAsBytes(this.mapper.createObjectNode().put("room", chatRoom).put("status", status));
+            return new WebSocketMessage(WebSocketMessage.Type.TEXT, bufferFactory.wrap(payload));
+        } catch (JsonProcessingException ex) {
+            throw new RuntimeException("unable to encode status of chatroom: " + chatRoom, ex);
+        }
+    }
+}
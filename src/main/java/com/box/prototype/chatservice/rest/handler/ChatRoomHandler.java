@@ -1,28 +1,158 @@
 package com.box.prototype.chatservice.rest.handler;
 
 import com.box.prototype.chatservice.akka.AkkaComponents;
+import com.box.prototype.chatservice.domain.models.ChatHistoryEntry;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
 import com.box.prototype.chatservice.domain.models.ChatRoom;
+import com.box.prototype.chatservice.domain.models.ChatRoomPage;
+import com.box.prototype.chatservice.projection.ChatSearchProjection;
+import com.box.prototype.chatservice.repository.ChatHistoryRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.concurrent.CompletableFuture;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Optional;
 
 @Component
 public class ChatRoomHandler {
+    protected static final ParameterizedTypeReference<List<ChatMessageEnvelope>> ENVELOPES =
+        new ParameterizedTypeReference<List<ChatMessageEnvelope>>() {};
+
     @Autowired
     private AkkaComponents akkaComponents;
+    @Autowired
+    private ChatHistoryRepository historyRepository;
+    @Autowired
+    private ChatSearchProjection searchProjection;
 
+    /**
+     * lists chatrooms from this node's copy of the directory, in id order.  optional query params: prefix to filter ids
+     * by, cursor from the previous page, and limit
+     */
     public Mono<ServerResponse> listChatRooms(ServerRequest request) {
-        // TODO: real implementation
-        ArrayList<ChatRoom> chatRooms = new ArrayList<>(Arrays.asList(new ChatRoom("room1")));
+        int defaultLimit = this.akkaComponents.getConfig().getInt("chat-rooms.directory.page-size");
+        int maxLimit = this.akkaComponents.getConfig().getInt("chat-rooms.directory.max-page-size");
+        String prefix = request.queryParam("prefix").orElse("");
+        Optional<String> cursor = request.queryParam("cursor");
+        int limit;
+        try {
+            limit = request.queryParam("limit").map(Integer::parseInt).orElse(defaultLimit);
+        } catch (NumberFormatException ex) {
+            return ServerResponse.badRequest().build();
+        }
+        limit = Math.max(1, Math.min(limit, maxLimit));
+
+        // resume after the cursor, unless it sorts before the prefix
+        NavigableMap<String, ChatRoom> chatRooms = this.akkaComponents.getChatRooms();
+        NavigableMap<String, ChatRoom> tail = cursor.isPresent() && cursor.get().compareTo(prefix) >= 0 ?
+            chatRooms.tailMap(cursor.get(), false) :
+            chatRooms.tailMap(prefix, true);
+
+        List<ChatRoom> page = new ArrayList<>(limit);
+        String nextCursor = null;
+        for (ChatRoom chatRoom : tail.values()) {
+            if (!chatRoom.getId().startsWith(prefix)) {
+                break;
+            }
+            if (page.size() == limit) {
+                nextCursor = page.get(page.size() - 1).getId();
+                break;
+            }
+            page.add(chatRoom);
+        }
+
+        return ServerResponse.ok()
+            .contentType(MediaType.APPLICATION_JSON)
+            .syncBody(new ChatRoomPage(page, nextCursor));
+    }
+
+    /**
+     * lists a chatroom's messages from the chat history projection, oldest first.  optional query params: after and/or
+     * before event ids (exclusive) and limit.  with only before, or neither, returns the newest messages in range, so
+     * clients scroll back by passing the first event id they have as before
+     */
+    public Mono<ServerResponse> listMessages(ServerRequest request) {
+        String chatRoom = request.pathVariable("id");
+        int defaultLimit = this.akkaComponents.getConfig().getInt("chat-history.page-size");
+        int maxLimit = this.akkaComponents.getConfig().getInt("chat-history.max-page-size");
+        Optional<Long> after;
+        Optional<Long> before;
+        int limit;
+        try {
+            after = request.queryParam("after").map(Long::parseLong);
+            before = request.queryParam("before").map(Long::parseLong);
+            limit = request.queryParam("limit").map(Integer::parseInt).orElse(defaultLimit);
+        } catch (NumberFormatException ex) {
+            return ServerResponse.badRequest().build();
+        }
+        PageRequest page = PageRequest.of(0, Math.max(1, Math.min(limit, maxLimit)));
+
+        // jpa blocks, so query off the event loop
+        Mono<List<ChatMessageEnvelope>> messages = Mono.fromCallable(() -> {
+            List<ChatHistoryEntry> entries;
+            if (after.isPresent() && before.isPresent()) {
+                entries = this.historyRepository.findByChatRoomAndSequenceNrBetweenOrderBySequenceNrAsc(chatRoom, after.get() + 1, before.get() - 1, page);
+            } else if (after.isPresent()) {
+                entries = this.historyRepository.findByChatRoomAndSequenceNrGreaterThanOrderBySequenceNrAsc(chatRoom, after.get(), page);
+            } else {
+                entries = new ArrayList<>(this.historyRepository.findByChatRoomAndSequenceNrLessThanOrderBySequenceNrDesc(chatRoom, before.orElse(Long.MAX_VALUE), page));
+                Collections.reverse(entries);
+            }
+
+            List<ChatMessageEnvelope> envelopes = new ArrayList<>(entries.size());
+            entries.forEach(entry -> envelopes.add(new ChatMessageEnvelope(entry.toChatMessage(), Long.toString(entry.getSequenceNr()))));
+            return envelopes;
+        }).subscribeOn(Schedulers.elastic());
+
+        return ServerResponse.ok()
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(messages, ENVELOPES);
+    }
+
+    /**
+     * searches a chatroom's messages for all words of the q query param, newest first.  optional query params: before
+     * event id (exclusive) to page back from, and limit
+     */
+    public Mono<ServerResponse> searchMessages(ServerRequest request) {
+        String chatRoom = request.pathVariable("id");
+        String query = request.queryParam("q").orElse("");
+        int defaultLimit = this.akkaComponents.getConfig().getInt("chat-search.page-size");
+        int maxLimit = this.akkaComponents.getConfig().getInt("chat-search.max-page-size");
+        long before;
+        int limit;
+        try {
+            before = request.queryParam("before").map(Long::parseLong).orElse(Long.MAX_VALUE);
+            limit = request.queryParam("limit").map(Integer::parseInt).orElse(defaultLimit);
+        } catch (NumberFormatException ex) {
+            return ServerResponse.badRequest().build();
+        }
+        List<Long> sequenceNrs = this.searchProjection.getIndex().search(chatRoom, query, before, Math.max(1, Math.min(limit, maxLimit)));
+
+        // message bodies come from the chat history projection.  jpa blocks, so query off the event loop
+        Mono<List<ChatMessageEnvelope>> messages = Mono.fromCallable(() -> {
+            List<ChatHistoryEntry.Key> keys = new ArrayList<>(sequenceNrs.size());
+            sequenceNrs.forEach(sequenceNr -> keys.add(new ChatHistoryEntry.Key(chatRoom, sequenceNr)));
+            List<ChatHistoryEntry> entries = new ArrayList<>(this.historyRepository.findAllById(keys));
+            entries.sort(Comparator.comparingLong(ChatHistoryEntry::getSequenceNr).reversed());
+
+            List<ChatMessageEnvelope> envelopes = new ArrayList<>(entries.size());
+            entries.forEach(entry -> envelopes.add(new ChatMessageEnvelope(entry.toChatMessage(), Long.toString(entry.getSequenceNr()))));
+            return envelopes;
+        }).subscribeOn(Schedulers.elastic());
+
         return ServerResponse.ok()
             .contentType(MediaType.APPLICATION_JSON)
-            .body(Mono.fromFuture(CompletableFuture.completedFuture(chatRooms)), ArrayList.class);
+            .body(messages, ENVELOPES);
     }
 }
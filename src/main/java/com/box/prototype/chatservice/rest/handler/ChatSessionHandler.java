@@ -1,18 +1,29 @@
 package com.box.prototype.chatservice.rest.handler;
 
+import akka.NotUsed;
 import akka.actor.ActorRef;
 import akka.japi.Pair;
+import akka.pattern.AskTimeoutException;
 import akka.stream.*;
 import akka.stream.javadsl.*;
 import com.box.prototype.chatservice.akka.AkkaComponents;
+import com.box.prototype.chatservice.akka.ChatMetrics;
+import com.box.prototype.chatservice.domain.ChatRoomRelayProtocol;
+import com.box.prototype.chatservice.domain.ChatSession;
+import com.box.prototype.chatservice.domain.ChatSessionProtocol;
+import com.box.prototype.chatservice.domain.ChatWireCodec;
+import com.box.prototype.chatservice.domain.SessionOutBuffer;
 import com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
 import com.box.prototype.chatservice.domain.models.ChatMessage;
-import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
 import com.box.prototype.chatservice.domain.models.SessionInfo;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.box.prototype.chatservice.util.BinaryWriter;
+import com.box.prototype.chatservice.util.URIParser;
 import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.web.reactive.config.EnableWebFlux;
 import org.springframework.web.reactive.socket.CloseStatus;
 import org.springframework.web.reactive.socket.WebSocketHandler;
@@ -22,51 +33,108 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 
 import static akka.pattern.Patterns.*;
+import static com.box.prototype.chatservice.WebSocketConfig.*;
 
 @EnableWebFlux
 public class ChatSessionHandler implements WebSocketHandler {
-    private Logger logger = LoggerFactory.getLogger(this.getClass());
+    protected Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private final Duration REQUEST_TIMEOUT;
+    // batch frames are json arrays of the envelopes' own encodings
+    protected static final byte[] BATCH_OPEN = "[".getBytes(StandardCharsets.UTF_8);
+    protected static final byte[] BATCH_SEPARATOR = ",".getBytes(StandardCharsets.UTF_8);
+    protected static final byte[] BATCH_CLOSE = "]".getBytes(StandardCharsets.UTF_8);
 
-    private AkkaComponents akkaComponents;
-    private final ObjectMapper mapper = new ObjectMapper();
+    protected final Duration REQUEST_TIMEOUT;
+    protected final int MAX_IN_FLIGHT;
+    protected final int OUT_STREAM_BUFFER;
+    protected final SessionOutBuffer.OverflowPolicy OVERFLOW_POLICY;
+    protected final int BACKFILL_PAGE_SIZE;
+    protected final Duration BACKFILL_TIMEOUT;
+    protected final long BATCH_MAX_BYTES;
+
+    protected AkkaComponents akkaComponents;
+    protected final ChatMetrics metrics;
 
     public ChatSessionHandler(AkkaComponents components) {
         this.akkaComponents = components;
+        this.metrics = ChatMetrics.get(components.getSystem());
         REQUEST_TIMEOUT = components.getConfig().getDuration("server.request-timeout");
+        MAX_IN_FLIGHT = components.getConfig().getInt("chat-sessions.max-in-flight");
+        OUT_STREAM_BUFFER = components.getConfig().getInt("chat-sessions.out-stream-buffer");
+        OVERFLOW_POLICY = SessionOutBuffer.OverflowPolicy.fromConfig(components.getConfig().getString("chat-sessions.overflow-policy"));
+        BACKFILL_PAGE_SIZE = components.getConfig().getInt("chat-sessions.backfill-page-size");
+        BACKFILL_TIMEOUT = components.getConfig().getDuration("chat-sessions.backfill.timeout");
+        BATCH_MAX_BYTES = components.getConfig().getBytes("chat-sessions.batching.max-bytes");
+    }
+
+    /** binary when clients ask for it, json otherwise */
+    @Override
+    public List<String> getSubProtocols() {
+        return Arrays.asList(BINARY_SUBPROTOCOL, JSON_SUBPROTOCOL);
     }
 
     /** web socket handler */
     @Override
     public Mono<Void> handle(WebSocketSession session) {
         SessionInfo sessionInfo = new SessionInfo(session);
-        logger.info("establishing new chat session: " + sessionInfo);
+        boolean binary = isBinary(session);
+        logger.info("establishing new chat session: " + sessionInfo + (binary ? " (binary)" : ""));
         if (sessionInfo.getChatRoom() == null || sessionInfo.getUserId() == null) {
             logger.error("terminating due missing chatroom ({}) or userid ({})", sessionInfo.getChatRoom(), sessionInfo.getUserId());
             session.close();
             return session.send(Flux.empty());
         }
 
-        // construct a sinkref to pass to chatroom
-        Pair<CompletionStage<SinkRef<ChatMessageEnvelope>>, Publisher<WebSocketMessage>> pair = StreamRefs.<ChatMessageEnvelope>sinkRef()
-            .map(msg -> session.textMessage(this.mapper.writeValueAsString(msg)))
+        // construct a local queue for this node's chatroom relay to publish to.
+        // the session buffer behind it always accepts frames, so a slow websocket overflows according to the overflow
+        // policy instead of failing offers.
+        // on rejoin, the backfill of missed messages streams out first, and live messages follow once it's done.
+        // frames arrive encoded, binary ones transcoded once per node by the relay, so the session only wraps their
+        // shared bytes without copying.
+        // frames that weren't transcoded (gaps, pages cached before the session joined) are transcoded here, once.
+        // batching sessions get the frames that queued up while the websocket was busy in a single websocket frame,
+        // weighed by the bytes of the encoding they're sent in.
+        CompletableFuture<Source<ChatFrame, NotUsed>> backfill = new CompletableFuture<>();
+        Source<ChatFrame, SourceQueueWithComplete<ChatFrame>> live = Source.<ChatFrame>queue(OUT_STREAM_BUFFER, OverflowStrategy.dropNew())
+            .via(new SessionOutBuffer(OUT_STREAM_BUFFER, OVERFLOW_POLICY, sessionInfo.getChatRoom(), this.metrics));
+        Source<ChatFrame, SourceQueueWithComplete<ChatFrame>> frames = Source.fromCompletionStage(backfill)
+            .flatMapConcat(source -> source)
+            .concatMat(live, Keep.right());
+        if (binary) {
+            frames = frames.map(ChatWireCodec::withBinaryPayload);
+        }
+        Source<WebSocketMessage, SourceQueueWithComplete<ChatFrame>> messages = isBatching(session)
+            ? frames
+                .batchWeighted(BATCH_MAX_BYTES, frame -> weight(frame, binary), this::newBatch, this::addToBatch)
+                .map(batch -> batchMessage(session.bufferFactory(), batch, binary))
+            : frames
+                .map(frame -> message(session.bufferFactory(), frame, binary));
+        Pair<SourceQueueWithComplete<ChatFrame>, Publisher<WebSocketMessage>> pair = messages
             .toMat(Sink.asPublisher(AsPublisher.WITHOUT_FANOUT), Keep.both())
             .run(this.akkaComponents.getMaterializer());
         final Publisher<WebSocketMessage> outFlux = pair.second();
 
-        pair.first()
-            // join chat room
-            .thenCompose(sinkRef -> joinChat(sessionInfo, sinkRef))
+        // join chat room
+        joinChat(sessionInfo, pair.first(), binary)
             // handle incoming messages
-            .thenAccept(unused -> handleMessageReceive(session, sessionInfo))
+            .thenAccept(backfillSource -> {
+                backfill.complete(backfillSource);
+                handleMessageReceive(session, sessionInfo, binary);
+            })
             // handle errors
             .exceptionally(error -> {
+                backfill.completeExceptionally(error);
                 logger.error(String.format("terminating websocket due to error: [%s], [%s])", error, sessionInfo.getSessionId()), error);
                 terminateSession(session, sessionInfo, this.akkaComponents.getChatRoomRegion());
                 return null;
@@ -75,66 +143,182 @@ public class ChatSessionHandler implements WebSocketHandler {
         return session.send(outFlux);
     }
 
+    /** whether the session negotiated batch frames, by joining with the batch query param */
+    protected boolean isBatching(WebSocketSession session) {
+        return new URIParser(session.getHandshakeInfo().getUri(), CHAT_SESSION_ROUTE).queryParamExists(BATCH_PARAM_KEY);
+    }
+
+    /** whether the session negotiated the binary subprotocol */
+    protected boolean isBinary(WebSocketSession session) {
+        return BINARY_SUBPROTOCOL.equals(session.getHandshakeInfo().getSubProtocol());
+    }
+
+    /** websocket message of a single envelope */
+    protected WebSocketMessage message(DataBufferFactory bufferFactory, ChatFrame frame, boolean binary) {
+        this.metrics.outboundEnvelopes.increment();
+        this.metrics.outboundFrames.increment();
+        if (binary) {
+            return new WebSocketMessage(WebSocketMessage.Type.BINARY, bufferFactory.wrap(ChatWireCodec.binaryPayload(frame)));
+        }
+        return new WebSocketMessage(WebSocketMessage.Type.TEXT, bufferFactory.wrap(frame.getPayload()));
+    }
+
+    /** bytes of the encoding the session is sent */
+    protected static long weight(ChatFrame frame, boolean binary) {
+        return binary ? ChatWireCodec.binaryPayload(frame).length : frame.getPayload().length;
+    }
+
+    protected List<ChatFrame> newBatch(ChatFrame frame) {
+        List<ChatFrame> batch = new ArrayList<>();
+        batch.add(frame);
+        return batch;
+    }
+
+    protected List<ChatFrame> addToBatch(List<ChatFrame> batch, ChatFrame frame) {
+        batch.add(frame);
+        return batch;
+    }
+
+    /**
+     * websocket message of a batch of envelopes, as a json array, or binary envelopes each prefixed with its length.
+     * the batch is joined from the shared frame bytes, so isn't copied where the buffer factory can compose buffers
+     * (netty's can).  always a batch, even of one envelope, so clients only handle the one format
+     */
+    protected WebSocketMessage batchMessage(DataBufferFactory bufferFactory, List<ChatFrame> batch, boolean binary) {
+        List<DataBuffer> buffers = new ArrayList<>(batch.size() * 2 + 1);
+        this.metrics.outboundEnvelopes.add(batch.size());
+        this.metrics.outboundFrames.increment();
+        if (binary) {
+            for (ChatFrame frame : batch) {
+                byte[] payload = ChatWireCodec.binaryPayload(frame);
+                buffers.add(bufferFactory.wrap(new BinaryWriter(5).writeVarInt(payload.length).toByteArray()));
+                buffers.add(bufferFactory.wrap(payload));
+            }
+            return new WebSocketMessage(WebSocketMessage.Type.BINARY, bufferFactory.join(buffers));
+        }
+
+        buffers.add(bufferFactory.wrap(BATCH_OPEN));
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                buffers.add(bufferFactory.wrap(BATCH_SEPARATOR));
+            }
+            buffers.add(bufferFactory.wrap(batch.get(i).getPayload()));
+        }
+        buffers.add(bufferFactory.wrap(BATCH_CLOSE));
+        return new WebSocketMessage(WebSocketMessage.Type.TEXT, bufferFactory.join(buffers));
+    }
+
     /** terminate session helper */
     protected void terminateSession(WebSocketSession session, SessionInfo sessionInfo, ActorRef chatRoomRegion) {
-        chatRoomRegion.tell(new ChatRoomEntityProtocol.LeaveChat(System.currentTimeMillis(), sessionInfo), ActorRef.noSender());
+        leaveChat(sessionInfo, chatRoomRegion);
         session.close();
     }
 
-    /** join chat helper */
-    protected CompletionStage<Boolean> joinChat(SessionInfo sessionInfo, SinkRef<ChatMessageEnvelope> outboundSink) {
-        ChatRoomEntityProtocol.ChatRoomCommand command = sessionInfo.isRejoin() ?
-            new ChatRoomEntityProtocol.RejoinChat(System.currentTimeMillis(), sessionInfo, outboundSink) :
-            new ChatRoomEntityProtocol.JoinChat(System.currentTimeMillis(), sessionInfo, outboundSink);
+    /** leave chat helper, detaching the session from its chatroom and relay */
+    protected void leaveChat(SessionInfo sessionInfo, ActorRef chatRoomRegion) {
+        chatRoomRegion.tell(new ChatRoomEntityProtocol.LeaveChat(System.currentTimeMillis(), sessionInfo), ActorRef.noSender());
+        this.akkaComponents.getChatRelayManager().tell(
+            new ChatRoomRelayProtocol.Unsubscribe(sessionInfo.getChatRoom(), sessionInfo.getSessionId()), ActorRef.noSender());
+    }
+
+    /** join chat helper, the relay joins the chatroom on the session's behalf.  completes with the session's backfill */
+    protected CompletionStage<Source<ChatFrame, NotUsed>> joinChat(SessionInfo sessionInfo, SourceQueueWithComplete<ChatFrame> outboundQueue,
+                                                                   boolean binary) {
+        ChatRoomRelayProtocol.Subscribe command = new ChatRoomRelayProtocol.Subscribe(sessionInfo, outboundQueue, binary);
 
-        return ask(this.akkaComponents.getChatRoomRegion(), command, REQUEST_TIMEOUT)
+        return askChatRoom(this.akkaComponents.getChatRelayManager(), command)
             .thenApply(response -> {
+                if (response instanceof ChatRoomEntityProtocol.Rejoined) {
+                    ChatRoomEntityProtocol.Rejoined rejoined = (ChatRoomEntityProtocol.Rejoined)response;
+                    return backfill(sessionInfo, rejoined.fromSequenceNr, rejoined.throughSequenceNr);
+                }
                 if (!(response instanceof ChatRoomEntityProtocol.Committed)) {
                     throw new RuntimeException("received unexpected response from chatroom: " + response);
                 }
-                return true;
+                return Source.<ChatFrame>empty();
+            });
+    }
+
+    /**
+     * backfill helper, pages in missed messages from the chatroom only as fast as the websocket takes them.  pages come
+     * through the node's relay for the chatroom, which may queue them behind other sessions' reads, hence the longer
+     * timeout
+     */
+    protected Source<ChatFrame, NotUsed> backfill(SessionInfo sessionInfo, long fromSequenceNr, long throughSequenceNr) {
+        ActorRef chatRelayManager = this.akkaComponents.getChatRelayManager();
+        return Source.unfoldAsync(fromSequenceNr, from -> {
+            if (from > throughSequenceNr) {
+                return CompletableFuture.completedFuture(Optional.<Pair<Long, List<ChatFrame>>>empty());
+            }
+            ChatRoomEntityProtocol.FetchHistory fetch = new ChatRoomEntityProtocol.FetchHistory(sessionInfo, from, throughSequenceNr, BACKFILL_PAGE_SIZE);
+            return askChatRoom(chatRelayManager, fetch, BACKFILL_TIMEOUT)
+                .thenApply(response -> {
+                    if (!(response instanceof ChatRoomEntityProtocol.HistoryPage)) {
+                        throw new RuntimeException("received unexpected response from chatroom: " + response);
+                    }
+                    ChatRoomEntityProtocol.HistoryPage page = (ChatRoomEntityProtocol.HistoryPage)response;
+                    return Optional.of(Pair.create(page.nextSequenceNr, page.frames));
+                });
+        }).mapConcat(frames -> frames);
+    }
+
+    protected CompletionStage<Object> askChatRoom(ActorRef target, Object message) {
+        return askChatRoom(target, message, REQUEST_TIMEOUT);
+    }
+
+    /** ask helper for requests to chatrooms, counting the ones that time out */
+    protected CompletionStage<Object> askChatRoom(ActorRef target, Object message, Duration timeout) {
+        return ask(target, message, timeout)
+            .whenComplete((response, error) -> {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof AskTimeoutException) {
+                    this.metrics.askTimeouts.increment();
+                }
             });
     }
 
     /** handle incoming messages helper */
-    protected CompletionStage<Void> handleMessageReceive(WebSocketSession session, SessionInfo sessionInfo) {
+    protected CompletionStage<Void> handleMessageReceive(WebSocketSession session, SessionInfo sessionInfo, boolean binary) {
         ActorRef chatRoomRegion = this.akkaComponents.getChatRoomRegion();
+        ActorRef chatSession = this.akkaComponents.getSystem().actorOf(ChatSession.createProps(sessionInfo, chatRoomRegion, REQUEST_TIMEOUT));
         session.receive()
-            // deserialize incoming payload
-            .flatMap(inMsg -> {
-                String payload = "";
+            // deserialize incoming payload straight from the frame's bytes, in the session's format, skipping malformed
+            // messages.  signals ({"signal": "typing"}) go straight to the chatroom, unacked and never persisted, only
+            // chat messages continue downstream
+            .<ChatMessage>handle((inMsg, sink) -> {
                 try {
-                    payload = inMsg.getPayloadAsText();
-                    ChatMessage chatMessage = this.mapper.readValue(payload, ChatMessage.class);
-
-                    // forward chat message to chatroom and check for commit response.  If bad response or
-                    // timeout, terminate the session and rely on client to re-establish new session
-                    ask(chatRoomRegion, new ChatRoomEntityProtocol.AddMessage(chatMessage, sessionInfo), REQUEST_TIMEOUT)
-                        .thenApply(response -> {
-                            if (!(response instanceof ChatRoomEntityProtocol.Committed)) {
-                                throw new RuntimeException("received unexpected response from chatroom: " + response);
-                            }
-                            return true;
-                        })
-                        .exceptionally(error -> {
-                            logger.error(String.format("terminating websocket due to chatroom (%s) error: %s)", sessionInfo.getChatRoom(), error), error);
-                            terminateSession(session, sessionInfo, chatRoomRegion);
-                            return null;
-                        });
-                } catch (IOException ex) {
+                    long startTime = System.nanoTime();
+                    ChatWireCodec.Inbound inbound = binary
+                        ? ChatWireCodec.decodeBinary(inMsg.getPayload().asByteBuffer())
+                        : ChatWireCodec.decodeJson(inMsg.getPayload().asByteBuffer());
+                    if (inbound.signal != null) {
+                        chatRoomRegion.tell(new ChatRoomEntityProtocol.SendSignal(System.currentTimeMillis(), sessionInfo, inbound.signal), ActorRef.noSender());
+                        return;
+                    }
+                    this.metrics.frameDecode.recordNanos(System.nanoTime() - startTime);
+                    sink.next(inbound.message);
+                } catch (IOException | IllegalStateException | IllegalArgumentException ex) {
+                    String payload = binary ? inMsg.getPayload().readableByteCount() + " bytes" : inMsg.getPayloadAsText();
                     logger.error(String.format("malformed incoming chat message: %s", payload), ex);
                 }
-
-                return Flux.empty();
             })
+            // forward chat messages to chatroom, with at most MAX_IN_FLIGHT awaiting their commit.  acks are consumed in
+            // order, and the websocket isn't read from while the window is full.  If bad response or timeout, the
+            // stream errors out, terminating the session and relying on client to re-establish new session
+            .flatMapSequential(chatMessage -> {
+                CompletableFuture<Boolean> ack = new CompletableFuture<>();
+                chatSession.tell(new ChatSessionProtocol.Forward(chatMessage, ack), ActorRef.noSender());
+                return Mono.fromFuture(ack);
+            }, MAX_IN_FLIGHT)
             // listen for connection termination and close session
             .doFinally(signal -> {
                 logger.info(String.format("terminating websocket session (client side) sig: [%s], [%s]", signal.name(), sessionInfo.getSessionId()));
+                this.akkaComponents.getSystem().stop(chatSession);
                 terminateSession(session, sessionInfo, chatRoomRegion);
             })
             // handle errors
             .doOnError(error -> {
-                logger.error(String.format("terminating websocket due to error: [%s], [%s])", error, sessionInfo.getSessionId()), error);
+                logger.error(String.format("terminating websocket due to chatroom (%s) error: [%s], [%s])", sessionInfo.getChatRoom(), error, sessionInfo.getSessionId()), error);
                 terminateSession(session, sessionInfo, chatRoomRegion);
             })
             .subscribe();
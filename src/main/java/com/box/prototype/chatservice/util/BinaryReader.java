@@ -0,0 +1,100 @@
+package com.box.prototype.chatservice.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** reads values written by {@link BinaryWriter} */
+public class BinaryReader {
+    private final byte[] buffer;
+    private final int limit;
+    private int position;
+
+    public BinaryReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public BinaryReader(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /** reads the buffer's remaining bytes, in place when it's backed by an array, otherwise from a copy */
+    public static BinaryReader wrap(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new BinaryReader(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new BinaryReader(bytes);
+    }
+
+    public int readByte() {
+        if (this.position >= this.limit) {
+            throw new IllegalStateException("read past end of buffer");
+        }
+        return this.buffer[this.position++];
+    }
+
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    public long readVarLong() {
+        long zigzag = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            zigzag |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IllegalStateException("malformed varlong");
+    }
+
+    public String readString() {
+        int length = readVarInt() - 1;
+        if (length < 0) {
+            return null;
+        }
+        checkAvailable(length);
+        String value = new String(this.buffer, this.position, length, StandardCharsets.UTF_8);
+        this.position += length;
+        return value;
+    }
+
+    public byte[] readBytes() {
+        int length = readVarInt() - 1;
+        if (length < 0) {
+            return null;
+        }
+        checkAvailable(length);
+        byte[] value = Arrays.copyOfRange(this.buffer, this.position, this.position + length);
+        this.position += length;
+        return value;
+    }
+
+    /** bytes left to read, lets newer readers detect fields appended by later schema versions */
+    public int remaining() {
+        return this.limit - this.position;
+    }
+
+    private void checkAvailable(int length) {
+        if (length > remaining()) {
+            throw new IllegalStateException("read past end of buffer");
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.box.prototype.chatservice.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** growable byte buffer with compact (varint) encodings for numbers, strings and byte arrays */
+public class BinaryWriter {
+    private byte[] buffer;
+    private int position = 0;
+
+    public BinaryWriter() {
+        this(64);
+    }
+
+    public BinaryWriter(int initialCapacity) {
+        this.buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public BinaryWriter writeByte(int value) {
+        ensureCapacity(1);
+        this.buffer[this.position++] = (byte)value;
+        return this;
+    }
+
+    public BinaryWriter writeBoolean(boolean value) {
+        return writeByte(value ? 1 : 0);
+    }
+
+    /** writes an unsigned varint, 7 bits per byte */
+    public BinaryWriter writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            this.buffer[this.position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.buffer[this.position++] = (byte)value;
+        return this;
+    }
+
+    /** writes a zigzag encoded varint, so small negative values stay small too */
+    public BinaryWriter writeVarLong(long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        ensureCapacity(10);
+        while ((zigzag & ~0x7FL) != 0) {
+            this.buffer[this.position++] = (byte)((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        this.buffer[this.position++] = (byte)zigzag;
+        return this;
+    }
+
+    /** writes a nullable string as length + 1 followed by its utf-8 bytes, with 0 standing for null */
+    public BinaryWriter writeString(String value) {
+        return writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** writes a nullable byte array as length + 1 followed by its bytes, with 0 standing for null */
+    public BinaryWriter writeBytes(byte[] value) {
+        if (value == null) {
+            return writeVarInt(0);
+        }
+        writeVarInt(value.length + 1);
+        return writeRaw(value, 0, value.length);
+    }
+
+    /** writes bytes without a length prefix */
+    public BinaryWriter writeRaw(byte[] value, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(value, offset, this.buffer, this.position, length);
+        this.position += length;
+        return this;
+    }
+
+    public int size() {
+        return this.position;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.buffer, this.position);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (this.position + extra > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.position + extra));
+        }
+    }
+}
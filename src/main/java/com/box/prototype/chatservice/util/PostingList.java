@@ -0,0 +1,89 @@
+package com.box.prototype.chatservice.util;
+
+import java.util.Arrays;
+
+/**
+ * strictly increasing ids stored as varint encoded deltas from the previous id.  ids of neighbouring messages in a room
+ * are close together, so most take a byte or two instead of eight.
+ */
+public final class PostingList {
+    private byte[] bytes;
+    private int length = 0;
+    private int size = 0;
+    private long last = 0;
+
+    public PostingList() {
+        this.bytes = new byte[4];
+    }
+
+    private PostingList(byte[] bytes, int size, long last) {
+        this.bytes = bytes;
+        this.length = bytes.length;
+        this.size = size;
+        this.last = last;
+    }
+
+    /** appends an id, returning false (and leaving the list as is) if it's not greater than the last one */
+    public boolean add(long id) {
+        if (this.size > 0 && id <= this.last) {
+            return false;
+        }
+        long delta = this.size == 0 ? id : id - this.last;
+        if (this.length + 10 > this.bytes.length) {
+            this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.length + 10));
+        }
+        while ((delta & ~0x7FL) != 0) {
+            this.bytes[this.length++] = (byte)((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        this.bytes[this.length++] = (byte)delta;
+        this.last = id;
+        this.size++;
+        return true;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public long last() {
+        return this.last;
+    }
+
+    /** encoded size in bytes */
+    public int byteSize() {
+        return this.length;
+    }
+
+    /** decodes all ids, in increasing order */
+    public long[] toArray() {
+        long[] ids = new long[this.size];
+        long id = 0;
+        int position = 0;
+        for (int i = 0; i < this.size; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.bytes[position++];
+                delta |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            id += delta;
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    public void writeTo(BinaryWriter out) {
+        out.writeVarInt(this.size);
+        out.writeVarLong(this.last);
+        out.writeBytes(Arrays.copyOf(this.bytes, this.length));
+    }
+
+    public static PostingList readFrom(BinaryReader in) {
+        int size = in.readVarInt();
+        long last = in.readVarLong();
+        return new PostingList(in.readBytes(), size, last);
+    }
+}
@@ -53,6 +53,18 @@ function connect() {
         ws.onmessage = function(event) {
             var chatEnvelope = JSON.parse(event.data);
 
+            // messages missed while the connection was slow
+            if (chatEnvelope.gap) {
+                log(chatEnvelope.gap);
+                return;
+            }
+
+            // typing and presence signals aren't chat log messages, they have no event id to dedupe or rejoin from
+            if (chatEnvelope.signals) {
+                log(chatEnvelope.signals);
+                return;
+            }
+
             // dedupe
             if (!(chatEnvelope.lastEventId in chatState.eventIds)) {
                 chatState.lastEventId = chatEnvelope.lastEventId;
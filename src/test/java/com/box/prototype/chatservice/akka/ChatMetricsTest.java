@@ -0,0 +1,59 @@
+package com.box.prototype.chatservice.akka;
+
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/** counters of chatrooms, kept only while a room's entity or relay on the node holds them */
+public class ChatMetricsTest {
+    private static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("ChatMetricsTest", ConfigFactory.load("test"));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Map<String, Map<String, Object>> rooms(ChatMetrics metrics) {
+        return (Map<String, Map<String, Object>>)metrics.snapshot().get("rooms");
+    }
+
+    @Test
+    public void dropsRoomsOnceNoLongerHeld() {
+        ChatMetrics metrics = new ChatMetrics((ExtendedActorSystem)system);
+        ChatMetrics.RoomCounters entity = metrics.acquireRoom("room-1");
+        ChatMetrics.RoomCounters relay = metrics.acquireRoom("room-1");
+        assertSame(entity, relay);
+        entity.messages.increment();
+        metrics.recordOverflow("room-1", 3);
+
+        // the relay still holds the room once its entity stops
+        metrics.releaseRoom("room-1");
+        assertEquals(1L, rooms(metrics).get("room-1").get("messages"));
+        assertEquals(3L, rooms(metrics).get("room-1").get("droppedMessages"));
+
+        metrics.releaseRoom("room-1");
+        assertFalse(rooms(metrics).containsKey("room-1"));
+        metrics.releaseRoom("room-1");
+
+        // and counters of rooms not held here aren't kept
+        metrics.recordOverflow("room-2", 1);
+        metrics.recordOverflowDisconnect("room-2");
+        assertTrue(rooms(metrics).isEmpty());
+        assertEquals(0L, metrics.acquireRoom("room-1").messages.sum());
+    }
+}
@@ -0,0 +1,370 @@
+package com.box.prototype.chatservice.akka;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.testkit.javadsl.TestKit;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatGap;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.box.prototype.chatservice.domain.models.ChatRoom;
+import com.box.prototype.chatservice.domain.models.ChatSignal;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.box.prototype.chatservice.util.BinaryWriter;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.box.prototype.chatservice.domain.ChatRoomDirectoryProtocol.*;
+import static com.box.prototype.chatservice.domain.ChatRoomRelayProtocol.*;
+import static com.box.prototype.chatservice.domain.ShardLoadProtocol.*;
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+import static org.junit.Assert.*;
+
+/** round trips of every type the serializer is bound to, and reads of payloads written by earlier schema versions */
+public class ChatSerializerTest {
+    private static ActorSystem system;
+    private static ChatSerializer serializer;
+
+    private final SessionInfo sessionInfo = new SessionInfo("session-1", "user-1", "room-1", "42", true);
+    private final ChatMessage message = new ChatMessage(1546300800000L, "user-1", "hello, wörld");
+    private final ChatFrame frame = new ChatFrame("42", bytes("{\"message\":{}}"), new byte[] {1, 2, 3});
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("ChatSerializerTest", ConfigFactory.load("test"));
+        serializer = new ChatSerializer((ExtendedActorSystem)system);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T roundTrip(T o) {
+        return (T)serializer.fromBinary(serializer.toBinary(o), serializer.manifest(o));
+    }
+
+    @Test
+    public void roundTripsCommands() {
+        ActorRef relay = new TestKit(system).getRef();
+
+        JoinChat join = roundTrip(new JoinChat(7, this.sessionInfo, relay));
+        assertEquals(7, join.timestamp);
+        assertSessionInfo(this.sessionInfo, join.sessionInfo);
+        assertEquals(relay, join.relay);
+
+        RejoinChat rejoin = roundTrip(new RejoinChat(8, this.sessionInfo, relay));
+        assertEquals(8, rejoin.timestamp);
+        assertSessionInfo(this.sessionInfo, rejoin.sessionInfo);
+        assertEquals(relay, rejoin.relay);
+
+        LeaveChat leave = roundTrip(new LeaveChat(9, this.sessionInfo));
+        assertEquals(9, leave.timestamp);
+        assertSessionInfo(this.sessionInfo, leave.sessionInfo);
+
+        AddMessage add = roundTrip(new AddMessage(this.message, this.sessionInfo, 12345678901L));
+        assertChatMessage(this.message, add.message);
+        assertSessionInfo(this.sessionInfo, add.sessionInfo);
+        assertEquals(12345678901L, add.requestId);
+
+        FetchHistory fetch = roundTrip(new FetchHistory(this.sessionInfo, 10, 250, 100));
+        assertSessionInfo(this.sessionInfo, fetch.sessionInfo);
+        assertEquals(10, fetch.fromSequenceNr);
+        assertEquals(250, fetch.throughSequenceNr);
+        assertEquals(100, fetch.maxFrames);
+
+        SendSignal signal = roundTrip(new SendSignal(11, this.sessionInfo, "typing"));
+        assertEquals(11, signal.timestamp);
+        assertSessionInfo(this.sessionInfo, signal.sessionInfo);
+        assertEquals("typing", signal.type);
+    }
+
+    @Test
+    public void roundTripsResponses() {
+        assertEquals(99, roundTrip(new Committed(99)).requestId);
+
+        Rejoined rejoined = roundTrip(new Rejoined(43, 50));
+        assertEquals(43, rejoined.fromSequenceNr);
+        assertEquals(50, rejoined.throughSequenceNr);
+
+        HistoryPage page = roundTrip(new HistoryPage(Arrays.asList(this.frame, this.frame), 51));
+        assertEquals(2, page.frames.size());
+        assertChatFrame(this.frame, page.frames.get(1));
+        assertEquals(51, page.nextSequenceNr);
+
+        NewChatMessage newMessage = roundTrip(new NewChatMessage(this.message, "42"));
+        assertChatMessage(this.message, newMessage.chatMessage);
+        assertEquals("42", newMessage.lastEventId);
+    }
+
+    @Test
+    public void roundTripsEvents() {
+        assertChatMessage(this.message, roundTrip(new MemberJoined(this.message)).message);
+        assertChatMessage(this.message, roundTrip(new MemberLeft(this.message)).message);
+        assertChatMessage(this.message, roundTrip(new MessageAdded(this.message)).message);
+        assertEquals(MemberLeft.class, roundTrip(new MemberLeft(this.message)).getClass());
+    }
+
+    @Test
+    public void roundTripsState() {
+        ChatRoomEntityState state = new ChatRoomEntityState("room-1").withLimits(2, Long.MAX_VALUE);
+        state.update(new MemberJoined(new ChatMessage(1, "user-1", "joined")), 1);
+        state.update(new MemberJoined(new ChatMessage(2, "user-2", "joined")), 2);
+        state.update(new MessageAdded(new ChatMessage(3, "user-1", "first")), 3);
+        state.update(new MessageAdded(new ChatMessage(4, "user-2", "second")), 5);
+
+        ChatRoomEntityState read = roundTrip(state);
+        assertEquals("room-1", read.chatRoom);
+        assertEquals(state.members, read.members);
+        assertEquals(2, read.evictedThrough);
+        assertEquals(2, read.chatLog.size());
+        assertEquals(3, read.chatLog.sequenceNrAt(0));
+        assertEquals(5, read.chatLog.sequenceNrAt(1));
+        assertChatMessage(state.chatLog.messageAt(1), read.chatLog.messageAt(1));
+
+        ChatRoomEntityState empty = roundTrip(new ChatRoomEntityState("room-2"));
+        assertEquals("room-2", empty.chatRoom);
+        assertTrue(empty.members.isEmpty());
+        assertTrue(empty.chatLog.isEmpty());
+        assertEquals(0, empty.evictedThrough);
+    }
+
+    @Test
+    public void roundTripsModels() {
+        assertChatMessage(this.message, roundTrip(this.message));
+        assertSessionInfo(this.sessionInfo, roundTrip(this.sessionInfo));
+        assertChatFrame(this.frame, roundTrip(this.frame));
+
+        ChatMessageEnvelope envelope = roundTrip(new ChatMessageEnvelope(this.message, "42"));
+        assertChatMessage(this.message, envelope.getMessage());
+        assertEquals("42", envelope.getLastEventId());
+        assertNull(envelope.getGap());
+
+        ChatMessageEnvelope gap = roundTrip(new ChatMessageEnvelope(new ChatGap("43", "50", 8)));
+        assertNull(gap.getMessage());
+        assertNull(gap.getLastEventId());
+        assertEquals("43", gap.getGap().getFromEventId());
+        assertEquals("50", gap.getGap().getToEventId());
+        assertEquals(8, gap.getGap().getMissed());
+
+        ChatMessageEnvelope signals = roundTrip(new ChatMessageEnvelope(Arrays.asList(
+            new ChatSignal("user-1", ChatSignal.TYPING, 1546300800000L), new ChatSignal("user-2", ChatSignal.AWAY, 1546300801000L))));
+        assertNull(signals.getMessage());
+        assertNull(signals.getGap());
+        assertEquals(2, signals.getSignals().size());
+        assertChatSignal(new ChatSignal("user-2", ChatSignal.AWAY, 1546300801000L), signals.getSignals().get(1));
+        assertTrue(roundTrip(new ChatMessageEnvelope(Collections.emptyList())).getSignals().isEmpty());
+        assertChatSignal(new ChatSignal("user-1", ChatSignal.ONLINE, 5), roundTrip(new ChatSignal("user-1", ChatSignal.ONLINE, 5)));
+
+        ChatRoom chatRoom = roundTrip(new ChatRoom("room-1", 3, 1546300800000L, 42));
+        assertChatRoom(new ChatRoom("room-1", 3, 1546300800000L, 42), chatRoom);
+
+        // nullable strings and payloads stay null
+        SessionInfo joined = roundTrip(new SessionInfo("session-2", "user-2", "room-1", null, false));
+        assertNull(joined.getLastEventId());
+        assertFalse(joined.isRejoin());
+        assertNull(roundTrip(new ChatFrame(null, bytes("{}"), null)).getEventId());
+    }
+
+    @Test
+    public void roundTripsRelayDirectoryAndLoadMessages() {
+        assertChatFrame(this.frame, roundTrip(new Publish(this.frame)).frame);
+
+        Deliver deliver = roundTrip(new Deliver("session-1", Collections.singletonList(this.frame), true));
+        assertEquals("session-1", deliver.sessionId);
+        assertTrue(deliver.attach);
+        assertChatFrame(this.frame, deliver.frames.get(0));
+
+        assertEquals("session-1", roundTrip(new SessionDetached("session-1")).sessionId);
+
+        assertChatRoom(new ChatRoom("room-1", 3, 5, 6), roundTrip(new RoomUpdated(new ChatRoom("room-1", 3, 5, 6))).chatRoom);
+        assertNotNull(roundTrip(new SyncRequest()));
+        SyncReply reply = roundTrip(new SyncReply(Arrays.asList(new ChatRoom("room-1", 1, 2, 3), new ChatRoom("room-2", 3, 4, 5))));
+        assertEquals(2, reply.chatRooms.size());
+        assertChatRoom(new ChatRoom("room-2", 3, 4, 5), reply.chatRooms.get(1));
+
+        ShardLoadReport report = roundTrip(new ShardLoadReport(Collections.singletonList(new ShardLoad("17", 600, 12))));
+        assertEquals("17", report.shards.get(0).shardId);
+        assertEquals(600, report.shards.get(0).messagesPerMinute);
+        assertEquals(12, report.shards.get(0).sessions);
+    }
+
+    @Test
+    public void readsVersion1State() {
+        // version 1 logged messages by timestamp/user id, the log that follows the members is skipped
+        byte[] bytes = new BinaryWriter()
+            .writeByte(1)
+            .writeString("room-1")
+            .writeVarInt(2).writeString("user-1").writeString("user-2")
+            .writeVarInt(1).writeVarLong(1).writeString("user-1").writeString("hello")
+            .toByteArray();
+
+        ChatRoomEntityState state = (ChatRoomEntityState)serializer.fromBinary(bytes, ChatSerializer.CHAT_ROOM_STATE);
+        assertEquals("room-1", state.chatRoom);
+        assertEquals(2, state.members.size());
+        assertTrue(state.chatLog.isEmpty());
+        assertEquals(-1, state.evictedThrough);
+    }
+
+    @Test
+    public void readsVersion2State() {
+        byte[] bytes = new BinaryWriter()
+            .writeByte(2)
+            .writeString("room-1")
+            .writeVarInt(1).writeString("user-1")
+            .writeVarLong(10)
+            .writeVarInt(2)
+            .writeVarLong(1).writeVarLong(1).writeString("user-1").writeString("first")
+            .writeVarLong(3).writeVarLong(2).writeString("user-1").writeString("second")
+            .toByteArray();
+
+        ChatRoomEntityState state = (ChatRoomEntityState)serializer.fromBinary(bytes, ChatSerializer.CHAT_ROOM_STATE);
+        assertEquals(10, state.evictedThrough);
+        assertEquals(2, state.chatLog.size());
+        assertEquals(11, state.chatLog.sequenceNrAt(0));
+        assertEquals(14, state.chatLog.sequenceNrAt(1));
+        assertEquals("second", state.chatLog.messageAt(1).getMessage());
+    }
+
+    @Test
+    public void readsFramesWithoutBinaryPayload() {
+        // frames before version 3 carried only the json encoding
+        for (int version = 1; version <= 2; version++) {
+            byte[] bytes = new BinaryWriter()
+                .writeByte(version)
+                .writeString("42")
+                .writeBytes(bytes("{}"))
+                .toByteArray();
+            ChatFrame read = (ChatFrame)serializer.fromBinary(bytes, ChatSerializer.CHAT_FRAME);
+            assertEquals("42", read.getEventId());
+            assertArrayEquals(bytes("{}"), read.getPayload());
+            assertNull(read.getBinaryPayload());
+
+            byte[] deliver = new BinaryWriter()
+                .writeByte(version)
+                .writeString("session-1")
+                .writeBoolean(false)
+                .writeVarInt(2)
+                .writeString("1").writeBytes(bytes("{}"))
+                .writeString("2").writeBytes(bytes("[]"))
+                .toByteArray();
+            Deliver readDeliver = (Deliver)serializer.fromBinary(deliver, ChatSerializer.DELIVER);
+            assertEquals(2, readDeliver.frames.size());
+            assertArrayEquals(bytes("[]"), readDeliver.frames.get(1).getPayload());
+            assertNull(readDeliver.frames.get(1).getBinaryPayload());
+        }
+    }
+
+    @Test
+    public void bindsEnvelopesAndSignalsToItself() {
+        // rather than falling back to java serialization
+        Serialization serialization = SerializationExtension.get(system);
+        assertEquals(ChatSerializer.class, serialization.findSerializerFor(
+            new ChatMessageEnvelope(Collections.singletonList(new ChatSignal("user-1", ChatSignal.TYPING, 1)))).getClass());
+        assertEquals(ChatSerializer.class, serialization.findSerializerFor(new ChatMessageEnvelope(new ChatGap("1", "2", 2))).getClass());
+        assertEquals(ChatSerializer.class, serialization.findSerializerFor(new ChatSignal("user-1", ChatSignal.TYPING, 1)).getClass());
+    }
+
+    @Test
+    public void readsEnvelopesWithoutKind() {
+        // envelopes before version 4 were always a message
+        byte[] bytes = new BinaryWriter()
+            .writeByte(3)
+            .writeVarLong(this.message.getTimestamp()).writeString("user-1").writeString("hello")
+            .writeString("42")
+            .toByteArray();
+        ChatMessageEnvelope read = (ChatMessageEnvelope)serializer.fromBinary(bytes, ChatSerializer.CHAT_MESSAGE_ENVELOPE);
+        assertEquals("hello", read.getMessage().getMessage());
+        assertEquals("42", read.getLastEventId());
+        assertNull(read.getGap());
+    }
+
+    @Test
+    public void readsUnversionedChatRooms() {
+        // summaries before version 5 had no sequence nr, any versioned one replaces them
+        byte[] bytes = new BinaryWriter()
+            .writeByte(4)
+            .writeVarInt(2)
+            .writeString("room-1").writeVarInt(1).writeVarLong(2)
+            .writeString("room-2").writeVarInt(3).writeVarLong(4)
+            .toByteArray();
+        SyncReply reply = (SyncReply)serializer.fromBinary(bytes, ChatSerializer.SYNC_REPLY);
+        assertChatRoom(new ChatRoom("room-1", 1, 2, 0), reply.chatRooms.get(0));
+        assertChatRoom(new ChatRoom("room-2", 3, 4, 0), reply.chatRooms.get(1));
+    }
+
+    @Test
+    public void readsVersion1RequestIdsAsZero() {
+        byte[] add = new BinaryWriter()
+            .writeByte(1)
+            .writeVarLong(this.message.getTimestamp()).writeString("user-1").writeString("hello")
+            .writeString("session-1").writeString("user-1").writeString("room-1").writeString("").writeBoolean(false)
+            .toByteArray();
+        AddMessage read = (AddMessage)serializer.fromBinary(add, ChatSerializer.ADD_MESSAGE);
+        assertEquals("hello", read.message.getMessage());
+        assertEquals("room-1", read.sessionInfo.getChatRoom());
+        assertEquals(0, read.requestId);
+
+        byte[] committed = new BinaryWriter().writeByte(1).toByteArray();
+        assertEquals(0, ((Committed)serializer.fromBinary(committed, ChatSerializer.COMMITTED)).requestId);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNewerVersions() {
+        byte[] bytes = new BinaryWriter().writeByte(ChatSerializer.VERSION + 1).writeVarLong(1).toByteArray();
+        serializer.fromBinary(bytes, ChatSerializer.COMMITTED);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownManifests() {
+        serializer.fromBinary(new BinaryWriter().writeByte(ChatSerializer.VERSION).toByteArray(), "Unknown");
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertChatMessage(ChatMessage expected, ChatMessage actual) {
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getUserId(), actual.getUserId());
+        assertEquals(expected.getMessage(), actual.getMessage());
+    }
+
+    private static void assertSessionInfo(SessionInfo expected, SessionInfo actual) {
+        assertEquals(expected.getSessionId(), actual.getSessionId());
+        assertEquals(expected.getUserId(), actual.getUserId());
+        assertEquals(expected.getChatRoom(), actual.getChatRoom());
+        assertEquals(expected.getLastEventId(), actual.getLastEventId());
+        assertEquals(expected.isRejoin(), actual.isRejoin());
+    }
+
+    private static void assertChatFrame(ChatFrame expected, ChatFrame actual) {
+        assertEquals(expected.getEventId(), actual.getEventId());
+        assertArrayEquals(expected.getPayload(), actual.getPayload());
+        assertArrayEquals(expected.getBinaryPayload(), actual.getBinaryPayload());
+    }
+
+    private static void assertChatSignal(ChatSignal expected, ChatSignal actual) {
+        assertEquals(expected.getUserId(), actual.getUserId());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+    }
+
+    private static void assertChatRoom(ChatRoom expected, ChatRoom actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getMemberCount(), actual.getMemberCount());
+        assertEquals(expected.getLastActivity(), actual.getLastActivity());
+        assertEquals(expected.getVersion(), actual.getVersion());
+    }
+}
@@ -0,0 +1,166 @@
+package com.box.prototype.chatservice.akka;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.box.prototype.chatservice.domain.ShardLoadProtocol.ShardLoad;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.IndexedSeq;
+import scala.concurrent.Await;
+import scala.concurrent.Future;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/** allocation of new shards to the least loaded region, and rebalancing of shards between regions by their load */
+public class LoadAwareShardAllocationStrategyTest {
+    private static ActorSystem system;
+
+    private LoadAwareShardAllocationStrategy strategy;
+    private ActorRef regionA;
+    private ActorRef regionB;
+    private ActorRef regionC;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("LoadAwareShardAllocationStrategyTest", ConfigFactory.load("test"));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void createStrategy() {
+        this.strategy = new LoadAwareShardAllocationStrategy(ConfigFactory.parseString(String.join("\n",
+            "chat-rooms.shard-allocation.session-weight = 0.5",
+            "chat-rooms.shard-allocation.rebalance-threshold = 0.2",
+            "chat-rooms.shard-allocation.max-simultaneous-rebalance = 3",
+            "chat-rooms.shard-allocation.load-ttl = 60s")));
+        this.regionA = new TestKit(system).getRef();
+        this.regionB = new TestKit(system).getRef();
+        this.regionC = new TestKit(system).getRef();
+    }
+
+    /** reports a shard's load, as the shard load monitors do */
+    protected void report(String shardId, long messagesPerMinute, int sessions) {
+        this.strategy.update(new ShardLoad(shardId, messagesPerMinute, sessions));
+    }
+
+    protected static IndexedSeq<String> shards(String... shardIds) {
+        return JavaConverters.asScalaBufferConverter(Arrays.asList(shardIds)).asScala().toIndexedSeq();
+    }
+
+    protected static <T> T await(Future<T> future) throws Exception {
+        return Await.result(future, FiniteDuration.create(3, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void loadIsBaselinePlusMessageRateAndSessions() {
+        assertEquals(1.0, this.strategy.load("1"), 0.001);
+        report("1", 600, 4);
+        assertEquals(1.0 + 10 + 2, this.strategy.load("1"), 0.001);
+    }
+
+    @Test
+    public void allocatesToLeastLoadedRegion() throws Exception {
+        report("1", 6000, 0);
+        Map<ActorRef, IndexedSeq<String>> allocations = new HashMap<>();
+        allocations.put(this.regionA, shards("1", "2"));
+        allocations.put(this.regionB, shards("3", "4", "5"));
+
+        // b has more shards, but a has the hot one
+        assertEquals(this.regionB, await(this.strategy.allocateShard(this.regionA, "6", allocations)));
+    }
+
+    @Test
+    public void allocatesToRegionWithFewerShardsOnEqualLoad() throws Exception {
+        report("1", 60, 0);
+        Map<ActorRef, IndexedSeq<String>> allocations = new HashMap<>();
+        allocations.put(this.regionA, shards("2", "3"));
+        allocations.put(this.regionB, shards("1"));
+
+        assertEquals(this.regionB, await(this.strategy.allocateShard(this.regionA, "4", allocations)));
+    }
+
+    @Test
+    public void allocatesToRequesterWithoutRegions() throws Exception {
+        assertEquals(this.regionC, await(this.strategy.allocateShard(this.regionC, "1", Collections.emptyMap())));
+    }
+
+    @Test
+    public void rebalancesShardsThatNarrowTheGapMost() throws Exception {
+        report("1", 180, 0);
+        report("2", 420, 0);
+        Map<ActorRef, IndexedSeq<String>> allocations = new HashMap<>();
+        // a: 4 + 8 + 1, b: 1 + 1
+        allocations.put(this.regionA, shards("1", "2", "3"));
+        allocations.put(this.regionB, shards("4", "5"));
+
+        // the gap is 11, and shard 1 is closest to half of it.  that leaves a gap of 3, still over the threshold,
+        // which shard 3 narrows to 1.  shard 2 would have just moved the imbalance over to b
+        Set<String> rebalance = await(this.strategy.rebalance(allocations, Collections.emptySet()));
+        assertEquals(new HashSet<>(Arrays.asList("1", "3")), rebalance);
+    }
+
+    @Test
+    public void leavesRegionsWithinThresholdAlone() throws Exception {
+        report("1", 60, 0);
+        Map<ActorRef, IndexedSeq<String>> allocations = new HashMap<>();
+        // a: 2 + 1 + 1 + 1 + 1, b: 1 + 1 + 1 + 1 + 1, a gap of 1 is within a fifth of a's load
+        allocations.put(this.regionA, shards("1", "2", "3", "4", "5"));
+        allocations.put(this.regionB, shards("6", "7", "8", "9", "10"));
+
+        assertTrue(await(this.strategy.rebalance(allocations, Collections.emptySet())).isEmpty());
+    }
+
+    @Test
+    public void leavesSingleHotShardWhereItIs() throws Exception {
+        report("1", 6000, 0);
+        Map<ActorRef, IndexedSeq<String>> allocations = new HashMap<>();
+        allocations.put(this.regionA, shards("1"));
+        allocations.put(this.regionB, shards("2"));
+
+        // moving it would only move the hot spot to b
+        assertTrue(await(this.strategy.rebalance(allocations, Collections.emptySet())).isEmpty());
+    }
+
+    @Test
+    public void rebalancesAtMostMaxSimultaneous() throws Exception {
+        Map<ActorRef, IndexedSeq<String>> allocations = new HashMap<>();
+        allocations.put(this.regionA, shards("1", "2", "3", "4", "5", "6", "7", "8", "9", "10"));
+        allocations.put(this.regionB, shards("11"));
+
+        assertEquals(3, await(this.strategy.rebalance(allocations, Collections.emptySet())).size());
+        // shards already being handed off count towards the limit
+        Set<String> inProgress = new HashSet<>(Arrays.asList("1", "2"));
+        Set<String> rebalance = await(this.strategy.rebalance(allocations, inProgress));
+        assertEquals(1, rebalance.size());
+        assertFalse(rebalance.contains("1") || rebalance.contains("2"));
+        assertTrue(await(this.strategy.rebalance(allocations, new HashSet<>(Arrays.asList("1", "2", "3")))).isEmpty());
+    }
+
+    @Test
+    public void doesNotRebalanceSingleRegion() throws Exception {
+        report("1", 6000, 0);
+        Map<ActorRef, IndexedSeq<String>> allocations = new HashMap<>();
+        allocations.put(this.regionA, shards("1", "2", "3"));
+
+        assertTrue(await(this.strategy.rebalance(allocations, Collections.emptySet())).isEmpty());
+    }
+}
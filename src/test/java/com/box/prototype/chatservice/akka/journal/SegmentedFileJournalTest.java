@@ -0,0 +1,37 @@
+package com.box.prototype.chatservice.akka.journal;
+
+import akka.persistence.japi.journal.JavaJournalSpec;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
+/**
+ * the journal plugin against akka's journal tck: writes, replays with bounds and max, deletes, highest sequence nrs,
+ * and rejection of events that can't be serialized.  the snapshot store is akka's own local store, so there's no
+ * snapshot store spec
+ */
+public class SegmentedFileJournalTest extends JavaJournalSpec {
+    public SegmentedFileJournalTest() {
+        super(config());
+    }
+
+    /** the segmented journal in a directory of its own, small segments so the tests roll over a few of them */
+    protected static Config config() {
+        try {
+            String dir = Files.createTempDirectory("segmented-journal").toString();
+            return ConfigFactory.parseString(String.join("\n",
+                    "akka.persistence.journal.plugin = chat.persistence.journal.segmented",
+                    "chat.persistence.journal.segmented.partitions = 4",
+                    "chat.persistence.journal.segmented.segment-size = 4k",
+                    "chat.persistence.journal.segmented.fsync = off"))
+                .withValue("chat.persistence.journal.segmented.dir", ConfigValueFactory.fromAnyRef(dir))
+                .withFallback(ConfigFactory.load("test"));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.box.prototype.chatservice.akka.journal;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.persistence.PersistentRepr;
+import akka.persistence.PersistentRepr$;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.*;
+
+/** recovery of the journal store from a torn write, reclaiming of deleted segments, and tag queries over partitions */
+public class SegmentedJournalStoreTest {
+    private static final String PADDING = String.join("", Collections.nCopies(200, "x"));
+    private static ActorSystem system;
+    private static Serialization serialization;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private SegmentedJournalStore store;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("SegmentedJournalStoreTest", ConfigFactory.load("test"));
+        serialization = SerializationExtension.get(system);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @After
+    public void closeStore() {
+        if (this.store != null) {
+            this.store.close();
+        }
+    }
+
+    /** opens the store, a new one in its directory if it's been closed.  segments fit a few events each */
+    protected SegmentedJournalStore open(int partitions) throws Exception {
+        if (this.dir == null) {
+            this.dir = this.folder.newFolder("journal");
+        }
+        this.store = new SegmentedJournalStore(system, ConfigFactory.parseString(String.join("\n",
+                "segment-size = 1k",
+                "fsync = off",
+                "group-commit.window = 0",
+                "group-commit.max-writes = 1000"))
+            .withValue("dir", ConfigValueFactory.fromAnyRef(this.dir.getPath()))
+            .withValue("partitions", ConfigValueFactory.fromAnyRef(partitions)));
+        return this.store;
+    }
+
+    protected SegmentedJournalStore reopen() throws Exception {
+        int partitions = this.dir.listFiles(File::isDirectory).length;
+        this.store.close();
+        this.store = null;
+        return open(partitions);
+    }
+
+    /** writes an event on its own, as a persistent actor persisting one at a time does */
+    protected void write(String persistenceId, long sequenceNr, String... tags) throws Exception {
+        PersistentRepr repr = PersistentRepr$.MODULE$.apply(payload(persistenceId, sequenceNr), sequenceNr, persistenceId,
+            "", false, ActorRef.noSender(), "");
+        JournalRecord.Event event = new JournalRecord.Event(0, sequenceNr, new HashSet<>(Arrays.asList(tags)),
+            serialization.serialize(repr).get());
+        this.store.write(Collections.singletonList(new SegmentedJournalStore.Write(persistenceId, Collections.singletonList(event))))
+            .get(3, TimeUnit.SECONDS);
+    }
+
+    protected static String payload(String persistenceId, long sequenceNr) {
+        return persistenceId + "-" + sequenceNr + "-" + PADDING;
+    }
+
+    protected List<Long> replay(String persistenceId) {
+        List<Long> sequenceNrs = new ArrayList<>();
+        this.store.replay(persistenceId, 1, Long.MAX_VALUE, Long.MAX_VALUE, entry -> {
+            assertEquals(payload(persistenceId, entry.repr.sequenceNr()), entry.repr.payload());
+            sequenceNrs.add(entry.repr.sequenceNr());
+        });
+        return sequenceNrs;
+    }
+
+    protected static List<Long> range(long from, long to) {
+        return LongStream.rangeClosed(from, to).boxed().collect(Collectors.toList());
+    }
+
+    protected static List<Object> payloads(List<SegmentedJournalStore.Entry> entries) {
+        return entries.stream().map(entry -> entry.repr.payload()).collect(Collectors.toList());
+    }
+
+    /** where each record in a segment file ends */
+    protected static List<Integer> recordEnds(File segment) throws Exception {
+        byte[] bytes = Files.readAllBytes(segment.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        List<Integer> ends = new ArrayList<>();
+        int position = 0;
+        JournalRecord record;
+        while ((record = JournalRecord.read(buffer, position, bytes.length)) != null) {
+            position += record.length;
+            ends.add(position);
+        }
+        return ends;
+    }
+
+    @Test
+    public void recoversUpToWriteTornAtEndOfSegment() throws Exception {
+        open(1);
+        write("a", 1);
+        write("a", 2);
+        write("a", 3);
+        SegmentedJournalStore.Partition partition = this.store.partition("a");
+        JournalSegment last = partition.segments.lastEntry().getValue();
+        this.store.close();
+        this.store = null;
+
+        // a crash halfway through writing the last record
+        List<Integer> ends = recordEnds(last.file);
+        try (RandomAccessFile file = new RandomAccessFile(last.file, "rw")) {
+            file.setLength(ends.get(ends.size() - 1) - 5);
+        }
+
+        open(1);
+        assertEquals(2, this.store.highestSequenceNr("a"));
+        assertEquals(range(1, 2), replay("a"));
+
+        // the torn write is left where it is, and writes carry on in a new segment
+        write("a", 3);
+        partition = this.store.partition("a");
+        assertEquals(last.number + 1, (int)partition.segments.lastKey());
+        assertEquals(range(1, 3), replay("a"));
+
+        // which later recoveries read past the torn write to
+        reopen();
+        assertEquals(3, this.store.highestSequenceNr("a"));
+        assertEquals(range(1, 3), replay("a"));
+        write("a", 4);
+        assertEquals(range(1, 4), replay("a"));
+    }
+
+    @Test
+    public void reclaimsSegmentsOnceAllTheirEventsAreDeleted() throws Exception {
+        open(1);
+        write("b", 1);
+        for (long sequenceNr = 1; sequenceNr <= 9; sequenceNr++) {
+            write("a", sequenceNr);
+        }
+        SegmentedJournalStore.Partition partition = this.store.partition("a");
+        List<JournalSegment> segments = new ArrayList<>(partition.segments.values());
+        assertTrue("events span several segments", segments.size() >= 3);
+
+        this.store.delete("a", 4).get(3, TimeUnit.SECONDS);
+        assertEquals(range(5, 9), replay("a"));
+        assertEquals(9, this.store.highestSequenceNr("a"));
+
+        // the first segment still has b's event, and the active one is never removed
+        this.store.delete("a", 9).get(3, TimeUnit.SECONDS);
+        assertEquals(Collections.emptyList(), replay("a"));
+        assertEquals(Collections.singletonList(1L), replay("b"));
+        JournalSegment first = segments.get(0);
+        JournalSegment active = segments.get(segments.size() - 1);
+        assertEquals(Arrays.asList(first.number, active.number), new ArrayList<>(partition.segments.keySet()));
+        for (JournalSegment segment : segments.subList(1, segments.size() - 1)) {
+            assertFalse(segment.file.exists());
+        }
+
+        this.store.delete("b", 1).get(3, TimeUnit.SECONDS);
+        assertFalse(first.file.exists());
+        assertEquals(Collections.singletonList(active.number), new ArrayList<>(partition.segments.keySet()));
+
+        // deletes outlive a restart, as do the highest sequence nrs of events no longer in any segment
+        reopen();
+        assertEquals(Collections.emptyList(), replay("a"));
+        assertEquals(Collections.emptyList(), replay("b"));
+        assertEquals(9, this.store.highestSequenceNr("a"));
+        assertEquals(1, this.store.highestSequenceNr("b"));
+        write("a", 10);
+        assertEquals(Collections.singletonList(10L), replay("a"));
+    }
+
+    @Test
+    public void readsTaggedEventsAcrossPartitionsInOrder() throws Exception {
+        open(4);
+        // every other room's events are tagged, and those rooms are spread over the partitions
+        List<String> persistenceIds = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            persistenceIds.add("room-" + i);
+        }
+        List<String> tagged = persistenceIds.stream().filter(id -> id.hashCode() % 2 == 0).collect(Collectors.toList());
+        assertTrue(tagged.stream().map(this.store::partition).distinct().count() > 1);
+
+        List<Object> expected = new ArrayList<>();
+        for (long sequenceNr = 1; sequenceNr <= 3; sequenceNr++) {
+            for (String persistenceId : persistenceIds) {
+                if (tagged.contains(persistenceId)) {
+                    write(persistenceId, sequenceNr, "chat");
+                    expected.add(payload(persistenceId, sequenceNr));
+                } else {
+                    write(persistenceId, sequenceNr, "other");
+                }
+            }
+        }
+
+        // in commit order, however the events are spread over partitions and segments
+        List<SegmentedJournalStore.Entry> all = this.store.readTagged(this.store.tagCursor("chat", 0), 1000);
+        assertEquals(expected, payloads(all));
+        for (int i = 1; i < all.size(); i++) {
+            assertTrue(all.get(i - 1).ordering < all.get(i).ordering);
+        }
+
+        // read a few at a time, nothing is skipped or read twice
+        SegmentedJournalStore.TagCursor cursor = this.store.tagCursor("chat", 0);
+        List<Object> paged = new ArrayList<>();
+        List<SegmentedJournalStore.Entry> page;
+        while (!(page = this.store.readTagged(cursor, 2)).isEmpty()) {
+            paged.addAll(payloads(page));
+        }
+        assertEquals(expected, paged);
+
+        // the cursor picks up events written since
+        write(tagged.get(0), 4, "chat");
+        expected.add(payload(tagged.get(0), 4));
+        assertEquals(Collections.singletonList(payload(tagged.get(0), 4)), payloads(this.store.readTagged(cursor, 2)));
+
+        // and a new one resumes after an ordering
+        int half = all.size() / 2;
+        assertEquals(expected.subList(half + 1, expected.size()),
+            payloads(this.store.readTagged(this.store.tagCursor("chat", all.get(half).ordering), 1000)));
+    }
+}
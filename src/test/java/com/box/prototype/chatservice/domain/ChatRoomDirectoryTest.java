@@ -0,0 +1,96 @@
+package com.box.prototype.chatservice.domain;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.box.prototype.chatservice.domain.models.ChatRoom;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static com.box.prototype.chatservice.domain.ChatRoomDirectoryProtocol.*;
+import static org.junit.Assert.*;
+
+/** merging of chatroom summaries into the directory, ordered by the rooms' sequence nrs rather than their activity */
+public class ChatRoomDirectoryTest {
+    private static ActorSystem system;
+
+    private final ConcurrentNavigableMap<String, ChatRoom> chatRooms = new ConcurrentSkipListMap<>();
+    private ActorRef directory;
+    private long syncs = 0;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        system = ActorSystem.create("ChatRoomDirectoryTest", ConfigFactory.parseString(String.join("\n",
+                "chat.persistence.journal.segmented.partitions = 1",
+                "chat.persistence.journal.segmented.fsync = off"))
+            .withValue("chat.persistence.journal.segmented.dir",
+                ConfigValueFactory.fromAnyRef(Files.createTempDirectory("directory").toString()))
+            .withFallback(ConfigFactory.load("test")));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void createDirectory() {
+        this.directory = system.actorOf(ChatRoomDirectory.createProps(this.chatRooms, "chat.persistence.query.segmented"));
+    }
+
+    /** waits for the directory to have handled everything sent to it so far, by way of a summary sent after it */
+    protected void sync() {
+        long marker = ++this.syncs;
+        update(new ChatRoom("sync", 0, 0, marker));
+        new TestKit(system).awaitCond(Duration.ofSeconds(3), () ->
+            this.chatRooms.containsKey("sync") && this.chatRooms.get("sync").getVersion() == marker);
+    }
+
+    protected void update(ChatRoom chatRoom) {
+        this.directory.tell(new RoomUpdated(chatRoom), ActorRef.noSender());
+    }
+
+    @Test
+    public void keepsSummaryAtHighestSequenceNr() {
+        update(new ChatRoom("room-1", 3, 5000, 10));
+        // an earlier incarnation's summary, however late and whatever activity it claims, doesn't replace it
+        update(new ChatRoom("room-1", 1, Long.MAX_VALUE, 7));
+        this.directory.tell(new SyncReply(Collections.singletonList(new ChatRoom("room-1", 2, 6000, 9))), ActorRef.noSender());
+        sync();
+        assertEquals(3, this.chatRooms.get("room-1").getMemberCount());
+        assertEquals(10, this.chatRooms.get("room-1").getVersion());
+
+        // the next one does, even with activity that looks older
+        update(new ChatRoom("room-1", 2, 4000, 11));
+        sync();
+        assertEquals(2, this.chatRooms.get("room-1").getMemberCount());
+        assertEquals(4000, this.chatRooms.get("room-1").getLastActivity());
+
+        // and so does a summary at the same sequence nr, e.g. the room recovering without new events
+        update(new ChatRoom("room-1", 2, 4500, 11));
+        sync();
+        assertEquals(4500, this.chatRooms.get("room-1").getLastActivity());
+    }
+
+    @Test
+    public void syncRepliesMergeTheSameWay() {
+        update(new ChatRoom("room-1", 1, 1000, 5));
+        this.directory.tell(new SyncReply(Arrays.asList(new ChatRoom("room-1", 4, 900, 6), new ChatRoom("room-2", 2, 800, 3))),
+            ActorRef.noSender());
+        sync();
+        assertEquals(4, this.chatRooms.get("room-1").getMemberCount());
+        assertEquals(2, this.chatRooms.get("room-2").getMemberCount());
+    }
+}
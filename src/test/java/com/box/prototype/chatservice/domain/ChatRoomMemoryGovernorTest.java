@@ -0,0 +1,124 @@
+package com.box.prototype.chatservice.domain;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static com.box.prototype.chatservice.domain.ChatRoomMemoryProtocol.*;
+
+/** eviction order of idle chatrooms once a node's rooms go over its memory budget */
+public class ChatRoomMemoryGovernorTest {
+    private static ActorSystem system;
+
+    private ActorRef governor;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("ChatRoomMemoryGovernorTest", ConfigFactory.load("test"));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void createGovernor() {
+        this.governor = system.actorOf(ChatRoomMemoryGovernor.createProps(1000));
+    }
+
+    /** a room reporting its footprint */
+    protected TestKit report(TestKit room, String chatRoom, int sessions, long estimatedBytes, long lastActivity) {
+        this.governor.tell(new RoomFootprint(chatRoom, sessions, estimatedBytes, lastActivity), room.getRef());
+        return room;
+    }
+
+    protected static void expectNoEviction(TestKit... rooms) {
+        for (TestKit room : rooms) {
+            room.expectNoMessage(Duration.ofMillis(200));
+        }
+    }
+
+    @Test
+    public void evictsNothingWithinBudget() {
+        TestKit a = report(new TestKit(system), "a", 0, 500, 100);
+        TestKit b = report(new TestKit(system), "b", 0, 500, 50);
+        expectNoEviction(a, b);
+    }
+
+    @Test
+    public void evictsLeastRecentlyActiveIdleRoomsUntilWithinBudget() {
+        TestKit a = report(new TestKit(system), "a", 0, 400, 100);
+        TestKit b = report(new TestKit(system), "b", 0, 400, 50);
+        TestKit c = report(new TestKit(system), "c", 0, 400, 200);
+        TestKit d = report(new TestKit(system), "d", 0, 400, 300);
+
+        // 1600 bytes, b and then a were active least recently, and evicting those two is enough
+        b.expectMsgClass(EvictRoom.class);
+        a.expectMsgClass(EvictRoom.class);
+        expectNoEviction(a, b, c, d);
+    }
+
+    @Test
+    public void neverEvictsRoomsWithSessions() {
+        TestKit busy = report(new TestKit(system), "busy", 3, 800, 10);
+        TestKit idle = report(new TestKit(system), "idle", 0, 400, 500);
+
+        // the busy room is the least recently active, but its sessions would only rejoin it
+        idle.expectMsgClass(EvictRoom.class);
+        expectNoEviction(busy, idle);
+
+        TestKit alsoBusy = report(new TestKit(system), "also-busy", 1, 800, 20);
+        expectNoEviction(busy, alsoBusy);
+    }
+
+    @Test
+    public void roomsBeingEvictedAreNotAskedAgain() {
+        TestKit a = report(new TestKit(system), "a", 0, 600, 100);
+        TestKit b = report(new TestKit(system), "b", 0, 600, 200);
+        a.expectMsgClass(EvictRoom.class);
+
+        // a hasn't stopped yet, but already counts as gone, so only b's growth goes over budget again
+        report(a, "a", 0, 600, 100);
+        expectNoEviction(a, b);
+        report(b, "b", 0, 1100, 200);
+        b.expectMsgClass(EvictRoom.class);
+        expectNoEviction(a, b);
+    }
+
+    @Test
+    public void roomDecliningEvictionCountsAgain() {
+        TestKit a = report(new TestKit(system), "a", 0, 600, 100);
+        TestKit b = report(new TestKit(system), "b", 0, 600, 200);
+        a.expectMsgClass(EvictRoom.class);
+
+        // a session attached to a before it got the request, so it stays and its bytes still count
+        this.governor.tell(new EvictDeclined(new RoomFootprint("a", 1, 600, 300)), a.getRef());
+        report(b, "b", 0, 600, 200);
+        b.expectMsgClass(EvictRoom.class);
+        expectNoEviction(a, b);
+
+        // and once idle again it's a candidate like any other
+        report(a, "a", 0, 1100, 300);
+        a.expectMsgClass(EvictRoom.class);
+        expectNoEviction(a, b);
+    }
+
+    @Test
+    public void countsLatestFootprintOfEachRoom() {
+        TestKit a = report(new TestKit(system), "a", 0, 600, 100);
+        report(a, "a", 0, 700, 150);
+        report(a, "a", 0, 800, 200);
+        // the room's 800 bytes, rather than every report summed up
+        TestKit b = report(new TestKit(system), "b", 0, 200, 300);
+        expectNoEviction(a, b);
+    }
+}
@@ -0,0 +1,434 @@
+package com.box.prototype.chatservice.domain;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.stream.ActorMaterializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import akka.testkit.javadsl.TestKit;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.box.prototype.chatservice.domain.ChatRoomRelayProtocol.*;
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+import static org.junit.Assert.*;
+
+/**
+ * joins and leaves of sessions through a node's relay, fan out of published frames, failover of the chatroom, and
+ * admission and sharing of the sessions' history reads
+ */
+public class ChatRoomRelayTest {
+    private static ActorSystem system;
+    private static ActorMaterializer materializer;
+
+    /** stands in for the relay manager, the relay's parent, passing on what the relay sends it */
+    public static class Parent extends AbstractActor {
+        private final ActorRef probe;
+        private final ActorRef child;
+
+        public Parent(Props childProps, ActorRef probe) {
+            this.probe = probe;
+            this.child = getContext().actorOf(childProps, "relay");
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                .matchAny(m -> {
+                    if (getSender().equals(this.child)) {
+                        this.probe.tell(m, getSelf());
+                    } else {
+                        this.child.forward(m, getContext());
+                    }
+                })
+                .build();
+        }
+    }
+
+    /** a session's outbound queue, passing frames on to a probe */
+    protected static class TestSession {
+        final SessionInfo sessionInfo;
+        final TestKit frames = new TestKit(system);
+        final SourceQueueWithComplete<ChatFrame> queue;
+
+        TestSession(String sessionId, boolean rejoin) {
+            this.sessionInfo = new SessionInfo(sessionId, "user-" + sessionId, "room-1", rejoin ? "10" : "", rejoin);
+            this.queue = Source.<ChatFrame>queue(100, OverflowStrategy.backpressure())
+                .to(Sink.foreach(frame -> this.frames.getRef().tell(frame, ActorRef.noSender())))
+                .run(materializer);
+        }
+
+        String id() {
+            return this.sessionInfo.getSessionId();
+        }
+
+        boolean isCompleted() {
+            try {
+                this.queue.watchCompletion().toCompletableFuture().get(3, TimeUnit.SECONDS);
+                return true;
+            } catch (Exception ex) {
+                return false;
+            }
+        }
+    }
+
+    protected TestKit region;
+    protected TestKit chatRoom;
+    protected TestKit manager;
+    protected ActorRef relay;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("ChatRoomRelayTest", ConfigFactory.load("test"));
+        materializer = ActorMaterializer.create(system);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void createRelay() {
+        createRelay(1, 100);
+    }
+
+    protected void createRelay(int maxBackfills, int cacheFrames) {
+        this.region = new TestKit(system);
+        this.chatRoom = new TestKit(system);
+        this.manager = new TestKit(system);
+        Props relayProps = ChatRoomRelay.createProps("room-1", this.region.getRef(), Duration.ofHours(1), Duration.ofSeconds(5), maxBackfills, cacheFrames);
+        this.relay = system.actorOf(Props.create(Parent.class, relayProps, this.manager.getRef()));
+    }
+
+    /** subscribes a session, and attaches it as the chatroom would on join */
+    protected TestSession join(String sessionId) {
+        return join(sessionId, false);
+    }
+
+    protected TestSession join(String sessionId, boolean binary) {
+        TestSession session = subscribe(sessionId, false, binary);
+        this.region.expectMsgClass(JoinChat.class);
+        this.relay.tell(new Deliver(session.id(), Collections.emptyList(), true), this.chatRoom.getRef());
+        return session;
+    }
+
+    protected TestSession subscribe(String sessionId, boolean rejoin) {
+        return subscribe(sessionId, rejoin, false);
+    }
+
+    protected TestSession subscribe(String sessionId, boolean rejoin, boolean binary) {
+        TestSession session = new TestSession(sessionId, rejoin);
+        this.relay.tell(new Subscribe(session.sessionInfo, session.queue, binary), session.frames.getRef());
+        return session;
+    }
+
+    /** a message's frame, as the chatroom encodes it */
+    protected static ChatFrame frame(long sequenceNr) {
+        String eventId = Long.toString(sequenceNr);
+        try {
+            return ChatWireCodec.frame(eventId, new ChatMessageEnvelope(new ChatMessage(sequenceNr, "user-1", "message-" + eventId), eventId));
+        } catch (JsonProcessingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** a session's request for a page of history, through the relay as the relay manager forwards it */
+    protected void fetch(TestSession session, long fromSequenceNr, long throughSequenceNr, int maxFrames) {
+        this.relay.tell(new FetchHistory(session.sessionInfo, fromSequenceNr, throughSequenceNr, maxFrames), session.frames.getRef());
+    }
+
+    /** the node admits a read, and the relay reads from the chatroom */
+    protected FetchHistory grant() {
+        this.relay.tell(new BackfillGranted(), this.manager.getRef());
+        return this.region.expectMsgClass(FetchHistory.class);
+    }
+
+    /** the chatroom's page of history, each message its sequence nr's frame */
+    protected static HistoryPage page(long fromSequenceNr, long throughSequenceNr) {
+        List<ChatFrame> frames = new ArrayList<>();
+        for (long sequenceNr = fromSequenceNr; sequenceNr <= throughSequenceNr; sequenceNr++) {
+            frames.add(frame(sequenceNr));
+        }
+        return new HistoryPage(frames, throughSequenceNr + 1);
+    }
+
+    protected static List<String> eventIds(HistoryPage page) {
+        List<String> eventIds = new ArrayList<>();
+        page.frames.forEach(frame -> eventIds.add(frame.getEventId()));
+        return eventIds;
+    }
+
+    @Test
+    public void joinsOnBehalfOfSession() {
+        TestSession session = subscribe("session-1", false);
+        JoinChat join = this.region.expectMsgClass(JoinChat.class);
+        assertEquals("session-1", join.sessionInfo.getSessionId());
+        // the relay attaches itself, and the chatroom acks straight back to the session
+        assertEquals(this.relay.path().child("relay"), join.relay.path());
+        assertEquals(session.frames.getRef(), this.region.getLastSender());
+
+        TestSession rejoined = subscribe("session-2", true);
+        RejoinChat rejoin = this.region.expectMsgClass(RejoinChat.class);
+        assertEquals("10", rejoin.sessionInfo.getLastEventId());
+        assertEquals(rejoined.frames.getRef(), this.region.getLastSender());
+    }
+
+    @Test
+    public void publishesOnlyToAttachedSessions() {
+        TestSession session = subscribe("session-1", false);
+        this.region.expectMsgClass(JoinChat.class);
+
+        // not attached yet, e.g. still being joined
+        this.relay.tell(new Publish(frame(1)), this.chatRoom.getRef());
+        session.frames.expectNoMessage(Duration.ofMillis(200));
+
+        // backfill comes first, then live frames
+        this.relay.tell(new Deliver(session.id(), Collections.singletonList(frame(1)), true), this.chatRoom.getRef());
+        this.relay.tell(new Publish(frame(2)), this.chatRoom.getRef());
+        assertEquals("1", session.frames.expectMsgClass(ChatFrame.class).getEventId());
+        assertEquals("2", session.frames.expectMsgClass(ChatFrame.class).getEventId());
+    }
+
+    @Test
+    public void fansOutFrameToEverySession() {
+        List<TestSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sessions.add(join("session-" + i));
+        }
+
+        ChatFrame frame = frame(7);
+        this.relay.tell(new Publish(frame), this.chatRoom.getRef());
+        // every session gets the very same frame, encoded once by the chatroom
+        sessions.forEach(session -> assertSame(frame, session.frames.expectMsgClass(ChatFrame.class)));
+    }
+
+    @Test
+    public void unsubscribeClosesSession() {
+        TestSession leaving = join("session-1");
+        TestSession staying = join("session-2");
+
+        this.relay.tell(new Unsubscribe("room-1", leaving.id()), ActorRef.noSender());
+        assertTrue(leaving.isCompleted());
+
+        this.relay.tell(new Publish(frame(1)), this.chatRoom.getRef());
+        assertEquals("1", staying.frames.expectMsgClass(ChatFrame.class).getEventId());
+        leaving.frames.expectNoMessage(Duration.ofMillis(200));
+    }
+
+    @Test
+    public void sessionDetachedClosesSession() {
+        TestSession detached = join("session-1");
+        TestSession staying = join("session-2");
+
+        this.relay.tell(new SessionDetached(detached.id()), this.chatRoom.getRef());
+        assertTrue(detached.isCompleted());
+
+        this.relay.tell(new Publish(frame(1)), this.chatRoom.getRef());
+        assertEquals("1", staying.frames.expectMsgClass(ChatFrame.class).getEventId());
+        detached.frames.expectNoMessage(Duration.ofMillis(200));
+    }
+
+    @Test
+    public void closesSessionsWhenChatRoomTerminates() {
+        TestSession first = join("session-1");
+        TestSession second = join("session-2");
+
+        // failover, the chatroom's incarnation on this node goes away and clients rejoin wherever it comes back up
+        system.stop(this.chatRoom.getRef());
+        assertTrue(first.isCompleted());
+        assertTrue(second.isCompleted());
+
+        // sessions joining afterwards are attached by the new incarnation as usual
+        this.chatRoom = new TestKit(system);
+        TestSession rejoined = join("session-3");
+        this.relay.tell(new Publish(frame(1)), this.chatRoom.getRef());
+        assertEquals("1", rejoined.frames.expectMsgClass(ChatFrame.class).getEventId());
+    }
+
+    @Test
+    public void sendsFramesAsTheyAreWithoutBinarySessions() {
+        TestSession first = join("session-1");
+        TestSession second = join("session-2");
+
+        this.relay.tell(new Publish(frame(1)), this.chatRoom.getRef());
+        assertNull(first.frames.expectMsgClass(ChatFrame.class).getBinaryPayload());
+        assertNull(second.frames.expectMsgClass(ChatFrame.class).getBinaryPayload());
+    }
+
+    @Test
+    public void transcodesFramesOnceForBinarySessions() {
+        TestSession json = join("session-1");
+        TestSession firstBinary = join("session-2", true);
+        TestSession secondBinary = join("session-3", true);
+
+        ChatFrame frame = frame(1);
+        this.relay.tell(new Publish(frame), this.chatRoom.getRef());
+        ChatFrame sentToJson = json.frames.expectMsgClass(ChatFrame.class);
+        ChatFrame sentToFirst = firstBinary.frames.expectMsgClass(ChatFrame.class);
+        ChatFrame sentToSecond = secondBinary.frames.expectMsgClass(ChatFrame.class);
+
+        // the binary sessions share the one transcoded frame, the json one gets the same json bytes either way
+        assertSame(sentToFirst, sentToSecond);
+        assertArrayEquals(ChatWireCodec.binaryPayload(frame), sentToFirst.getBinaryPayload());
+        assertSame(frame.getPayload(), sentToJson.getPayload());
+        assertSame(frame.getPayload(), sentToFirst.getPayload());
+    }
+
+    @Test
+    public void transcodesDeliveredFramesForBinarySession() {
+        TestSession json = subscribe("session-1", false);
+        this.region.expectMsgClass(JoinChat.class);
+        TestSession binary = subscribe("session-2", false, true);
+        this.region.expectMsgClass(JoinChat.class);
+
+        this.relay.tell(new Deliver(json.id(), Collections.singletonList(frame(1)), true), this.chatRoom.getRef());
+        this.relay.tell(new Deliver(binary.id(), Collections.singletonList(frame(1)), true), this.chatRoom.getRef());
+        assertNull(json.frames.expectMsgClass(ChatFrame.class).getBinaryPayload());
+        assertNotNull(binary.frames.expectMsgClass(ChatFrame.class).getBinaryPayload());
+    }
+
+    @Test
+    public void readsHistoryOnlyOnceAdmitted() {
+        TestSession session = join("session-1");
+        fetch(session, 1, 10, 5);
+        this.manager.expectMsgClass(AcquireBackfill.class);
+        this.region.expectNoMessage(Duration.ofMillis(200));
+
+        // the read is capped at a page from the earliest request, and its grant is handed back once it's done
+        FetchHistory read = grant();
+        assertEquals(1, read.fromSequenceNr);
+        assertEquals(5, read.maxFrames);
+        this.region.reply(page(1, 5));
+        this.manager.expectMsgClass(ReleaseBackfill.class);
+        HistoryPage served = session.frames.expectMsgClass(HistoryPage.class);
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), eventIds(served));
+        assertEquals(6, served.nextSequenceNr);
+    }
+
+    @Test
+    public void sharesReadBetweenNearbyCursors() {
+        TestSession first = join("session-1");
+        TestSession second = join("session-2");
+        fetch(first, 1, 10, 5);
+        fetch(second, 3, 10, 5);
+        // one read asked for, and made, for both
+        this.manager.expectMsgClass(AcquireBackfill.class);
+        this.manager.expectNoMessage(Duration.ofMillis(200));
+        assertEquals(1, grant().fromSequenceNr);
+        this.region.reply(page(1, 5));
+
+        this.manager.expectMsgClass(ReleaseBackfill.class);
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), eventIds(first.frames.expectMsgClass(HistoryPage.class)));
+        HistoryPage served = second.frames.expectMsgClass(HistoryPage.class);
+        assertEquals(Arrays.asList("3", "4", "5"), eventIds(served));
+        assertEquals(6, served.nextSequenceNr);
+        this.manager.expectNoMessage(Duration.ofMillis(200));
+        this.region.expectNoMessage(Duration.ofMillis(200));
+    }
+
+    @Test
+    public void servesCachedPagesWithoutReading() {
+        TestSession first = join("session-1");
+        fetch(first, 1, 10, 5);
+        this.manager.expectMsgClass(AcquireBackfill.class);
+        grant();
+        this.region.reply(page(1, 5));
+        this.manager.expectMsgClass(ReleaseBackfill.class);
+        first.frames.expectMsgClass(HistoryPage.class);
+
+        // a session rejoining behind the first pages in from the cache
+        TestSession second = join("session-2");
+        fetch(second, 2, 10, 2);
+        HistoryPage served = second.frames.expectMsgClass(HistoryPage.class);
+        assertEquals(Arrays.asList("2", "3"), eventIds(served));
+        assertEquals(4, served.nextSequenceNr);
+        this.manager.expectNoMessage(Duration.ofMillis(200));
+        this.region.expectNoMessage(Duration.ofMillis(200));
+    }
+
+    @Test
+    public void readsNoMoreThanRoomsLimitAtOnce() {
+        TestSession first = join("session-1");
+        TestSession second = join("session-2");
+        fetch(first, 1, 200, 5);
+        fetch(second, 100, 200, 5);
+        this.manager.expectMsgClass(AcquireBackfill.class);
+        assertEquals(1, grant().fromSequenceNr);
+        // the room's one read is in flight, the other request waits for it
+        this.manager.expectNoMessage(Duration.ofMillis(200));
+
+        this.region.reply(page(1, 5));
+        this.manager.expectMsgClass(ReleaseBackfill.class);
+        first.frames.expectMsgClass(HistoryPage.class);
+        this.manager.expectMsgClass(AcquireBackfill.class);
+        assertEquals(100, grant().fromSequenceNr);
+        this.region.reply(page(100, 104));
+        this.manager.expectMsgClass(ReleaseBackfill.class);
+        assertEquals("100", second.frames.expectMsgClass(HistoryPage.class).frames.get(0).getEventId());
+    }
+
+    @Test
+    public void failsWaitingFetchesWhenReadFails() {
+        TestSession session = join("session-1");
+        fetch(session, 1, 10, 5);
+        this.manager.expectMsgClass(AcquireBackfill.class);
+        grant();
+        this.region.reply("unexpected");
+        this.manager.expectMsgClass(ReleaseBackfill.class);
+        session.frames.expectMsgClass(Status.Failure.class);
+    }
+
+    @Test
+    public void releasesGrantOfDetachedSessionsFetch() {
+        TestSession detached = join("session-1");
+        fetch(detached, 1, 10, 5);
+        this.manager.expectMsgClass(AcquireBackfill.class);
+
+        // the session goes before the node admits its read, which the relay has no use for by then
+        this.relay.tell(new SessionDetached(detached.id()), this.chatRoom.getRef());
+        this.relay.tell(new BackfillGranted(), this.manager.getRef());
+        this.manager.expectMsgClass(ReleaseBackfill.class);
+        this.region.expectNoMessage(Duration.ofMillis(200));
+        detached.frames.expectNoMessage(Duration.ofMillis(200));
+    }
+
+    @Test
+    public void readsForSessionsStillWaitingWhenOneUnsubscribes() {
+        TestSession leaving = join("session-1");
+        TestSession staying = join("session-2");
+        fetch(leaving, 1, 200, 5);
+        fetch(staying, 100, 200, 5);
+        this.manager.expectMsgClass(AcquireBackfill.class);
+
+        // the grant goes to the earliest request still waiting
+        this.relay.tell(new Unsubscribe("room-1", leaving.id()), ActorRef.noSender());
+        assertEquals(100, grant().fromSequenceNr);
+        this.region.reply(page(100, 104));
+        this.manager.expectMsgClass(ReleaseBackfill.class);
+        assertEquals("100", staying.frames.expectMsgClass(HistoryPage.class).frames.get(0).getEventId());
+        leaving.frames.expectNoMessage(Duration.ofMillis(200));
+        this.manager.expectNoMessage(Duration.ofMillis(200));
+    }
+}
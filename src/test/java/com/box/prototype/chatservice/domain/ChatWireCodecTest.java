@@ -0,0 +1,128 @@
+package com.box.prototype.chatservice.domain;
+
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatGap;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.box.prototype.chatservice.domain.models.ChatSignal;
+import com.box.prototype.chatservice.util.BinaryReader;
+import com.box.prototype.chatservice.util.BinaryWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/** binary encoding of envelopes and inbound messages, and transcoding of json frames to binary */
+public class ChatWireCodecTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    protected static ChatMessageEnvelope roundTrip(ChatMessageEnvelope envelope) {
+        BinaryReader in = new BinaryReader(ChatWireCodec.encodeBinary(envelope));
+        ChatMessageEnvelope decoded = ChatWireCodec.decodeBinaryEnvelope(in);
+        assertEquals("envelope read to its end", 0, in.remaining());
+        return decoded;
+    }
+
+    @Test
+    public void roundTripsMessageEnvelope() {
+        ChatMessageEnvelope envelope = roundTrip(new ChatMessageEnvelope(new ChatMessage(1234567890123L, "alice", "héllo, wörld"), "42"));
+        assertEquals("42", envelope.getLastEventId());
+        assertEquals(1234567890123L, envelope.getMessage().getTimestamp());
+        assertEquals("alice", envelope.getMessage().getUserId());
+        assertEquals("héllo, wörld", envelope.getMessage().getMessage());
+        assertNull(envelope.getGap());
+        assertNull(envelope.getSignals());
+    }
+
+    @Test
+    public void roundTripsGapEnvelope() {
+        ChatMessageEnvelope envelope = roundTrip(new ChatMessageEnvelope(new ChatGap("10", "99", 90)));
+        assertEquals("10", envelope.getGap().getFromEventId());
+        assertEquals("99", envelope.getGap().getToEventId());
+        assertEquals(90, envelope.getGap().getMissed());
+        assertNull(envelope.getMessage());
+    }
+
+    @Test
+    public void roundTripsSignalsEnvelope() {
+        ChatMessageEnvelope envelope = roundTrip(new ChatMessageEnvelope(Arrays.asList(
+            new ChatSignal("alice", ChatSignal.TYPING, 1000),
+            new ChatSignal("bob", ChatSignal.ONLINE, 2000))));
+        assertEquals(2, envelope.getSignals().size());
+        assertEquals("alice", envelope.getSignals().get(0).getUserId());
+        assertEquals(ChatSignal.TYPING, envelope.getSignals().get(0).getType());
+        assertEquals(1000, envelope.getSignals().get(0).getTimestamp());
+        assertEquals("bob", envelope.getSignals().get(1).getUserId());
+        assertEquals(ChatSignal.ONLINE, envelope.getSignals().get(1).getType());
+        assertNull(envelope.getMessage());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownEnvelopeKind() {
+        ChatWireCodec.decodeBinaryEnvelope(new BinaryReader(new BinaryWriter().writeByte(99).toByteArray()));
+    }
+
+    @Test
+    public void decodesInboundMessagesAndSignals() throws Exception {
+        ChatWireCodec.Inbound message = ChatWireCodec.decodeBinary(ByteBuffer.wrap(
+            ChatWireCodec.encodeBinaryInbound(new ChatMessage(1000, "alice", "hello"))));
+        assertNull(message.signal);
+        assertEquals(1000, message.message.getTimestamp());
+        assertEquals("alice", message.message.getUserId());
+        assertEquals("hello", message.message.getMessage());
+
+        ChatWireCodec.Inbound signal = ChatWireCodec.decodeBinary(ByteBuffer.wrap(ChatWireCodec.encodeBinarySignal(ChatSignal.TYPING)));
+        assertNull(signal.message);
+        assertEquals(ChatSignal.TYPING, signal.signal);
+
+        ChatWireCodec.Inbound json = ChatWireCodec.decodeJson(ByteBuffer.wrap(
+            "{\"timestamp\":1000,\"userId\":\"alice\",\"message\":\"hello\"}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("hello", json.message.getMessage());
+        assertEquals(ChatSignal.TYPING, ChatWireCodec.decodeJson(ByteBuffer.wrap(
+            "{\"signal\":\"typing\"}".getBytes(StandardCharsets.UTF_8))).signal);
+    }
+
+    @Test
+    public void decodesInboundBinaryInPlace() {
+        // e.g. a websocket frame's payload, a slice of a larger buffer
+        byte[] encoded = ChatWireCodec.encodeBinaryInbound(new ChatMessage(1000, "alice", "hello"));
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 8);
+        buffer.position(4);
+        buffer.put(encoded).flip().position(4);
+        assertEquals("hello", ChatWireCodec.decodeBinary(buffer.slice()).message.getMessage());
+    }
+
+    @Test
+    public void framesAreJsonUntilTranscoded() throws Exception {
+        ChatMessageEnvelope envelope = new ChatMessageEnvelope(new ChatMessage(1000, "alice", "hello"), "7");
+        ChatFrame frame = ChatWireCodec.frame("7", envelope);
+        assertEquals("7", frame.getEventId());
+        assertNull(frame.getBinaryPayload());
+        assertEquals("hello", this.mapper.readValue(frame.getPayload(), ChatMessageEnvelope.class).getMessage().getMessage());
+
+        // transcoding gives the same bytes as encoding the envelope, keeping the json bytes as they are
+        ChatFrame transcoded = ChatWireCodec.withBinaryPayload(frame);
+        assertArrayEquals(ChatWireCodec.encodeBinary(envelope), transcoded.getBinaryPayload());
+        assertArrayEquals(ChatWireCodec.encodeBinary(envelope), ChatWireCodec.binaryPayload(frame));
+        assertSame(frame.getPayload(), transcoded.getPayload());
+        assertEquals("7", transcoded.getEventId());
+
+        // and happens once
+        assertSame(transcoded, ChatWireCodec.withBinaryPayload(transcoded));
+        assertSame(transcoded.getBinaryPayload(), ChatWireCodec.binaryPayload(transcoded));
+    }
+
+    @Test
+    public void transcodesGapAndSignalFrames() throws Exception {
+        ChatFrame gap = ChatWireCodec.frame(null, new ChatMessageEnvelope(new ChatGap("1", "5", 5)));
+        assertEquals(5, ChatWireCodec.decodeBinaryEnvelope(new BinaryReader(ChatWireCodec.binaryPayload(gap))).getGap().getMissed());
+
+        ChatFrame signals = ChatWireCodec.frame(null, new ChatMessageEnvelope(Arrays.asList(new ChatSignal("bob", ChatSignal.IDLE, 3000))));
+        assertEquals(ChatSignal.IDLE,
+            ChatWireCodec.decodeBinaryEnvelope(new BinaryReader(ChatWireCodec.binaryPayload(signals))).getSignals().get(0).getType());
+    }
+}
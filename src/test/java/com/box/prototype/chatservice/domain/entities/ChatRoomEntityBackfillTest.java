@@ -0,0 +1,155 @@
+package com.box.prototype.chatservice.domain.entities;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.japi.Pair;
+import akka.testkit.javadsl.TestKit;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+import static org.junit.Assert.*;
+
+/**
+ * rejoins from a cursor, and the backfill paged in after them: from the journal for what's been evicted from the
+ * in-memory window, from memory for what's still in it.  event ids are the events' sequence nrs throughout
+ */
+public class ChatRoomEntityBackfillTest {
+    private static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        File dir = Files.createTempDirectory("backfill").toFile();
+        // three messages in memory, so after ten events everything through 7 has been evicted
+        system = ActorSystem.create("ChatRoomEntityBackfillTest", ConfigFactory.parseString(String.join("\n",
+                "akka.persistence.journal.plugin = chat.persistence.journal.segmented",
+                "chat.persistence.journal.segmented.partitions = 1",
+                "chat.persistence.journal.segmented.fsync = off",
+                "chat-rooms.chat-log.read-journal = chat.persistence.query.segmented",
+                "chat-rooms.chat-log.max-messages = 3",
+                "chat-rooms.passivation.idle-timeout = 0"))
+            .withValue("chat.persistence.journal.segmented.dir", ConfigValueFactory.fromAnyRef(new File(dir, "journal").getPath()))
+            .withValue("akka.persistence.snapshot-store.local.dir", ConfigValueFactory.fromAnyRef(new File(dir, "snapshots").getPath()))
+            .withFallback(ConfigFactory.load("test")));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    /** a room alice joined (event 1) and added messages 2 through 10 to */
+    protected static ActorRef createChatRoom(String chatRoomId, TestKit session) {
+        ActorRef chatRoom = system.actorOf(Props.create(ChatRoomEntity.class), chatRoomId);
+        SessionInfo sessionInfo = new SessionInfo("session-alice", "alice", chatRoomId, "", false);
+        chatRoom.tell(new JoinChat(System.currentTimeMillis(), sessionInfo, new TestKit(system).getRef()), session.getRef());
+        session.expectMsgClass(Committed.class);
+        for (long n = 2; n <= 10; n++) {
+            chatRoom.tell(new AddMessage(new ChatMessage(System.currentTimeMillis(), "alice", "message-" + n), sessionInfo), session.getRef());
+            session.expectMsgClass(Committed.class);
+        }
+        return chatRoom;
+    }
+
+    /** rejoins as bob's session from the cursor, returning the session and the range it's to page in */
+    protected static Pair<SessionInfo, Rejoined> rejoin(ActorRef chatRoom, String chatRoomId, String lastEventId, TestKit session) {
+        SessionInfo sessionInfo = new SessionInfo("session-bob", "bob", chatRoomId, lastEventId, true);
+        chatRoom.tell(new RejoinChat(System.currentTimeMillis(), sessionInfo, new TestKit(system).getRef()), session.getRef());
+        return Pair.create(sessionInfo, session.expectMsgClass(Rejoined.class));
+    }
+
+    protected static HistoryPage fetch(ActorRef chatRoom, SessionInfo sessionInfo, long from, long through, int maxFrames, TestKit session) {
+        chatRoom.tell(new FetchHistory(sessionInfo, from, through, maxFrames), session.getRef());
+        return session.expectMsgClass(HistoryPage.class);
+    }
+
+    protected static List<Long> eventIds(HistoryPage page) {
+        return page.frames.stream().map(ChatFrame::getEventId).map(Long::parseLong).collect(Collectors.toList());
+    }
+
+    protected static List<Long> range(long from, long to) {
+        return LongStream.rangeClosed(from, to).boxed().collect(Collectors.toList());
+    }
+
+    protected static String payload(ChatFrame frame) {
+        return new String(frame.getPayload(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void rejoinBeforeEvictedPagesThroughJournal() {
+        TestKit session = new TestKit(system);
+        ActorRef chatRoom = createChatRoom("rejoined-early", session);
+
+        Pair<SessionInfo, Rejoined> rejoined = rejoin(chatRoom, "rejoined-early", "2", session);
+        assertEquals(3, rejoined.second().fromSequenceNr);
+        assertEquals(10, rejoined.second().throughSequenceNr);
+        SessionInfo sessionInfo = rejoined.first();
+
+        // pages of what's been evicted are read from the journal, piped back rather than sent by the room, and never
+        // run past the evicted range
+        HistoryPage page = fetch(chatRoom, sessionInfo, 3, 10, 2, session);
+        assertEquals(range(3, 4), eventIds(page));
+        assertEquals(5, page.nextSequenceNr);
+        assertTrue(payload(page.frames.get(0)).contains("message-3"));
+        assertNotEquals(chatRoom, session.getLastSender());
+
+        page = fetch(chatRoom, sessionInfo, page.nextSequenceNr, 10, 100, session);
+        assertEquals(range(5, 7), eventIds(page));
+        assertEquals(8, page.nextSequenceNr);
+        assertNotEquals(chatRoom, session.getLastSender());
+
+        // the rest is still in memory
+        page = fetch(chatRoom, sessionInfo, page.nextSequenceNr, 10, 100, session);
+        assertEquals(range(8, 10), eventIds(page));
+        assertEquals(11, page.nextSequenceNr);
+        assertTrue(payload(page.frames.get(2)).contains("message-10"));
+        assertEquals(chatRoom, session.getLastSender());
+
+        // the join, the first event, is paged in like any message
+        page = fetch(chatRoom, sessionInfo, 1, 10, 1, session);
+        assertEquals(range(1, 1), eventIds(page));
+        assertTrue(payload(page.frames.get(0)).contains("has joined"));
+    }
+
+    @Test
+    public void rejoinAfterEvictedIsServedFromMemory() {
+        TestKit session = new TestKit(system);
+        ActorRef chatRoom = createChatRoom("rejoined-late", session);
+
+        Pair<SessionInfo, Rejoined> rejoined = rejoin(chatRoom, "rejoined-late", "8", session);
+        assertEquals(9, rejoined.second().fromSequenceNr);
+        assertEquals(10, rejoined.second().throughSequenceNr);
+
+        HistoryPage page = fetch(chatRoom, rejoined.first(), 9, 10, 100, session);
+        assertEquals(range(9, 10), eventIds(page));
+        assertEquals(11, page.nextSequenceNr);
+        assertEquals(chatRoom, session.getLastSender());
+
+        // a cursor at the newest evicted event needs nothing from the journal either
+        rejoined = rejoin(chatRoom, "rejoined-late", "7", session);
+        assertEquals(8, rejoined.second().fromSequenceNr);
+        page = fetch(chatRoom, rejoined.first(), 8, 10, 100, session);
+        assertEquals(range(8, 10), eventIds(page));
+        assertEquals(chatRoom, session.getLastSender());
+
+        // and without a cursor, the session gets what's in memory
+        rejoined = rejoin(chatRoom, "rejoined-late", "", session);
+        assertEquals(8, rejoined.second().fromSequenceNr);
+        assertEquals(10, rejoined.second().throughSequenceNr);
+    }
+}
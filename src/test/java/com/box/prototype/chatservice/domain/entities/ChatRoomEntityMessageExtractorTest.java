@@ -0,0 +1,29 @@
+package com.box.prototype.chatservice.domain.entities;
+
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+import static org.junit.Assert.*;
+
+/** mapping of chatrooms to shards, which has to stay the same across releases for nodes to agree on it */
+public class ChatRoomEntityMessageExtractorTest {
+    @Test
+    public void mapsRoomsToPinnedShards() {
+        assertEquals("91", ChatRoomEntityMessageExtractor.shardId("room-1", 100));
+        assertEquals("19", ChatRoomEntityMessageExtractor.shardId("room-2", 100));
+        assertEquals("74", ChatRoomEntityMessageExtractor.shardId("room-3", 100));
+        assertEquals("92", ChatRoomEntityMessageExtractor.shardId("general", 100));
+        assertEquals("94", ChatRoomEntityMessageExtractor.shardId("random", 100));
+    }
+
+    @Test
+    public void shardsMessagesByTheirChatroom() {
+        ChatRoomEntityMessageExtractor extractor = new ChatRoomEntityMessageExtractor(
+            ConfigFactory.parseString("chat-rooms.num-shards = 100"));
+        FetchHistory fetch = new FetchHistory(new SessionInfo("session-1", "alice", "room-1", "", false), 1, 10, 10);
+        assertEquals("room-1", extractor.entityId(fetch));
+        assertEquals("91", extractor.shardId(fetch));
+    }
+}
@@ -0,0 +1,143 @@
+package com.box.prototype.chatservice.domain.entities;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.javadsl.TestKit;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+import static org.junit.Assert.*;
+
+/** recovery of a chatroom from its latest snapshot and the events persisted since, and snapshotting after it */
+public class ChatRoomEntityRecoveryTest {
+    private static ActorSystem system;
+
+    /** asks a chatroom for its recovery bookkeeping */
+    public static class Inspect {}
+
+    public static class Inspection {
+        final long lastSequenceNr;
+        final long snapshotSequenceNr;
+        final long eventsSinceSnapshot;
+        final List<String> members;
+        final List<String> chatLog;
+
+        Inspection(long lastSequenceNr, long snapshotSequenceNr, long eventsSinceSnapshot, List<String> members, List<String> chatLog) {
+            this.lastSequenceNr = lastSequenceNr;
+            this.snapshotSequenceNr = snapshotSequenceNr;
+            this.eventsSinceSnapshot = eventsSinceSnapshot;
+            this.members = members;
+            this.chatLog = chatLog;
+        }
+    }
+
+    /** a chatroom that answers Inspect, with the newest snapshot it saved or recovered from */
+    public static class InspectedChatRoom extends ChatRoomEntity {
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                .match(Inspect.class, cmd -> {
+                    List<String> members = new ArrayList<>(this.state.members);
+                    Collections.sort(members);
+                    List<String> chatLog = new ArrayList<>();
+                    this.state.chatLog.forEach((sequenceNr, message) -> chatLog.add(sequenceNr + ":" + message.getMessage()));
+                    long snapshotSequenceNr = this.snapshotSequenceNrs.isEmpty() ? 0 : this.snapshotSequenceNrs.peekLast();
+                    getSender().tell(new Inspection(lastSequenceNr(), snapshotSequenceNr, this.eventsSinceSnapshot, members, chatLog), getSelf());
+                })
+                .build()
+                .orElse(super.createReceive());
+        }
+    }
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        system = ActorSystem.create("ChatRoomEntityRecoveryTest", ConfigFactory.parseString(String.join("\n",
+                "chat-rooms.snapshots.every-events = 5",
+                "chat-rooms.snapshots.interval = 1h",
+                "chat-rooms.passivation.idle-timeout = 0"))
+            .withValue("akka.persistence.snapshot-store.local.dir",
+                ConfigValueFactory.fromAnyRef(Files.createTempDirectory("recovery-snapshots").toString()))
+            .withFallback(ConfigFactory.load("test")));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    /** starts the room without sharding, recovering it if it was started before */
+    protected static ActorRef start(String chatRoomId) {
+        return system.actorOf(Props.create(InspectedChatRoom.class), chatRoomId);
+    }
+
+    protected static void stop(ActorRef chatRoom) {
+        TestKit watcher = new TestKit(system);
+        watcher.watch(chatRoom);
+        system.stop(chatRoom);
+        watcher.expectTerminated(chatRoom);
+    }
+
+    protected static Inspection inspect(ActorRef chatRoom) {
+        TestKit probe = new TestKit(system);
+        chatRoom.tell(new Inspect(), probe.getRef());
+        return probe.expectMsgClass(Inspection.class);
+    }
+
+    protected static void addMessages(ActorRef chatRoom, SessionInfo sessionInfo, TestKit session, long from, long through) {
+        for (long n = from; n <= through; n++) {
+            chatRoom.tell(new AddMessage(new ChatMessage(System.currentTimeMillis(), "alice", "message-" + n), sessionInfo), session.getRef());
+            session.expectMsgClass(Committed.class);
+        }
+    }
+
+    @Test
+    public void recoversFromSnapshotAndEventsSinceIt() {
+        TestKit session = new TestKit(system);
+        ActorRef chatRoom = start("recovered");
+        SessionInfo sessionInfo = new SessionInfo("session-alice", "alice", "recovered", "", false);
+        chatRoom.tell(new JoinChat(System.currentTimeMillis(), sessionInfo, new TestKit(system).getRef()), session.getRef());
+        session.expectMsgClass(Committed.class);
+
+        // snapshot at 5, then two more events
+        addMessages(chatRoom, sessionInfo, session, 2, 7);
+        session.awaitCond(Duration.ofSeconds(5), () -> inspect(chatRoom).snapshotSequenceNr == 5);
+        Inspection before = inspect(chatRoom);
+        assertEquals(7, before.lastSequenceNr);
+        assertEquals(2, before.eventsSinceSnapshot);
+
+        stop(chatRoom);
+        // the name is released shortly after the room terminates
+        ActorRef restarted = session.awaitAssert(Duration.ofSeconds(3), () -> start("recovered"));
+        Inspection after = inspect(restarted);
+        assertEquals(7, after.lastSequenceNr);
+        assertEquals(5, after.snapshotSequenceNr);
+        // only the events after the snapshot were replayed
+        assertEquals(2, after.eventsSinceSnapshot);
+        assertEquals(Collections.singletonList("alice"), after.members);
+        assertEquals(before.chatLog, after.chatLog);
+        assertEquals(Arrays.asList("1:[alice] has joined", "2:message-2"), after.chatLog.subList(0, 2));
+
+        // sessions aren't recovered, so alice joins again.  the count carries on from where it was, so the next
+        // snapshot is due three events later
+        restarted.tell(new JoinChat(System.currentTimeMillis(), sessionInfo, new TestKit(system).getRef()), session.getRef());
+        session.expectMsgClass(Committed.class);
+        addMessages(restarted, sessionInfo, session, 9, 10);
+        session.awaitCond(Duration.ofSeconds(5), () -> inspect(restarted).snapshotSequenceNr == 10);
+        assertEquals(0, inspect(restarted).eventsSinceSnapshot);
+    }
+}
@@ -0,0 +1,149 @@
+package com.box.prototype.chatservice.domain.entities;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.japi.Pair;
+import akka.testkit.javadsl.TestKit;
+import com.box.prototype.chatservice.akka.ChatArchive;
+import com.box.prototype.chatservice.akka.journal.SegmentedJournalStore;
+import com.box.prototype.chatservice.akka.journal.SegmentedJournalStores;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+import static org.junit.Assert.*;
+
+/**
+ * archiving of events past a room's retention once a snapshot covers them, their deletion from the journal, and
+ * history served from the archive, the journal and memory in turn.  runs on the segmented journal, whose read journal
+ * the chatrooms read history and expired events through
+ */
+public class ChatRoomEntityRetentionTest {
+    private static ActorSystem system;
+    private static ChatArchive archive;
+    private static SegmentedJournalStore journal;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        File dir = Files.createTempDirectory("retention").toFile();
+        // retention is off by default, and turned on for one room
+        system = ActorSystem.create("ChatRoomEntityRetentionTest", ConfigFactory.parseString(String.join("\n",
+                "akka.persistence.journal.plugin = chat.persistence.journal.segmented",
+                "chat.persistence.journal.segmented.partitions = 1",
+                "chat.persistence.journal.segmented.fsync = off",
+                "chat-rooms.chat-log.read-journal = chat.persistence.query.segmented",
+                "chat-rooms.chat-log.max-messages = 3",
+                "chat-rooms.snapshots.every-events = 5",
+                "chat-rooms.snapshots.interval = 1h",
+                "chat-rooms.retention.rooms.archived.max-events = 4",
+                "chat-rooms.retention.archive.segment-events = 3",
+                "chat-rooms.passivation.idle-timeout = 0"))
+            .withValue("chat.persistence.journal.segmented.dir", ConfigValueFactory.fromAnyRef(new File(dir, "journal").getPath()))
+            .withValue("akka.persistence.snapshot-store.local.dir", ConfigValueFactory.fromAnyRef(new File(dir, "snapshots").getPath()))
+            .withValue("chat-rooms.retention.archive.dir", ConfigValueFactory.fromAnyRef(new File(dir, "archive").getPath()))
+            .withFallback(ConfigFactory.load("test")));
+        archive = ChatArchive.get(system);
+        journal = SegmentedJournalStores.get(system).store(system.settings().config().getConfig("chat.persistence.journal.segmented"));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    /** a room with a session joined, i.e. its first event persisted */
+    protected static Pair<ActorRef, SessionInfo> createChatRoom(String chatRoomId, TestKit session) {
+        ActorRef chatRoom = system.actorOf(Props.create(ChatRoomEntity.class), chatRoomId);
+        SessionInfo sessionInfo = new SessionInfo("session-alice", "alice", chatRoomId, "", false);
+        chatRoom.tell(new JoinChat(System.currentTimeMillis(), sessionInfo, new TestKit(system).getRef()), session.getRef());
+        session.expectMsgClass(Committed.class);
+        return Pair.create(chatRoom, sessionInfo);
+    }
+
+    /** adds messages one at a time, waiting for each to be committed */
+    protected static void addMessages(Pair<ActorRef, SessionInfo> chatRoom, TestKit session, long from, long through) {
+        for (long n = from; n <= through; n++) {
+            ChatMessage message = new ChatMessage(System.currentTimeMillis(), "alice", "message-" + n);
+            chatRoom.first().tell(new AddMessage(message, chatRoom.second()), session.getRef());
+            session.expectMsgClass(Committed.class);
+        }
+    }
+
+    protected static List<Long> journalled(String persistenceId) {
+        List<Long> sequenceNrs = new ArrayList<>();
+        journal.replay(persistenceId, 1, Long.MAX_VALUE, Long.MAX_VALUE, entry -> sequenceNrs.add(entry.repr.sequenceNr()));
+        return sequenceNrs;
+    }
+
+    protected static List<Long> range(long from, long to) {
+        return LongStream.rangeClosed(from, to).boxed().collect(Collectors.toList());
+    }
+
+    protected static List<Long> eventIds(HistoryPage page) {
+        return page.frames.stream().map(ChatFrame::getEventId).map(Long::parseLong).collect(Collectors.toList());
+    }
+
+    @Test
+    public void archivesExpiredEventsAndServesHistoryFromArchive() {
+        TestKit session = new TestKit(system);
+        Pair<ActorRef, SessionInfo> chatRoom = createChatRoom("archived", session);
+
+        // the snapshot at 5 covers the joined event, 4 behind the newest
+        addMessages(chatRoom, session, 2, 5);
+        session.awaitCond(Duration.ofSeconds(5), () -> archive.archivedThrough("archived") == 1);
+
+        // the one at 10 another 5
+        addMessages(chatRoom, session, 6, 10);
+        session.awaitCond(Duration.ofSeconds(5), () -> archive.archivedThrough("archived") == 6);
+        List<Pair<Long, ChatMessage>> archived = archive.read("archived", 1, 10);
+        assertEquals(range(1, 6), archived.stream().map(Pair::first).collect(Collectors.toList()));
+        assertEquals("[alice] has joined", archived.get(0).second().getMessage());
+        assertEquals("message-6", archived.get(5).second().getMessage());
+
+        // and they're deleted from the journal once archived
+        session.awaitCond(Duration.ofSeconds(5), () -> journalled("archived").equals(range(7, 10)));
+
+        // history older than the in-memory window comes from the archive, then the journal, then memory
+        chatRoom.first().tell(new FetchHistory(chatRoom.second(), 1, 10, 100), session.getRef());
+        HistoryPage page = session.expectMsgClass(HistoryPage.class);
+        assertEquals(range(1, 6), eventIds(page));
+        assertEquals(7, page.nextSequenceNr);
+
+        chatRoom.first().tell(new FetchHistory(chatRoom.second(), 7, 10, 100), session.getRef());
+        page = session.expectMsgClass(HistoryPage.class);
+        assertEquals(range(7, 7), eventIds(page));
+        assertEquals(8, page.nextSequenceNr);
+
+        chatRoom.first().tell(new FetchHistory(chatRoom.second(), 8, 10, 100), session.getRef());
+        page = session.expectMsgClass(HistoryPage.class);
+        assertEquals(range(8, 10), eventIds(page));
+        assertEquals(11, page.nextSequenceNr);
+    }
+
+    @Test
+    public void keepsEverythingInJournalWithoutRetention() {
+        TestKit session = new TestKit(system);
+        Pair<ActorRef, SessionInfo> chatRoom = createChatRoom("kept", session);
+
+        addMessages(chatRoom, session, 2, 10);
+        session.expectNoMessage(Duration.ofMillis(500));
+        assertEquals(0, archive.archivedThrough("kept"));
+        assertEquals(range(1, 10), journalled("kept"));
+    }
+}
@@ -0,0 +1,148 @@
+package com.box.prototype.chatservice.domain.entities;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.javadsl.TestKit;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.box.prototype.chatservice.domain.models.ChatSignal;
+import com.box.prototype.chatservice.domain.models.SessionInfo;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.box.prototype.chatservice.domain.ChatRoomRelayProtocol.*;
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+import static org.junit.Assert.*;
+
+/** coalescing and rate limiting of ephemeral signals by a chatroom, and their fan out to its relays */
+public class ChatRoomEntitySignalsTest {
+    private static final AtomicInteger rooms = new AtomicInteger();
+    private static ActorSystem system;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private String chatRoomId;
+    private ActorRef chatRoom;
+    private TestKit relay;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("ChatRoomEntitySignalsTest", ConfigFactory.parseString(String.join("\n",
+                "chat-rooms.signals.window = 200ms",
+                "chat-rooms.signals.min-interval = 1s",
+                "chat-rooms.signals.max-per-window = 2"))
+            .withFallback(ConfigFactory.load("test")));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void createChatRoom() {
+        // a room of its own per test, started without sharding
+        this.chatRoomId = "signals-" + rooms.incrementAndGet();
+        this.chatRoom = system.actorOf(Props.create(ChatRoomEntity.class), this.chatRoomId);
+        this.relay = new TestKit(system);
+    }
+
+    /** joins a session through the relay probe, consuming the attach and the joined message published to it */
+    protected SessionInfo join(String userId) {
+        SessionInfo sessionInfo = new SessionInfo("session-" + userId, userId, this.chatRoomId, "", false);
+        TestKit session = new TestKit(system);
+        this.chatRoom.tell(new JoinChat(System.currentTimeMillis(), sessionInfo, this.relay.getRef()), session.getRef());
+        session.expectMsgClass(Committed.class);
+        this.relay.expectMsgClass(Deliver.class);
+        this.relay.expectMsgClass(Publish.class);
+        return sessionInfo;
+    }
+
+    protected void signal(SessionInfo sessionInfo, String type) {
+        this.chatRoom.tell(new SendSignal(System.currentTimeMillis(), sessionInfo, type), ActorRef.noSender());
+    }
+
+    /** the signals of the next frame published to the relay */
+    protected List<ChatSignal> expectSignals() throws Exception {
+        Publish publish = this.relay.expectMsgClass(Duration.ofSeconds(3), Publish.class);
+        assertNull("signal frames have no event id", publish.frame.getEventId());
+        ChatMessageEnvelope envelope = this.mapper.readValue(publish.frame.getPayload(), ChatMessageEnvelope.class);
+        assertNull(envelope.getMessage());
+        return envelope.getSignals();
+    }
+
+    @Test
+    public void coalescesSignalsOfEachUserWithinWindow() throws Exception {
+        SessionInfo alice = join("alice");
+        SessionInfo bob = join("bob");
+
+        signal(alice, ChatSignal.ONLINE);
+        signal(bob, ChatSignal.TYPING);
+        signal(alice, ChatSignal.TYPING);
+
+        // one frame for the window, with each user's latest signal, in the order they were last signalled
+        List<ChatSignal> signals = expectSignals();
+        assertEquals(2, signals.size());
+        assertEquals("bob", signals.get(0).getUserId());
+        assertEquals(ChatSignal.TYPING, signals.get(0).getType());
+        assertEquals("alice", signals.get(1).getUserId());
+        assertEquals(ChatSignal.TYPING, signals.get(1).getType());
+        this.relay.expectNoMessage(Duration.ofMillis(400));
+    }
+
+    @Test
+    public void dropsRepeatedSignalWithinMinInterval() throws Exception {
+        SessionInfo alice = join("alice");
+
+        signal(alice, ChatSignal.TYPING);
+        assertEquals(1, expectSignals().size());
+
+        // typing on every keystroke, only the first one goes out
+        signal(alice, ChatSignal.TYPING);
+        signal(alice, ChatSignal.TYPING);
+        this.relay.expectNoMessage(Duration.ofMillis(400));
+
+        // a different signal isn't held back
+        signal(alice, ChatSignal.IDLE);
+        assertEquals(ChatSignal.IDLE, expectSignals().get(0).getType());
+
+        // and the same one again once the interval has passed
+        Thread.sleep(1000);
+        signal(alice, ChatSignal.IDLE);
+        assertEquals(ChatSignal.IDLE, expectSignals().get(0).getType());
+    }
+
+    @Test
+    public void keepsMostRecentSignalsOverMaxPerWindow() throws Exception {
+        SessionInfo alice = join("alice");
+        SessionInfo bob = join("bob");
+        SessionInfo carol = join("carol");
+
+        signal(alice, ChatSignal.TYPING);
+        signal(bob, ChatSignal.TYPING);
+        signal(carol, ChatSignal.TYPING);
+
+        List<ChatSignal> signals = expectSignals();
+        assertEquals(2, signals.size());
+        assertEquals("bob", signals.get(0).getUserId());
+        assertEquals("carol", signals.get(1).getUserId());
+    }
+
+    @Test
+    public void ignoresUnknownTypesAndSessionsNotAttached() {
+        join("alice");
+        SessionInfo stranger = new SessionInfo("session-stranger", "stranger", this.chatRoomId, "", false);
+
+        signal(stranger, ChatSignal.TYPING);
+        signal(new SessionInfo("session-alice", "alice", this.chatRoomId, "", false), "shouting");
+        this.relay.expectNoMessage(Duration.ofMillis(400));
+    }
+}
@@ -0,0 +1,85 @@
+package com.box.prototype.chatservice.projection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/** terms indexed within their length bounds, searches for all of a query's terms, and paging back through matches */
+public class ChatSearchIndexTest {
+    private ChatSearchIndex index;
+
+    @Before
+    public void createIndex() {
+        this.index = new ChatSearchIndex(2, 8);
+    }
+
+    @Test
+    public void indexesOnlyTermsWithinLengthBounds() {
+        this.index.add("room-1", 1, "a quick extraordinary fox");
+        assertEquals(Collections.singletonList(1L), this.index.search("room-1", "quick", Long.MAX_VALUE, 10));
+        assertEquals(Collections.singletonList(1L), this.index.search("room-1", "fox", Long.MAX_VALUE, 10));
+
+        // bounds are inclusive
+        this.index.add("room-1", 2, "ab abcdefgh abcdefghi");
+        assertEquals(Collections.singletonList(2L), this.index.search("room-1", "ab", Long.MAX_VALUE, 10));
+        assertEquals(Collections.singletonList(2L), this.index.search("room-1", "abcdefgh", Long.MAX_VALUE, 10));
+
+        // shorter or longer words aren't indexed, nor searched for
+        assertEquals(Collections.emptyList(), this.index.search("room-1", "a", Long.MAX_VALUE, 10));
+        assertEquals(Collections.emptyList(), this.index.search("room-1", "extraordinary", Long.MAX_VALUE, 10));
+        assertEquals(Collections.emptyList(), this.index.search("room-1", "abcdefghi", Long.MAX_VALUE, 10));
+        assertEquals(Collections.singletonList(1L), this.index.search("room-1", "a QUICK extraordinary", Long.MAX_VALUE, 10));
+    }
+
+    @Test
+    public void matchesEveryTermOfQueryWithinRoom() {
+        this.index.add("room-1", 1, "hello world");
+        this.index.add("room-1", 2, "hello there");
+        this.index.add("room-1", 3, "World, hello!");
+        this.index.add("room-2", 4, "hello world");
+
+        assertEquals(Arrays.asList(3L, 2L, 1L), this.index.search("room-1", "hello", Long.MAX_VALUE, 10));
+        assertEquals(Arrays.asList(3L, 1L), this.index.search("room-1", "world hello", Long.MAX_VALUE, 10));
+        assertEquals(Collections.emptyList(), this.index.search("room-1", "hello nowhere", Long.MAX_VALUE, 10));
+        assertEquals(Collections.emptyList(), this.index.search("room-3", "hello", Long.MAX_VALUE, 10));
+    }
+
+    @Test
+    public void pagesBackThroughMatches() {
+        for (long sequenceNr = 1; sequenceNr <= 20; sequenceNr++) {
+            this.index.add("room-1", sequenceNr, sequenceNr % 2 == 0 ? "even message" : "odd message");
+        }
+
+        // each page starts before the oldest match of the last, nothing skipped or seen twice
+        List<Long> paged = new ArrayList<>();
+        List<Long> page = this.index.search("room-1", "even", Long.MAX_VALUE, 3);
+        assertEquals(Arrays.asList(20L, 18L, 16L), page);
+        while (!page.isEmpty()) {
+            paged.addAll(page);
+            page = this.index.search("room-1", "even message", page.get(page.size() - 1), 3);
+        }
+        assertEquals(Arrays.asList(20L, 18L, 16L, 14L, 12L, 10L, 8L, 6L, 4L, 2L), paged);
+
+        // before is exclusive
+        assertEquals(Arrays.asList(9L, 7L), this.index.search("room-1", "odd", 11, 2));
+    }
+
+    @Test
+    public void resumesFromSnapshot() {
+        this.index.add("room-1", 1, "hello world");
+        this.index.add("room-2", 2, "hello there");
+        this.index.setOffset(42);
+
+        ChatSearchIndex restored = new ChatSearchIndex(2, 8);
+        restored.load(this.index.toBytes());
+        assertEquals(42, restored.offset());
+        assertEquals(Collections.singletonList(1L), restored.search("room-1", "world", Long.MAX_VALUE, 10));
+        assertEquals(Collections.singletonList(2L), restored.search("room-2", "hello", Long.MAX_VALUE, 10));
+    }
+}
@@ -0,0 +1,202 @@
+package com.box.prototype.chatservice.rest.handler;
+
+import akka.NotUsed;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Status;
+import akka.stream.ActorMaterializer;
+import akka.stream.javadsl.Sink;
+import akka.testkit.javadsl.TestKit;
+import com.box.prototype.chatservice.akka.AkkaComponents;
+import com.box.prototype.chatservice.domain.ChatWireCodec;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.box.prototype.chatservice.domain.ChatRoomRelayProtocol.*;
+import static com.box.prototype.chatservice.domain.entities.ChatRoomEntityProtocol.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/** subscribing a multiplexed connection to chatrooms, up to its limit of them, and unsubscribing it again */
+public class ChatMuxSessionHandlerTest {
+    private static ActorSystem system;
+    private static ActorMaterializer materializer;
+
+    protected TestKit region;
+    protected TestKit relayManager;
+    protected TestKit outbound;
+    protected WebSocketSession session;
+    protected ChatMuxSessionHandler handler;
+    protected final Map<String, ChatMuxSessionHandler.Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("ChatMuxSessionHandlerTest", ConfigFactory.parseString("chat-sessions.mux.max-rooms = 2")
+            .withFallback(ConfigFactory.load("test")));
+        materializer = ActorMaterializer.create(system);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void createHandler() {
+        this.region = new TestKit(system);
+        this.relayManager = new TestKit(system);
+        this.outbound = new TestKit(system);
+        AkkaComponents components = mock(AkkaComponents.class);
+        when(components.getSystem()).thenReturn(system);
+        when(components.getConfig()).thenReturn(system.settings().config());
+        when(components.getMaterializer()).thenReturn(materializer);
+        when(components.getChatRoomRegion()).thenReturn(this.region.getRef());
+        when(components.getChatRelayManager()).thenReturn(this.relayManager.getRef());
+        this.session = mock(WebSocketSession.class);
+        when(this.session.getId()).thenReturn("connection-1");
+        when(this.session.bufferFactory()).thenReturn(new DefaultDataBufferFactory());
+        this.handler = new ChatMuxSessionHandler(components);
+    }
+
+    /** subscribes the connection, its outbound frames passed on to a probe as text */
+    protected void subscribe(String chatRoom, String lastEventId) {
+        Sink<WebSocketMessage, NotUsed> sink = Sink.<WebSocketMessage>foreach(message ->
+                this.outbound.getRef().tell(message.getPayloadAsText(), ActorRef.noSender()))
+            .mapMaterializedValue(done -> NotUsed.getInstance());
+        this.handler.subscribe(this.session, "alice", chatRoom, lastEventId, sink, this.subscriptions);
+    }
+
+    /** subscribes the connection, and joins it as the chatroom would */
+    protected Subscribe join(String chatRoom) {
+        subscribe(chatRoom, null);
+        Subscribe subscribe = this.relayManager.expectMsgClass(Subscribe.class);
+        this.relayManager.reply(new Committed());
+        assertEquals(status(chatRoom, ChatMuxSessionHandler.SUBSCRIBED), this.outbound.expectMsgClass(String.class));
+        return subscribe;
+    }
+
+    protected static String status(String chatRoom, String status) {
+        return "{\"room\":\"" + chatRoom + "\",\"status\":\"" + status + "\"}";
+    }
+
+    @Test
+    public void subscribesAsSessionOfItsOwn() throws Exception {
+        Subscribe subscribe = join("room-1");
+        assertTrue(subscribe.sessionInfo.getSessionId().startsWith("connection-1/room-1/"));
+        assertEquals("alice", subscribe.sessionInfo.getUserId());
+        assertEquals("room-1", subscribe.sessionInfo.getChatRoom());
+        assertFalse(subscribe.sessionInfo.isRejoin());
+        assertFalse(subscribe.binary);
+        assertEquals(new HashSet<>(Arrays.asList("room-1")), this.subscriptions.keySet());
+
+        // the room's envelopes go out wrapped with the room they're from
+        ChatFrame frame = ChatWireCodec.frame("1", new ChatMessageEnvelope(new ChatMessage(1000, "bob", "hello"), "1"));
+        subscribe.listener.offer(frame);
+        assertEquals("{\"room\":\"room-1\",\"envelope\":" + new String(frame.getPayload(), StandardCharsets.UTF_8) + "}",
+            this.outbound.expectMsgClass(String.class));
+    }
+
+    @Test
+    public void rejoinsFromLastEventId() {
+        subscribe("room-1", "42");
+        Subscribe subscribe = this.relayManager.expectMsgClass(Subscribe.class);
+        assertTrue(subscribe.sessionInfo.isRejoin());
+        assertEquals("42", subscribe.sessionInfo.getLastEventId());
+    }
+
+    @Test
+    public void ignoresSubscribeToRoomAlreadySubscribedTo() {
+        join("room-1");
+        subscribe("room-1", null);
+        this.relayManager.expectNoMessage(Duration.ofMillis(200));
+        this.outbound.expectNoMessage(Duration.ofMillis(200));
+        assertEquals(1, this.subscriptions.size());
+    }
+
+    @Test
+    public void rejectsSubscribesBeyondMaxRooms() {
+        join("room-1");
+        join("room-2");
+
+        subscribe("room-3", null);
+        assertEquals(status("room-3", ChatMuxSessionHandler.REJECTED), this.outbound.expectMsgClass(String.class));
+        this.relayManager.expectNoMessage(Duration.ofMillis(200));
+        assertEquals(new HashSet<>(Arrays.asList("room-1", "room-2")), this.subscriptions.keySet());
+    }
+
+    @Test
+    public void unsubscribeLeavesChatroomAndRelay() {
+        Subscribe subscribe = join("room-1");
+        join("room-2");
+
+        ChatMuxSessionHandler.Subscription subscription = this.subscriptions.get("room-1");
+        subscription.unsubscribed = true;
+        this.handler.unsubscribe("room-1", subscription, this.subscriptions);
+        assertEquals(subscribe.sessionInfo.getSessionId(), this.region.expectMsgClass(LeaveChat.class).sessionInfo.getSessionId());
+        assertEquals(subscribe.sessionInfo.getSessionId(), this.relayManager.expectMsgClass(Unsubscribe.class).sessionId);
+        assertEquals(new HashSet<>(Arrays.asList("room-2")), this.subscriptions.keySet());
+
+        // the relay closes the subscription's stream, which ends with its status and leaves nothing more to do
+        subscribe.listener.complete();
+        assertEquals(status("room-1", ChatMuxSessionHandler.UNSUBSCRIBED), this.outbound.expectMsgClass(String.class));
+        this.region.expectNoMessage(Duration.ofMillis(200));
+        this.relayManager.expectNoMessage(Duration.ofMillis(200));
+
+        // freeing up a room for another subscription
+        join("room-3");
+    }
+
+    @Test
+    public void chatroomClosingSubscriptionUnsubscribesIt() {
+        Subscribe subscribe = join("room-1");
+
+        // e.g. failover, the client subscribes again from its last event id
+        subscribe.listener.complete();
+        assertEquals(status("room-1", ChatMuxSessionHandler.CLOSED), this.outbound.expectMsgClass(String.class));
+        this.region.expectMsgClass(LeaveChat.class);
+        this.relayManager.expectMsgClass(Unsubscribe.class);
+        this.outbound.awaitCond(Duration.ofSeconds(3), this.subscriptions::isEmpty);
+    }
+
+    @Test
+    public void resubscribesAsNewSession() {
+        Subscribe first = join("room-1");
+        first.listener.complete();
+        assertEquals(status("room-1", ChatMuxSessionHandler.CLOSED), this.outbound.expectMsgClass(String.class));
+        this.region.expectMsgClass(LeaveChat.class);
+        this.relayManager.expectMsgClass(Unsubscribe.class);
+        this.outbound.awaitCond(Duration.ofSeconds(3), this.subscriptions::isEmpty);
+
+        // so the last subscription's leave, however late, can't end the new one
+        Subscribe second = join("room-1");
+        assertTrue(second.sessionInfo.getSessionId().startsWith("connection-1/room-1/"));
+        assertNotEquals(first.sessionInfo.getSessionId(), second.sessionInfo.getSessionId());
+    }
+
+    @Test
+    public void failedJoinEndsSubscription() {
+        subscribe("room-1", null);
+        this.relayManager.expectMsgClass(Subscribe.class);
+        this.relayManager.reply(new Status.Failure(new RuntimeException("chatroom unavailable")));
+        assertEquals(status("room-1", ChatMuxSessionHandler.FAILED), this.outbound.expectMsgClass(String.class));
+        this.region.expectMsgClass(LeaveChat.class);
+        this.outbound.awaitCond(Duration.ofSeconds(3), this.subscriptions::isEmpty);
+    }
+}
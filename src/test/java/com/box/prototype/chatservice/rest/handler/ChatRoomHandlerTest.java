@@ -0,0 +1,164 @@
+package com.box.prototype.chatservice.rest.handler;
+
+import com.box.prototype.chatservice.akka.AkkaComponents;
+import com.box.prototype.chatservice.domain.models.ChatHistoryEntry;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.box.prototype.chatservice.projection.ChatSearchIndex;
+import com.box.prototype.chatservice.projection.ChatSearchProjection;
+import com.box.prototype.chatservice.repository.ChatHistoryRepository;
+import com.box.prototype.chatservice.rest.RestRouter;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/** chatroom message history and search, read from the chat history and search projections a page at a time */
+public class ChatRoomHandlerTest {
+    @Mock
+    private AkkaComponents akkaComponents;
+    @Mock
+    private ChatHistoryRepository historyRepository;
+    @Mock
+    private ChatSearchProjection searchProjection;
+    @InjectMocks
+    private ChatRoomHandler handler;
+
+    private final ChatSearchIndex searchIndex = new ChatSearchIndex(2, 32);
+    private WebTestClient client;
+
+    @Before
+    public void createClient() {
+        MockitoAnnotations.initMocks(this);
+        when(this.akkaComponents.getConfig()).thenReturn(ConfigFactory.load("test"));
+        when(this.searchProjection.getIndex()).thenReturn(this.searchIndex);
+        this.client = WebTestClient.bindToRouterFunction(new RestRouter().route(this.handler, mock(ChatMetricsHandler.class))).build();
+    }
+
+    protected static List<ChatHistoryEntry> entries(long... sequenceNrs) {
+        List<ChatHistoryEntry> entries = new ArrayList<>();
+        for (long sequenceNr : sequenceNrs) {
+            entries.add(new ChatHistoryEntry("room-1", sequenceNr, new ChatMessage(sequenceNr, "alice", "message-" + sequenceNr)));
+        }
+        return entries;
+    }
+
+    protected List<ChatMessageEnvelope> get(String uri) {
+        return this.client.get().uri(uri).accept(MediaType.APPLICATION_JSON)
+            .exchange()
+            .expectStatus().isOk()
+            .expectBodyList(ChatMessageEnvelope.class)
+            .returnResult().getResponseBody();
+    }
+
+    protected static List<String> eventIds(List<ChatMessageEnvelope> envelopes) {
+        return envelopes.stream().map(ChatMessageEnvelope::getLastEventId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void listsNewestMessagesOldestFirst() {
+        when(this.historyRepository.findByChatRoomAndSequenceNrLessThanOrderBySequenceNrDesc(eq("room-1"), eq(Long.MAX_VALUE), any()))
+            .thenReturn(entries(12, 11, 10));
+
+        List<ChatMessageEnvelope> messages = get("/api/chatrooms/room-1/messages");
+        assertEquals(Arrays.asList("10", "11", "12"), eventIds(messages));
+        assertEquals("message-10", messages.get(0).getMessage().getMessage());
+        assertEquals("alice", messages.get(0).getMessage().getUserId());
+    }
+
+    @Test
+    public void scrollsBackBeforeEventId() {
+        when(this.historyRepository.findByChatRoomAndSequenceNrLessThanOrderBySequenceNrDesc(eq("room-1"), eq(10L), any()))
+            .thenReturn(entries(9, 8));
+
+        assertEquals(Arrays.asList("8", "9"), eventIds(get("/api/chatrooms/room-1/messages?before=10&limit=2")));
+        verify(this.historyRepository).findByChatRoomAndSequenceNrLessThanOrderBySequenceNrDesc(eq("room-1"), eq(10L),
+            argThat((Pageable page) -> page.getPageSize() == 2));
+    }
+
+    @Test
+    public void readsForwardAfterAndBetweenEventIds() {
+        when(this.historyRepository.findByChatRoomAndSequenceNrGreaterThanOrderBySequenceNrAsc(eq("room-1"), eq(10L), any()))
+            .thenReturn(entries(11, 12));
+        assertEquals(Arrays.asList("11", "12"), eventIds(get("/api/chatrooms/room-1/messages?after=10")));
+
+        // both bounds are exclusive
+        when(this.historyRepository.findByChatRoomAndSequenceNrBetweenOrderBySequenceNrAsc(eq("room-1"), eq(11L), eq(14L), any()))
+            .thenReturn(entries(11, 12, 13, 14));
+        assertEquals(Arrays.asList("11", "12", "13", "14"), eventIds(get("/api/chatrooms/room-1/messages?after=10&before=15")));
+    }
+
+    @Test
+    public void capsLimitAtMaxPageSize() {
+        when(this.historyRepository.findByChatRoomAndSequenceNrLessThanOrderBySequenceNrDesc(anyString(), anyLong(), any()))
+            .thenReturn(entries());
+        get("/api/chatrooms/room-1/messages?limit=100000");
+        verify(this.historyRepository).findByChatRoomAndSequenceNrLessThanOrderBySequenceNrDesc(eq("room-1"), eq(Long.MAX_VALUE),
+            argThat((Pageable page) -> page.getPageSize() == 500));
+    }
+
+    @Test
+    public void rejectsMalformedEventIds() {
+        this.client.get().uri("/api/chatrooms/room-1/messages?before=abc").accept(MediaType.APPLICATION_JSON)
+            .exchange()
+            .expectStatus().isBadRequest();
+        verifyZeroInteractions(this.historyRepository);
+    }
+
+    /** indexes the messages, and serves their bodies from the mocked history, in whatever order it finds them */
+    @SuppressWarnings("unchecked")
+    protected void index(List<ChatHistoryEntry> entries) {
+        entries.forEach(entry -> this.searchIndex.add("room-1", entry.getSequenceNr(), entry.toChatMessage().getMessage()));
+        when(this.historyRepository.findAllById(any())).thenAnswer(invocation -> {
+            Collection<ChatHistoryEntry.Key> keys = new ArrayList<>();
+            ((Iterable<ChatHistoryEntry.Key>)invocation.getArgument(0)).forEach(keys::add);
+            return entries.stream().filter(entry -> keys.contains(entry.getId())).collect(Collectors.toList());
+        });
+    }
+
+    @Test
+    public void searchesNewestFirstAndPagesBack() {
+        index(entries(1, 2, 3, 4, 5));
+
+        List<ChatMessageEnvelope> page = get("/api/chatrooms/room-1/search?q=message&limit=2");
+        assertEquals(Arrays.asList("5", "4"), eventIds(page));
+        assertEquals("message-5", page.get(0).getMessage().getMessage());
+        assertEquals(Arrays.asList("3", "2"), eventIds(get("/api/chatrooms/room-1/search?q=message&limit=2&before=4")));
+        assertEquals(Arrays.asList("1"), eventIds(get("/api/chatrooms/room-1/search?q=message&limit=2&before=2")));
+        assertEquals(Collections.emptyList(), get("/api/chatrooms/room-1/search?q=message&limit=2&before=1"));
+    }
+
+    @Test
+    public void searchesOnlyForTermsWithinLengthBounds() {
+        index(entries(1, 2));
+
+        // message-1's terms are "message" and "1", the latter too short to be indexed or searched for
+        assertEquals(Collections.emptyList(), get("/api/chatrooms/room-1/search?q=1"));
+        assertEquals(Arrays.asList("2", "1"), eventIds(get("/api/chatrooms/room-1/search?q=message-1")));
+        assertEquals(Collections.emptyList(), get("/api/chatrooms/room-1/search?q=" + String.join("", Collections.nCopies(33, "m"))));
+        assertEquals(Collections.emptyList(), get("/api/chatrooms/room-1/search"));
+    }
+
+    @Test
+    public void rejectsMalformedSearchCursor() {
+        this.client.get().uri("/api/chatrooms/room-1/search?q=message&before=abc").accept(MediaType.APPLICATION_JSON)
+            .exchange()
+            .expectStatus().isBadRequest();
+    }
+}
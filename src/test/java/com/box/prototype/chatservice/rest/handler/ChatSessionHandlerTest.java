@@ -0,0 +1,156 @@
+package com.box.prototype.chatservice.rest.handler;
+
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.box.prototype.chatservice.akka.AkkaComponents;
+import com.box.prototype.chatservice.domain.ChatWireCodec;
+import com.box.prototype.chatservice.domain.models.ChatFrame;
+import com.box.prototype.chatservice.domain.models.ChatGap;
+import com.box.prototype.chatservice.domain.models.ChatMessage;
+import com.box.prototype.chatservice.domain.models.ChatMessageEnvelope;
+import com.box.prototype.chatservice.domain.models.ChatSignal;
+import com.box.prototype.chatservice.util.BinaryReader;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/** framing of batched envelopes, as json arrays or length prefixed binary envelopes */
+public class ChatSessionHandlerTest {
+    private static ActorSystem system;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+    private ChatSessionHandler handler;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("ChatSessionHandlerTest", ConfigFactory.load("test"));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void createHandler() {
+        AkkaComponents components = mock(AkkaComponents.class);
+        when(components.getSystem()).thenReturn(system);
+        when(components.getConfig()).thenReturn(system.settings().config());
+        this.handler = new ChatSessionHandler(components);
+    }
+
+    /** a message, a gap and signals, as the chatroom and session buffer encode them */
+    protected static List<ChatFrame> frames() throws Exception {
+        return Arrays.asList(
+            ChatWireCodec.frame("7", new ChatMessageEnvelope(new ChatMessage(1000, "alice", "hello, \"bob\""), "7")),
+            ChatWireCodec.frame(null, new ChatMessageEnvelope(new ChatGap("8", "11", 4))),
+            ChatWireCodec.frame(null, new ChatMessageEnvelope(Collections.singletonList(new ChatSignal("bob", ChatSignal.TYPING, 2000)))));
+    }
+
+    protected static byte[] bytes(WebSocketMessage message) {
+        DataBuffer payload = message.getPayload();
+        byte[] bytes = new byte[payload.readableByteCount()];
+        payload.read(bytes);
+        return bytes;
+    }
+
+    /** a binary batch's envelopes, each read from behind its length */
+    protected static List<ChatMessageEnvelope> decodeBinaryBatch(byte[] bytes) {
+        List<ChatMessageEnvelope> envelopes = new ArrayList<>();
+        int position = 0;
+        while (position < bytes.length) {
+            BinaryReader in = new BinaryReader(bytes, position, bytes.length - position);
+            int length = in.readVarInt();
+            int offset = bytes.length - in.remaining();
+            BinaryReader envelope = new BinaryReader(bytes, offset, length);
+            envelopes.add(ChatWireCodec.decodeBinaryEnvelope(envelope));
+            assertEquals("envelope read to its end", 0, envelope.remaining());
+            position = offset + length;
+        }
+        return envelopes;
+    }
+
+    protected static void assertEnvelopes(List<ChatMessageEnvelope> envelopes) {
+        assertEquals(3, envelopes.size());
+        assertEquals("7", envelopes.get(0).getLastEventId());
+        assertEquals("hello, \"bob\"", envelopes.get(0).getMessage().getMessage());
+        assertEquals("alice", envelopes.get(0).getMessage().getUserId());
+        assertEquals(1000, envelopes.get(0).getMessage().getTimestamp());
+        assertEquals("8", envelopes.get(1).getGap().getFromEventId());
+        assertEquals("11", envelopes.get(1).getGap().getToEventId());
+        assertEquals(4, envelopes.get(1).getGap().getMissed());
+        assertEquals("bob", envelopes.get(2).getSignals().get(0).getUserId());
+        assertEquals(ChatSignal.TYPING, envelopes.get(2).getSignals().get(0).getType());
+    }
+
+    @Test
+    public void batchesJsonEnvelopesIntoArray() throws Exception {
+        List<ChatFrame> frames = frames();
+        WebSocketMessage message = this.handler.batchMessage(this.bufferFactory, frames, false);
+        assertEquals(WebSocketMessage.Type.TEXT, message.getType());
+
+        // the envelopes' own bytes, joined as they are
+        String text = new String(bytes(message), StandardCharsets.UTF_8);
+        StringBuilder expected = new StringBuilder("[");
+        for (ChatFrame frame : frames) {
+            expected.append(expected.length() > 1 ? "," : "").append(new String(frame.getPayload(), StandardCharsets.UTF_8));
+        }
+        assertEquals(expected.append("]").toString(), text);
+        assertEnvelopes(Arrays.asList(this.mapper.readValue(text, ChatMessageEnvelope[].class)));
+    }
+
+    @Test
+    public void batchOfOneEnvelopeIsStillArray() throws Exception {
+        ChatFrame frame = frames().get(0);
+        String text = new String(bytes(this.handler.batchMessage(this.bufferFactory, Collections.singletonList(frame), false)), StandardCharsets.UTF_8);
+        assertEquals("[" + new String(frame.getPayload(), StandardCharsets.UTF_8) + "]", text);
+    }
+
+    @Test
+    public void batchesBinaryEnvelopesPrefixedWithLength() throws Exception {
+        // transcoded by the relay, as binary sessions get them
+        List<ChatFrame> frames = new ArrayList<>();
+        frames().forEach(frame -> frames.add(ChatWireCodec.withBinaryPayload(frame)));
+        WebSocketMessage message = this.handler.batchMessage(this.bufferFactory, frames, true);
+        assertEquals(WebSocketMessage.Type.BINARY, message.getType());
+        assertEnvelopes(decodeBinaryBatch(bytes(message)));
+    }
+
+    @Test
+    public void transcodesBatchedFramesWithoutBinaryEncoding() throws Exception {
+        // e.g. gaps, which the session buffer encodes to json only
+        assertEnvelopes(decodeBinaryBatch(bytes(this.handler.batchMessage(this.bufferFactory, frames(), true))));
+    }
+
+    @Test
+    public void sendsSingleEnvelopeAsIs() throws Exception {
+        ChatFrame frame = frames().get(0);
+        assertArrayEquals(frame.getPayload(), bytes(this.handler.message(this.bufferFactory, frame, false)));
+        assertArrayEquals(ChatWireCodec.binaryPayload(frame), bytes(this.handler.message(this.bufferFactory, frame, true)));
+    }
+
+    @Test
+    public void weighsFramesByEncodingSent() throws Exception {
+        ChatFrame frame = frames().get(0);
+        assertEquals(frame.getPayload().length, ChatSessionHandler.weight(frame, false));
+        assertEquals(ChatWireCodec.binaryPayload(frame).length, ChatSessionHandler.weight(frame, true));
+        assertTrue(ChatSessionHandler.weight(frame, true) < ChatSessionHandler.weight(frame, false));
+    }
+}